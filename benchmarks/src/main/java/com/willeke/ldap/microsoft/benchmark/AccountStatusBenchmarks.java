@@ -0,0 +1,130 @@
+package com.willeke.ldap.microsoft.benchmark;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.willeke.ldap.microsoft.ADAccountStatus;
+import com.willeke.ldap.microsoft.ADPasswordChange;
+import com.willeke.ldap.microsoft.DomainPasswordPolicy;
+import com.willeke.ldap.microsoft.UserAccountControl;
+
+/**
+ * JMH benchmarks of the per-entry hot paths: ADAccountStatus.populateValues,
+ * msLong2Date, userAccountControl decoding and
+ * ADPasswordChange.encodeADPassword. Every invocation takes the next of
+ * INPUTS generated users. Run with the GC profiler to see B/op next to ns/op:
+ *
+ * java -jar benchmarks/target/benchmarks.jar AccountStatusBenchmarks -prof gc
+ *
+ * @author jim@willeke.com
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AccountStatusBenchmarks {
+
+  static final int INPUTS = 1024; // a power of 2
+  static final int MASK = INPUTS - 1;
+
+  Entry[] users;
+  long[] fileTimes;
+  int[] userAccountControls;
+  String[] passwords;
+  DomainPasswordPolicy policy;
+  ADAccountStatus status;
+  int i;
+
+  @Setup
+  public void setUp() throws ParseException {
+    Random random = new Random(42);
+    SyntheticADGenerator generator = new SyntheticADGenerator(42);
+    users = new Entry[INPUTS];
+    fileTimes = new long[INPUTS];
+    userAccountControls = new int[INPUTS];
+    passwords = new String[INPUTS];
+    for (int n = 0; n < INPUTS; n++) {
+      users[n] = generator.createUser(n);
+      fileTimes[n] = users[n].getAttributeValueAsLong("pwdLastSet").longValue() + n;
+      userAccountControls[n] = users[n].getAttributeValueAsInteger("userAccountControl").intValue();
+      passwords[n] = "P@ssw0rd-" + random.nextInt(1000000);
+    }
+    policy = new DomainPasswordPolicy(1800, 5, 1800, 42 * 86400, 86400);
+    status = new ADAccountStatus(users[0], policy);
+  }
+
+  int next() {
+    return i++ & MASK;
+  }
+
+  @Benchmark
+  public ADAccountStatus populateValues() throws ParseException {
+    return new ADAccountStatus(users[next()], policy);
+  }
+
+  @Benchmark
+  public Date populateValuesReuse() throws ParseException {
+    status.populateValues(users[next()]);
+    return status.getPwdChangedTime();
+  }
+
+  @Benchmark
+  public Date msLong2Date() {
+    return status.msLong2Date(fileTimes[next()]);
+  }
+
+  @Benchmark
+  public UserAccountControl userAccountControlGet() {
+    return UserAccountControl.get(userAccountControls[next()]);
+  }
+
+  @Benchmark
+  public int userAccountControlDecodeFlags() {
+    int uac = userAccountControls[next()];
+    int count = 0;
+    for (UserAccountControl flag : UserAccountControl.values()) {
+      if ((uac & flag.getCode()) != 0) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Benchmark
+  public boolean setUserAccountControl() {
+    status.setUserAccountControl(userAccountControls[next()]);
+    return status.isPasswordNeverExpires();
+  }
+
+  @Benchmark
+  public byte[] encodeADPassword() throws LDAPException {
+    return ADPasswordChange.encodeADPassword(passwords[next()]);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(AccountStatusBenchmarks.class.getName()).addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+}
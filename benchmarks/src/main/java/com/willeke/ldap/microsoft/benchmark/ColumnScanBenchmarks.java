@@ -0,0 +1,115 @@
+package com.willeke.ldap.microsoft.benchmark;
+
+import java.text.ParseException;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.willeke.ldap.microsoft.ADAccountStatus;
+import com.willeke.ldap.microsoft.AccountStatusColumns;
+import com.willeke.ldap.microsoft.AccountStatusSnapshot;
+import com.willeke.ldap.microsoft.DomainPasswordPolicy;
+
+/**
+ * Dashboard counts over a population of generated users, answered by the
+ * AccountStatusColumns scans and, as the baseline, by calling the checks of
+ * an array of AccountStatusSnapshots. One operation answers one question for
+ * every row.
+ *
+ * java -jar benchmarks/target/benchmarks.jar ColumnScanBenchmarks -p rows=1000000 -prof gc
+ *
+ * @author jim@willeke.com
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ColumnScanBenchmarks {
+
+  static final long FOURTEEN_DAYS = 14L * 24L * 3600L * 1000L;
+
+  @Param({ "1000000" })
+  int rows;
+
+  AccountStatusSnapshot[] snapshots;
+  AccountStatusColumns columns;
+  long now;
+
+  @Setup
+  public void setUp() throws ParseException {
+    SyntheticADGenerator generator = new SyntheticADGenerator(42);
+    DomainPasswordPolicy policy = new DomainPasswordPolicy(1800, 5, 1800, 42 * 86400, 86400);
+    snapshots = new AccountStatusSnapshot[rows];
+    columns = new AccountStatusColumns(rows);
+    for (int i = 0; i < rows; i++) {
+      snapshots[i] = AccountStatusSnapshot.of(new ADAccountStatus(generator.createUser(i), policy));
+      columns.add(snapshots[i]);
+    }
+    now = System.currentTimeMillis();
+  }
+
+  @Benchmark
+  public BitSet columnsLockedOut() {
+    return columns.lockedOut(now);
+  }
+
+  @Benchmark
+  public BitSet columnsPasswordExpired() {
+    return columns.passwordExpired(now);
+  }
+
+  @Benchmark
+  public BitSet columnsPasswordExpiresWithin14Days() {
+    return columns.passwordExpiresWithin(now, FOURTEEN_DAYS);
+  }
+
+  @Benchmark
+  public BitSet columnsDisabled() {
+    return columns.disabled();
+  }
+
+  @Benchmark
+  public int snapshotsLockedOut() {
+    int count = 0;
+    for (AccountStatusSnapshot snapshot : snapshots) {
+      if (snapshot.intruderLockoutCheck(now)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Benchmark
+  public int snapshotsPasswordExpiresWithin14Days() {
+    int count = 0;
+    for (AccountStatusSnapshot snapshot : snapshots) {
+      if (!snapshot.passwordExpirationCheck(now) && snapshot.passwordExpirationCheck(now + FOURTEEN_DAYS)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(ColumnScanBenchmarks.class.getName()).addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+}
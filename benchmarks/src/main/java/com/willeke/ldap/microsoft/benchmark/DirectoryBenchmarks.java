@@ -0,0 +1,167 @@
+package com.willeke.ldap.microsoft.benchmark;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.willeke.ldap.microsoft.ADAccountStatus;
+import com.willeke.ldap.microsoft.ADAsyncClient;
+import com.willeke.ldap.microsoft.BulkAccountStatus;
+import com.willeke.ldap.microsoft.RangeBasedSearch;
+
+/**
+ * End-to-end benchmarks of RangeBasedSearch, BulkAccountStatus and
+ * ADAsyncClient against an InMemoryADDirectory in the same JVM. One operation
+ * reads the whole group, evaluates every user or looks up LOOKUPS users, so
+ * the time is per run. The server runs in the same process, so these compare
+ * client code paths and round-trip counts rather than predict DC timings, and
+ * the GC profiler counts the server's allocations too.
+ *
+ * java -jar benchmarks/target/benchmarks.jar DirectoryBenchmarks -p users=10000 -prof gc
+ *
+ * @author jim@willeke.com
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DirectoryBenchmarks {
+
+  static final int LOOKUPS = 1000;
+  static final String GROUP = InMemoryADDirectory.ALL_USERS_GROUP_DN;
+  static final int STEP = InMemoryADDirectory.MAX_VAL_RANGE - 1;
+
+  @Param({ "10000" })
+  int users;
+
+  InMemoryADDirectory directory;
+  LDAPConnection ldc;
+  LDAPConnectionPool pool;
+  SyntheticADGenerator generator;
+  ExecutorService executor;
+  ADAsyncClient client;
+  int run;
+
+  @Setup
+  public void setUp() throws Exception {
+    directory = new InMemoryADDirectory(users, 42).start();
+    ldc = directory.getServer().getConnection();
+    pool = directory.getServer().getConnectionPool(4);
+    generator = new SyntheticADGenerator(42);
+    executor = Executors.newFixedThreadPool(2);
+    client = new ADAsyncClient(pool, 4, executor);
+  }
+
+  @TearDown
+  public void tearDown() {
+    client.close();
+    executor.shutdown();
+    pool.close();
+    ldc.close();
+    directory.shutDown();
+  }
+
+  @Benchmark
+  public int rangeBasedSearch() throws Exception {
+    return RangeBasedSearch.getAttributeRangeBasedSearch(ldc, GROUP, "(objectClass=*)", "member", STEP).size();
+  }
+
+  @Benchmark
+  public int rangeBasedSearchAdaptiveStep() throws Exception {
+    return RangeBasedSearch.getAttributeRangeBasedSearch(ldc, GROUP, "(objectClass=*)", "member").size();
+  }
+
+  @Benchmark
+  public long rangeBasedSearchIterate() throws Exception {
+    long count = 0;
+    Iterator<String> values = RangeBasedSearch.iterateAttributeRangeBasedSearch(ldc, GROUP, "(objectClass=*)",
+        "member", RangeBasedSearch.ADAPTIVE_STEP);
+    while (values.hasNext()) {
+      count += values.next().length();
+    }
+    return count;
+  }
+
+  @Benchmark
+  public int rangeBasedSearchParallel4() throws Exception {
+    return RangeBasedSearch.getAttributeRangeBasedSearchParallel(pool, GROUP, "(objectClass=*)", "member",
+        RangeBasedSearch.ADAPTIVE_STEP, 4).size();
+  }
+
+  @Benchmark
+  public long bulkAccountStatusEvaluate() throws Exception {
+    final long[] locked = { 0 };
+    BulkAccountStatus.evaluate(ldc, InMemoryADDirectory.USERS_DN, new BulkAccountStatus.AccountStatusHandler() {
+      public void handleAccountStatus(ADAccountStatus status) {
+        if (status.lockedAccountCheck()) {
+          locked[0]++;
+        }
+      }
+    });
+    return locked[0];
+  }
+
+  @Benchmark
+  public long accountStatusLookups() throws Exception {
+    int first = run++ * LOOKUPS;
+    long locked = 0;
+    for (int n = 0; n < LOOKUPS; n++) {
+      if (new ADAccountStatus(ldc, generator.userDN((first + n) % users)).lockedAccountCheck()) {
+        locked++;
+      }
+    }
+    return locked;
+  }
+
+  @Benchmark
+  public long asyncClientLookups() throws Exception {
+    int first = run++ * LOOKUPS;
+    List<CompletableFuture<ADAccountStatus>> lookups = new ArrayList<CompletableFuture<ADAccountStatus>>(LOOKUPS);
+    for (int n = 0; n < LOOKUPS; n++) {
+      lookups.add(client.getAccountStatus(generator.userDN((first + n) % users)));
+    }
+    long locked = 0;
+    for (CompletableFuture<ADAccountStatus> lookup : lookups) {
+      if (lookup.get().lockedAccountCheck()) {
+        locked++;
+      }
+    }
+    return locked;
+  }
+
+  @Benchmark
+  public int asyncClientGetAttributeRangeBasedSearch() throws Exception {
+    return client.getAttributeRangeBasedSearch(GROUP, "(objectClass=*)", "member").get().size();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(DirectoryBenchmarks.class.getName()).addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+}
@@ -0,0 +1,139 @@
+package com.willeke.ldap.microsoft.benchmark;
+
+import java.util.Arrays;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldif.LDIFException;
+
+/**
+ * An in-process UnboundID InMemoryDirectoryServer that looks enough like an
+ * Active Directory domain for the code in com.willeke.ldap.microsoft:
+ * <ul>
+ * <li>a rootDSE with defaultNamingContext, configurationNamingContext and the
+ * policy hints control</li>
+ * <li>the domain password policy on the domain entry, as negative 100-ns
+ * intervals</li>
+ * <li>CN=Users with users from a SyntheticADGenerator</li>
+ * <li>a group CN=All Users,CN=Users whose member values need range retrieval
+ * (RangeRetrievalInterceptor)</li>
+ * <li>one site with one DC in the Configuration partition</li>
+ * </ul>
+ * No schema is enforced.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class InMemoryADDirectory {
+
+  public static final String DEFAULT_NAMING_CONTEXT = "DC=example,DC=com";
+  public static final String CONFIGURATION_NAMING_CONTEXT = "CN=Configuration," + DEFAULT_NAMING_CONTEXT;
+  public static final String USERS_DN = "CN=Users," + DEFAULT_NAMING_CONTEXT;
+  public static final String ALL_USERS_GROUP_DN = "CN=All Users," + USERS_DN;
+  public static final String ADMIN_DN = "CN=Administrator," + USERS_DN;
+  public static final String ADMIN_PASSWORD = "password";
+  public static final int MAX_VAL_RANGE = 1500;
+
+  // 100-nanosecond intervals
+  static final long ONE_MINUTE = -600000000L;
+  static final long ONE_DAY = ONE_MINUTE * 60L * 24L;
+
+  private final InMemoryDirectoryServer server;
+  private final RangeRetrievalInterceptor rangeRetrieval;
+
+  /**
+   * @param users
+   *                - number of synthetic users, all members of the All Users
+   *                group
+   * @param seed
+   *                - the same seed gives the same users
+   * @throws LDAPException
+   */
+  public InMemoryADDirectory(int users, long seed) throws LDAPException {
+    this(new SyntheticADGenerator(seed), users, users);
+  }
+
+  /**
+   * @param generator
+   *                       - its policy settings should match the domain
+   *                       policy added here
+   * @param users
+   *                       - number of synthetic users
+   * @param groupMembers
+   *                       - member values of the All Users group, may be more
+   *                       than users
+   * @throws LDAPException
+   */
+  public InMemoryADDirectory(SyntheticADGenerator generator, int users, int groupMembers) throws LDAPException {
+    InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(DEFAULT_NAMING_CONTEXT,
+        CONFIGURATION_NAMING_CONTEXT);
+    config.setSchema(null);
+    config.addAdditionalBindCredentials(ADMIN_DN, ADMIN_PASSWORD);
+    config.setCustomRootDSEAttributes(Arrays.asList(new Attribute("defaultNamingContext", DEFAULT_NAMING_CONTEXT),
+        new Attribute("configurationNamingContext", CONFIGURATION_NAMING_CONTEXT),
+        new Attribute("supportedControl", "1.2.840.113556.1.4.319", "1.2.840.113556.1.4.2239")));
+    rangeRetrieval = new RangeRetrievalInterceptor(MAX_VAL_RANGE, "member");
+    config.addInMemoryOperationInterceptor(rangeRetrieval);
+    server = new InMemoryDirectoryServer(config);
+    addDomain();
+    addConfiguration();
+    generator.addUsers(server, users);
+    server.add(generator.createGroup(ALL_USERS_GROUP_DN, groupMembers));
+  }
+
+  private void addDomain() throws LDAPException {
+    add("dn: " + DEFAULT_NAMING_CONTEXT, "objectClass: top", "objectClass: domain", "objectClass: domainDNS",
+        "dc: example", "lockoutDuration: " + (30 * ONE_MINUTE), "lockoutThreshold: 5",
+        "lockOutObservationWindow: " + (30 * ONE_MINUTE), "maxPwdAge: " + (42 * ONE_DAY),
+        "minPwdAge: " + ONE_DAY);
+    add("dn: " + USERS_DN, "objectClass: top", "objectClass: container", "cn: Users");
+    add("dn: CN=System," + DEFAULT_NAMING_CONTEXT, "objectClass: top", "objectClass: container",
+        "cn: System");
+  }
+
+  private void addConfiguration() throws LDAPException {
+    String site = "CN=Default-First-Site-Name,CN=Sites," + CONFIGURATION_NAMING_CONTEXT;
+    String dc = "CN=DC1,CN=Servers," + site;
+    add("dn: " + CONFIGURATION_NAMING_CONTEXT, "objectClass: top", "objectClass: configuration");
+    add("dn: CN=Sites," + CONFIGURATION_NAMING_CONTEXT, "objectClass: top", "objectClass: sitesContainer");
+    add("dn: " + site, "objectClass: top", "objectClass: site");
+    add("dn: CN=Servers," + site, "objectClass: top", "objectClass: serversContainer");
+    add("dn: " + dc, "objectClass: top", "objectClass: server", "dNSHostName: localhost");
+    add("dn: CN=NTDS Settings," + dc, "objectClass: top", "objectClass: nTDSDSA",
+        "msDS-HasDomainNCs: " + DEFAULT_NAMING_CONTEXT);
+  }
+
+  private void add(String... ldifLines) throws LDAPException {
+    try {
+      server.add(ldifLines);
+    } catch (LDIFException e) {
+      throw new LDAPException(ResultCode.DECODING_ERROR, e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Start listening on a free port
+   *
+   * @return
+   * @throws LDAPException
+   */
+  public InMemoryADDirectory start() throws LDAPException {
+    server.startListening();
+    return this;
+  }
+
+  public void shutDown() {
+    server.shutDown(true);
+  }
+
+  public InMemoryDirectoryServer getServer() {
+    return server;
+  }
+
+  public RangeRetrievalInterceptor getRangeRetrieval() {
+    return rangeRetrieval;
+  }
+}
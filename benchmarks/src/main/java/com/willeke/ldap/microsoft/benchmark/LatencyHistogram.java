@@ -0,0 +1,117 @@
+package com.willeke.ldap.microsoft.benchmark;
+
+/**
+ * A log-linear histogram of latencies in nanoseconds: every power of 2 is
+ * split in 32 buckets so a percentile is within about 3% of the recorded value.
+ * Not thread safe, give each thread its own and add them together at the end.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class LatencyHistogram {
+
+  static final int SUB_BUCKET_BITS = 5;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final long[] counts = new long[BUCKETS];
+  private long count;
+  private long total;
+  private long min = Long.MAX_VALUE;
+  private long max;
+
+  /**
+   * @param nanos
+   *                - negative values are recorded as 0
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts[index(nanos)]++;
+    count++;
+    total += nanos;
+    if (nanos < min) {
+      min = nanos;
+    }
+    if (nanos > max) {
+      max = nanos;
+    }
+  }
+
+  /**
+   * Add the counts of other to this
+   *
+   * @param other
+   */
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] += other.counts[i];
+    }
+    count += other.count;
+    total += other.total;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * @param index
+   * @return the smallest value counted in the bucket
+   */
+  static long lowestValue(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = index % SUB_BUCKETS;
+    return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+  }
+
+  /**
+   * @param percentile
+   *                     - 0 to 100
+   * @return the value at the percentile, in the middle of its bucket and never
+   *         more than max
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        long low = lowestValue(i);
+        long high = i + 1 < BUCKETS ? lowestValue(i + 1) : Long.MAX_VALUE;
+        return Math.max(min, Math.min(max, low + (high - low) / 2));
+      }
+    }
+    return max;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMean() {
+    return count == 0 ? 0 : (double) total / count;
+  }
+
+  public long getMin() {
+    return count == 0 ? 0 : min;
+  }
+
+  public long getMax() {
+    return max;
+  }
+}
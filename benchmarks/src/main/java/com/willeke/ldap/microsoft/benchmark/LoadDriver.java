@@ -0,0 +1,265 @@
+package com.willeke.ldap.microsoft.benchmark;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.willeke.ldap.microsoft.ADAccountStatus;
+import com.willeke.ldap.microsoft.ADPasswordChange;
+import com.willeke.ldap.microsoft.RangeBasedSearch;
+
+/**
+ * Load test of the client code against an InMemoryADDirectory filled by a
+ * SyntheticADGenerator. Each operation is run on its own at each concurrency
+ * level: every thread runs it in a closed loop on a shared connection pool for
+ * load.seconds after load.warmupSeconds, and the driver reports throughput and
+ * latency percentiles in microseconds.
+ *
+ * Settings come from system properties:
+ * <ul>
+ * <li>load.users - default 100000</li>
+ * <li>load.groupMembers - member values of the All Users group, default
+ * load.users; use 1000000 or more to exercise range retrieval</li>
+ * <li>load.threads - comma separated concurrency levels, default 1,4,16</li>
+ * <li>load.seconds - default 10</li>
+ * <li>load.warmupSeconds - default 3</li>
+ * <li>load.operations - comma separated subset of accountStatus,
+ * passwordReset, rangeSearch; default all</li>
+ * <li>load.seed - default 42</li>
+ * </ul>
+ * The server runs in the same JVM and competes for the same CPUs, so compare
+ * runs on the same machine only.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class LoadDriver {
+
+  static String thisClass = LoadDriver.class.getName();
+  static Logger log = Logger.getLogger(thisClass);
+
+  /**
+   * One request of the load test
+   */
+  public interface LoadOperation {
+    /**
+     * @param pool
+     * @param random
+     *                 - owned by the calling thread
+     * @throws Exception
+     */
+    void run(LDAPConnectionPool pool, Random random) throws Exception;
+  }
+
+  private final Map<String, LoadOperation> operations = new LinkedHashMap<String, LoadOperation>();
+
+  /**
+   * @param generator
+   *                       - the generator that filled the directory
+   * @param users
+   *                       - users in the directory
+   * @param groupDN
+   *                       - the group read by rangeSearch
+   */
+  public LoadDriver(final SyntheticADGenerator generator, final int users, final String groupDN) {
+    operations.put("accountStatus", new LoadOperation() {
+      public void run(LDAPConnectionPool pool, Random random) throws Exception {
+        LDAPConnection ldc = pool.getConnection();
+        try {
+          ADAccountStatus status = new ADAccountStatus(ldc, generator.userDN(random.nextInt(users)));
+          status.lockedAccountCheck();
+          status.passwordExpirationCheck();
+        } finally {
+          pool.releaseConnection(ldc);
+        }
+      }
+    });
+    operations.put("passwordReset", new LoadOperation() {
+      public void run(LDAPConnectionPool pool, Random random) throws Exception {
+        String userDN = generator.userDN(random.nextInt(users));
+        pool.modify(ADPasswordChange.createPasswordModifyRequest(userDN, "P@ssw0rd-" + random.nextInt(), "unicodePwd"));
+        pool.modify(ADPasswordChange.createPwdLastSetModifyRequest(userDN, false));
+      }
+    });
+    operations.put("rangeSearch", new LoadOperation() {
+      public void run(LDAPConnectionPool pool, Random random) throws Exception {
+        LDAPConnection ldc = pool.getConnection();
+        try {
+          RangeBasedSearch.getAttributeRangeBasedSearch(ldc, groupDN, "(objectClass=*)", "member");
+        } finally {
+          pool.releaseConnection(ldc);
+        }
+      }
+    });
+  }
+
+  /**
+   * Add or replace an operation
+   *
+   * @param name
+   * @param operation
+   */
+  public void addOperation(String name, LoadOperation operation) {
+    operations.put(name, operation);
+  }
+
+  public Map<String, LoadOperation> getOperations() {
+    return operations;
+  }
+
+  /**
+   * Run operation with threads threads, each in a closed loop
+   *
+   * @param name
+   * @param operation
+   * @param pool
+   *                        - at least threads connections
+   * @param threads
+   * @param warmupMillis
+   * @param measureMillis
+   * @return
+   * @throws InterruptedException
+   */
+  public static LoadResult run(String name, final LoadOperation operation, final LDAPConnectionPool pool,
+      int threads, final long warmupMillis, final long measureMillis) throws InterruptedException {
+    final AtomicLong errors = new AtomicLong();
+    final LatencyHistogram[] histograms = new LatencyHistogram[threads];
+    final long start = System.nanoTime() + warmupMillis * 1000000L;
+    final long end = start + measureMillis * 1000000L;
+    List<Thread> workers = new ArrayList<Thread>(threads);
+    for (int t = 0; t < threads; t++) {
+      final LatencyHistogram histogram = new LatencyHistogram();
+      final Random random = new Random(t);
+      histograms[t] = histogram;
+      Thread worker = new Thread(new Runnable() {
+        public void run() {
+          long now = System.nanoTime();
+          while (now < end) {
+            long before = now;
+            try {
+              operation.run(pool, random);
+            } catch (Exception e) {
+              if (errors.getAndIncrement() == 0) {
+                log.warn("First failure of " + Thread.currentThread().getName(), e);
+              }
+            }
+            now = System.nanoTime();
+            if (before >= start) {
+              histogram.record(now - before);
+            }
+          }
+        }
+      }, name + "-" + t);
+      worker.setDaemon(true);
+      workers.add(worker);
+      worker.start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    LatencyHistogram total = new LatencyHistogram();
+    for (LatencyHistogram histogram : histograms) {
+      total.add(histogram);
+    }
+    return new LoadResult(name, threads, measureMillis, total, errors.get());
+  }
+
+  public static void printHeader() {
+    System.out.println(String.format(Locale.ROOT, "%-16s %7s %10s %10s %9s %9s %9s %9s %9s %10s %7s", "Operation",
+        "threads", "ops", "ops/s", "mean us", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us", "errors"));
+  }
+
+  public static void main(String[] args) throws Exception {
+    int users = Integer.getInteger("load.users", 100000).intValue();
+    int groupMembers = Integer.getInteger("load.groupMembers", users).intValue();
+    String[] threadCounts = System.getProperty("load.threads", "1,4,16").split(",");
+    long measureMillis = Long.getLong("load.seconds", 10L).longValue() * 1000L;
+    long warmupMillis = Long.getLong("load.warmupSeconds", 3L).longValue() * 1000L;
+    String selected = System.getProperty("load.operations");
+    SyntheticADGenerator generator = new SyntheticADGenerator(Long.getLong("load.seed", 42L).longValue());
+
+    long loadStart = System.nanoTime();
+    InMemoryADDirectory directory = new InMemoryADDirectory(generator, users, groupMembers).start();
+    System.out.println("Loaded " + users + " users and a group of " + groupMembers + " members in "
+        + (System.nanoTime() - loadStart) / 1000000L + " ms");
+    int maxThreads = 1;
+    for (String threads : threadCounts) {
+      maxThreads = Math.max(maxThreads, Integer.parseInt(threads.trim()));
+    }
+    LDAPConnectionPool pool = directory.getServer().getConnectionPool(null, null, maxThreads, maxThreads);
+    try {
+      LoadDriver driver = new LoadDriver(generator, users, InMemoryADDirectory.ALL_USERS_GROUP_DN);
+      printHeader();
+      for (Map.Entry<String, LoadOperation> operation : driver.getOperations().entrySet()) {
+        if (selected != null && !("," + selected + ",").contains("," + operation.getKey() + ",")) {
+          continue;
+        }
+        for (String threads : threadCounts) {
+          System.out.println(run(operation.getKey(), operation.getValue(), pool, Integer.parseInt(threads.trim()),
+              warmupMillis, measureMillis));
+        }
+      }
+    } finally {
+      pool.close();
+      directory.shutDown();
+    }
+  }
+
+  /**
+   * Throughput and latency of one operation at one concurrency level
+   */
+  public static class LoadResult {
+    final String name;
+    final int threads;
+    final long measureMillis;
+    final LatencyHistogram latencies;
+    final long errors;
+
+    LoadResult(String name, int threads, long measureMillis, LatencyHistogram latencies, long errors) {
+      this.name = name;
+      this.threads = threads;
+      this.measureMillis = measureMillis;
+      this.latencies = latencies;
+      this.errors = errors;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getThreads() {
+      return threads;
+    }
+
+    /**
+     * @return completed operations per second, failed ones included
+     */
+    public double getThroughput() {
+      return latencies.getCount() * 1000.0 / measureMillis;
+    }
+
+    public LatencyHistogram getLatencies() {
+      return latencies;
+    }
+
+    public long getErrors() {
+      return errors;
+    }
+
+    public String toString() {
+      return String.format(Locale.ROOT, "%-16s %7d %10d %10.1f %9.1f %9.1f %9.1f %9.1f %9.1f %10.1f %7d", name, threads,
+          latencies.getCount(), getThroughput(), latencies.getMean() / 1000.0,
+          latencies.getValueAtPercentile(50) / 1000.0, latencies.getValueAtPercentile(90) / 1000.0,
+          latencies.getValueAtPercentile(99) / 1000.0, latencies.getValueAtPercentile(99.9) / 1000.0,
+          latencies.getMax() / 1000.0, errors);
+    }
+  }
+}
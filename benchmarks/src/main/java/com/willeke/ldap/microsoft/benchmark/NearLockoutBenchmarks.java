@@ -0,0 +1,114 @@
+package com.willeke.ldap.microsoft.benchmark;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.willeke.ldap.microsoft.ADAccountStatus;
+import com.willeke.ldap.microsoft.DomainPasswordPolicy;
+import com.willeke.ldap.microsoft.NearLockoutDetector;
+import com.willeke.ldap.microsoft.PackedGUID;
+
+/**
+ * NearLockoutDetector.observe over a population of generated users, from the
+ * primitives and from entries parsed into an ADAccountStatus as a scan does.
+ * Every pass over the population moves badPasswordTime forward so accounts
+ * keep climbing. One operation is one observed user.
+ *
+ * java -jar benchmarks/target/benchmarks.jar NearLockoutBenchmarks -p rows=500000 -prof gc
+ *
+ * @author jim@willeke.com
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class NearLockoutBenchmarks {
+
+  static final int ENTRIES = 1024; // a power of 2
+
+  @Param({ "500000" })
+  int rows;
+
+  long[] guidHigh;
+  long[] guidLow;
+  int[] badPwdCount;
+  long[] badPasswordTime;
+  Entry[] entries;
+  DomainPasswordPolicy policy;
+  NearLockoutDetector detector;
+  long start;
+  int i;
+
+  @Setup
+  public void setUp() throws ParseException {
+    SyntheticADGenerator generator = new SyntheticADGenerator(42);
+    policy = new DomainPasswordPolicy(1800, 5, 1800, 42 * 86400, 86400);
+    guidHigh = new long[rows];
+    guidLow = new long[rows];
+    badPwdCount = new int[rows];
+    badPasswordTime = new long[rows];
+    entries = new Entry[ENTRIES];
+    for (int n = 0; n < rows; n++) {
+      Entry user = generator.createUser(n);
+      ADAccountStatus status = new ADAccountStatus(user, policy);
+      PackedGUID guid = status.getPackedObjectGUID();
+      guidHigh[n] = guid.getHigh();
+      guidLow[n] = guid.getLow();
+      badPwdCount[n] = status.getBadPwdCount();
+      badPasswordTime[n] = status.getBadPasswordTime() == null ? 0 : status.getBadPasswordTime().getTime();
+      if (n < ENTRIES) {
+        entries[n] = user;
+      }
+    }
+    detector = new NearLockoutDetector(rows, 16, new NearLockoutDetector.Listener() {
+      public void nearLockout(PackedGUID objectGUID, String dn, int count, int lockoutThreshold, long time) {
+      }
+
+      public void burst(int accounts, long windowMillis, long now) {
+      }
+    });
+    start = System.currentTimeMillis();
+  }
+
+  @Benchmark
+  public NearLockoutDetector observe() {
+    int n = i++;
+    int row = n % rows;
+    long now = start + n / rows * 60000L;
+    detector.observe(guidHigh[row], guidLow[row], null, badPwdCount[row], badPasswordTime[row] + now - start, 5,
+        1800, now);
+    return detector;
+  }
+
+  @Benchmark
+  public ADAccountStatus observeAccountStatus() throws ParseException {
+    ADAccountStatus status = new ADAccountStatus(entries[i++ & (ENTRIES - 1)], policy);
+    detector.observe(status, start);
+    return status;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(NearLockoutBenchmarks.class.getName()).addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+}
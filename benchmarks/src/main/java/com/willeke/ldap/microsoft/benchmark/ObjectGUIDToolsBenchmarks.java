@@ -0,0 +1,133 @@
+package com.willeke.ldap.microsoft.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.willeke.ldap.microsoft.ObjectGUIDTools;
+import com.willeke.ldap.microsoft.PackedGUID;
+
+/**
+ * JMH benchmarks of the table-driven objectGUID encoders and parsers in
+ * ObjectGUIDTools against the formatting they replaced (a String per byte),
+ * kept here as legacyDashedString. The allocation-free encoders should show 0
+ * B/op under the GC profiler:
+ *
+ * java -jar benchmarks/target/benchmarks.jar ObjectGUIDToolsBenchmarks -prof gc
+ *
+ * @author jim@willeke.com
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ObjectGUIDToolsBenchmarks {
+
+  static final int INPUTS = 1024; // a power of 2
+  static final int MASK = INPUTS - 1;
+
+  byte[][] guids;
+  String[] dashedGuids;
+  char[] chars;
+  StringBuilder sb;
+  int i;
+
+  @Setup
+  public void setUp() {
+    SyntheticADGenerator generator = new SyntheticADGenerator(42);
+    guids = new byte[INPUTS][];
+    dashedGuids = new String[INPUTS];
+    for (int n = 0; n < INPUTS; n++) {
+      guids[n] = generator.createUser(n).getAttributeValueBytes("objectGUID");
+      dashedGuids[n] = ObjectGUIDTools.convertToDashedString(guids[n]);
+    }
+    chars = new char[ObjectGUIDTools.BINDING_STRING_LENGTH];
+    sb = new StringBuilder(ObjectGUIDTools.BYTE_STRING_LENGTH);
+  }
+
+  int next() {
+    return i++ & MASK;
+  }
+
+  @Benchmark
+  public String legacyDashedString() {
+    return legacyDashedString(guids[next()]);
+  }
+
+  @Benchmark
+  public String convertToDashedString() {
+    return ObjectGUIDTools.convertToDashedString(guids[next()]);
+  }
+
+  @Benchmark
+  public char[] encodeBindingString() {
+    ObjectGUIDTools.encodeBindingString(guids[next()], chars, 0);
+    return chars;
+  }
+
+  @Benchmark
+  public StringBuilder appendByteString() {
+    sb.setLength(0);
+    return ObjectGUIDTools.appendByteString(guids[next()], sb);
+  }
+
+  @Benchmark
+  public byte[] parseDashedString() {
+    return ObjectGUIDTools.parseDashedString(dashedGuids[next()]);
+  }
+
+  @Benchmark
+  public PackedGUID packedGUIDFromBytes() {
+    return PackedGUID.fromBytes(guids[next()]);
+  }
+
+  /**
+   * ObjectGUIDTools.convertToDashedString as it was: a String per byte
+   *
+   * @param objectGUID
+   * @return
+   */
+  static String legacyDashedString(byte[] objectGUID) {
+    StringBuilder displayStr = new StringBuilder();
+    int[] order = { 3, 2, 1, 0, -1, 5, 4, -1, 7, 6, -1, 8, 9, -1, 10, 11, 12, 13, 14, 15 };
+    for (int i = 0; i < order.length; i++) {
+      if (order[i] < 0) {
+        displayStr.append("-");
+      } else {
+        displayStr.append(legacyPrefixZeros((int) objectGUID[order[i]] & 0xFF));
+      }
+    }
+    return displayStr.toString();
+  }
+
+  static String legacyPrefixZeros(int value) {
+    if (value <= 0xF) {
+      StringBuilder sb = new StringBuilder("0");
+      sb.append(Integer.toHexString(value));
+      return sb.toString();
+    } else {
+      return Integer.toHexString(value);
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(ObjectGUIDToolsBenchmarks.class.getName()).addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+}
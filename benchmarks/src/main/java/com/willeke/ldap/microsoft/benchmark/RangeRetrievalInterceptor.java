@@ -0,0 +1,123 @@
+package com.willeke.ldap.microsoft.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchEntry;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.util.StaticUtils;
+
+/**
+ * Makes an InMemoryDirectoryServer answer like Active Directory for
+ * multi-valued attributes with more than MaxValRange values: at most
+ * maxValRange values are returned as member;range=0-1499 and the caller asks
+ * for member;range=1500-* and so on. The last window is named with an end of
+ * "*".
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class RangeRetrievalInterceptor extends InMemoryOperationInterceptor {
+
+  static final String START = "rangeStart";
+  static final String END = "rangeEnd";
+
+  final Set<String> rangedAttributes = new HashSet<String>();
+  final int maxValRange;
+  private final AtomicLong searches = new AtomicLong();
+
+  /**
+   * @param maxValRange
+   *                           - 1500 like a Windows 2003 and later DC
+   * @param rangedAttributes
+   *                           - e.g. member
+   */
+  public RangeRetrievalInterceptor(int maxValRange, String... rangedAttributes) {
+    this.maxValRange = maxValRange;
+    for (String attribute : rangedAttributes) {
+      this.rangedAttributes.add(StaticUtils.toLowerCase(attribute));
+    }
+  }
+
+  public void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+    searches.incrementAndGet();
+    List<String> attributes = new ArrayList<String>(request.getRequest().getAttributeList());
+    boolean changed = false;
+    for (int i = 0; i < attributes.size(); i++) {
+      String attribute = StaticUtils.toLowerCase(attributes.get(i));
+      int range = attribute.indexOf(";range=");
+      if (range > 0 && rangedAttributes.contains(attribute.substring(0, range))) {
+        String[] bounds = attribute.substring(range + 7).split("-");
+        request.setProperty(START, Integer.valueOf(bounds[0]));
+        request.setProperty(END, bounds[1].equals("*") ? Integer.valueOf(-1) : Integer.valueOf(bounds[1]));
+        attributes.set(i, attributes.get(i).substring(0, range));
+        changed = true;
+      }
+    }
+    if (changed) {
+      SearchRequest searchRequest = request.getRequest().duplicate();
+      searchRequest.setAttributes(attributes);
+      request.setRequest(searchRequest);
+    }
+  }
+
+  public void processSearchEntry(InMemoryInterceptedSearchEntry result) {
+    SearchResultEntry entry = result.getSearchEntry();
+    Entry ranged = null;
+    for (Attribute attribute : entry.getAttributes()) {
+      if (!rangedAttributes.contains(StaticUtils.toLowerCase(attribute.getBaseName()))) {
+        continue;
+      }
+      Integer requestedStart = (Integer) result.getProperty(START);
+      Integer requestedEnd = (Integer) result.getProperty(END);
+      String[] values = attribute.getValues();
+      if (requestedStart == null && values.length <= maxValRange) {
+        continue;
+      }
+      if (ranged == null) {
+        ranged = entry.duplicate();
+      }
+      ranged.removeAttribute(attribute.getName());
+      int start = requestedStart == null ? 0 : requestedStart.intValue();
+      if (start >= values.length) {
+        ranged.addAttribute(new Attribute(attribute.getName() + ";range=" + start + "-*"));
+        continue;
+      }
+      int end = start + maxValRange - 1;
+      if (requestedEnd != null && requestedEnd.intValue() >= 0) {
+        end = Math.min(end, requestedEnd.intValue());
+      }
+      String name;
+      if (end >= values.length - 1) {
+        end = values.length - 1;
+        name = attribute.getName() + ";range=" + start + "-*";
+      } else {
+        name = attribute.getName() + ";range=" + start + "-" + end;
+      }
+      ranged.addAttribute(new Attribute(name, Arrays.copyOfRange(values, start, end + 1)));
+    }
+    if (ranged != null) {
+      result.setSearchEntry(ranged);
+    }
+  }
+
+  /**
+   * @return search requests seen since created or reset
+   */
+  public long getSearches() {
+    return searches.get();
+  }
+
+  public void resetSearches() {
+    searches.set(0);
+  }
+}
@@ -0,0 +1,330 @@
+package com.willeke.ldap.microsoft.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.util.StaticUtils;
+
+/**
+ * Generates AD-shaped user and group entries with distributions close to what
+ * a production domain shows:
+ * <ul>
+ * <li>userAccountControl - mostly 512, with disabled, password never expires,
+ * smart card required and password not required accounts in the proportions of
+ * USER_ACCOUNT_CONTROLS</li>
+ * <li>pwdLastSet - a few 0 (must change), most inside maxPwdAge and a long tail
+ * of stale (expired) passwords</li>
+ * <li>lockoutTime - absent for most users, 0 for users that were unlocked, a
+ * few inside the lockout duration and some expired lockouts that AD leaves in
+ * place until the next logon</li>
+ * <li>badPasswordTime and badPwdCount - most users mistype now and then, a few
+ * are close to the lockout threshold</li>
+ * <li>objectGUID - random version 4 GUIDs in the AD byte order</li>
+ * </ul>
+ * The same seed and now give the same entries. User n is always
+ * CN=user%07d,CN=Users so DNs can be derived without a search.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class SyntheticADGenerator {
+
+  // 100-nanosecond intervals
+  static final long TICKS_PER_MILLI = 10000L;
+  static final long TICKS_PER_MINUTE = 60L * 1000L * TICKS_PER_MILLI;
+  static final long TICKS_PER_DAY = 24L * 60L * TICKS_PER_MINUTE;
+  // 100-ns intervals between 1601-01-01 and 1970-01-01
+  static final long FILETIME_EPOCH_OFFSET = 116444736000000000L;
+  static final long NEVER_EXPIRES = Long.MAX_VALUE;
+
+  /**
+   * userAccountControl values and their weights in parts per thousand
+   */
+  static final int[][] USER_ACCOUNT_CONTROLS = { { 512, 800 }, // NORMAL_ACCOUNT
+      { 514, 80 }, // + ACCOUNTDISABLE
+      { 66048, 70 }, // + DONT_EXPIRE_PASSWORD
+      { 66050, 20 }, // + ACCOUNTDISABLE + DONT_EXPIRE_PASSWORD
+      { 262656, 15 }, // + SMARTCARD_REQUIRED
+      { 544, 10 }, // + PASSWD_NOTREQD
+      { 8389120, 5 } // + PASSWORD_EXPIRED
+  };
+
+  private final long seed;
+  private final long nowFileTime;
+  private final String usersDN;
+  private int maxPwdAgeDays = 42;
+  private int lockoutDurationMinutes = 30;
+  private int lockoutThreshold = 5;
+  private double mustChangeFraction = 0.02;
+  private double stalePasswordFraction = 0.10;
+  private double lockedFraction = 0.01;
+
+  /**
+   * Users under InMemoryADDirectory.USERS_DN, relative to the current time so
+   * that lockouts are still in effect when the entries are read
+   *
+   * @param seed
+   */
+  public SyntheticADGenerator(long seed) {
+    this(seed, System.currentTimeMillis(), InMemoryADDirectory.USERS_DN);
+  }
+
+  /**
+   * @param seed
+   * @param nowMillis
+   *                    - the time the distributions are relative to
+   * @param usersDN
+   *                    - the container of the users
+   */
+  public SyntheticADGenerator(long seed, long nowMillis, String usersDN) {
+    this.seed = seed;
+    this.nowFileTime = nowMillis * TICKS_PER_MILLI + FILETIME_EPOCH_OFFSET;
+    this.usersDN = usersDN;
+  }
+
+  /**
+   * @param n
+   * @return the DN of user n
+   */
+  public String userDN(int n) {
+    return "CN=" + userName(n) + "," + usersDN;
+  }
+
+  static String userName(int n) {
+    return String.format("user%07d", n);
+  }
+
+  /**
+   * User n is independent of the users generated before it, so any range of
+   * users can be generated or regenerated on its own.
+   *
+   * @param n
+   * @return
+   */
+  public Entry createUser(int n) {
+    Random random = new Random(seed * 0x9E3779B97F4A7C15L + n);
+    String cn = userName(n);
+    Entry user = new Entry(userDN(n));
+    user.addAttribute("objectClass", "top", "person", "organizationalPerson", "user");
+    user.addAttribute("objectCategory", "person");
+    user.addAttribute("cn", cn);
+    user.addAttribute("sAMAccountName", cn);
+    user.addAttribute(new Attribute("objectGUID", createObjectGUID(random)));
+
+    int userAccountControl = pick(USER_ACCOUNT_CONTROLS, random);
+    boolean disabled = (userAccountControl & 2) != 0;
+    user.addAttribute("userAccountControl", String.valueOf(userAccountControl));
+
+    long created = nowFileTime - (long) (random.nextDouble() * 5 * 365) * TICKS_PER_DAY;
+    long pwdLastSet;
+    double roll = random.nextDouble();
+    if (roll < mustChangeFraction) {
+      pwdLastSet = 0;
+    } else if (roll < mustChangeFraction + stalePasswordFraction || disabled) {
+      // expired, exponential tail with a mean of a year past maxPwdAge
+      pwdLastSet = Math.max(created, nowFileTime - maxPwdAgeDays * TICKS_PER_DAY
+          - (long) (exponential(random, 365) * TICKS_PER_DAY));
+    } else {
+      pwdLastSet = Math.max(created, nowFileTime - (long) (random.nextDouble() * maxPwdAgeDays * TICKS_PER_DAY));
+    }
+    user.addAttribute("pwdLastSet", String.valueOf(pwdLastSet));
+
+    long lockoutDuration = lockoutDurationMinutes * TICKS_PER_MINUTE;
+    roll = random.nextDouble();
+    boolean locked = false;
+    if (roll < lockedFraction) {
+      locked = true;
+      user.addAttribute("lockoutTime", String.valueOf(nowFileTime - (long) (random.nextDouble() * lockoutDuration)));
+    } else if (roll < lockedFraction * 4) {
+      // lockout that expired but has not been cleared by a logon yet
+      user.addAttribute("lockoutTime",
+          String.valueOf(nowFileTime - lockoutDuration - (long) (exponential(random, 30) * TICKS_PER_DAY)));
+    } else if (roll < 0.4) {
+      user.addAttribute("lockoutTime", "0");
+    }
+
+    // badPasswordTime and badPwdCount
+    roll = random.nextDouble();
+    if (locked) {
+      user.addAttribute("badPasswordTime", user.getAttributeValue("lockoutTime"));
+      user.addAttribute("badPwdCount", String.valueOf(lockoutThreshold));
+    } else if (roll < 0.3) {
+      user.addAttribute("badPasswordTime", "0");
+      user.addAttribute("badPwdCount", "0");
+    } else {
+      long badPasswordTime = nowFileTime - (long) (exponential(random, 7) * TICKS_PER_DAY);
+      int badPwdCount = 0;
+      if (roll > 0.98) {
+        // recent and close to the threshold
+        badPasswordTime = nowFileTime - (long) (random.nextDouble() * lockoutDuration);
+        badPwdCount = lockoutThreshold - 1 - random.nextInt(Math.max(1, lockoutThreshold / 2));
+      }
+      user.addAttribute("badPasswordTime", String.valueOf(badPasswordTime));
+      user.addAttribute("badPwdCount", String.valueOf(badPwdCount));
+    }
+
+    long lastLogon = disabled ? nowFileTime - (long) ((30 + exponential(random, 180)) * TICKS_PER_DAY)
+        : nowFileTime - (long) (exponential(random, 3) * TICKS_PER_DAY);
+    user.addAttribute("lastLogonTimestamp", String.valueOf(Math.max(created, lastLogon)));
+    user.addAttribute("accountExpires",
+        random.nextInt(100) < 3 ? String.valueOf(nowFileTime + random.nextInt(365) * TICKS_PER_DAY)
+            : String.valueOf(NEVER_EXPIRES));
+    user.addAttribute("logonCount", String.valueOf((int) exponential(random, 500)));
+    String createTimeStamp = StaticUtils.encodeGeneralizedTime(fileTimeToMillis(created));
+    user.addAttribute("whenCreated", createTimeStamp);
+    user.addAttribute("createTimeStamp", createTimeStamp);
+    user.addAttribute("modifyTimeStamp",
+        StaticUtils.encodeGeneralizedTime(fileTimeToMillis(Math.max(created, Math.max(pwdLastSet, lastLogon)))));
+    return user;
+  }
+
+  /**
+   * A group whose member values are the DNs of users 0 to members - 1. The
+   * users do not have to exist, the in-memory server does not check referential
+   * integrity, so groups with millions of values are cheap to build.
+   *
+   * @param dn
+   * @param members
+   * @return
+   */
+  public Entry createGroup(String dn, int members) {
+    Entry group = new Entry(dn);
+    group.addAttribute("objectClass", "top", "group");
+    group.addAttribute("cn", StaticUtils.toLowerCase(dn).startsWith("cn=") ? dn.substring(3, dn.indexOf(',')) : dn);
+    group.addAttribute("groupType", "-2147483646");
+    if (members > 0) {
+      String[] values = new String[members];
+      for (int i = 0; i < members; i++) {
+        values[i] = userDN(i);
+      }
+      group.addAttribute("member", values);
+    }
+    return group;
+  }
+
+  /**
+   * Add users 0 to count - 1 in batches
+   *
+   * @param server
+   *                 - USERS_DN must exist
+   * @param count
+   * @throws LDAPException
+   */
+  public void addUsers(InMemoryDirectoryServer server, int count) throws LDAPException {
+    int batch = 10000;
+    List<Entry> entries = new ArrayList<Entry>(Math.min(batch, count));
+    for (int i = 0; i < count; i++) {
+      entries.add(createUser(i));
+      if (entries.size() == batch) {
+        server.addEntries(entries);
+        entries.clear();
+      }
+    }
+    if (!entries.isEmpty()) {
+      server.addEntries(entries);
+    }
+  }
+
+  /**
+   * 16 random bytes with the version 4 and variant bits set where AD stores
+   * them: Data3 is little-endian so the version is the high nibble of byte 7
+   *
+   * @param random
+   * @return
+   */
+  static byte[] createObjectGUID(Random random) {
+    byte[] objectGUID = new byte[16];
+    random.nextBytes(objectGUID);
+    objectGUID[7] = (byte) ((objectGUID[7] & 0x0F) | 0x40);
+    objectGUID[8] = (byte) ((objectGUID[8] & 0x3F) | 0x80);
+    return objectGUID;
+  }
+
+  static int pick(int[][] weighted, Random random) {
+    int total = 0;
+    for (int[] value : weighted) {
+      total += value[1];
+    }
+    int roll = random.nextInt(total);
+    for (int[] value : weighted) {
+      roll -= value[1];
+      if (roll < 0) {
+        return value[0];
+      }
+    }
+    return weighted[0][0];
+  }
+
+  static double exponential(Random random, double mean) {
+    return -mean * Math.log(1 - random.nextDouble());
+  }
+
+  static long fileTimeToMillis(long fileTime) {
+    return (fileTime - FILETIME_EPOCH_OFFSET) / TICKS_PER_MILLI;
+  }
+
+  public long getNowFileTime() {
+    return nowFileTime;
+  }
+
+  public int getMaxPwdAgeDays() {
+    return maxPwdAgeDays;
+  }
+
+  /**
+   * @param maxPwdAgeDays
+   *                        - match the maxPwdAge of the domain
+   */
+  public void setMaxPwdAgeDays(int maxPwdAgeDays) {
+    this.maxPwdAgeDays = maxPwdAgeDays;
+  }
+
+  public int getLockoutDurationMinutes() {
+    return lockoutDurationMinutes;
+  }
+
+  /**
+   * @param lockoutDurationMinutes
+   *                                 - match the lockoutDuration of the domain
+   */
+  public void setLockoutDurationMinutes(int lockoutDurationMinutes) {
+    this.lockoutDurationMinutes = lockoutDurationMinutes;
+  }
+
+  public int getLockoutThreshold() {
+    return lockoutThreshold;
+  }
+
+  public void setLockoutThreshold(int lockoutThreshold) {
+    this.lockoutThreshold = lockoutThreshold;
+  }
+
+  public double getMustChangeFraction() {
+    return mustChangeFraction;
+  }
+
+  public void setMustChangeFraction(double mustChangeFraction) {
+    this.mustChangeFraction = mustChangeFraction;
+  }
+
+  public double getStalePasswordFraction() {
+    return stalePasswordFraction;
+  }
+
+  public void setStalePasswordFraction(double stalePasswordFraction) {
+    this.stalePasswordFraction = stalePasswordFraction;
+  }
+
+  public double getLockedFraction() {
+    return lockedFraction;
+  }
+
+  public void setLockedFraction(double lockedFraction) {
+    this.lockedFraction = lockedFraction;
+  }
+}
@@ -6,10 +6,11 @@ import java.net.UnknownHostException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 
 import org.apache.commons.lang.NotImplementedException;
@@ -19,7 +20,7 @@ import com.unboundid.ldap.sdk.Attribute;
 import com.unboundid.ldap.sdk.Entry;
 import com.unboundid.ldap.sdk.LDAPConnection;
 import com.unboundid.ldap.sdk.LDAPException;
-import com.unboundid.ldap.sdk.RootDSE;
+import com.unboundid.util.StaticUtils;
 import com.willeke.utility.bitmask.BitMask;
 
 /**
@@ -62,8 +63,8 @@ public class ADAccountStatus implements com.willeke.ldap.AccountStatus {
 
   LDAPConnection connection = null;
   Entry ldapEntry = null;
-  String objectGUID = null; // we use this to identify the user entry Not sure
-  // this is really needed.
+  byte[] objectGUIDBytes = null; // we use this to identify the user entry
+  String objectGUID = null; // formatted from objectGUIDBytes when first asked
   String entryDN = null;
 
   // Password Policy State Attributes typically for each entry from
@@ -183,6 +184,7 @@ public class ADAccountStatus implements com.willeke.ldap.AccountStatus {
   Date lastLogonTimestamp;
   int logonCount;
   BitMask userAccountControl;
+  int userAccountControlValue;
   boolean accountDisabled = false;
   boolean accountLocked = false;
 
@@ -192,21 +194,39 @@ public class ADAccountStatus implements com.willeke.ldap.AccountStatus {
   int msDSLockoutObservationWindow; // (in minutes) - pwdFailureCountInterval
   // (Seconds)
   int lockoutDuration;// pwdLockoutDuration
+  String resultantPSO; // msDS-ResultantPSO - DN of the Fine-Grained Password
+  // Policy that applies, null for the domain policy
 
   static String[] userAttrs = { "objectGUID", "pwdLastSet", "userAccountControl", "lockoutTime", "logonCount",
-      "accountExpires", "badPasswordTime", "lastLogonTimestamp",
-      "createTimeStamp", "modifyTimeStamp" };
+      "accountExpires", "badPasswordTime", "badPwdCount", "lastLogonTimestamp",
+      "createTimeStamp", "modifyTimeStamp", "msDS-ResultantPSO" };
 
   public ADAccountStatus(Entry userEntry) throws ParseException {
     ldapEntry = userEntry;
     populateValues(ldapEntry);
   }
 
+  /**
+   * Use a DomainPasswordPolicy that has already been read, so many entries from
+   * the same domain do not each read the policy from the server.
+   * 
+   * @param userEntry
+   *                    - Entry read with userAttrs
+   * @param policy
+   * @throws ParseException
+   */
+  public ADAccountStatus(Entry userEntry, DomainPasswordPolicy policy) throws ParseException {
+    ldapEntry = userEntry;
+    setPolicyValues(policy);
+    populateValues(ldapEntry);
+  }
+
   public ADAccountStatus(LDAPConnection ldc, String dn) throws LDAPException, ParseException {
     connection = ldc;
-    getPolicyValues();
     ldapEntry = ldc.getEntry(dn, userAttrs);
     populateValues(ldapEntry);
+    // after populateValues so msDS-ResultantPSO is known
+    getPolicyValues();
   }
 
   /**
@@ -470,7 +490,15 @@ public class ADAccountStatus implements com.willeke.ldap.AccountStatus {
     return userAccountControl;
   }
 
+  /**
+   * @return the raw userAccountControl value
+   */
+  public int getUserAccountControlValue() {
+    return userAccountControlValue;
+  }
+
   public void setUserAccountControl(int userAccountControl) {
+    this.userAccountControlValue = userAccountControl;
     this.userAccountControl = new BitMask(userAccountControl);
   }
 
@@ -480,7 +508,7 @@ public class ADAccountStatus implements com.willeke.ldap.AccountStatus {
 
   public void setCreateTimeStamp(String createTimeStamp) {
     try {
-      this.createTimeStamp = com.unboundid.util.StaticUtils.decodeGeneralizedTime(createTimeStamp);
+      this.createTimeStamp = decodeGeneralizedTime(createTimeStamp);
     } catch (ParseException e) {
       // TODO Auto-generated catch block
       e.printStackTrace();
@@ -493,7 +521,7 @@ public class ADAccountStatus implements com.willeke.ldap.AccountStatus {
 
   public void setModifyTimeStamp(String modifyTimeStamp) {
     try {
-      this.modifyTimeStamp = com.unboundid.util.StaticUtils.decodeGeneralizedTime(modifyTimeStamp);
+      this.modifyTimeStamp = decodeGeneralizedTime(modifyTimeStamp);
     } catch (ParseException e) {
       // TODO Auto-generated catch block
       e.printStackTrace();
@@ -953,120 +981,317 @@ public class ADAccountStatus implements com.willeke.ldap.AccountStatus {
     return passwordExpirationCalendar;
   }
 
+  /**
+   * The policy values come from the process-wide DomainPasswordPolicyCache so
+   * the rootDSE and the domain entry are only read when the cache has expired.
+   * If the entry has a msDS-ResultantPSO the values of that Password Settings
+   * Object are used.
+   */
   public void getPolicyValues() {
-    String[] policyAttrs = { "lockoutDuration", "lockoutThreshold", "maxPwdAge", "minPwdAge",
-        "lockOutObservationWindow" };
     try {
-      RootDSE rootDSE = connection.getRootDSE();
-      String defaultNamingContext = rootDSE.getAttribute("defaultNamingContext").getValue();
-      Entry defaultNamingContextEntry = connection.getEntry(defaultNamingContext, policyAttrs);
-      // setPwdLockoutDuration must be in seconds and must be a posistive
-      // number (lockoutDuration is negative as returned.
-      // lockoutDuration is large integer that represents the negative of
-      // the number of 100-nanosecond intervals
-      setPwdLockoutDuration(nanosToIntSeconds(defaultNamingContextEntry.getAttributeValueAsLong("lockoutDuration")));
-      setPwdMaxFailure(defaultNamingContextEntry.getAttributeValueAsInteger("lockoutThreshold")); // pwdMaxFailure
-      setPwdFailureCountInterval((int) (com.unboundid.util.StaticUtils
-          .nanosToMillis(defaultNamingContextEntry.getAttributeValueAsLong("lockOutObservationWindow")) / 1000));
-      setPwdMaxAge(nanosToIntSeconds(defaultNamingContextEntry.getAttributeValueAsLong("maxPwdAge")));
-      setPwdMinAge(nanosToIntSeconds(defaultNamingContextEntry.getAttributeValueAsLong("minPwdAge")));
-
+      setPolicyValues(DomainPasswordPolicyCache.getInstance().getEffectivePolicy(connection, getResultantPSO()));
     } catch (LDAPException e) {
       // TODO Auto-generated catch block
       e.printStackTrace();
     }
   }
 
+  /**
+   * Sets the policy values from a DomainPasswordPolicy
+   * 
+   * @param policy
+   */
+  public void setPolicyValues(DomainPasswordPolicy policy) {
+    policy.applyTo(this);
+  }
+
   /**
    * @param nanos
    * @return
    */
   public Integer nanosToIntSeconds(long nanos) {
-    nanos = Math.abs(nanos);
-    long test = com.unboundid.util.StaticUtils.nanosToMillis(nanos);
-    Integer i = (int) (long) test;
-    i = i / 10;
-    return i;
+    return DomainPasswordPolicy.nanosToIntSeconds(nanos);
   }
 
   /**
-   * Sets all the values for the Entry Microsoft Active Directory
-   * 
-   * @param userEntry
-   * @throws ParseException
+   * Sets the value of one attribute, parsing it once
    */
-  public void populateValues(Entry userEntry) throws ParseException {
-    Collection<Attribute> attributes = userEntry.getAttributes();
-    for (Iterator<Attribute> iterator = attributes.iterator(); iterator.hasNext();) {
-      Attribute attribute = iterator.next();
-      if (attribute.getName().equalsIgnoreCase("objectGUID")) {
-        byte[] byteValue = userEntry.getAttributeValueBytes("objectGUID");
-        setObjectGUID(byteValue);
-      } else if (attribute.getName().equalsIgnoreCase("pwdLastSet")) {
-        if (userEntry.getAttributeValueAsLong("pwdLastSet") != null) {
-          if (userEntry.getAttributeValueAsLong("pwdLastSet") == 0) {
-            setPwdMustChange(true);
-          } else if (userEntry.getAttributeValueAsLong("pwdLastSet") == -1) {
-            setPwdMustChange(false);
-          } else {
-            setPwdChangedTime(msLong2Date(userEntry.getAttributeValueAsLong("pwdLastSet")));
-          }
+  interface AttributeHandler {
+    void handle(ADAccountStatus status, Attribute attribute) throws ParseException;
+  }
+
+  /**
+   * The handlers by attribute name as in userAttrs and in lower case, so the
+   * names AD returns are found without folding and other spellings with one
+   * toLowerCase
+   */
+  static final Map<String, AttributeHandler> ATTRIBUTE_HANDLERS = new HashMap<String, AttributeHandler>();
+
+  static {
+    addAttributeHandler("objectGUID", new AttributeHandler() {
+      public void handle(ADAccountStatus status, Attribute attribute) {
+        status.setObjectGUID(attribute.getValueByteArray());
+      }
+    });
+    addAttributeHandler("pwdLastSet", new AttributeHandler() {
+      public void handle(ADAccountStatus status, Attribute attribute) {
+        long pwdLastSet = parseLong(attribute.getValueByteArray());
+        if (pwdLastSet == 0) {
+          status.setPwdMustChange(true);
+        } else if (pwdLastSet == -1) {
+          status.setPwdMustChange(false);
+        } else {
+          status.setPwdLastSet(pwdLastSet);
+          status.setPwdChangedTime(status.pwdLastSet);
         }
-      } else if (attribute.getName().equalsIgnoreCase("lockoutTime")) {
-        if (userEntry.getAttributeValueAsLong("lockoutTime") != 0) {
-          setPwdAccountLockedTime(msLong2Date(userEntry.getAttributeValueAsLong("lockoutTime")));
+      }
+    });
+    addAttributeHandler("lockoutTime", new AttributeHandler() {
+      public void handle(ADAccountStatus status, Attribute attribute) {
+        long lockoutTime = parseLong(attribute.getValueByteArray());
+        if (lockoutTime != 0) {
+          status.setPwdAccountLockedTime(status.msLong2Date(lockoutTime));
         }
-      } else if (attribute.getName().equalsIgnoreCase("badPasswordTime")) {
-        if (userEntry.hasAttribute("badPasswordTime")) {
-          if (userEntry.getAttributeValueAsLong("badPasswordTime") > 0) {// only
-                                                                         // here
-                                                                         // can
-                                                                         // we
-                                                                         // assume
-                                                                         // there
-                                                                         // is
-                                                                         // really
-                                                                         // a
-                                                                         // date
-            String[] temp = { com.unboundid.util.StaticUtils
-                .encodeGeneralizedTime(msLong2Date(userEntry.getAttributeValueAsLong("badPasswordTime"))) };
-            setPwdFailureTime(temp);
+      }
+    });
+    addAttributeHandler("badPasswordTime", new AttributeHandler() {
+      public void handle(ADAccountStatus status, Attribute attribute) {
+        long badPasswordTime = parseLong(attribute.getValueByteArray());
+        // only here can we assume there is really a date
+        if (badPasswordTime > 0) {
+          status.setBadPasswordTime(badPasswordTime);
+          if (status.pwdFailureTime != null) {
+            status.pwdFailureTime.clear();
+          } else {
+            status.pwdFailureTime = new ArrayList<Date>(1);
           }
+          status.pwdFailureTime.add(status.badPasswordTime);
+        }
+      }
+    });
+    addAttributeHandler("badPwdCount", new AttributeHandler() {
+      public void handle(ADAccountStatus status, Attribute attribute) {
+        status.setBadPwdCount((int) parseLong(attribute.getValueByteArray()));
+      }
+    });
+    addAttributeHandler("lastLogonTimestamp", new AttributeHandler() {
+      public void handle(ADAccountStatus status, Attribute attribute) {
+        status.setPwdLastSuccess(status.msLong2Date(parseLong(attribute.getValueByteArray())));
+      }
+    });
+    addAttributeHandler("logonCount", new AttributeHandler() {
+      public void handle(ADAccountStatus status, Attribute attribute) {
+        status.setLogonCount((int) parseLong(attribute.getValueByteArray()));
+      }
+    });
+    addAttributeHandler("createTimeStamp", new AttributeHandler() {
+      public void handle(ADAccountStatus status, Attribute attribute) {
+        status.setCreateTimeStamp(attribute.getValue());
+      }
+    });
+    addAttributeHandler("modifyTimeStamp", new AttributeHandler() {
+      public void handle(ADAccountStatus status, Attribute attribute) {
+        status.setModifyTimeStamp(attribute.getValue());
+      }
+    });
+    addAttributeHandler("accountExpires", new AttributeHandler() {
+      public void handle(ADAccountStatus status, Attribute attribute) {
+        status.setPwdEndTime(status.msLong2Date(parseLong(attribute.getValueByteArray())));
+      }
+    });
+    addAttributeHandler("msDS-ResultantPSO", new AttributeHandler() {
+      public void handle(ADAccountStatus status, Attribute attribute) {
+        status.setResultantPSO(attribute.getValue());
+      }
+    });
+    addAttributeHandler("userAccountControl", new AttributeHandler() {
+      public void handle(ADAccountStatus status, Attribute attribute) {
+        status.setUserAccountControl((int) parseLong(attribute.getValueByteArray()));
+        status.setAccountLocked(
+            status.userAccountControl.isBitSet(com.willeke.ldap.microsoft.UserAccountControl.LOCKOUT.getCode()));
+      }
+    });
+  }
+
+  static void addAttributeHandler(String name, AttributeHandler handler) {
+    ATTRIBUTE_HANDLERS.put(name, handler);
+    ATTRIBUTE_HANDLERS.put(StaticUtils.toLowerCase(name), handler);
+  }
 
+  /**
+   * Parses the ASCII digits of an Integer8 or Integer value without creating a
+   * String
+   * 
+   * @param value
+   * @return
+   * @throws NumberFormatException
+   *                                 - if value is not an optionally signed
+   *                                 decimal that fits a long, the same ASCII
+   *                                 values Long.parseLong rejects
+   */
+  static long parseLong(byte[] value) {
+    int length = value.length;
+    if (length == 0) {
+      throw new NumberFormatException("Not an integer: " + StaticUtils.toUTF8String(value));
+    }
+    boolean negative = value[0] == '-';
+    int i = negative || value[0] == '+' ? 1 : 0;
+    if (i == length) {
+      throw new NumberFormatException("Not an integer: " + StaticUtils.toUTF8String(value));
+    }
+    // accumulate as a negative number so Long.MIN_VALUE fits
+    long result = 0;
+    for (; i < length; i++) {
+      int digit = value[i] - '0';
+      if (digit < 0 || digit > 9 || result < (Long.MIN_VALUE + digit) / 10) {
+        throw new NumberFormatException("Not an integer: " + StaticUtils.toUTF8String(value));
+      }
+      result = result * 10 - digit;
+    }
+    if (negative) {
+      return result;
+    }
+    if (result == Long.MIN_VALUE) {
+      throw new NumberFormatException("Not an integer: " + StaticUtils.toUTF8String(value));
+    }
+    return -result;
+  }
+
+  /**
+   * Decodes the UTC form AD returns, yyyyMMddHHmmss.0Z, with arithmetic and
+   * leaves every other form, and years before 1601 where the calendar is
+   * Julian, to StaticUtils.decodeGeneralizedTime
+   * 
+   * @param value
+   * @return
+   * @throws ParseException
+   */
+  static Date decodeGeneralizedTime(String value) throws ParseException {
+    int length = value.length();
+    if (length < 15 || value.charAt(length - 1) != 'Z' || (length > 15 && value.charAt(14) != '.')) {
+      return StaticUtils.decodeGeneralizedTime(value);
+    }
+    int millis = 0;
+    int scale = 100;
+    for (int i = 15; i < length - 1; i++) {
+      int digit = value.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        return StaticUtils.decodeGeneralizedTime(value);
+      }
+      millis += digit * scale;
+      scale /= 10;
+    }
+    int year = digits(value, 0, 4);
+    int month = digits(value, 4, 2);
+    int day = digits(value, 6, 2);
+    int hour = digits(value, 8, 2);
+    int minute = digits(value, 10, 2);
+    int second = digits(value, 12, 2);
+    if (year < 1601 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) || hour < 0 || hour > 23
+        || minute < 0 || minute > 59 || second < 0 || second > 59) {
+      return StaticUtils.decodeGeneralizedTime(value);
+    }
+    // days since 1970-01-01 of the proleptic Gregorian date
+    int y = month <= 2 ? year - 1 : year;
+    int era = (y >= 0 ? y : y - 399) / 400;
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    long days = era * 146097L + dayOfEra - 719468L;
+    return new Date((((days * 24L + hour) * 60L + minute) * 60L + second) * 1000L + millis);
+  }
+
+  private static int daysInMonth(int year, int month) {
+    if (month == 2) {
+      return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0 ? 29 : 28;
+    }
+    return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+  }
+
+  /**
+   * @return the decimal value of count characters at offset, -1 if one is not
+   *         a digit
+   */
+  private static int digits(String value, int offset, int count) {
+    int result = 0;
+    for (int i = offset; i < offset + count; i++) {
+      int digit = value.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        return -1;
+      }
+      result = result * 10 + digit;
+    }
+    return result;
+  }
+
+  /**
+   * Sets all the values for the Entry Microsoft Active Directory. Each
+   * attribute is dispatched through ATTRIBUTE_HANDLERS and its value parsed
+   * once. Attributes without a handler or without a value are ignored, as are
+   * values that are not numbers where a number is expected.
+   * 
+   * @param userEntry
+   * @throws ParseException
+   */
+  public void populateValues(Entry userEntry) throws ParseException {
+    for (Attribute attribute : userEntry.getAttributes()) {
+      if (!attribute.hasValue()) {
+        continue;
+      }
+      String name = attribute.getName();
+      AttributeHandler handler = ATTRIBUTE_HANDLERS.get(name);
+      if (handler == null) {
+        handler = ATTRIBUTE_HANDLERS.get(StaticUtils.toLowerCase(name));
+        if (handler == null) {
+          continue;
         }
-      } else if (attribute.getName().equalsIgnoreCase("lastLogonTimestamp")) {
-        setPwdLastSuccess(msLong2Date(userEntry.getAttributeValueAsLong("lastLogonTimestamp")));
-      } else if (attribute.getName().equalsIgnoreCase("createTimeStamp")) {
-        setCreateTimeStamp(userEntry.getAttributeValue("createTimeStamp"));
-      } else if (attribute.getName().equalsIgnoreCase("modifyTimeStamp")) {
-        setModifyTimeStamp(userEntry.getAttributeValue("modifyTimeStamp"));
-      } else if (attribute.getName().equalsIgnoreCase("pwdLastSet")) {
-        setPwdLastSet(userEntry.getAttributeValueAsLong("pwdLastSet"));
-      } else if (attribute.getName().equalsIgnoreCase("accountExpires")) {
-        setPwdEndTime(msLong2Date(userEntry.getAttributeValueAsLong("accountExpires")));
-      } else if (attribute.getName().equalsIgnoreCase("userAccountControl")) {
-        setUserAccountControl(userEntry.getAttributeValueAsInteger("userAccountControl"));
-        setAccountLocked(userAccountControl.isBitSet(com.willeke.ldap.microsoft.UserAccountControl.LOCKOUT.getCode()));
-        setIsAccountDisabled(
-            userAccountControl.isBitSet(com.willeke.ldap.microsoft.UserAccountControl.ACCOUNT_DISABLED.getCode()));
-        setPwdAllowUserChange(userAccountControl
-            .isBitSet(com.willeke.ldap.microsoft.UserAccountControl.PASSWORD_CAN_NOT_CHANGE.getCode()));
-
-      } else {
-        ;// we did not find what to do with the attribute and we do not
-         // care ??
-         // log.warn(" ADAccountStatus: Ooops Attribute not found: "
-         // + attribute.getName());
+      }
+      try {
+        handler.handle(this, attribute);
+      } catch (NumberFormatException e) {
+        log.debug("Ignoring " + name + " of " + userEntry.getDN() + ": " + e.getMessage());
       }
     }
   }
 
+  /**
+   * msDS-ResultantPSO is the DN of the Password Settings Object (Fine-Grained
+   * Password Policy) that applies to the user.
+   * 
+   * @return null if the domain policy applies
+   */
+  public String getResultantPSO() {
+    return resultantPSO;
+  }
+
+  public void setResultantPSO(String resultantPSO) {
+    this.resultantPSO = resultantPSO;
+  }
+
+  /**
+   * The objectGUID as a pretty String, formatted on first call so that bulk
+   * evaluations that never ask for it do not pay for it.
+   */
   public String getObjectGUID() {
+    if (objectGUID == null && objectGUIDBytes != null) {
+      objectGUID = com.willeke.utility.GUIDTools.prettyGuidString(objectGUIDBytes);
+    }
     return objectGUID;
   }
 
+  /**
+   * @return the objectGUID as two longs or null if it was not read
+   */
+  public PackedGUID getPackedObjectGUID() {
+    if (objectGUIDBytes == null || objectGUIDBytes.length != ObjectGUIDTools.GUID_LENGTH) {
+      return null;
+    }
+    return PackedGUID.fromBytes(objectGUIDBytes);
+  }
+
   public void setObjectGUID(byte[] objectGUID) {
-    this.objectGUID = com.willeke.utility.GUIDTools.prettyGuidString(objectGUID);
+    this.objectGUIDBytes = objectGUID;
+    this.objectGUID = null;
   }
 
   /**
@@ -0,0 +1,614 @@
+package com.willeke.ldap.microsoft;
+
+import java.io.Closeable;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncResultListener;
+import com.unboundid.ldap.sdk.AsyncSearchResultListener;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.SearchScope;
+
+/**
+ * Non-blocking counterparts of ADAccountStatus(ldc, dn),
+ * RangeBasedSearch.getAttributeRangeBasedSearch and
+ * ADPasswordChange.changePasswordInAD that return CompletableFutures.
+ *
+ * A few connections are checked out of an LDAPConnectionPool for the life of
+ * the client and every request is sent with the asynchronous UnboundID API,
+ * round-robin over them, so thousands of operations can be outstanding on a
+ * few dozen connections and no thread waits for a response. Responses arrive
+ * on the connection reader threads; the entries are parsed and the futures
+ * completed on the executor, so the stages a caller adds run there as well and
+ * never hold up a reader thread.
+ *
+ * Failures complete the future exceptionally with an LDAPException. A request
+ * that times out is abandoned and fails on its own; a connection is only
+ * replaced from the pool, on the executor while the others carry on, once it
+ * is closed or the server is down.
+ *
+ * The domain policy and PSO index are loaded by the constructor, so no
+ * response waits for them, and reloaded in the background once they are older
+ * than the DomainPasswordPolicyCache TTL. The pool is expected to connect to
+ * the DCs of one domain.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class ADAsyncClient implements Closeable {
+  static String thisClass = ADAsyncClient.class.getName();
+  static Logger log = Logger.getLogger(thisClass);
+
+  private final LDAPConnectionPool pool;
+  private final Executor executor;
+  final Channel[] channels;
+  private final AtomicInteger next = new AtomicInteger();
+  private long responseTimeoutMillis = -1;
+  private volatile boolean closed = false;
+  private volatile DomainPasswordPolicy policy;
+  private volatile PasswordSettingsIndex psoIndex;
+  private volatile long policyLoaded;
+  private final AtomicBoolean refreshingPolicy = new AtomicBoolean();
+
+  /**
+   * @param pool
+   *                      - bound with an account that may read the users and,
+   *                      for changePassword, reset passwords
+   * @param connections
+   *                      - checked out of the pool until close
+   * @param executor
+   *                      - parses the responses and completes the futures, a
+   *                      small fixed pool is enough
+   * @throws LDAPException
+   *                         - if the connections cannot be checked out or the
+   *                         password policy cannot be read
+   */
+  public ADAsyncClient(LDAPConnectionPool pool, int connections, Executor executor) throws LDAPException {
+    if (connections < 1) {
+      throw new IllegalArgumentException("connections must be at least 1");
+    }
+    this.pool = pool;
+    this.executor = executor;
+    this.channels = new Channel[Math.min(connections, pool.getMaximumAvailableConnections())];
+    try {
+      for (int i = 0; i < channels.length; i++) {
+        channels[i] = new Channel(pool.getConnection());
+      }
+      loadPolicy(channels[0].ldc);
+    } catch (LDAPException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Same as new ADAccountStatus(ldc, dn): the entry is read with
+   * ADAccountStatus.userAttrs and the policy comes from the
+   * DomainPasswordPolicyCache, the PSO's if the user has one
+   *
+   * @param dn
+   * @return completes with the status, or exceptionally with NO_SUCH_OBJECT
+   */
+  public CompletableFuture<ADAccountStatus> getAccountStatus(final String dn) {
+    final CompletableFuture<ADAccountStatus> future = new CompletableFuture<ADAccountStatus>();
+    search(dn, SearchScope.BASE, "(objectClass=*)", ADAccountStatus.userAttrs, new SearchCallback() {
+      public void completed(Channel channel, List<SearchResultEntry> entries) {
+        if (entries.isEmpty()) {
+          future.completeExceptionally(new LDAPException(ResultCode.NO_SUCH_OBJECT, "No entry " + dn));
+          return;
+        }
+        try {
+          future.complete(evaluate(entries.get(0)));
+        } catch (ParseException e) {
+          future.completeExceptionally(new LDAPException(ResultCode.DECODING_ERROR,
+              "Unable to evaluate " + dn + " " + e.getMessage(), e));
+        } catch (RuntimeException e) {
+          future.completeExceptionally(e);
+        }
+      }
+
+      public void failed(LDAPException e) {
+        future.completeExceptionally(e);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Only uses the policy already loaded, never waits for the directory
+   */
+  private ADAccountStatus evaluate(SearchResultEntry entry) throws ParseException {
+    refreshPolicyIfExpired();
+    DomainPasswordPolicy policy = this.policy;
+    ADAccountStatus status = new ADAccountStatus(entry, policy);
+    if (status.getResultantPSO() != null) {
+      status.setPolicyValues(psoIndex.resolve(status.getResultantPSO(), policy));
+    }
+    return status;
+  }
+
+  private void loadPolicy(LDAPConnection ldc) throws LDAPException {
+    DomainPasswordPolicyCache cache = DomainPasswordPolicyCache.getInstance();
+    DomainPasswordPolicy policy = cache.getPolicy(ldc);
+    psoIndex = cache.getPasswordSettingsIndex(ldc);
+    this.policy = policy;
+    policyLoaded = System.currentTimeMillis();
+  }
+
+  /**
+   * Reload the policy on a thread of its own once it is older than the cache
+   * TTL; the responses meanwhile use the one loaded before
+   */
+  private void refreshPolicyIfExpired() {
+    if (System.currentTimeMillis() - policyLoaded < DomainPasswordPolicyCache.getInstance().getTtlMillis()
+        || closed || !refreshingPolicy.compareAndSet(false, true)) {
+      return;
+    }
+    Thread refresher = new Thread(new Runnable() {
+      public void run() {
+        LDAPConnection ldc = null;
+        try {
+          ldc = pool.getConnection();
+          loadPolicy(ldc);
+          pool.releaseConnection(ldc);
+        } catch (LDAPException e) {
+          // try again after another TTL rather than on every response
+          policyLoaded = System.currentTimeMillis();
+          log.warn("Unable to reload the password policy, keeping the one loaded before: " + e.getMessage());
+          if (ldc != null) {
+            pool.releaseConnectionAfterException(ldc, e);
+          }
+        } finally {
+          refreshingPolicy.set(false);
+        }
+      }
+    }, "ADAsyncClient policy refresh");
+    refresher.setDaemon(true);
+    refresher.start();
+  }
+
+  /**
+   * Same as RangeBasedSearch.getAttributeRangeBasedSearch with ADAPTIVE_STEP:
+   * the windows are read one after the other, each sent when the previous one
+   * arrived, without a thread waiting in between
+   *
+   * @param basedn
+   * @param filter
+   * @param return_attribute
+   * @return completes with every value in server order
+   */
+  public CompletableFuture<List<String>> getAttributeRangeBasedSearch(String basedn, String filter,
+      String return_attribute) {
+    CompletableFuture<List<String>> future = new CompletableFuture<List<String>>();
+    fetchWindow(basedn, filter, return_attribute, 0, RangeBasedSearch.ADAPTIVE_STEP, new ArrayList<String>(), future);
+    return future;
+  }
+
+  private void fetchWindow(final String basedn, final String filter, final String return_attribute, final int start,
+      final int step, final List<String> values, final CompletableFuture<List<String>> future) {
+    String currentRange = RangeBasedSearch.getRangeAttribute(return_attribute, start,
+        step < 0 ? -1 : start + step);
+    search(basedn, SearchScope.BASE, filter, new String[] { currentRange }, new SearchCallback() {
+      public void completed(Channel channel, List<SearchResultEntry> entries) {
+        Attribute attribute = entries.isEmpty() ? null
+            : RangeBasedSearch.getRangedAttribute(entries.get(0), return_attribute);
+        if (attribute == null) {
+          // nothing at or after start
+          future.complete(values);
+          return;
+        }
+        Collections.addAll(values, attribute.getValues());
+        int end = RangeBasedSearch.getRangeEnd(attribute);
+        if (end < 0) {
+          future.complete(values);
+          return;
+        }
+        fetchWindow(basedn, filter, return_attribute, end + 1, step < 0 ? end - start : step, values, future);
+      }
+
+      public void failed(LDAPException e) {
+        future.completeExceptionally(e);
+      }
+    });
+  }
+
+  /**
+   * Same as ADPasswordChange.changePasswordInAD(ldc, userDN,
+   * newClearTextPassword): replace unicodePwd, then set pwdLastSet so the user
+   * must change it at the next logon
+   *
+   * @param userDN
+   * @param newClearTextPassword
+   * @return completes with the result of the pwdLastSet modify
+   */
+  public CompletableFuture<LDAPResult> changePassword(String userDN, String newClearTextPassword) {
+    return changePassword(userDN, newClearTextPassword, "unicodePwd", true);
+  }
+
+  /**
+   * The pwdLastSet modify is only sent once the password modify succeeded
+   *
+   * @param userDN
+   * @param newClearTextPassword
+   * @param passwordAttribute
+   * @param mustChangeNextLogon
+   * @return completes with the result of the pwdLastSet modify, or
+   *         exceptionally with the failure of either modify
+   */
+  public CompletableFuture<LDAPResult> changePassword(final String userDN, String newClearTextPassword,
+      String passwordAttribute, final boolean mustChangeNextLogon) {
+    final CompletableFuture<LDAPResult> future = new CompletableFuture<LDAPResult>();
+    ModifyRequest passwordRequest;
+    try {
+      passwordRequest = ADPasswordChange.createPasswordModifyRequest(userDN, newClearTextPassword,
+          passwordAttribute);
+    } catch (LDAPException e) {
+      future.completeExceptionally(e);
+      return future;
+    }
+    modify(passwordRequest, new ModifyCallback() {
+      public void completed(LDAPResult result) {
+        modify(ADPasswordChange.createPwdLastSetModifyRequest(userDN, mustChangeNextLogon), new ModifyCallback() {
+          public void completed(LDAPResult result) {
+            future.complete(result);
+          }
+
+          public void failed(LDAPException e) {
+            future.completeExceptionally(e);
+          }
+        });
+      }
+
+      public void failed(LDAPException e) {
+        future.completeExceptionally(e);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * @param modifyRequest
+   * @return completes with the result, or exceptionally unless it is SUCCESS
+   */
+  public CompletableFuture<LDAPResult> modify(ModifyRequest modifyRequest) {
+    final CompletableFuture<LDAPResult> future = new CompletableFuture<LDAPResult>();
+    modify(modifyRequest, new ModifyCallback() {
+      public void completed(LDAPResult result) {
+        future.complete(result);
+      }
+
+      public void failed(LDAPException e) {
+        future.completeExceptionally(e);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * @param dn
+   * @param attributes
+   * @return completes with the entry, or null if there is none, like
+   *         LDAPConnection.getEntry
+   */
+  public CompletableFuture<SearchResultEntry> getEntry(String dn, String... attributes) {
+    final CompletableFuture<SearchResultEntry> future = new CompletableFuture<SearchResultEntry>();
+    search(dn, SearchScope.BASE, "(objectClass=*)", attributes, new SearchCallback() {
+      public void completed(Channel channel, List<SearchResultEntry> entries) {
+        future.complete(entries.isEmpty() ? null : entries.get(0));
+      }
+
+      public void failed(LDAPException e) {
+        if (e.getResultCode() == ResultCode.NO_SUCH_OBJECT) {
+          future.complete(null);
+        } else {
+          future.completeExceptionally(e);
+        }
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Send a search on the next usable connection. The callback is called on
+   * the executor.
+   */
+  private void search(String baseDN, SearchScope scope, String filter, String[] attributes,
+      final SearchCallback callback) {
+    final Collector collector = new Collector(callback);
+    SearchRequest searchRequest;
+    try {
+      searchRequest = new SearchRequest(collector, baseDN, scope, filter, attributes);
+    } catch (LDAPException e) {
+      callback.failed(e);
+      return;
+    }
+    searchRequest.setResponseTimeoutMillis(responseTimeoutMillis);
+    for (int tries = 0; tries < channels.length; tries++) {
+      Channel channel = nextChannel();
+      if (channel == null) {
+        break;
+      }
+      LDAPConnection ldc = channel.ldc;
+      collector.channel = channel;
+      collector.ldc = ldc;
+      try {
+        ldc.asyncSearch(searchRequest);
+        return;
+      } catch (LDAPException e) {
+        channel.failed(ldc, e);
+      }
+    }
+    callback.failed(noConnection());
+  }
+
+  /**
+   * Send a modify on the next usable connection. The callback is called on
+   * the executor.
+   */
+  private void modify(ModifyRequest modifyRequest, final ModifyCallback callback) {
+    modifyRequest.setResponseTimeoutMillis(responseTimeoutMillis);
+    for (int tries = 0; tries < channels.length; tries++) {
+      final Channel channel = nextChannel();
+      if (channel == null) {
+        break;
+      }
+      final LDAPConnection ldc = channel.ldc;
+      try {
+        ldc.asyncModify(modifyRequest, new AsyncResultListener() {
+          public void ldapResultReceived(AsyncRequestID requestID, final LDAPResult result) {
+            checkConnection(channel, ldc, requestID, result);
+            execute(new Runnable() {
+              public void run() {
+                if (result.getResultCode() == ResultCode.SUCCESS) {
+                  callback.completed(result);
+                } else {
+                  callback.failed(new LDAPException(result));
+                }
+              }
+            });
+          }
+        });
+        return;
+      } catch (LDAPException e) {
+        channel.failed(ldc, e);
+      }
+    }
+    callback.failed(noConnection());
+  }
+
+  /**
+   * Called on the reader thread with the result of a request sent on ldc. A
+   * request that timed out is abandoned, unless the connection options already
+   * do that, and fails alone: the connection may just be busy. The connection
+   * is only replaced if it is closed or the server is down.
+   */
+  private void checkConnection(Channel channel, LDAPConnection ldc, AsyncRequestID requestID, LDAPResult result) {
+    ResultCode resultCode = result.getResultCode();
+    if (resultCode == ResultCode.TIMEOUT && ldc.isConnected()) {
+      if (!ldc.getConnectionOptions().abandonOnTimeout()) {
+        try {
+          ldc.abandon(requestID);
+        } catch (LDAPException e) {
+          log.debug("Unable to abandon " + requestID + " on " + ldc + ": " + e.getMessage());
+        }
+      }
+    } else if (resultCode == ResultCode.SERVER_DOWN || resultCode == ResultCode.CONNECT_ERROR
+        || !ldc.isConnected()) {
+      channel.failed(ldc, new LDAPException(result));
+    }
+  }
+
+  /**
+   * @return the next connection that has not failed, null if closed or all
+   *         failed
+   */
+  private Channel nextChannel() {
+    if (closed) {
+      return null;
+    }
+    for (int tries = 0; tries < channels.length; tries++) {
+      Channel channel = channels[(next.getAndIncrement() & Integer.MAX_VALUE) % channels.length];
+      if (!channel.broken) {
+        return channel;
+      }
+    }
+    return null;
+  }
+
+  private LDAPException noConnection() {
+    return new LDAPException(ResultCode.SERVER_DOWN,
+        closed ? "The client is closed" : "All " + channels.length + " connections failed");
+  }
+
+  /**
+   * Run on the executor, or here if it refuses
+   */
+  private void execute(Runnable task) {
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.run();
+    }
+  }
+
+  /**
+   * @param responseTimeoutMillis
+   *                                - an operation without a response after
+   *                                this long fails with ResultCode.TIMEOUT, 0
+   *                                waits forever and a negative value (the
+   *                                default) uses the connection default
+   */
+  public void setResponseTimeoutMillis(long responseTimeoutMillis) {
+    this.responseTimeoutMillis = responseTimeoutMillis;
+  }
+
+  public long getResponseTimeoutMillis() {
+    return responseTimeoutMillis;
+  }
+
+  /**
+   * @return operations sent and not answered yet
+   */
+  public int getOutstanding() {
+    int outstanding = 0;
+    for (Channel channel : channels) {
+      if (channel != null) {
+        // -1 for a connection in synchronous mode
+        outstanding += Math.max(0, channel.ldc.getActiveOperationCount());
+      }
+    }
+    return outstanding;
+  }
+
+  /**
+   * Give the connections back to the pool. Operations still outstanding are
+   * abandoned by the pool if it closes them.
+   */
+  public void close() {
+    closed = true;
+    for (Channel channel : channels) {
+      // a channel being replaced is released by its replacement
+      if (channel != null && channel.replacing.compareAndSet(false, true)) {
+        channel.release();
+      }
+    }
+  }
+
+  interface SearchCallback {
+    void completed(Channel channel, List<SearchResultEntry> entries);
+
+    void failed(LDAPException e);
+  }
+
+  interface ModifyCallback {
+    void completed(LDAPResult result);
+
+    void failed(LDAPException e);
+  }
+
+  /**
+   * Collects the entries of one search on the reader thread and hands them to
+   * the callback on the executor
+   */
+  class Collector implements AsyncSearchResultListener {
+    private static final long serialVersionUID = 1L;
+
+    final SearchCallback callback;
+    final List<SearchResultEntry> entries = new ArrayList<SearchResultEntry>(1);
+    volatile Channel channel;
+    volatile LDAPConnection ldc;
+
+    Collector(SearchCallback callback) {
+      this.callback = callback;
+    }
+
+    public void searchEntryReturned(SearchResultEntry searchEntry) {
+      entries.add(searchEntry);
+    }
+
+    public void searchReferenceReturned(SearchResultReference searchReference) {
+      log.debug("Ignoring referral " + searchReference);
+    }
+
+    public void searchResultReceived(AsyncRequestID requestID, final SearchResult searchResult) {
+      checkConnection(channel, ldc, requestID, searchResult);
+      execute(new Runnable() {
+        public void run() {
+          if (searchResult.getResultCode() == ResultCode.SUCCESS) {
+            callback.completed(channel, entries);
+          } else {
+            callback.failed(new LDAPException(searchResult));
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * One connection checked out of the pool
+   */
+  class Channel {
+    volatile LDAPConnection ldc;
+    volatile boolean broken = false;
+    // false once the pool has the connection back
+    volatile boolean held = true;
+    // set while the connection is replaced, and by close()
+    final AtomicBoolean replacing = new AtomicBoolean();
+
+    Channel(LDAPConnection ldc) {
+      this.ldc = ldc;
+    }
+
+    /**
+     * Stop using the connection and replace it from the pool on the executor
+     *
+     * @param failed
+     *                 - the connection the request was sent on, nothing is done
+     *                 if it was replaced already
+     * @param e
+     */
+    void failed(LDAPConnection failed, LDAPException e) {
+      if (failed != ldc) {
+        return;
+      }
+      broken = true;
+      if (closed || !replacing.compareAndSet(false, true)) {
+        return;
+      }
+      log.warn("Replacing connection " + ldc + ": " + e.getMessage());
+      execute(new Runnable() {
+        public void run() {
+          try {
+            ldc = pool.replaceDefunctConnection(ldc);
+            broken = false;
+          } catch (LDAPException e) {
+            // the pool closed the failed connection all the same
+            held = false;
+            log.warn("Unable to replace connection " + ldc + ": " + e.getMessage());
+          } finally {
+            replacing.set(false);
+            // close() skipped this channel while it was replaced
+            if (closed && replacing.compareAndSet(false, true)) {
+              release();
+            }
+          }
+        }
+      });
+    }
+
+    /**
+     * Give the connection back to the pool, once
+     */
+    void release() {
+      if (!held) {
+        return;
+      }
+      held = false;
+      if (broken) {
+        pool.releaseDefunctConnection(ldc);
+      } else {
+        pool.releaseConnection(ldc);
+      }
+    }
+  }
+}
@@ -9,12 +9,18 @@ import java.util.ArrayList;
 
 import javax.net.ssl.SSLSocketFactory;
 
+import org.apache.log4j.Logger;
+
+import com.unboundid.ldap.sdk.GetEntryLDAPConnectionPoolHealthCheck;
 import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
 import com.unboundid.ldap.sdk.LDAPException;
 import com.unboundid.ldap.sdk.Modification;
 import com.unboundid.ldap.sdk.ModificationType;
 import com.unboundid.ldap.sdk.ModifyRequest;
 import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SimpleBindRequest;
+import com.unboundid.ldap.sdk.SingleServerSet;
 import com.unboundid.util.StaticUtils;
 import com.unboundid.util.ssl.SSLUtil;
 import com.unboundid.util.ssl.TrustAllTrustManager;
@@ -24,6 +30,12 @@ import com.unboundid.util.ssl.TrustAllTrustManager;
  * 
  */
 public class ADPasswordChange {
+  static String thisClass = ADPasswordChange.class.getName();
+  static Logger log = Logger.getLogger(thisClass);
+
+  static final long HEALTH_CHECK_TIMEOUT_MILLIS = 5000L;
+  static final long HEALTH_CHECK_INTERVAL_MILLIS = 60000L;
+  static final long MAX_WAIT_TIME_MILLIS = 30000L;
 
   /**
    * This class provides a simple utility method that may be used to change the
@@ -99,15 +111,128 @@ public class ADPasswordChange {
     // use a trust manager that will trust any certificate that the server
     // presents, but in production environments you should validate the
     // certificate more carefully.
-    System.out.println("Going to create the SSL socket factory.");
+    log.debug("Going to create the SSL socket factory.");
     final SSLSocketFactory socketFactory;
     final SSLUtil sslUtil = new SSLUtil(new TrustAllTrustManager());
     socketFactory = sslUtil.createSSLSocketFactory();
 
     // Create a secure connection to the Active Directory server.
-    System.out.println("Going to establish the secure connection.");
+    log.debug("Going to establish the secure connection.");
     final LDAPConnection ldc = new LDAPConnection(socketFactory, adHost, adSSLPort, bindDN, bindPassword);
-    changePasswordInAD(ldc, userDN, newClearTextPassword, "unicodePwd", false, true);
+    try {
+      changePasswordInAD(ldc, userDN, newClearTextPassword, "unicodePwd", false, true);
+    } finally {
+      ldc.close();
+    }
+  }
+
+  /**
+   * Create a pool of secure connections bound as bindDN that can be used for
+   * many password changes, so each change does not pay for a new SSL socket
+   * factory, TLS handshake and bind. Like changePasswordInAD(adHost, ...) it
+   * trusts any certificate the server presents; use the SSLSocketFactory
+   * variant in production environments.
+   * 
+   * @param adHost
+   * @param adSSLPort
+   * @param bindDN
+   * @param bindPassword
+   * @param initialConnections
+   * @param maxConnections
+   *                             - the pool never holds more than this, callers
+   *                             wait for a connection when all are in use
+   * @param maxConnectionAgeMillis
+   *                             - connections older than this are replaced when
+   *                             released, 0 to keep them
+   * @return
+   * @throws GeneralSecurityException
+   * @throws LDAPException
+   */
+  public static LDAPConnectionPool createConnectionPool(final String adHost, final int adSSLPort,
+      final String bindDN, final String bindPassword, int initialConnections, int maxConnections,
+      long maxConnectionAgeMillis) throws GeneralSecurityException, LDAPException {
+    final SSLUtil sslUtil = new SSLUtil(new TrustAllTrustManager());
+    return createConnectionPool(sslUtil.createSSLSocketFactory(), adHost, adSSLPort, bindDN, bindPassword,
+        initialConnections, maxConnections, maxConnectionAgeMillis);
+  }
+
+  /**
+   * Create a pool of secure connections bound as bindDN. Connections are checked
+   * with a rootDSE read when created, after an exception and every
+   * HEALTH_CHECK_INTERVAL_MILLIS in the background, but not on every checkout,
+   * which would add a round trip to each password change.
+   * 
+   * @param socketFactory
+   *                             - SSLSocketFactory that validates the server
+   *                             certificate
+   * @param adHost
+   * @param adSSLPort
+   * @param bindDN
+   *                             - It must have sufficient permission to change
+   *                             user passwords.
+   * @param bindPassword
+   * @param initialConnections
+   * @param maxConnections
+   * @param maxConnectionAgeMillis
+   * @return
+   * @throws LDAPException
+   */
+  public static LDAPConnectionPool createConnectionPool(final SSLSocketFactory socketFactory, final String adHost,
+      final int adSSLPort, final String bindDN, final String bindPassword, int initialConnections,
+      int maxConnections, long maxConnectionAgeMillis) throws LDAPException {
+    GetEntryLDAPConnectionPoolHealthCheck healthCheck = new GetEntryLDAPConnectionPoolHealthCheck(null,
+        HEALTH_CHECK_TIMEOUT_MILLIS, true, false, false, false, true, true);
+    LDAPConnectionPool pool = new LDAPConnectionPool(new SingleServerSet(adHost, adSSLPort, socketFactory),
+        new SimpleBindRequest(bindDN, bindPassword), initialConnections, maxConnections, 1, null, true, healthCheck);
+    pool.setConnectionPoolName("ADPasswordChange " + adHost + ":" + adSSLPort);
+    pool.setHealthCheckIntervalMillis(HEALTH_CHECK_INTERVAL_MILLIS);
+    pool.setMaxConnectionAgeMillis(maxConnectionAgeMillis);
+    pool.setCreateIfNecessary(false);
+    pool.setMaxWaitTimeMillis(MAX_WAIT_TIME_MILLIS);
+    return pool;
+  }
+
+  /**
+   * Change the password using a connection from the pool. The connection is
+   * returned to the pool, or replaced if the failure left it unusable.
+   * 
+   * @param pool
+   *                             - from createConnectionPool
+   * @param userDN
+   * @param newClearTextPassword
+   * @throws LDAPException
+   */
+  public static void changePasswordInAD(LDAPConnectionPool pool, final String userDN,
+      final String newClearTextPassword) throws LDAPException {
+    changePasswordInAD(pool, userDN, newClearTextPassword, "unicodePwd", false, true);
+  }
+
+  /**
+   * 
+   * @param pool
+   *                             - from createConnectionPool
+   * @param userDN
+   * @param newClearTextPassword
+   * @param passwordAttribute
+   * @param isCheckPwdHistory
+   * @param mustChangeNextLogon
+   * @throws LDAPException
+   */
+  public static void changePasswordInAD(LDAPConnectionPool pool, final String userDN,
+      final String newClearTextPassword, final String passwordAttribute, boolean isCheckPwdHistory,
+      boolean mustChangeNextLogon) throws LDAPException {
+    LDAPConnection ldc = pool.getConnection();
+    try {
+      changePasswordInAD(ldc, userDN, newClearTextPassword, passwordAttribute, isCheckPwdHistory,
+          mustChangeNextLogon);
+    } catch (LDAPException e) {
+      pool.releaseConnectionAfterException(ldc, e);
+      throw e;
+    } catch (RuntimeException e) {
+      pool.releaseDefunctConnection(ldc);
+      throw e;
+    }
+    pool.releaseConnection(ldc);
   }
 
   /**
@@ -168,27 +293,55 @@ public class ADPasswordChange {
    */
   public static void changePasswordInAD(LDAPConnection ldc, final String userDN, final String newClearTextPassword,
       final String passwordAttribute, boolean isCheckPwdHistory, boolean mustChangeNextLogon) throws LDAPException {
-    final byte[] adEncodedPassword = encodeADPassword(newClearTextPassword);
-    final ArrayList<Modification> modifications = new ArrayList<Modification>();
-    modifications.add(new Modification(ModificationType.REPLACE, passwordAttribute, adEncodedPassword));
-    ModifyRequest modifyRequest = new ModifyRequest(userDN, modifications);
+    ModifyRequest modifyRequest = createPasswordModifyRequest(userDN, newClearTextPassword, passwordAttribute);
     if (isCheckPwdHistory) {
       String policyHintsOiD = com.willeke.ldap.microsoft.PolicyHintsControl.getLDAP_SERVER_POLICY_HINTS_OID(ldc);
-      if (policyHintsOiD == null) {
+      if (policyHintsOiD != null) {
         // Add the policy hints control
         modifyRequest.addControl(new PolicyHintsControl(policyHintsOiD));
       }
     }
     // Attempt to modify the user password.
-    System.out.println("Going to replace the user's password.");
+    log.debug("Going to replace the user's password.");
     ldc.modify(modifyRequest);
+    ldc.modify(createPwdLastSetModifyRequest(userDN, mustChangeNextLogon));
+  }
+
+  /**
+   * The request that replaces the passwordAttribute with the encoded password
+   * 
+   * @param userDN
+   * @param newClearTextPassword
+   * @param passwordAttribute
+   * @return
+   * @throws LDAPException
+   */
+  public static ModifyRequest createPasswordModifyRequest(final String userDN, final String newClearTextPassword,
+      final String passwordAttribute) throws LDAPException {
+    final byte[] adEncodedPassword = encodeADPassword(newClearTextPassword);
+    final ArrayList<Modification> modifications = new ArrayList<Modification>();
+    modifications.add(new Modification(ModificationType.REPLACE, passwordAttribute, adEncodedPassword));
+    return new ModifyRequest(userDN, modifications);
+  }
+
+  /**
+   * The request that sets pwdLastSet after the password has been replaced
+   * 
+   * @param userDN
+   * @param mustChangeNextLogon
+   *                              - true sets pwdLastSet to 0 so the user must
+   *                              change the password on next logon, false sets
+   *                              it to -1 (now)
+   * @return
+   */
+  public static ModifyRequest createPwdLastSetModifyRequest(final String userDN, boolean mustChangeNextLogon) {
     Modification mod = null;
     if (mustChangeNextLogon) {
       mod = new Modification(ModificationType.REPLACE, "pwdLastSet", "0");
     } else {
       mod = new Modification(ModificationType.REPLACE, "pwdLastSet", "-1");
     }
-    ldc.modify(userDN, mod);
+    return new ModifyRequest(userDN, mod);
   }
 
   /**
@@ -0,0 +1,346 @@
+package com.willeke.ldap.microsoft;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncResultListener;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.ResultCode;
+
+/**
+ * Reset the passwords of many users by pipelining asynchronous modify requests
+ * across connections checked out of an LDAPConnectionPool.
+ *
+ * changePasswordInAD waits for the unicodePwd modify and then for the
+ * pwdLastSet modify of each user. Here up to maxInFlight users are outstanding
+ * at once, spread round-robin over the connections, so throughput is limited
+ * by the domain controllers rather than by one round-trip at a time. The
+ * pwdLastSet modify of a user is only sent after its unicodePwd modify
+ * succeeded, on the same connection.
+ *
+ * These are administrative resets so no policy hints control is sent.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class ADPasswordResetBatch {
+  static String thisClass = ADPasswordResetBatch.class.getName();
+  static Logger log = Logger.getLogger(thisClass);
+
+  public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+  private final LDAPConnectionPool pool;
+  private final int connections;
+  private final int maxInFlight;
+  private String passwordAttribute = "unicodePwd";
+  private long responseTimeoutMillis = -1;
+
+  private final AtomicInteger succeeded = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+
+  /**
+   * @param pool
+   *                      - bound with an account that may reset passwords, as
+   *                      from ADPasswordChange.createConnectionPool
+   * @param connections
+   *                      - connections checked out of the pool for the batch
+   * @param maxInFlight
+   *                      - users whose reset may be outstanding at once
+   */
+  public ADPasswordResetBatch(LDAPConnectionPool pool, int connections, int maxInFlight) {
+    if (connections < 1 || maxInFlight < 1) {
+      throw new IllegalArgumentException("connections and maxInFlight must be at least 1");
+    }
+    this.pool = pool;
+    this.connections = Math.min(connections, pool.getMaximumAvailableConnections());
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Reset the password of every job. Returns once every job has been reported
+   * to the listener.
+   *
+   * @param jobs
+   * @param listener
+   *                   - called once per job from the connection reader threads,
+   *                   so it must be thread-safe
+   * @return number of failed jobs
+   * @throws LDAPException
+   *                         if no connection could be checked out or every
+   *                         connection failed during the batch. Jobs not yet
+   *                         sent are not reported.
+   */
+  public int run(Iterator<PasswordResetJob> jobs, PasswordResetListener listener) throws LDAPException {
+    succeeded.set(0);
+    failed.set(0);
+    Semaphore inFlight = new Semaphore(maxInFlight);
+    List<Worker> workers = new ArrayList<Worker>(connections);
+    try {
+      for (int i = 0; i < connections; i++) {
+        workers.add(new Worker(pool.getConnection(), inFlight, listener));
+      }
+      int next = 0;
+      while (jobs.hasNext()) {
+        PasswordResetJob job = jobs.next();
+        acquire(inFlight, 1);
+        boolean sent = false;
+        for (int tries = 0; tries < workers.size() && !sent; tries++) {
+          Worker worker = workers.get(next);
+          next = (next + 1) % workers.size();
+          if (!worker.broken) {
+            sent = worker.send(job);
+          }
+        }
+        if (!sent) {
+          inFlight.release();
+          throw new LDAPException(ResultCode.SERVER_DOWN, "All " + workers.size()
+              + " connections failed, " + succeeded + " passwords reset and " + failed + " failed so far");
+        }
+      }
+    } finally {
+      // wait for the outstanding responses before giving the connections back
+      acquire(inFlight, maxInFlight);
+      inFlight.release(maxInFlight);
+      for (Worker worker : workers) {
+        if (worker.broken) {
+          pool.releaseDefunctConnection(worker.ldc);
+        } else {
+          pool.releaseConnection(worker.ldc);
+        }
+      }
+    }
+    log.info("Reset " + succeeded + " passwords, " + failed + " failed");
+    return failed.get();
+  }
+
+  private static void acquire(Semaphore semaphore, int permits) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        semaphore.acquire(permits);
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @param passwordAttribute
+   *                            - defaults to unicodePwd
+   */
+  public void setPasswordAttribute(String passwordAttribute) {
+    this.passwordAttribute = passwordAttribute;
+  }
+
+  public String getPasswordAttribute() {
+    return passwordAttribute;
+  }
+
+  /**
+   * @param responseTimeoutMillis
+   *                                - a modify without a response after this
+   *                                long is reported with ResultCode.TIMEOUT, 0
+   *                                waits forever and a negative value (the
+   *                                default) uses the connection default
+   */
+  public void setResponseTimeoutMillis(long responseTimeoutMillis) {
+    this.responseTimeoutMillis = responseTimeoutMillis;
+  }
+
+  public long getResponseTimeoutMillis() {
+    return responseTimeoutMillis;
+  }
+
+  /**
+   * @return passwords reset by the last run
+   */
+  public int getSucceeded() {
+    return succeeded.get();
+  }
+
+  /**
+   * @return jobs that failed in the last run
+   */
+  public int getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * One connection of the batch and the listeners for its outstanding modifies
+   */
+  private class Worker {
+    final LDAPConnection ldc;
+    final Semaphore inFlight;
+    final PasswordResetListener listener;
+    volatile boolean broken = false;
+
+    Worker(LDAPConnection ldc, Semaphore inFlight, PasswordResetListener listener) {
+      this.ldc = ldc;
+      this.inFlight = inFlight;
+      this.listener = listener;
+    }
+
+    /**
+     * @return false if the request could not be sent and the connection is
+     *         broken
+     */
+    boolean send(final PasswordResetJob job) {
+      ModifyRequest passwordRequest;
+      try {
+        passwordRequest = ADPasswordChange.createPasswordModifyRequest(job.userDN, job.newClearTextPassword,
+            passwordAttribute);
+      } catch (LDAPException e) {
+        complete(new PasswordResetResult(job, e.getResultCode(), e.getMessage(), false));
+        return true;
+      }
+      passwordRequest.setResponseTimeoutMillis(responseTimeoutMillis);
+      try {
+        ldc.asyncModify(passwordRequest, new AsyncResultListener() {
+          public void ldapResultReceived(AsyncRequestID requestID, LDAPResult result) {
+            if (result.getResultCode() == ResultCode.SUCCESS) {
+              sendPwdLastSet(job);
+            } else {
+              complete(new PasswordResetResult(job, result.getResultCode(), result.getDiagnosticMessage(), false));
+            }
+          }
+        });
+        return true;
+      } catch (LDAPException e) {
+        log.warn("Unable to send the password modify for " + job.userDN + " on " + ldc + ": " + e.getMessage());
+        broken = true;
+        return false;
+      }
+    }
+
+    void sendPwdLastSet(final PasswordResetJob job) {
+      ModifyRequest pwdLastSetRequest = ADPasswordChange.createPwdLastSetModifyRequest(job.userDN,
+          job.mustChangeNextLogon);
+      pwdLastSetRequest.setResponseTimeoutMillis(responseTimeoutMillis);
+      try {
+        ldc.asyncModify(pwdLastSetRequest, new AsyncResultListener() {
+          public void ldapResultReceived(AsyncRequestID requestID, LDAPResult result) {
+            complete(new PasswordResetResult(job, result.getResultCode(), result.getDiagnosticMessage(), true));
+          }
+        });
+      } catch (LDAPException e) {
+        broken = true;
+        complete(new PasswordResetResult(job, e.getResultCode(), e.getMessage(), true));
+      }
+    }
+
+    void complete(PasswordResetResult result) {
+      if (result.isSuccess()) {
+        succeeded.incrementAndGet();
+      } else {
+        failed.incrementAndGet();
+        if (!ResultCode.isConnectionUsable(result.getResultCode())) {
+          broken = true;
+        }
+      }
+      try {
+        listener.passwordResetCompleted(result);
+      } catch (RuntimeException e) {
+        log.error("PasswordResetListener failed for " + result.getJob().userDN, e);
+      } finally {
+        inFlight.release();
+      }
+    }
+  }
+
+  /**
+   * Called once for every job of a batch
+   */
+  public interface PasswordResetListener {
+    void passwordResetCompleted(PasswordResetResult result);
+  }
+
+  /**
+   * A user whose password is to be reset
+   */
+  public static class PasswordResetJob {
+    final String userDN;
+    final String newClearTextPassword;
+    final boolean mustChangeNextLogon;
+
+    public PasswordResetJob(String userDN, String newClearTextPassword, boolean mustChangeNextLogon) {
+      this.userDN = userDN;
+      this.newClearTextPassword = newClearTextPassword;
+      this.mustChangeNextLogon = mustChangeNextLogon;
+    }
+
+    public String getUserDN() {
+      return userDN;
+    }
+
+    public boolean isMustChangeNextLogon() {
+      return mustChangeNextLogon;
+    }
+
+    public String toString() {
+      return "PasswordResetJob(" + userDN + ", mustChangeNextLogon=" + mustChangeNextLogon + ")";
+    }
+  }
+
+  /**
+   * The outcome of one PasswordResetJob
+   */
+  public static class PasswordResetResult {
+    final PasswordResetJob job;
+    final ResultCode resultCode;
+    final String diagnosticMessage;
+    final boolean passwordSet;
+
+    PasswordResetResult(PasswordResetJob job, ResultCode resultCode, String diagnosticMessage, boolean passwordSet) {
+      this.job = job;
+      this.resultCode = resultCode;
+      this.diagnosticMessage = diagnosticMessage;
+      this.passwordSet = passwordSet;
+    }
+
+    public PasswordResetJob getJob() {
+      return job;
+    }
+
+    /**
+     * @return result of the pwdLastSet modify if the password was set,
+     *         otherwise of the password modify
+     */
+    public ResultCode getResultCode() {
+      return resultCode;
+    }
+
+    public String getDiagnosticMessage() {
+      return diagnosticMessage;
+    }
+
+    /**
+     * @return true if the password was replaced, even if pwdLastSet then failed
+     */
+    public boolean isPasswordSet() {
+      return passwordSet;
+    }
+
+    public boolean isSuccess() {
+      return passwordSet && resultCode == ResultCode.SUCCESS;
+    }
+
+    public String toString() {
+      return "PasswordResetResult(" + job.userDN + ", " + resultCode
+          + (diagnosticMessage == null ? "" : " " + diagnosticMessage) + ", passwordSet=" + passwordSet + ")";
+    }
+  }
+}
@@ -0,0 +1,656 @@
+package com.willeke.ldap.microsoft;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+
+/**
+ * The account status of a population held column by column: one long[] per
+ * time (epoch milliseconds, AccountStatusSnapshot.NOT_SET when absent) and one
+ * int[] per counter, indexed by row. Dashboard questions ("how many accounts
+ * are locked out / expired / expiring within 14 days / disabled") are answered
+ * by scanning one or two arrays in a tight loop that builds the BitSet 64 rows
+ * at a time, a few milliseconds for a million accounts.
+ *
+ * Two derived columns are kept next to the raw ones so each question is a
+ * single range compare: when the password expires (pwdLastSet, or
+ * createTimeStamp if the password must be changed, plus the maximum password
+ * age of the user's policy) and when the lockout ends (lockoutTime plus the
+ * lockout duration).
+ *
+ * Rows are added from AccountStatusSnapshots and may be replaced or removed
+ * later; removed rows are never returned by a scan. A GUIDIndex finds the row
+ * of an objectGUID so incremental syncs can apply changes. Scans may run at
+ * the same time as each other, updates wait for them. save writes the live
+ * rows to an AccountStatusFile to restart from.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class AccountStatusColumns {
+  static String thisClass = AccountStatusColumns.class.getName();
+  static Logger log = Logger.getLogger(thisClass);
+
+  static final long NOT_SET = AccountStatusSnapshot.NOT_SET;
+  static final long NEVER = Long.MAX_VALUE;
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private int rows;
+  private final BitSet live = new BitSet();
+  private final GUIDIndex rowsByGUID;
+
+  private String[] dn;
+  private long[] guidHigh;
+  private long[] guidLow;
+  private long[] pwdLastSet;
+  private long[] lockoutTime;
+  private long[] accountExpires;
+  private long[] lastLogonTimestamp;
+  private long[] badPasswordTime;
+  private int[] userAccountControl;
+  private int[] badPwdCount;
+  // derived
+  private long[] passwordExpires;
+  private long[] lockoutEnds;
+
+  /**
+   * @param expectedRows
+   *                       - initial capacity, the columns grow as needed
+   */
+  public AccountStatusColumns(int expectedRows) {
+    int capacity = Math.max(16, expectedRows);
+    dn = new String[capacity];
+    guidHigh = new long[capacity];
+    guidLow = new long[capacity];
+    pwdLastSet = new long[capacity];
+    lockoutTime = new long[capacity];
+    accountExpires = new long[capacity];
+    lastLogonTimestamp = new long[capacity];
+    badPasswordTime = new long[capacity];
+    userAccountControl = new int[capacity];
+    badPwdCount = new int[capacity];
+    passwordExpires = new long[capacity];
+    lockoutEnds = new long[capacity];
+    rowsByGUID = new GUIDIndex(capacity);
+  }
+
+  /**
+   * Build the columns from a paged search of every user under baseDN
+   *
+   * @param ldc
+   * @param baseDN
+   * @param filter
+   *                   - e.g. BulkAccountStatus.DEFAULT_USER_FILTER
+   * @param pageSize
+   * @param expectedRows
+   * @return
+   * @throws LDAPException
+   */
+  public static AccountStatusColumns load(LDAPConnection ldc, String baseDN, String filter, int pageSize,
+      int expectedRows) throws LDAPException {
+    final AccountStatusColumns columns = new AccountStatusColumns(expectedRows);
+    BulkAccountStatus.evaluate(ldc, baseDN, filter, pageSize, new BulkAccountStatus.AccountStatusHandler() {
+      public void handleAccountStatus(ADAccountStatus status) {
+        columns.add(AccountStatusSnapshot.of(status));
+      }
+    });
+    log.info("Loaded " + columns.size() + " rows from " + baseDN);
+    return columns;
+  }
+
+  /**
+   * @param snapshot
+   * @return the row of the snapshot
+   */
+  public int add(AccountStatusSnapshot snapshot) {
+    lock.writeLock().lock();
+    try {
+      if (rows == dn.length) {
+        grow(rows * 2);
+      }
+      int row = rows++;
+      write(row, snapshot);
+      live.set(row);
+      indexRow(row);
+      return row;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Add a row restored by AccountStatusFile.toColumns, derived columns
+   * included
+   */
+  int addRow(String dn, long guidHigh, long guidLow, long pwdLastSet, long lockoutTime, long accountExpires,
+      long lastLogonTimestamp, long badPasswordTime, long passwordExpires, long lockoutEnds, int userAccountControl,
+      int badPwdCount) {
+    lock.writeLock().lock();
+    try {
+      if (rows == this.dn.length) {
+        grow(rows * 2);
+      }
+      int row = rows++;
+      this.dn[row] = dn;
+      this.guidHigh[row] = guidHigh;
+      this.guidLow[row] = guidLow;
+      this.pwdLastSet[row] = pwdLastSet;
+      this.lockoutTime[row] = lockoutTime;
+      this.accountExpires[row] = accountExpires;
+      this.lastLogonTimestamp[row] = lastLogonTimestamp;
+      this.badPasswordTime[row] = badPasswordTime;
+      this.passwordExpires[row] = passwordExpires;
+      this.lockoutEnds[row] = lockoutEnds;
+      this.userAccountControl[row] = userAccountControl;
+      this.badPwdCount[row] = badPwdCount;
+      live.set(row);
+      indexRow(row);
+      return row;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Write the live rows to an AccountStatusFile. Row numbers are not kept,
+   * the rows are numbered again from 0 when the file is read.
+   *
+   * @param file
+   *               - replaced together with its DN table, see AccountStatusFile
+   * @throws IOException
+   */
+  public void save(File file) throws IOException {
+    save(file, new byte[0]);
+  }
+
+  /**
+   * Write the live rows and the sync state they are current to. Used by
+   * AccountStatusSync.checkpoint and USNChangedScanner.checkpoint.
+   *
+   * @param file
+   *                    - replaced together with its DN table, see
+   *                    AccountStatusFile
+   * @param syncState
+   *                    - returned by AccountStatusFile.getSyncState
+   * @throws IOException
+   */
+  public void save(File file, byte[] syncState) throws IOException {
+    lock.readLock().lock();
+    try {
+      AccountStatusFile.Writer writer = new AccountStatusFile.Writer(file, live.cardinality(), syncState);
+      try {
+        for (int row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1)) {
+          writer.write(dn[row], guidHigh[row], guidLow[row], pwdLastSet[row], lockoutTime[row], accountExpires[row],
+              lastLogonTimestamp[row], badPasswordTime[row], passwordExpires[row], lockoutEnds[row],
+              userAccountControl[row], badPwdCount[row]);
+        }
+        writer.commit();
+      } finally {
+        writer.close();
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Replace the values of an existing row, e.g. after a change was read
+   *
+   * @param row
+   * @param snapshot
+   */
+  public void set(int row, AccountStatusSnapshot snapshot) {
+    lock.writeLock().lock();
+    try {
+      checkRow(row);
+      unindexRow(row);
+      write(row, snapshot);
+      live.set(row);
+      indexRow(row);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Replace the row with the objectGUID of the snapshot or add one
+   *
+   * @param snapshot
+   *                   - with an objectGUID
+   * @return true if a row was added
+   */
+  public boolean put(AccountStatusSnapshot snapshot) {
+    lock.writeLock().lock();
+    try {
+      int row = (int) rowsByGUID.get(snapshot.getObjectGUIDHigh(), snapshot.getObjectGUIDLow());
+      if (row >= 0) {
+        set(row, snapshot);
+        return false;
+      }
+      add(snapshot);
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * The row is no longer returned by scans. Its number is not reused.
+   *
+   * @param row
+   */
+  public void remove(int row) {
+    lock.writeLock().lock();
+    try {
+      checkRow(row);
+      unindexRow(row);
+      live.clear(row);
+      dn[row] = null;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @param guid
+   * @return the live row with the objectGUID or -1
+   */
+  public int getRow(PackedGUID guid) {
+    lock.readLock().lock();
+    try {
+      return (int) rowsByGUID.get(guid);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void indexRow(int row) {
+    if (guidHigh[row] != 0 || guidLow[row] != 0) {
+      rowsByGUID.put(guidHigh[row], guidLow[row], row);
+    }
+  }
+
+  private void unindexRow(int row) {
+    if ((guidHigh[row] != 0 || guidLow[row] != 0) && live.get(row)
+        && rowsByGUID.get(guidHigh[row], guidLow[row]) == row) {
+      rowsByGUID.remove(new PackedGUID(guidHigh[row], guidLow[row]));
+    }
+  }
+
+  private void checkRow(int row) {
+    if (row < 0 || row >= rows) {
+      throw new IndexOutOfBoundsException("Row " + row + " of " + rows);
+    }
+  }
+
+  private void write(int row, AccountStatusSnapshot snapshot) {
+    dn[row] = snapshot.getDN();
+    guidHigh[row] = snapshot.getObjectGUIDHigh();
+    guidLow[row] = snapshot.getObjectGUIDLow();
+    pwdLastSet[row] = snapshot.getPwdChangedTime();
+    lockoutTime[row] = snapshot.getLockoutTime();
+    accountExpires[row] = snapshot.getAccountExpires();
+    lastLogonTimestamp[row] = snapshot.getLastLogonTimestamp();
+    badPasswordTime[row] = snapshot.getBadPasswordTime();
+    userAccountControl[row] = snapshot.getUserAccountControl();
+    badPwdCount[row] = snapshot.getBadPwdCount();
+
+    // same rules as AccountStatusSnapshot.passwordExpirationCheck
+    if (snapshot.isPasswordNeverExpires()) {
+      passwordExpires[row] = NEVER;
+    } else {
+      long start = snapshot.getPwdChangedTime() != NOT_SET ? snapshot.getPwdChangedTime()
+          : snapshot.getCreateTimeStamp();
+      passwordExpires[row] = start == NOT_SET ? NOT_SET : start + snapshot.getPwdMaxAge() * 1000L;
+    }
+    // same rules as AccountStatusSnapshot.intruderLockoutCheck
+    if (snapshot.getLockoutDuration() == 0 || snapshot.getLockoutTime() == NOT_SET) {
+      lockoutEnds[row] = NOT_SET;
+    } else {
+      lockoutEnds[row] = snapshot.getLockoutTime() + snapshot.getLockoutDuration() * 1000L;
+    }
+  }
+
+  private void grow(int capacity) {
+    dn = Arrays.copyOf(dn, capacity);
+    guidHigh = Arrays.copyOf(guidHigh, capacity);
+    guidLow = Arrays.copyOf(guidLow, capacity);
+    pwdLastSet = Arrays.copyOf(pwdLastSet, capacity);
+    lockoutTime = Arrays.copyOf(lockoutTime, capacity);
+    accountExpires = Arrays.copyOf(accountExpires, capacity);
+    lastLogonTimestamp = Arrays.copyOf(lastLogonTimestamp, capacity);
+    badPasswordTime = Arrays.copyOf(badPasswordTime, capacity);
+    userAccountControl = Arrays.copyOf(userAccountControl, capacity);
+    badPwdCount = Arrays.copyOf(badPwdCount, capacity);
+    passwordExpires = Arrays.copyOf(passwordExpires, capacity);
+    lockoutEnds = Arrays.copyOf(lockoutEnds, capacity);
+  }
+
+  /**
+   * @param now
+   *              - epoch milliseconds
+   * @return rows still inside the lockout duration
+   */
+  public BitSet lockedOut(long now) {
+    lock.readLock().lock();
+    try {
+      return scanRange(lockoutEnds, now, NEVER);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param now
+   * @return rows whose password has expired, including rows whose password age
+   *         cannot be known
+   */
+  public BitSet passwordExpired(long now) {
+    lock.readLock().lock();
+    try {
+      return scanRange(passwordExpires, NOT_SET, now);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param now
+   * @param millis
+   *                 - e.g. 14 days
+   * @return rows whose password has not expired yet but will within millis
+   */
+  public BitSet passwordExpiresWithin(long now, long millis) {
+    lock.readLock().lock();
+    try {
+      return scanRange(passwordExpires, now + 1, now + millis);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param now
+   * @return rows whose accountExpires has passed
+   */
+  public BitSet accountExpired(long now) {
+    lock.readLock().lock();
+    try {
+      return scanRange(accountExpires, NOT_SET + 1, now);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param time
+   * @return rows whose lastLogonTimestamp is before time or was never set
+   */
+  public BitSet lastLogonBefore(long time) {
+    lock.readLock().lock();
+    try {
+      return scanRange(lastLogonTimestamp, NOT_SET, time - 1);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return rows with ACCOUNTDISABLE set
+   */
+  public BitSet disabled() {
+    return scanFlags(UserAccountControl.ACCOUNT_DISABLED.getCode());
+  }
+
+  /**
+   * @param flags
+   *                - userAccountControl bits that must all be set
+   * @return
+   */
+  public BitSet withUserAccountControlFlags(int flags) {
+    return scanFlags(flags);
+  }
+
+  /**
+   * @param count
+   * @return rows with a badPwdCount of at least count
+   */
+  public BitSet badPwdCountAtLeast(int count) {
+    lock.readLock().lock();
+    try {
+      int[] column = badPwdCount;
+      long[] words = new long[(rows + 63) >>> 6];
+      for (int w = 0; w < words.length; w++) {
+        int base = w << 6;
+        int end = Math.min(rows, base + 64);
+        long word = 0;
+        for (int row = base; row < end; row++) {
+          word |= (column[row] >= count ? 1L : 0L) << (row - base);
+        }
+        words[w] = word;
+      }
+      return liveOnly(words);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Live rows where low &lt;= value &lt;= high. The caller holds the read
+   * lock.
+   */
+  private BitSet scanRange(long[] column, long low, long high) {
+    if (high < low) {
+      return new BitSet();
+    }
+    return liveOnly(scanRange(column, rows, low, high));
+  }
+
+  /**
+   * Rows where low &lt;= value &lt;= high, compared unsigned after shifting by
+   * low so each row is one compare.
+   *
+   * @param column
+   * @param rows
+   *                 - rows of column to scan
+   * @param low
+   * @param high
+   *                 - not less than low
+   * @return the rows as BitSet words
+   */
+  static long[] scanRange(long[] column, int rows, long low, long high) {
+    long[] words = new long[(rows + 63) >>> 6];
+    long span = (high - low) + Long.MIN_VALUE;
+    long offset = Long.MIN_VALUE - low;
+    for (int w = 0; w < words.length; w++) {
+      int base = w << 6;
+      int end = Math.min(rows, base + 64);
+      long word = 0;
+      for (int row = base; row < end; row++) {
+        // 1 unless span < value, without a branch (Hacker's Delight 2-12)
+        long value = column[row] + offset;
+        long difference = span - value;
+        word |= (~(difference ^ ((span ^ value) & (difference ^ span))) >>> 63) << (row - base);
+      }
+      words[w] = word;
+    }
+    return words;
+  }
+
+  private BitSet scanFlags(int flags) {
+    lock.readLock().lock();
+    try {
+      int[] column = userAccountControl;
+      long[] words = new long[(rows + 63) >>> 6];
+      for (int w = 0; w < words.length; w++) {
+        int base = w << 6;
+        int end = Math.min(rows, base + 64);
+        long word = 0;
+        for (int row = base; row < end; row++) {
+          word |= ((column[row] & flags) == flags ? 1L : 0L) << (row - base);
+        }
+        words[w] = word;
+      }
+      return liveOnly(words);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private BitSet liveOnly(long[] words) {
+    BitSet result = BitSet.valueOf(words);
+    result.and(live);
+    return result;
+  }
+
+  /**
+   * @return rows added, including removed ones
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return rows;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return rows not removed
+   */
+  public int getLiveCount() {
+    lock.readLock().lock();
+    try {
+      return live.cardinality();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public boolean isLive(int row) {
+    lock.readLock().lock();
+    try {
+      return live.get(row);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public String getDN(int row) {
+    lock.readLock().lock();
+    try {
+      checkRow(row);
+      return dn[row];
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param row
+   * @return null if the row has no objectGUID
+   */
+  public PackedGUID getObjectGUID(int row) {
+    lock.readLock().lock();
+    try {
+      checkRow(row);
+      if (guidHigh[row] == 0 && guidLow[row] == 0) {
+        return null;
+      }
+      return new PackedGUID(guidHigh[row], guidLow[row]);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public long getPwdLastSet(int row) {
+    lock.readLock().lock();
+    try {
+      checkRow(row);
+      return pwdLastSet[row];
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public long getLockoutTime(int row) {
+    lock.readLock().lock();
+    try {
+      checkRow(row);
+      return lockoutTime[row];
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public long getAccountExpires(int row) {
+    lock.readLock().lock();
+    try {
+      checkRow(row);
+      return accountExpires[row];
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public long getLastLogonTimestamp(int row) {
+    lock.readLock().lock();
+    try {
+      checkRow(row);
+      return lastLogonTimestamp[row];
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public long getBadPasswordTime(int row) {
+    lock.readLock().lock();
+    try {
+      checkRow(row);
+      return badPasswordTime[row];
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param row
+   * @return when the password expires, Long.MAX_VALUE if it never does
+   */
+  public long getPasswordExpires(int row) {
+    lock.readLock().lock();
+    try {
+      checkRow(row);
+      return passwordExpires[row];
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public int getUserAccountControl(int row) {
+    lock.readLock().lock();
+    try {
+      checkRow(row);
+      return userAccountControl[row];
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public int getBadPwdCount(int row) {
+    lock.readLock().lock();
+    try {
+      checkRow(row);
+      return badPwdCount[row];
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+}
@@ -0,0 +1,531 @@
+package com.willeke.ldap.microsoft;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An AccountStatusColumns store saved as a file of fixed-size records and
+ * read back through FileChannel.map, so a restart is a map of the file plus a
+ * delta sync instead of reading the whole directory again.
+ *
+ * The file is a 64 byte header (magic, version, record size, record count,
+ * sync state length, time saved, DN table length, pair id) followed by one 96
+ * byte record per account and the sync state (see below):
+ *
+ * <pre>
+ *  0 objectGUID high          48 badPasswordTime
+ *  8 objectGUID low           56 password expires (derived)
+ * 16 pwdLastSet               64 lockout ends (derived)
+ * 24 lockoutTime              72 offset of the DN in the DN table
+ * 32 accountExpires           80 length of the DN, userAccountControl,
+ * 40 lastLogonTimestamp          badPwdCount, unused int
+ * </pre>
+ *
+ * Times are FILETIMEs as AD stores them: 100-nanosecond intervals since
+ * 1601-01-01 UTC, 0 when not set and Long.MAX_VALUE for never. The DNs are
+ * kept as UTF-8 in the sidecar file &lt;name&gt;.dn. Everything is little
+ * endian. The checks read the mapped records directly; toColumns copies them
+ * into an AccountStatusColumns that AccountStatusSync or USNChangedScanner can
+ * keep current.
+ *
+ * The records are only as current as the store was when it was saved, so the
+ * DirSync cookie or uSNChanged watermarks of that moment are saved in the same
+ * file: use AccountStatusSync.checkpoint or USNChangedScanner.checkpoint, and
+ * restore from the file rather than from a separate cookie or state file,
+ * which may be newer than the records.
+ *
+ * Both files are written to temporary files, flushed to disk and renamed in
+ * place, the DN table first. The two renames are not one atomic step: a crash
+ * between them leaves a DN table that belongs to another save. Both files
+ * start with the same random pair id, and open refuses a pair that does not
+ * match; the store then has to be loaded again.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class AccountStatusFile implements Closeable {
+  static String thisClass = AccountStatusFile.class.getName();
+  static Logger log = Logger.getLogger(thisClass);
+
+  /** "ADSTATUS" */
+  static final long MAGIC = 0x4144535441545553L;
+  static final int VERSION = 2;
+  public static final int HEADER_SIZE = 64;
+  /** the pair id at the start of the DN table */
+  static final int DN_TABLE_HEADER_SIZE = 8;
+  public static final int RECORD_SIZE = 96;
+  public static final String DN_TABLE_SUFFIX = ".dn";
+  public static final long FILETIME_EPOCH_OFFSET = 116444736000000000L;
+  public static final long FILETIME_NEVER = Long.MAX_VALUE;
+  static final int MAX_RECORDS = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // record offsets
+  static final int GUID_HIGH = 0;
+  static final int GUID_LOW = 8;
+  static final int PWD_LAST_SET = 16;
+  static final int LOCKOUT_TIME = 24;
+  static final int ACCOUNT_EXPIRES = 32;
+  static final int LAST_LOGON_TIMESTAMP = 40;
+  static final int BAD_PASSWORD_TIME = 48;
+  static final int PASSWORD_EXPIRES = 56;
+  static final int LOCKOUT_ENDS = 64;
+  static final int DN_OFFSET = 72;
+  static final int DN_LENGTH = 80;
+  static final int USER_ACCOUNT_CONTROL = 84;
+  static final int BAD_PWD_COUNT = 88;
+
+  private final File file;
+  private final MappedByteBuffer records;
+  private final MappedByteBuffer dnTable;
+  private final int count;
+  private final long created;
+  private final byte[] syncState;
+
+  private AccountStatusFile(File file, MappedByteBuffer records, MappedByteBuffer dnTable, int count, long created,
+      byte[] syncState) {
+    this.file = file;
+    this.records = records;
+    this.dnTable = dnTable;
+    this.count = count;
+    this.created = created;
+    this.syncState = syncState;
+  }
+
+  /**
+   * Map a file written by AccountStatusColumns.save
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   *                       - if the file or its DN table is missing, truncated,
+   *                       not an account status file or from different saves
+   */
+  public static AccountStatusFile open(File file) throws IOException {
+    File dnFile = new File(file.getPath() + DN_TABLE_SUFFIX);
+    MappedByteBuffer records = map(file);
+    MappedByteBuffer dnTable = map(dnFile);
+    records.order(ByteOrder.LITTLE_ENDIAN);
+    dnTable.order(ByteOrder.LITTLE_ENDIAN);
+    if (records.capacity() < HEADER_SIZE || records.getLong(0) != MAGIC) {
+      throw new IOException(file + " is not an account status file");
+    }
+    if (records.getInt(8) != VERSION || records.getInt(12) != RECORD_SIZE) {
+      throw new IOException(file + " is version " + records.getInt(8) + " with " + records.getInt(12)
+          + " byte records, expected version " + VERSION + " with " + RECORD_SIZE);
+    }
+    int count = records.getInt(16);
+    int syncStateLength = records.getInt(20);
+    long created = records.getLong(24);
+    long dnTableLength = records.getLong(32);
+    long pairId = records.getLong(40);
+    long recordsEnd = HEADER_SIZE + (long) count * RECORD_SIZE;
+    if (count < 0 || syncStateLength < 0 || records.capacity() != recordsEnd + syncStateLength) {
+      throw new IOException(file + " is " + records.capacity() + " bytes, expected " + count + " records and "
+          + syncStateLength + " bytes of sync state");
+    }
+    if (dnTable.capacity() != DN_TABLE_HEADER_SIZE + dnTableLength) {
+      throw new IOException(dnFile + " is " + dnTable.capacity() + " bytes, expected "
+          + (DN_TABLE_HEADER_SIZE + dnTableLength));
+    }
+    if (dnTable.getLong(0) != pairId) {
+      throw new IOException(dnFile + " was not saved together with " + file);
+    }
+    byte[] syncState = new byte[syncStateLength];
+    ByteBuffer state = records.duplicate();
+    state.position((int) recordsEnd);
+    state.get(syncState);
+    log.info("Mapped " + count + " account status records from " + file);
+    return new AccountStatusFile(file, records, dnTable, count, created, syncState);
+  }
+
+  private static MappedByteBuffer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      if (raf.length() > Integer.MAX_VALUE) {
+        throw new IOException(file + " is larger than 2GB");
+      }
+      // the mapping stays valid after the channel is closed
+      return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Copy the records into a new store
+   *
+   * @return
+   */
+  public AccountStatusColumns toColumns() {
+    AccountStatusColumns columns = new AccountStatusColumns(count);
+    for (int record = 0; record < count; record++) {
+      int base = HEADER_SIZE + record * RECORD_SIZE;
+      columns.addRow(getDN(record), records.getLong(base + GUID_HIGH), records.getLong(base + GUID_LOW),
+          toMillis(records.getLong(base + PWD_LAST_SET)), toMillis(records.getLong(base + LOCKOUT_TIME)),
+          toMillis(records.getLong(base + ACCOUNT_EXPIRES)), toMillis(records.getLong(base + LAST_LOGON_TIMESTAMP)),
+          toMillis(records.getLong(base + BAD_PASSWORD_TIME)), toMillis(records.getLong(base + PASSWORD_EXPIRES)),
+          toMillis(records.getLong(base + LOCKOUT_ENDS)), records.getInt(base + USER_ACCOUNT_CONTROL),
+          records.getInt(base + BAD_PWD_COUNT));
+    }
+    return columns;
+  }
+
+  /**
+   * Same as AccountStatusColumns.accountExpired for one record
+   *
+   * @param record
+   * @param now
+   *                 - epoch milliseconds
+   * @return true if accountExpires has passed
+   */
+  public boolean lockedAccountCheck(int record, long now) {
+    long accountExpires = getLong(record, ACCOUNT_EXPIRES);
+    return accountExpires != 0 && accountExpires <= toFileTime(now);
+  }
+
+  /**
+   * Same as AccountStatusColumns.passwordExpired for one record
+   *
+   * @param record
+   * @param now
+   *                 - epoch milliseconds
+   * @return true if the password has expired or its age cannot be known
+   */
+  public boolean passwordExpirationCheck(int record, long now) {
+    return getLong(record, PASSWORD_EXPIRES) <= toFileTime(now);
+  }
+
+  /**
+   * Same as AccountStatusColumns.lockedOut for one record
+   *
+   * @param record
+   * @param now
+   *                 - epoch milliseconds
+   * @return true if the record is still inside the lockout duration
+   */
+  public boolean intruderLockoutCheck(int record, long now) {
+    long lockoutEnds = getLong(record, LOCKOUT_ENDS);
+    return lockoutEnds != 0 && lockoutEnds >= toFileTime(now);
+  }
+
+  /**
+   * @return the number of records
+   */
+  public int size() {
+    return count;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return when the file was saved, epoch milliseconds
+   */
+  public long getCreated() {
+    return created;
+  }
+
+  /**
+   * @return the DirSync cookie or watermarks saved with the records, empty if
+   *         none were
+   */
+  public byte[] getSyncState() {
+    return syncState.clone();
+  }
+
+  public String getDN(int record) {
+    int base = base(record);
+    int offset = (int) records.getLong(base + DN_OFFSET);
+    int length = records.getInt(base + DN_LENGTH);
+    if (length < 0) {
+      return null;
+    }
+    byte[] utf8 = new byte[length];
+    ByteBuffer dns = dnTable.duplicate();
+    dns.position(DN_TABLE_HEADER_SIZE + offset);
+    dns.get(utf8);
+    return new String(utf8, UTF8);
+  }
+
+  /**
+   * @param record
+   * @return null if the record has no objectGUID
+   */
+  public PackedGUID getObjectGUID(int record) {
+    long high = getLong(record, GUID_HIGH);
+    long low = getLong(record, GUID_LOW);
+    return high == 0 && low == 0 ? null : new PackedGUID(high, low);
+  }
+
+  /**
+   * @return FILETIME
+   */
+  public long getPwdLastSet(int record) {
+    return getLong(record, PWD_LAST_SET);
+  }
+
+  /**
+   * @return FILETIME
+   */
+  public long getLockoutTime(int record) {
+    return getLong(record, LOCKOUT_TIME);
+  }
+
+  /**
+   * @return FILETIME
+   */
+  public long getAccountExpires(int record) {
+    return getLong(record, ACCOUNT_EXPIRES);
+  }
+
+  /**
+   * @return FILETIME
+   */
+  public long getLastLogonTimestamp(int record) {
+    return getLong(record, LAST_LOGON_TIMESTAMP);
+  }
+
+  /**
+   * @return FILETIME
+   */
+  public long getBadPasswordTime(int record) {
+    return getLong(record, BAD_PASSWORD_TIME);
+  }
+
+  /**
+   * @return FILETIME, FILETIME_NEVER if the password does not expire
+   */
+  public long getPasswordExpires(int record) {
+    return getLong(record, PASSWORD_EXPIRES);
+  }
+
+  public int getUserAccountControl(int record) {
+    return records.getInt(base(record) + USER_ACCOUNT_CONTROL);
+  }
+
+  public int getBadPwdCount(int record) {
+    return records.getInt(base(record) + BAD_PWD_COUNT);
+  }
+
+  private long getLong(int record, int field) {
+    return records.getLong(base(record) + field);
+  }
+
+  private int base(int record) {
+    if (record < 0 || record >= count) {
+      throw new IndexOutOfBoundsException("Record " + record + " of " + count);
+    }
+    return HEADER_SIZE + record * RECORD_SIZE;
+  }
+
+  /**
+   * The mapping is released when this object is garbage collected, there is
+   * no way to unmap it earlier
+   */
+  public void close() {
+  }
+
+  /**
+   * @param millis
+   *                 - epoch milliseconds, NOT_SET or NEVER
+   * @return the FILETIME, 0 or FILETIME_NEVER
+   */
+  public static long toFileTime(long millis) {
+    if (millis == AccountStatusSnapshot.NOT_SET) {
+      return 0;
+    }
+    if (millis == AccountStatusColumns.NEVER) {
+      return FILETIME_NEVER;
+    }
+    return millis * 10000L + FILETIME_EPOCH_OFFSET;
+  }
+
+  /**
+   * @param fileTime
+   * @return epoch milliseconds, NOT_SET for 0 or NEVER for FILETIME_NEVER
+   */
+  public static long toMillis(long fileTime) {
+    if (fileTime == 0) {
+      return AccountStatusSnapshot.NOT_SET;
+    }
+    if (fileTime == FILETIME_NEVER) {
+      return AccountStatusColumns.NEVER;
+    }
+    return (fileTime - FILETIME_EPOCH_OFFSET) / 10000L;
+  }
+
+  /**
+   * Writes the records and the DN table to temporary files and moves them in
+   * place on commit, DN table first. The records go through a FileChannel: a
+   * file with a mapping still open cannot be renamed on Windows, so files are
+   * only mapped for reading.
+   */
+  static class Writer implements Closeable {
+    static final SecureRandom random = new SecureRandom();
+    // records buffered per write
+    static final int BUFFERED_RECORDS = 512;
+
+    private final File file;
+    private final File tmp;
+    private final File dnTmp;
+    private final int count;
+    private final byte[] syncState;
+    private final long pairId = random.nextLong();
+    private final FileChannel recordsFile;
+    private final ByteBuffer records = ByteBuffer.allocate(BUFFERED_RECORDS * RECORD_SIZE)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    private final FileOutputStream dnTableFile;
+    private final OutputStream dnTable;
+    private int written = 0;
+    private long dnTableLength = 0;
+    private boolean committed = false;
+
+    /**
+     * @param file
+     * @param count
+     *                    - records that will be written
+     * @param syncState
+     *                    - saved after the records, may be empty
+     * @throws IOException
+     */
+    Writer(File file, int count, byte[] syncState) throws IOException {
+      if (HEADER_SIZE + (long) count * RECORD_SIZE + syncState.length > Integer.MAX_VALUE) {
+        throw new IOException(count + " records do not fit in one file, the limit is " + MAX_RECORDS);
+      }
+      this.file = file;
+      this.count = count;
+      this.syncState = syncState;
+      tmp = new File(file.getPath() + ".tmp");
+      dnTmp = new File(file.getPath() + DN_TABLE_SUFFIX + ".tmp");
+      recordsFile = new RandomAccessFile(tmp, "rw").getChannel();
+      recordsFile.truncate(0);
+      // the header is written on commit
+      recordsFile.position(HEADER_SIZE);
+      dnTableFile = new FileOutputStream(dnTmp);
+      dnTable = new BufferedOutputStream(dnTableFile, 1 << 16);
+      byte[] header = new byte[DN_TABLE_HEADER_SIZE];
+      ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).putLong(0, pairId);
+      dnTable.write(header);
+    }
+
+    /**
+     * Times in epoch milliseconds as held by AccountStatusColumns
+     */
+    void write(String dn, long guidHigh, long guidLow, long pwdLastSet, long lockoutTime, long accountExpires,
+        long lastLogonTimestamp, long badPasswordTime, long passwordExpires, long lockoutEnds,
+        int userAccountControl, int badPwdCount) throws IOException {
+      if (written == count) {
+        throw new IOException("More than the " + count + " records announced");
+      }
+      if (records.remaining() < RECORD_SIZE) {
+        flushRecords();
+      }
+      written++;
+      int base = records.position();
+      records.putLong(base + GUID_HIGH, guidHigh);
+      records.putLong(base + GUID_LOW, guidLow);
+      records.putLong(base + PWD_LAST_SET, toFileTime(pwdLastSet));
+      records.putLong(base + LOCKOUT_TIME, toFileTime(lockoutTime));
+      records.putLong(base + ACCOUNT_EXPIRES, toFileTime(accountExpires));
+      records.putLong(base + LAST_LOGON_TIMESTAMP, toFileTime(lastLogonTimestamp));
+      records.putLong(base + BAD_PASSWORD_TIME, toFileTime(badPasswordTime));
+      records.putLong(base + PASSWORD_EXPIRES, toFileTime(passwordExpires));
+      records.putLong(base + LOCKOUT_ENDS, toFileTime(lockoutEnds));
+      records.putInt(base + USER_ACCOUNT_CONTROL, userAccountControl);
+      records.putInt(base + BAD_PWD_COUNT, badPwdCount);
+      // the unused int, the buffer is reused
+      records.putInt(base + BAD_PWD_COUNT + 4, 0);
+      records.putLong(base + DN_OFFSET, dnTableLength);
+      if (dn == null) {
+        records.putInt(base + DN_LENGTH, -1);
+      } else {
+        byte[] utf8 = dn.getBytes(UTF8);
+        dnTable.write(utf8);
+        dnTableLength += utf8.length;
+        records.putInt(base + DN_LENGTH, utf8.length);
+      }
+      records.position(base + RECORD_SIZE);
+      if (DN_TABLE_HEADER_SIZE + dnTableLength > Integer.MAX_VALUE) {
+        throw new IOException("The DN table of " + file + " is larger than 2GB");
+      }
+    }
+
+    private void flushRecords() throws IOException {
+      records.flip();
+      writeFully(records, -1);
+      records.clear();
+    }
+
+    /**
+     * @param position
+     *                   - -1 to write at the position of the channel
+     */
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+      while (buffer.hasRemaining()) {
+        if (position < 0) {
+          recordsFile.write(buffer);
+        } else {
+          position += recordsFile.write(buffer, position);
+        }
+      }
+    }
+
+    void commit() throws IOException {
+      if (written != count) {
+        throw new IOException("Only " + written + " of the " + count + " records announced were written");
+      }
+      flushRecords();
+      writeFully(ByteBuffer.wrap(syncState), -1);
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      header.putLong(0, MAGIC);
+      header.putInt(8, VERSION);
+      header.putInt(12, RECORD_SIZE);
+      header.putInt(16, count);
+      header.putInt(20, syncState.length);
+      header.putLong(24, System.currentTimeMillis());
+      header.putLong(32, dnTableLength);
+      header.putLong(40, pairId);
+      writeFully(header, 0);
+      recordsFile.force(true);
+      recordsFile.close();
+      dnTable.flush();
+      dnTableFile.getFD().sync();
+      dnTable.close();
+      Files.move(dnTmp.toPath(), new File(file.getPath() + DN_TABLE_SUFFIX).toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      committed = true;
+      log.info("Saved " + count + " account status records to " + file);
+    }
+
+    public void close() throws IOException {
+      if (!committed) {
+        recordsFile.close();
+        dnTable.close();
+        if (tmp.exists() && !tmp.delete()) {
+          log.warn("Unable to delete " + tmp);
+        }
+        if (dnTmp.exists() && !dnTmp.delete()) {
+          log.warn("Unable to delete " + dnTmp);
+        }
+      }
+    }
+  }
+}
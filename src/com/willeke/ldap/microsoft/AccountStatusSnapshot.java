@@ -0,0 +1,262 @@
+package com.willeke.ldap.microsoft;
+
+import java.util.Date;
+
+/**
+ * An immutable copy of the state an ADAccountStatus evaluates, held as
+ * primitives: times as epoch milliseconds, the raw userAccountControl and the
+ * objectGUID as two longs. About 120 bytes plus the DN, against several KB for
+ * an ADAccountStatus with its Entry, Dates and BitMask, so bulk pipelines can
+ * keep millions of them.
+ *
+ * The checks take the time to evaluate against so a whole report uses one
+ * clock and can be replayed. Times that were not present are NOT_SET.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public final class AccountStatusSnapshot {
+
+  /** A time that was not present or was 0 in AD */
+  public static final long NOT_SET = Long.MIN_VALUE;
+
+  private final String dn;
+  private final long guidHigh;
+  private final long guidLow;
+  private final int userAccountControl;
+  private final boolean pwdMustChange;
+  private final int badPwdCount;
+  private final int logonCount;
+  private final long pwdChangedTime;
+  private final long lockoutTime;
+  private final long badPasswordTime;
+  private final long lastLogonTimestamp;
+  private final long accountExpires;
+  private final long createTimeStamp;
+  // policy, in seconds
+  private final int pwdMaxAge;
+  private final int pwdMinAge;
+  private final int lockoutDuration;
+  private final int lockoutThreshold;
+  private final int lockoutObservationWindow;
+
+  private AccountStatusSnapshot(ADAccountStatus status) {
+    dn = status.ldapEntry == null ? null : status.ldapEntry.getDN();
+    PackedGUID guid = status.getPackedObjectGUID();
+    guidHigh = guid == null ? 0 : guid.getHigh();
+    guidLow = guid == null ? 0 : guid.getLow();
+    userAccountControl = status.getUserAccountControlValue();
+    pwdMustChange = status.isPwdMustChange();
+    badPwdCount = status.getBadPwdCount();
+    logonCount = status.getLogonCount();
+    pwdChangedTime = millis(status.getPwdChangedTime());
+    lockoutTime = millis(status.getPwdAccountLockedTime());
+    badPasswordTime = millis(status.getBadPasswordTime());
+    lastLogonTimestamp = millis(status.getPwdLastSuccess());
+    accountExpires = millis(status.getPwdEndTime());
+    createTimeStamp = millis(status.getCreateTimeStamp());
+    pwdMaxAge = status.getPwdMaxAge();
+    pwdMinAge = status.getPwdMinAge();
+    lockoutDuration = status.getPwdLockoutDuration();
+    lockoutThreshold = status.getPwdMaxFailure();
+    lockoutObservationWindow = status.getPwdFailureCountInterval();
+  }
+
+  /**
+   * @param status
+   *                 - with its policy values set
+   * @return
+   */
+  public static AccountStatusSnapshot of(ADAccountStatus status) {
+    return new AccountStatusSnapshot(status);
+  }
+
+  private static long millis(Date date) {
+    return date == null ? NOT_SET : date.getTime();
+  }
+
+  /**
+   * Same as ADAccountStatus.lockedAccountCheck: true if accountExpires has
+   * passed
+   *
+   * @param now
+   *              - epoch milliseconds
+   * @return
+   */
+  public boolean lockedAccountCheck(long now) {
+    return accountExpires != NOT_SET && accountExpires <= now;
+  }
+
+  /**
+   * Same as ADAccountStatus.passwordExpirationCheck: true if pwdLastSet, or
+   * createTimeStamp when the password must be changed, plus the maximum
+   * password age has passed. True when neither is known.
+   *
+   * @param now
+   *              - epoch milliseconds
+   * @return
+   */
+  public boolean passwordExpirationCheck(long now) {
+    if (isPasswordNeverExpires()) {
+      return false;
+    }
+    long changed = getPasswordAgeStart();
+    return changed == NOT_SET || changed + pwdMaxAge * 1000L <= now;
+  }
+
+  /**
+   * Like ADAccountStatus.intruderLockoutCheck: true if lockoutTime plus the
+   * lockout duration has not passed yet. An account without a lockoutTime is
+   * not locked out.
+   *
+   * @param now
+   *              - epoch milliseconds
+   * @return
+   */
+  public boolean intruderLockoutCheck(long now) {
+    if (lockoutDuration == 0 || lockoutTime == NOT_SET) {
+      return false;
+    }
+    return now <= lockoutTime + lockoutDuration * 1000L;
+  }
+
+  /**
+   * Like ADAccountStatus.timeBeforeExpirationCheck, with the warning period
+   * passed in as AD has no pwdExpireWarning
+   *
+   * @param now
+   *                           - epoch milliseconds
+   * @param expireWarning
+   *                           - seconds before expiration to start warning
+   * @return seconds until the password expires if inside the warning period,
+   *         otherwise 0
+   */
+  public int timeBeforeExpirationCheck(long now, int expireWarning) {
+    long changed = getPasswordAgeStart();
+    if (expireWarning == 0 || changed == NOT_SET || isPasswordNeverExpires()) {
+      return 0;
+    }
+    long pwdAge = (now - changed) / 1000;
+    if (pwdAge > pwdMaxAge) {
+      return 0;
+    }
+    if (pwdAge >= pwdMaxAge - expireWarning) {
+      return (int) (pwdMaxAge - pwdAge);
+    }
+    return 0;
+  }
+
+  /**
+   * @return true if pwdLastSet was 0
+   */
+  public boolean passwordMustBeChangedNowCheck() {
+    return pwdMustChange;
+  }
+
+  private long getPasswordAgeStart() {
+    return pwdChangedTime != NOT_SET ? pwdChangedTime : createTimeStamp;
+  }
+
+  public boolean isAccountDisabled() {
+    return (userAccountControl & UserAccountControl.ACCOUNT_DISABLED.getCode()) != 0;
+  }
+
+  public boolean isPasswordNeverExpires() {
+    return (userAccountControl & UserAccountControl.DONT_EXPIRE_PASSWD.getCode()) != 0;
+  }
+
+  public String getDN() {
+    return dn;
+  }
+
+  /**
+   * @return null if the status had no objectGUID
+   */
+  public PackedGUID getObjectGUID() {
+    if (guidHigh == 0 && guidLow == 0) {
+      return null;
+    }
+    return new PackedGUID(guidHigh, guidLow);
+  }
+
+  public long getObjectGUIDHigh() {
+    return guidHigh;
+  }
+
+  public long getObjectGUIDLow() {
+    return guidLow;
+  }
+
+  public int getUserAccountControl() {
+    return userAccountControl;
+  }
+
+  public int getBadPwdCount() {
+    return badPwdCount;
+  }
+
+  public int getLogonCount() {
+    return logonCount;
+  }
+
+  public long getPwdChangedTime() {
+    return pwdChangedTime;
+  }
+
+  public long getLockoutTime() {
+    return lockoutTime;
+  }
+
+  public long getBadPasswordTime() {
+    return badPasswordTime;
+  }
+
+  public long getLastLogonTimestamp() {
+    return lastLogonTimestamp;
+  }
+
+  public long getAccountExpires() {
+    return accountExpires;
+  }
+
+  public long getCreateTimeStamp() {
+    return createTimeStamp;
+  }
+
+  /**
+   * @return seconds
+   */
+  public int getPwdMaxAge() {
+    return pwdMaxAge;
+  }
+
+  /**
+   * @return seconds
+   */
+  public int getPwdMinAge() {
+    return pwdMinAge;
+  }
+
+  /**
+   * @return seconds
+   */
+  public int getLockoutDuration() {
+    return lockoutDuration;
+  }
+
+  public int getLockoutThreshold() {
+    return lockoutThreshold;
+  }
+
+  /**
+   * @return seconds
+   */
+  public int getLockoutObservationWindow() {
+    return lockoutObservationWindow;
+  }
+
+  public String toString() {
+    return "AccountStatusSnapshot [dn=" + dn + ", userAccountControl=" + userAccountControl + ", pwdChangedTime="
+        + pwdChangedTime + ", lockoutTime=" + lockoutTime + ", accountExpires=" + accountExpires + "]";
+  }
+}
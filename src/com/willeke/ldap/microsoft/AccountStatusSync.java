@@ -0,0 +1,462 @@
+package com.willeke.ldap.microsoft;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.experimental.ActiveDirectoryDirSyncControl;
+
+/**
+ * Keeps an AccountStatusColumns store current with the DirSync control
+ * (1.2.840.113556.1.4.841) instead of a nightly full subtree scan.
+ *
+ * Each sync asks the DC for the users whose trackedAttrs changed since the
+ * cookie of the previous sync. DirSync only returns the attributes that
+ * changed, so the changed users are then read again in batches (an OR of
+ * objectGUID filters) with ADAccountStatus.userAttrs and the policy of the
+ * DomainPasswordPolicyCache, and their rows replaced. Deleted users come back
+ * as tombstones with isDeleted TRUE and their rows are removed. The cost of a
+ * sync is proportional to the churn, not to the population; the first sync,
+ * without a cookie, reads everyone.
+ *
+ * Rows are found by objectGUID in the columns. The cookie is written to the
+ * cookie file after every page has been applied. It only describes the store
+ * it was applied to: when the store is empty the saved cookie is ignored and a
+ * full sync is done. Users whose entry could not be evaluated would be lost
+ * once the cookie moves past them, so their objectGUIDs are kept, written to
+ * the cookie file name plus ".retry" before the cookie, and read again at the
+ * start of every sync until they evaluate or are gone. badPwdCount is not
+ * replicated and cannot be tracked this way. The account needs the
+ * Replicating Directory Changes right on the naming context;
+ * USNChangedScanner does without.
+ *
+ * To restart without a full sync, save the store with checkpoint, which keeps
+ * the cookie in the same AccountStatusFile, and start again with restore.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class AccountStatusSync {
+  static String thisClass = AccountStatusSync.class.getName();
+  static Logger log = Logger.getLogger(thisClass);
+
+  /** The attributes whose changes are synced */
+  public static final String[] trackedAttrs = { "userAccountControl", "pwdLastSet", "lockoutTime",
+      "accountExpires", "lastLogonTimestamp" };
+
+  /** Users, and tombstones which no longer have an objectCategory */
+  public static final String DEFAULT_FILTER = "(|(&(objectClass=user)(objectCategory=person))(isDeleted=TRUE))";
+
+  /** objectGUIDs per re-read search */
+  public static final int DEFAULT_READ_BATCH = 100;
+
+  static final String[] dirSyncAttrs;
+
+  static {
+    dirSyncAttrs = new String[trackedAttrs.length + 2];
+    System.arraycopy(trackedAttrs, 0, dirSyncAttrs, 0, trackedAttrs.length);
+    dirSyncAttrs[trackedAttrs.length] = "objectGUID";
+    dirSyncAttrs[trackedAttrs.length + 1] = "isDeleted";
+  }
+
+  private final AccountStatusColumns columns;
+  private final File cookieFile;
+  private final File retryFile;
+  private ASN1OctetString cookie;
+  private final Map<PackedGUID, byte[]> retry = new LinkedHashMap<PackedGUID, byte[]>();
+  private String filter = DEFAULT_FILTER;
+  private int readBatch = DEFAULT_READ_BATCH;
+
+  /**
+   * @param columns
+   *                     - the store to keep current, empty or as restored
+   *                     together with the cookie file
+   * @param cookieFile
+   *                     - where the cookie is kept between runs, may be null
+   *                     to keep it in memory only
+   * @throws IOException
+   *                       - if the cookie file exists but cannot be read
+   */
+  public AccountStatusSync(AccountStatusColumns columns, File cookieFile) throws IOException {
+    this(columns, cookieFile, true);
+  }
+
+  private AccountStatusSync(AccountStatusColumns columns, File cookieFile, boolean readCookieFile)
+      throws IOException {
+    this.columns = columns;
+    this.cookieFile = cookieFile;
+    this.retryFile = cookieFile == null ? null : new File(cookieFile.getPath() + ".retry");
+    if (readCookieFile && cookieFile != null && cookieFile.exists()) {
+      if (columns.getLiveCount() == 0) {
+        log.warn("Ignoring " + cookieFile + " as the store is empty, doing a full sync");
+      } else {
+        cookie = new ASN1OctetString(Files.readAllBytes(cookieFile.toPath()));
+        if (retryFile.exists()) {
+          addRetry(ByteBuffer.wrap(Files.readAllBytes(retryFile.toPath())));
+        }
+      }
+    }
+  }
+
+  /**
+   * Continue from a file saved by checkpoint, with the cookie the store was
+   * current to. The cookie file is replaced by that cookie, as it may be newer
+   * than the store.
+   *
+   * @param file
+   * @param cookieFile
+   *                     - may be null to keep the cookie in memory only
+   * @return
+   * @throws IOException
+   *                       - if the cookie file cannot be written
+   */
+  public static AccountStatusSync restore(AccountStatusFile file, File cookieFile) throws IOException {
+    AccountStatusSync sync = new AccountStatusSync(file.toColumns(), cookieFile, false);
+    ByteBuffer state = ByteBuffer.wrap(file.getSyncState()).order(ByteOrder.LITTLE_ENDIAN);
+    if (sync.columns.getLiveCount() == 0 || state.remaining() < 4 || state.getInt(0) < 0) {
+      log.warn("No cookie saved with " + file.getFile() + ", doing a full sync");
+      sync.resetCookie();
+      return sync;
+    }
+    byte[] cookie = new byte[state.getInt()];
+    state.get(cookie);
+    sync.addRetry(state);
+    try {
+      sync.setCookie(new ASN1OctetString(cookie));
+    } catch (LDAPException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    return sync;
+  }
+
+  /**
+   * Save the store together with the cookie it is current to, see
+   * AccountStatusFile. Waits for a sync in progress to finish.
+   *
+   * @param file
+   * @throws IOException
+   */
+  public synchronized void checkpoint(File file) throws IOException {
+    byte[] guids = getRetryBytes();
+    ByteBuffer state;
+    if (cookie == null) {
+      state = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      state.putInt(-1);
+    } else {
+      byte[] value = cookie.getValue();
+      state = ByteBuffer.allocate(4 + value.length + guids.length).order(ByteOrder.LITTLE_ENDIAN);
+      state.putInt(value.length).put(value).put(guids);
+    }
+    columns.save(file, state.array());
+  }
+
+  private void addRetry(List<byte[]> guids) {
+    for (byte[] objectGUID : guids) {
+      retry.put(PackedGUID.fromBytes(objectGUID), objectGUID);
+    }
+  }
+
+  private void addRetry(ByteBuffer guids) {
+    while (guids.remaining() >= ObjectGUIDTools.GUID_LENGTH) {
+      byte[] objectGUID = new byte[ObjectGUIDTools.GUID_LENGTH];
+      guids.get(objectGUID);
+      retry.put(PackedGUID.fromBytes(objectGUID), objectGUID);
+    }
+  }
+
+  /**
+   * The configured filter without its tombstone branch, for reading the
+   * changed users again: (|(users)(isDeleted=TRUE)) becomes (users)
+   *
+   * @param filter
+   * @return
+   * @throws LDAPException
+   */
+  static Filter liveFilter(String filter) throws LDAPException {
+    Filter parsed = Filter.create(filter);
+    if (parsed.getFilterType() != Filter.FILTER_TYPE_OR) {
+      return parsed;
+    }
+    List<Filter> live = new ArrayList<Filter>();
+    for (Filter component : parsed.getComponents()) {
+      if (component.getFilterType() != Filter.FILTER_TYPE_EQUALITY
+          || !"isDeleted".equalsIgnoreCase(component.getAttributeName())) {
+        live.add(component);
+      }
+    }
+    return live.size() == 1 ? live.get(0) : Filter.createORFilter(live);
+  }
+
+  /**
+   * Apply every change since the last sync
+   *
+   * @param ldc
+   *                         - bound with the Replicating Directory Changes
+   *                         right
+   * @param namingContext
+   *                         - DirSync only accepts the root of a naming
+   *                         context as the base
+   * @return what was applied
+   * @throws LDAPException
+   *                         - the changes of the pages before the failure are
+   *                         applied and their cookie saved
+   */
+  public synchronized SyncResult sync(LDAPConnection ldc, String namingContext) throws LDAPException {
+    SyncResult result = new SyncResult(cookie == null);
+    DomainPasswordPolicyCache cache = DomainPasswordPolicyCache.getInstance();
+    DomainPasswordPolicy policy = cache.getPolicy(ldc);
+    PasswordSettingsIndex psoIndex = cache.getPasswordSettingsIndex(ldc);
+    Filter readFilter = liveFilter(filter);
+    long start = System.currentTimeMillis();
+    if (!retry.isEmpty()) {
+      List<byte[]> pending = new ArrayList<byte[]>(retry.values());
+      result.retried = pending.size();
+      List<byte[]> failed = read(ldc, namingContext, readFilter, pending, policy, psoIndex, result);
+      // users read left the list as they were applied; the ones that are gone
+      // leave it only now that the read succeeded, so a failed read keeps them
+      for (byte[] objectGUID : pending) {
+        retry.remove(PackedGUID.fromBytes(objectGUID));
+      }
+      addRetry(failed);
+    }
+    while (true) {
+      SearchRequest searchRequest = new SearchRequest(namingContext, SearchScope.SUB, filter, dirSyncAttrs);
+      searchRequest.addControl(new ActiveDirectoryDirSyncControl(true, 0, 0, cookie));
+      SearchResult searchResult = ldc.search(searchRequest);
+      result.pages++;
+      List<byte[]> changed = new ArrayList<byte[]>();
+      for (SearchResultEntry entry : searchResult.getSearchEntries()) {
+        byte[] objectGUID = entry.getAttributeValueBytes("objectGUID");
+        if (objectGUID == null || objectGUID.length != ObjectGUIDTools.GUID_LENGTH) {
+          continue;
+        }
+        if ("TRUE".equalsIgnoreCase(entry.getAttributeValue("isDeleted"))) {
+          PackedGUID guid = PackedGUID.fromBytes(objectGUID);
+          retry.remove(guid);
+          int row = columns.getRow(guid);
+          if (row >= 0) {
+            columns.remove(row);
+            result.deleted++;
+          }
+        } else {
+          changed.add(objectGUID);
+        }
+      }
+      addRetry(read(ldc, namingContext, readFilter, changed, policy, psoIndex, result));
+      ActiveDirectoryDirSyncControl responseControl = ActiveDirectoryDirSyncControl.get(searchResult);
+      if (responseControl == null) {
+        throw new LDAPException(ResultCode.CONTROL_NOT_FOUND, "No DirSync response control from " + ldc);
+      }
+      setCookie(responseControl.getCookie());
+      // a non-zero flag means there is more data
+      if (responseControl.getFlags() == 0) {
+        break;
+      }
+    }
+    result.millis = System.currentTimeMillis() - start;
+    log.info("DirSync of " + namingContext + ": " + result);
+    return result;
+  }
+
+  /**
+   * Read the full userAttrs of the changed entries and add or replace their
+   * rows. Entries read are removed from the retry list.
+   *
+   * @return the objectGUIDs of entries that failed, to keep for the next sync
+   */
+  private List<byte[]> read(LDAPConnection ldc, String namingContext, Filter readFilter, List<byte[]> changed,
+      DomainPasswordPolicy policy, PasswordSettingsIndex psoIndex, final SyncResult result) throws LDAPException {
+    BulkAccountStatus.StatusSearchListener listener = new BulkAccountStatus.StatusSearchListener(policy, psoIndex,
+        new BulkAccountStatus.AccountStatusHandler() {
+          public void handleAccountStatus(ADAccountStatus status) {
+            PackedGUID guid = status.getPackedObjectGUID();
+            if (guid != null) {
+              retry.remove(guid);
+            }
+            apply(AccountStatusSnapshot.of(status), result);
+          }
+        });
+    BulkAccountStatus.readByObjectGUID(ldc, namingContext, readFilter, changed, readBatch, listener);
+    result.failed += listener.failed;
+    return listener.failedObjectGUIDs;
+  }
+
+  private void apply(AccountStatusSnapshot snapshot, SyncResult result) {
+    PackedGUID guid = snapshot.getObjectGUID();
+    if (guid == null) {
+      return;
+    }
+    if (columns.put(snapshot)) {
+      result.added++;
+    } else {
+      result.updated++;
+    }
+  }
+
+  private void setCookie(ASN1OctetString cookie) throws LDAPException {
+    this.cookie = cookie;
+    if (cookieFile == null) {
+      return;
+    }
+    try {
+      // the retry list first: after a crash between the two it names a few
+      // users more than needed, never fewer
+      replace(retryFile, getRetryBytes());
+      replace(cookieFile, cookie.getValue());
+    } catch (IOException e) {
+      throw new LDAPException(ResultCode.LOCAL_ERROR, "Unable to save the DirSync cookie to " + cookieFile, e);
+    }
+  }
+
+  private static void replace(File file, byte[] bytes) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    Files.write(tmp.toPath(), bytes);
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private byte[] getRetryBytes() {
+    byte[] bytes = new byte[retry.size() * ObjectGUIDTools.GUID_LENGTH];
+    int i = 0;
+    for (byte[] objectGUID : retry.values()) {
+      System.arraycopy(objectGUID, 0, bytes, i, objectGUID.length);
+      i += objectGUID.length;
+    }
+    return bytes;
+  }
+
+  /**
+   * Forget the cookie so the next sync reads everyone again. Rows of users
+   * deleted meanwhile stay in the store.
+   */
+  public synchronized void resetCookie() {
+    cookie = null;
+    retry.clear();
+    if (cookieFile != null && cookieFile.exists() && !cookieFile.delete()) {
+      log.warn("Unable to delete " + cookieFile);
+    }
+    if (retryFile != null && retryFile.exists() && !retryFile.delete()) {
+      log.warn("Unable to delete " + retryFile);
+    }
+  }
+
+  public synchronized ASN1OctetString getCookie() {
+    return cookie;
+  }
+
+  /**
+   * @return number of users whose entries failed and are read again by the
+   *         next sync
+   */
+  public synchronized int getPendingRetries() {
+    return retry.size();
+  }
+
+  public AccountStatusColumns getColumns() {
+    return columns;
+  }
+
+  public String getFilter() {
+    return filter;
+  }
+
+  /**
+   * @param filter
+   *                 - must also match the tombstones of deleted users. The
+   *                 changed users are read again with this filter minus its
+   *                 isDeleted branch.
+   */
+  public void setFilter(String filter) {
+    this.filter = filter;
+  }
+
+  public int getReadBatch() {
+    return readBatch;
+  }
+
+  public void setReadBatch(int readBatch) {
+    this.readBatch = readBatch;
+  }
+
+  /**
+   * The outcome of one sync
+   */
+  public static class SyncResult {
+    final boolean fullSync;
+    int pages;
+    int added;
+    int updated;
+    int deleted;
+    int failed;
+    int retried;
+    long millis;
+
+    SyncResult(boolean fullSync) {
+      this.fullSync = fullSync;
+    }
+
+    /**
+     * @return true if there was no cookie so every user was read
+     */
+    public boolean isFullSync() {
+      return fullSync;
+    }
+
+    public int getPages() {
+      return pages;
+    }
+
+    public int getAdded() {
+      return added;
+    }
+
+    public int getUpdated() {
+      return updated;
+    }
+
+    public int getDeleted() {
+      return deleted;
+    }
+
+    /**
+     * @return entries that could not be evaluated, kept to be read again
+     */
+    public int getFailed() {
+      return failed;
+    }
+
+    /**
+     * @return users that had failed before and were read again
+     */
+    public int getRetried() {
+      return retried;
+    }
+
+    public long getMillis() {
+      return millis;
+    }
+
+    public String toString() {
+      return (fullSync ? "full" : "incremental") + " sync, " + pages + " pages, " + added + " added, " + updated
+          + " updated, " + deleted + " deleted, " + failed + " failed, " + retried + " retried in " + millis
+          + " ms";
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package com.willeke.ldap.microsoft;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+
+/**
+ * Evaluate the ADAccountStatus of every user under a base DN with one Simple
+ * Paged Results search.
+ *
+ * new ADAccountStatus(ldc, dn) reads the rootDSE, the domain policy and the
+ * user Entry, three round trips per user. Here the policy is read once and
+ * shared, users with a msDS-ResultantPSO are resolved against a
+ * PasswordSettingsIndex in memory, and each SearchResultEntry is handed to the AccountStatusHandler as
+ * it arrives so the result set is never held in memory.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class BulkAccountStatus {
+  static String thisClass = BulkAccountStatus.class.getName();
+  static Logger log = Logger.getLogger(thisClass);
+
+  public static final String DEFAULT_USER_FILTER = "(&(objectCategory=person)(objectClass=user))";
+  public static final int DEFAULT_PAGE_SIZE = 1000;
+
+  /**
+   * Receives each ADAccountStatus as it is built. It is called on the thread
+   * reading from the connection so it should not block for long or throw.
+   */
+  public interface AccountStatusHandler {
+    void handleAccountStatus(ADAccountStatus status);
+  }
+
+  /**
+   * Evaluate all users under baseDN using the DEFAULT_USER_FILTER and
+   * DEFAULT_PAGE_SIZE
+   *
+   * @param ldc
+   * @param baseDN
+   * @param handler
+   * @return the number of ADAccountStatus handed to the handler
+   * @throws LDAPException
+   */
+  public static int evaluate(LDAPConnection ldc, String baseDN, AccountStatusHandler handler) throws LDAPException {
+    return evaluate(ldc, baseDN, DEFAULT_USER_FILTER, DEFAULT_PAGE_SIZE, handler);
+  }
+
+  /**
+   * Gets the DomainPasswordPolicy and PasswordSettingsIndex from the
+   * DomainPasswordPolicyCache once and then evaluates all entries matching
+   * filter under baseDN
+   *
+   * @param ldc
+   * @param baseDN
+   * @param filter
+   * @param pageSize
+   * @param handler
+   * @return the number of ADAccountStatus handed to the handler
+   * @throws LDAPException
+   */
+  public static int evaluate(LDAPConnection ldc, String baseDN, String filter, int pageSize,
+      AccountStatusHandler handler) throws LDAPException {
+    DomainPasswordPolicyCache cache = DomainPasswordPolicyCache.getInstance();
+    return evaluate(ldc, baseDN, filter, pageSize, cache.getPolicy(ldc), cache.getPasswordSettingsIndex(ldc),
+        handler);
+  }
+
+  /**
+   *
+   * @param ldc
+   * @param baseDN
+   * @param filter
+   * @param pageSize
+   *                      - Simple Paged Results page size. Should not be larger
+   *                      than the server MaxPageSize (1000 by default in AD)
+   * @param policy
+   *                      - shared by every ADAccountStatus built
+   * @param psoIndex
+   *                      - resolves msDS-ResultantPSO, may be null to apply the
+   *                      domain policy to everyone
+   * @param handler
+   * @return the number of ADAccountStatus handed to the handler
+   * @throws LDAPException
+   */
+  public static int evaluate(LDAPConnection ldc, String baseDN, String filter, int pageSize,
+      DomainPasswordPolicy policy, PasswordSettingsIndex psoIndex, AccountStatusHandler handler)
+      throws LDAPException {
+    StatusSearchListener listener = new StatusSearchListener(policy, psoIndex, handler);
+    int pages = pagedSearch(ldc, listener, baseDN, filter, pageSize, ADAccountStatus.userAttrs);
+    log.info("Evaluated " + listener.evaluated + " accounts under " + baseDN + " in " + pages + " pages ("
+        + listener.failed + " failed)");
+    return listener.evaluated;
+  }
+
+  /**
+   * Run a SUB search with the SimplePagedResultsControl until the server has no
+   * more results. Entries are only delivered to the listener.
+   *
+   * @return the number of pages requested
+   */
+  static int pagedSearch(LDAPConnection ldc, SearchResultListener listener, String baseDN, String filter,
+      int pageSize, String... attributes) throws LDAPException {
+    return pagedSearch(ldc, listener, baseDN, filter, pageSize, new Control[0], attributes);
+  }
+
+  /**
+   * pagedSearch with more request controls, like Show Deleted, sent with every
+   * page
+   *
+   * @return the number of pages requested
+   */
+  static int pagedSearch(LDAPConnection ldc, SearchResultListener listener, String baseDN, String filter,
+      int pageSize, Control[] controls, String... attributes) throws LDAPException {
+    int pages = 0;
+    ASN1OctetString cookie = null;
+    while (true) {
+      SearchRequest searchRequest = new SearchRequest(listener, baseDN, SearchScope.SUB, filter, attributes);
+      searchRequest.addControls(controls);
+      searchRequest.addControl(new SimplePagedResultsControl(pageSize, cookie));
+      SearchResult searchResult = ldc.search(searchRequest);
+      pages++;
+      SimplePagedResultsControl responseControl = SimplePagedResultsControl.get(searchResult);
+      if (responseControl == null || !responseControl.moreResultsToReturn()) {
+        break;
+      }
+      cookie = responseControl.getCookie();
+    }
+    return pages;
+  }
+
+  /**
+   * Read the entries with the objectGUIDs that also match filter, batch
+   * objectGUIDs (an OR of equality filters) per search, and hand them to the
+   * listener. Entries that no longer exist or match are simply not returned.
+   *
+   * @param ldc
+   * @param baseDN
+   * @param filter
+   * @param objectGUIDs
+   * @param batch
+   * @param listener
+   * @throws LDAPException
+   */
+  static void readByObjectGUID(LDAPConnection ldc, String baseDN, Filter filter, List<byte[]> objectGUIDs,
+      int batch, StatusSearchListener listener) throws LDAPException {
+    for (int i = 0; i < objectGUIDs.size(); i += batch) {
+      List<byte[]> guids = objectGUIDs.subList(i, Math.min(objectGUIDs.size(), i + batch));
+      List<Filter> guidFilters = new ArrayList<Filter>(guids.size());
+      for (byte[] objectGUID : guids) {
+        guidFilters.add(Filter.createEqualityFilter("objectGUID", objectGUID));
+      }
+      Filter readFilter = Filter.createANDFilter(filter, Filter.createORFilter(guidFilters));
+      ldc.search(new SearchRequest(listener, baseDN, SearchScope.SUB, readFilter, ADAccountStatus.userAttrs));
+    }
+  }
+
+  /**
+   * Builds an ADAccountStatus from each entry as it is returned.
+   */
+  static class StatusSearchListener implements SearchResultListener {
+    private static final long serialVersionUID = 1L;
+
+    final DomainPasswordPolicy policy;
+    final PasswordSettingsIndex psoIndex;
+    final AccountStatusHandler handler;
+    int evaluated = 0;
+    int failed = 0;
+    /** objectGUIDs of the entries that failed, to read them again later */
+    final List<byte[]> failedObjectGUIDs = new ArrayList<byte[]>();
+
+    StatusSearchListener(DomainPasswordPolicy policy, PasswordSettingsIndex psoIndex, AccountStatusHandler handler) {
+      this.policy = policy;
+      this.psoIndex = psoIndex;
+      this.handler = handler;
+    }
+
+    public void searchEntryReturned(SearchResultEntry searchEntry) {
+      ADAccountStatus status;
+      try {
+        status = new ADAccountStatus(searchEntry, policy);
+        if (psoIndex != null && status.getResultantPSO() != null) {
+          status.setPolicyValues(psoIndex.resolve(status.getResultantPSO(), policy));
+        }
+      } catch (ParseException e) {
+        failed++;
+        byte[] objectGUID = searchEntry.getAttributeValueBytes("objectGUID");
+        if (objectGUID != null && objectGUID.length == ObjectGUIDTools.GUID_LENGTH) {
+          failedObjectGUIDs.add(objectGUID);
+        }
+        log.warn("Unable to evaluate " + searchEntry.getDN() + " " + e.getMessage());
+        return;
+      }
+      evaluated++;
+      handler.handleAccountStatus(status);
+    }
+
+    public void searchReferenceReturned(SearchResultReference searchReference) {
+      log.debug("Ignoring referral " + searchReference);
+    }
+  }
+}
@@ -0,0 +1,359 @@
+package com.willeke.ldap.microsoft;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+import org.apache.log4j.Logger;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPInterface;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.RootDSE;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.util.StaticUtils;
+
+/**
+ * Find the domain controllers of a domain without a hard-coded serverOU.
+ *
+ * findFromConfiguration reads the nTDSDSA objects (one per DC) under
+ * CN=Sites of the Configuration partition, which every DC of the forest
+ * holds, and the dNSHostName of their parent server objects. findFromDNS
+ * uses the _ldap._tcp SRV records the DCs register, through an SRVResolver so
+ * tests can use a StaticSRVResolver.
+ *
+ * Use DomainControllerProber to rank the DCs found by latency.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class DomainControllerLocator {
+  static String thisClass = DomainControllerLocator.class.getName();
+  static Logger log = Logger.getLogger(thisClass);
+
+  public static final int DEFAULT_PORT = 389;
+
+  /**
+   * The DCs of the defaultNamingContext of the server ldc is connected to
+   *
+   * @param ldc
+   * @return DCs sorted by site and host name
+   * @throws LDAPException
+   */
+  public static List<DomainController> findFromConfiguration(LDAPInterface ldc) throws LDAPException {
+    RootDSE rootDSE = ldc.getRootDSE();
+    if (rootDSE == null || rootDSE.getAttributeValue("defaultNamingContext") == null) {
+      throw new LDAPException(ResultCode.NO_SUCH_ATTRIBUTE, "Unable to read defaultNamingContext from the rootDSE");
+    }
+    return findFromConfiguration(ldc, rootDSE.getAttributeValue("defaultNamingContext"));
+  }
+
+  /**
+   * The DCs holding the domainNC, from the Configuration partition
+   *
+   * @param ldc
+   * @param domainNC
+   *                   - DN of the domain, null for every DC of the forest
+   * @return DCs sorted by site and host name
+   * @throws LDAPException
+   */
+  public static List<DomainController> findFromConfiguration(LDAPInterface ldc, String domainNC)
+      throws LDAPException {
+    RootDSE rootDSE = ldc.getRootDSE();
+    if (rootDSE == null || rootDSE.getAttributeValue("configurationNamingContext") == null) {
+      throw new LDAPException(ResultCode.NO_SUCH_ATTRIBUTE,
+          "Unable to read configurationNamingContext from the rootDSE");
+    }
+    String sites = "CN=Sites," + rootDSE.getAttributeValue("configurationNamingContext");
+    DN domain = domainNC == null ? null : new DN(domainNC);
+
+    Map<DN, String> hostNames = new HashMap<DN, String>();
+    for (SearchResultEntry server : ldc.search(sites, SearchScope.SUB, "(objectClass=server)", "dNSHostName")
+        .getSearchEntries()) {
+      if (server.getAttributeValue("dNSHostName") != null) {
+        hostNames.put(server.getParsedDN(), server.getAttributeValue("dNSHostName"));
+      }
+    }
+
+    List<DomainController> dcs = new ArrayList<DomainController>();
+    for (SearchResultEntry ntdsDsa : ldc.search(sites, SearchScope.SUB, "(objectClass=nTDSDSA)",
+        "msDS-HasDomainNCs", "hasMasterNCs").getSearchEntries()) {
+      if (domain != null && !holdsDomain(ntdsDsa, domain)) {
+        continue;
+      }
+      // CN=NTDS Settings,CN=<server>,CN=Servers,CN=<site>,CN=Sites,...
+      DN serverDN = ntdsDsa.getParsedDN().getParent();
+      String hostName = serverDN == null ? null : hostNames.get(serverDN);
+      if (hostName == null) {
+        log.warn("No dNSHostName for " + ntdsDsa.getDN());
+        continue;
+      }
+      DN siteDN = serverDN.getParent().getParent();
+      dcs.add(new DomainController(hostName, DEFAULT_PORT, siteDN.getRDN().getAttributeValues()[0], 0, 0));
+    }
+    Collections.sort(dcs, new Comparator<DomainController>() {
+      public int compare(DomainController a, DomainController b) {
+        int c = a.siteName.compareToIgnoreCase(b.siteName);
+        return c != 0 ? c : a.hostName.compareToIgnoreCase(b.hostName);
+      }
+    });
+    return dcs;
+  }
+
+  private static boolean holdsDomain(SearchResultEntry ntdsDsa, DN domain) throws LDAPException {
+    // msDS-HasDomainNCs is Windows 2003 and later, hasMasterNCs also lists the
+    // Configuration and Schema partitions
+    String[] ncs = ntdsDsa.getAttributeValues("msDS-HasDomainNCs");
+    if (ncs == null) {
+      ncs = ntdsDsa.getAttributeValues("hasMasterNCs");
+    }
+    for (int i = 0; ncs != null && i < ncs.length; i++) {
+      if (domain.equals(new DN(ncs[i]))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The DCs of the domain from the _ldap._tcp.dc._msdcs SRV records
+   *
+   * @param domainName
+   *                     - DNS name of the domain, e.g. example.com
+   * @param siteName
+   *                     - only the DCs registered for this site, null for all
+   * @param resolver
+   * @return DCs in SRV order: lowest priority first, then highest weight
+   * @throws LDAPException
+   */
+  public static List<DomainController> findFromDNS(String domainName, String siteName, SRVResolver resolver)
+      throws LDAPException {
+    String name = siteName == null ? "_ldap._tcp.dc._msdcs." + domainName
+        : "_ldap._tcp." + siteName + "._sites.dc._msdcs." + domainName;
+    List<SRVRecord> records = new ArrayList<SRVRecord>(resolver.resolve(name));
+    Collections.sort(records, new Comparator<SRVRecord>() {
+      public int compare(SRVRecord a, SRVRecord b) {
+        if (a.priority != b.priority) {
+          return a.priority < b.priority ? -1 : 1;
+        }
+        return a.weight > b.weight ? -1 : (a.weight == b.weight ? 0 : 1);
+      }
+    });
+    List<DomainController> dcs = new ArrayList<DomainController>(records.size());
+    for (SRVRecord record : records) {
+      dcs.add(new DomainController(record.target, record.port, siteName, record.priority, record.weight));
+    }
+    return dcs;
+  }
+
+  /**
+   * A domain controller found by the locator
+   */
+  public static class DomainController {
+    final String hostName;
+    final int port;
+    final String siteName;
+    final int priority;
+    final int weight;
+
+    public DomainController(String hostName, int port, String siteName, int priority, int weight) {
+      this.hostName = hostName;
+      this.port = port;
+      this.siteName = siteName;
+      this.priority = priority;
+      this.weight = weight;
+    }
+
+    public String getHostName() {
+      return hostName;
+    }
+
+    public int getPort() {
+      return port;
+    }
+
+    /**
+     * @return the site of the DC, null if found through DNS without a site
+     */
+    public String getSiteName() {
+      return siteName;
+    }
+
+    /**
+     * @return SRV priority, 0 if found in the Configuration partition
+     */
+    public int getPriority() {
+      return priority;
+    }
+
+    /**
+     * @return SRV weight, 0 if found in the Configuration partition
+     */
+    public int getWeight() {
+      return weight;
+    }
+
+    /**
+     * @return host:port as from LDAPServerKey
+     */
+    public String getServerKey() {
+      return LDAPServerKey.get(hostName, port);
+    }
+
+    public String toString() {
+      return "DomainController(" + hostName + ":" + port + (siteName == null ? "" : ", site=" + siteName) + ")";
+    }
+  }
+
+  /**
+   * One SRV record
+   */
+  public static class SRVRecord {
+    final int priority;
+    final int weight;
+    final int port;
+    final String target;
+
+    public SRVRecord(int priority, int weight, int port, String target) {
+      this.priority = priority;
+      this.weight = weight;
+      this.port = port;
+      this.target = target;
+    }
+
+    /**
+     * @param value
+     *                - "priority weight port target" as returned by DNS
+     * @return
+     * @throws LDAPException
+     */
+    public static SRVRecord parse(String value) throws LDAPException {
+      String[] parts = value.trim().split("\\s+");
+      if (parts.length != 4) {
+        throw new LDAPException(ResultCode.DECODING_ERROR, "Not an SRV record: " + value);
+      }
+      String target = parts[3].endsWith(".") ? parts[3].substring(0, parts[3].length() - 1) : parts[3];
+      try {
+        return new SRVRecord(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+            target);
+      } catch (NumberFormatException e) {
+        throw new LDAPException(ResultCode.DECODING_ERROR, "Not an SRV record: " + value, e);
+      }
+    }
+
+    public String toString() {
+      return priority + " " + weight + " " + port + " " + target;
+    }
+  }
+
+  /**
+   * Looks up SRV records
+   */
+  public interface SRVResolver {
+    /**
+     * @param name
+     * @return the records, empty if the name does not exist
+     * @throws LDAPException
+     */
+    List<SRVRecord> resolve(String name) throws LDAPException;
+  }
+
+  /**
+   * Resolves SRV records with the JNDI DNS provider of the JDK
+   */
+  public static class JNDISRVResolver implements SRVResolver {
+    final String dnsServer;
+
+    /**
+     * Use the DNS servers of the host
+     */
+    public JNDISRVResolver() {
+      this(null);
+    }
+
+    /**
+     * @param dnsServer
+     *                    - host or host:port of the DNS server to ask
+     */
+    public JNDISRVResolver(String dnsServer) {
+      this.dnsServer = dnsServer;
+    }
+
+    public List<SRVRecord> resolve(String name) throws LDAPException {
+      Hashtable<String, String> env = new Hashtable<String, String>();
+      env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+      env.put(Context.PROVIDER_URL, dnsServer == null ? "dns:" : "dns://" + dnsServer);
+      List<SRVRecord> records = new ArrayList<SRVRecord>();
+      DirContext ctx = null;
+      try {
+        ctx = new InitialDirContext(env);
+        Attributes attributes = ctx.getAttributes(name, new String[] { "SRV" });
+        Attribute srv = attributes.get("SRV");
+        if (srv != null) {
+          NamingEnumeration<?> values = srv.getAll();
+          while (values.hasMore()) {
+            records.add(SRVRecord.parse(String.valueOf(values.next())));
+          }
+        }
+      } catch (NameNotFoundException e) {
+        log.debug("No SRV records for " + name);
+      } catch (NamingException e) {
+        throw new LDAPException(ResultCode.LOCAL_ERROR,
+            "Unable to resolve " + name + ": " + StaticUtils.getExceptionMessage(e), e);
+      } finally {
+        if (ctx != null) {
+          try {
+            ctx.close();
+          } catch (NamingException e) {
+            // nothing to do
+          }
+        }
+      }
+      return records;
+    }
+  }
+
+  /**
+   * An SRVResolver answering from a map, for tests and for networks where the
+   * DCs are known
+   */
+  public static class StaticSRVResolver implements SRVResolver {
+    private final Map<String, List<SRVRecord>> records = new HashMap<String, List<SRVRecord>>();
+
+    /**
+     * @param name
+     * @param record
+     * @return this
+     */
+    public StaticSRVResolver add(String name, SRVRecord record) {
+      String key = StaticUtils.toLowerCase(name);
+      List<SRVRecord> list = records.get(key);
+      if (list == null) {
+        list = new ArrayList<SRVRecord>();
+        records.put(key, list);
+      }
+      list.add(record);
+      return this;
+    }
+
+    public List<SRVRecord> resolve(String name) {
+      List<SRVRecord> list = records.get(StaticUtils.toLowerCase(name));
+      return list == null ? Collections.<SRVRecord> emptyList() : list;
+    }
+  }
+}
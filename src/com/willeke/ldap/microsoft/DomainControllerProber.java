@@ -0,0 +1,337 @@
+package com.willeke.ldap.microsoft;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import org.apache.log4j.Logger;
+
+import com.unboundid.ldap.sdk.BindRequest;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionOptions;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.ServerSet;
+
+/**
+ * Measures how long each domain controller takes to connect, bind and read the
+ * rootDSE, in the background, and hands the fastest healthy ones to
+ * connection pools.
+ *
+ * Without it a job keeps whatever DC it first connected to, which may be on
+ * the other side of a WAN. getServerSet() returns a ServerSet that connects to
+ * the fastest healthy DC at the time each connection is created; give pools a
+ * maximum connection age (createConnectionPool does) so they move when the
+ * ranking changes.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class DomainControllerProber {
+  static String thisClass = DomainControllerProber.class.getName();
+  static Logger log = Logger.getLogger(thisClass);
+
+  public static final long DEFAULT_INTERVAL_MILLIS = 60000L;
+  public static final int DEFAULT_PROBE_TIMEOUT_MILLIS = 5000;
+  // weight of a new sample in the smoothed latency
+  static final double SMOOTHING = 0.3;
+
+  private final List<ProbeResult> results;
+  private final SocketFactory socketFactory;
+  private final BindRequest bindRequest;
+  private final int probeTimeoutMillis;
+  private ScheduledExecutorService scheduler = null;
+
+  /**
+   * @param dcs
+   *                             - as found by DomainControllerLocator
+   * @param socketFactory
+   *                             - null for plain LDAP
+   * @param bindRequest
+   *                             - null to probe without binding
+   * @param probeTimeoutMillis
+   *                             - connect and response timeout of a probe
+   */
+  public DomainControllerProber(List<DomainControllerLocator.DomainController> dcs, SocketFactory socketFactory,
+      BindRequest bindRequest, int probeTimeoutMillis) {
+    List<ProbeResult> list = new ArrayList<ProbeResult>(dcs.size());
+    for (DomainControllerLocator.DomainController dc : dcs) {
+      list.add(new ProbeResult(dc));
+    }
+    this.results = Collections.unmodifiableList(list);
+    this.socketFactory = socketFactory;
+    this.bindRequest = bindRequest;
+    this.probeTimeoutMillis = probeTimeoutMillis;
+  }
+
+  /**
+   * Probe every DC now and then every intervalMillis in the background
+   *
+   * @param intervalMillis
+   */
+  public synchronized void start(long intervalMillis) {
+    if (scheduler != null) {
+      return;
+    }
+    probeAll();
+    scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("DomainControllerProber"));
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          probeAll();
+        } catch (RuntimeException e) {
+          log.error("Probe failed", e);
+        }
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * Probe every DC at the same time and wait for all of them
+   */
+  public void probeAll() {
+    if (results.isEmpty()) {
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(results.size(), 16),
+        daemonThreads("DomainControllerProbe"));
+    try {
+      List<Callable<Void>> probes = new ArrayList<Callable<Void>>(results.size());
+      for (final ProbeResult result : results) {
+        probes.add(new Callable<Void>() {
+          public Void call() {
+            probe(result);
+            return null;
+          }
+        });
+      }
+      executor.invokeAll(probes);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  void probe(ProbeResult result) {
+    long start = System.nanoTime();
+    LDAPConnection ldc = null;
+    try {
+      ldc = new LDAPConnection(socketFactory, probeOptions(), result.dc.hostName, result.dc.port);
+      if (bindRequest != null) {
+        ldc.bind(bindRequest.duplicate());
+      }
+      if (ldc.getRootDSE() == null) {
+        throw new LDAPException(ResultCode.NO_SUCH_OBJECT, "Unable to read the rootDSE");
+      }
+      result.success(System.nanoTime() - start);
+    } catch (LDAPException e) {
+      log.debug("Probe of " + result.dc + " failed: " + e.getMessage());
+      result.failure(e);
+    } finally {
+      if (ldc != null) {
+        ldc.close();
+      }
+    }
+  }
+
+  private LDAPConnectionOptions probeOptions() {
+    LDAPConnectionOptions options = new LDAPConnectionOptions();
+    options.setConnectTimeoutMillis(probeTimeoutMillis);
+    options.setResponseTimeoutMillis(probeTimeoutMillis);
+    return options;
+  }
+
+  /**
+   * @return every DC with its last probe
+   */
+  public List<ProbeResult> getResults() {
+    return results;
+  }
+
+  /**
+   * @param maxServers
+   *                     - 0 or less for all
+   * @return the healthy DCs, fastest first
+   */
+  public List<DomainControllerLocator.DomainController> getRankedServers(int maxServers) {
+    List<ProbeResult> healthy = new ArrayList<ProbeResult>();
+    for (ProbeResult result : results) {
+      if (result.isHealthy()) {
+        healthy.add(result);
+      }
+    }
+    Collections.sort(healthy, new Comparator<ProbeResult>() {
+      public int compare(ProbeResult a, ProbeResult b) {
+        return Double.compare(a.getLatencyMillis(), b.getLatencyMillis());
+      }
+    });
+    List<DomainControllerLocator.DomainController> ranked = new ArrayList<DomainControllerLocator.DomainController>();
+    for (ProbeResult result : healthy) {
+      if (maxServers > 0 && ranked.size() >= maxServers) {
+        break;
+      }
+      ranked.add(result.dc);
+    }
+    return ranked;
+  }
+
+  /**
+   * @param maxServers
+   *                     - only the fastest maxServers healthy DCs are used, 0
+   *                     or less for all
+   * @return a ServerSet that connects to the fastest healthy DC that accepts
+   *         the connection
+   */
+  public ServerSet getServerSet(int maxServers) {
+    return new RankedServerSet(maxServers);
+  }
+
+  /**
+   * A pool on the fastest healthy DCs. Connections are replaced after
+   * maxConnectionAgeMillis so the pool follows the ranking.
+   *
+   * @param poolBindRequest
+   * @param initialConnections
+   * @param maxConnections
+   * @param maxConnectionAgeMillis
+   * @return
+   * @throws LDAPException
+   */
+  public LDAPConnectionPool createConnectionPool(BindRequest poolBindRequest, int initialConnections,
+      int maxConnections, long maxConnectionAgeMillis) throws LDAPException {
+    LDAPConnectionPool pool = new LDAPConnectionPool(getServerSet(0), poolBindRequest, initialConnections,
+        maxConnections);
+    pool.setConnectionPoolName(thisClass);
+    pool.setMaxConnectionAgeMillis(maxConnectionAgeMillis);
+    return pool;
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    return new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * The last probes of one DC
+   */
+  public static class ProbeResult {
+    final DomainControllerLocator.DomainController dc;
+    private volatile boolean healthy = false;
+    private volatile double latencyMillis = Double.MAX_VALUE;
+    private volatile long lastProbe = 0;
+    private volatile String lastError = "Not probed";
+
+    ProbeResult(DomainControllerLocator.DomainController dc) {
+      this.dc = dc;
+    }
+
+    synchronized void success(long nanos) {
+      double millis = nanos / 1000000.0;
+      latencyMillis = healthy ? latencyMillis + SMOOTHING * (millis - latencyMillis) : millis;
+      healthy = true;
+      lastError = null;
+      lastProbe = System.currentTimeMillis();
+    }
+
+    synchronized void failure(LDAPException e) {
+      healthy = false;
+      latencyMillis = Double.MAX_VALUE;
+      lastError = e.getResultCode() + ": " + e.getMessage();
+      lastProbe = System.currentTimeMillis();
+    }
+
+    public DomainControllerLocator.DomainController getDomainController() {
+      return dc;
+    }
+
+    /**
+     * @return true if the last probe succeeded
+     */
+    public boolean isHealthy() {
+      return healthy;
+    }
+
+    /**
+     * @return smoothed connect, bind and rootDSE time, Double.MAX_VALUE if not
+     *         healthy
+     */
+    public double getLatencyMillis() {
+      return latencyMillis;
+    }
+
+    public long getLastProbe() {
+      return lastProbe;
+    }
+
+    /**
+     * @return why the last probe failed, null if it succeeded
+     */
+    public String getLastError() {
+      return lastError;
+    }
+
+    public String toString() {
+      return "ProbeResult(" + dc + ", healthy=" + healthy
+          + (healthy ? ", latencyMillis=" + String.format("%.2f", latencyMillis) : ", lastError=" + lastError) + ")";
+    }
+  }
+
+  /**
+   * Connects to the DCs in the current ranking order, with the connect and
+   * response timeouts of a probe so a DC that stopped answering since the last
+   * probe is given up on as quickly
+   */
+  class RankedServerSet extends ServerSet {
+    final int maxServers;
+
+    RankedServerSet(int maxServers) {
+      this.maxServers = maxServers;
+    }
+
+    public LDAPConnection getConnection() throws LDAPException {
+      List<DomainControllerLocator.DomainController> ranked = getRankedServers(maxServers);
+      if (ranked.isEmpty()) {
+        throw new LDAPException(ResultCode.CONNECT_ERROR, "No healthy domain controller");
+      }
+      LDAPException lastException = null;
+      for (DomainControllerLocator.DomainController dc : ranked) {
+        try {
+          LDAPConnection ldc = new LDAPConnection(socketFactory, probeOptions(), dc.hostName, dc.port);
+          associateConnectionWithThisServerSet(ldc);
+          return ldc;
+        } catch (LDAPException e) {
+          log.warn("Unable to connect to " + dc + ": " + e.getMessage());
+          lastException = e;
+        }
+      }
+      throw lastException;
+    }
+
+    public void toString(StringBuilder buffer) {
+      buffer.append("RankedServerSet(servers=").append(getRankedServers(maxServers)).append(')');
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package com.willeke.ldap.microsoft;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.RootDSE;
+
+/**
+ * An immutable snapshot of the Microsoft Active Directory domain password
+ * policy as read from the defaultNamingContext entry.
+ *
+ * All durations are held as positive seconds, so one instance can be shared by
+ * any number of ADAccountStatus objects from the same domain.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class DomainPasswordPolicy {
+
+  static final String[] policyAttrs = { "lockoutDuration", "lockoutThreshold", "maxPwdAge", "minPwdAge",
+      "lockOutObservationWindow" };
+
+  final int lockoutDuration; // seconds - pwdLockoutDuration
+  final int lockoutThreshold; // pwdMaxFailure
+  final int lockOutObservationWindow; // seconds - pwdFailureCountInterval
+  final int maxPwdAge; // seconds - pwdMaxAge
+  final int minPwdAge; // seconds - pwdMinAge
+
+  public DomainPasswordPolicy(int lockoutDuration, int lockoutThreshold, int lockOutObservationWindow, int maxPwdAge,
+      int minPwdAge) {
+    this.lockoutDuration = lockoutDuration;
+    this.lockoutThreshold = lockoutThreshold;
+    this.lockOutObservationWindow = lockOutObservationWindow;
+    this.maxPwdAge = maxPwdAge;
+    this.minPwdAge = minPwdAge;
+  }
+
+  /**
+   * Build the policy from the defaultNamingContext Entry which must have been
+   * read with policyAttrs.
+   *
+   * @param domainEntry
+   */
+  public DomainPasswordPolicy(Entry domainEntry) {
+    // lockoutDuration is large integer that represents the negative of
+    // the number of 100-nanosecond intervals
+    this(nanosToIntSeconds(getLong(domainEntry, "lockoutDuration")),
+        (int) getLong(domainEntry, "lockoutThreshold"),
+        nanosToIntSeconds(getLong(domainEntry, "lockOutObservationWindow")),
+        nanosToIntSeconds(getLong(domainEntry, "maxPwdAge")),
+        nanosToIntSeconds(getLong(domainEntry, "minPwdAge")));
+  }
+
+  /**
+   * Read the defaultNamingContext from the rootDSE and then the policy values
+   * from the defaultNamingContext entry.
+   *
+   * @param ldc
+   * @return
+   * @throws LDAPException
+   */
+  public static DomainPasswordPolicy read(LDAPConnection ldc) throws LDAPException {
+    RootDSE rootDSE = ldc.getRootDSE();
+    if (rootDSE == null || rootDSE.getAttributeValue("defaultNamingContext") == null) {
+      throw new LDAPException(ResultCode.NO_SUCH_ATTRIBUTE, "Unable to read defaultNamingContext from the rootDSE");
+    }
+    return read(ldc, rootDSE.getAttributeValue("defaultNamingContext"));
+  }
+
+  /**
+   * Read the policy values from the supplied defaultNamingContext
+   *
+   * @param ldc
+   * @param defaultNamingContext
+   * @return
+   * @throws LDAPException
+   */
+  public static DomainPasswordPolicy read(LDAPConnection ldc, String defaultNamingContext) throws LDAPException {
+    Entry defaultNamingContextEntry = ldc.getEntry(defaultNamingContext, policyAttrs);
+    if (defaultNamingContextEntry == null) {
+      throw new LDAPException(ResultCode.NO_SUCH_OBJECT, "Unable to read " + defaultNamingContext);
+    }
+    return new DomainPasswordPolicy(defaultNamingContextEntry);
+  }
+
+  /**
+   * Set the policy values on the ADAccountStatus
+   *
+   * @param status
+   */
+  public void applyTo(ADAccountStatus status) {
+    status.setPwdLockoutDuration(lockoutDuration);
+    status.setPwdMaxFailure(lockoutThreshold);
+    status.setPwdFailureCountInterval(lockOutObservationWindow);
+    status.setPwdMaxAge(maxPwdAge);
+    status.setPwdMinAge(minPwdAge);
+  }
+
+  /**
+   * AD returns the policy durations as negative 100-nanosecond intervals. This
+   * returns the positive number of seconds. Long.MIN_VALUE, which AD stores for
+   * a maxPwdAge of never and a lockoutDuration of until an administrator
+   * unlocks, and anything longer than an int holds become Integer.MAX_VALUE.
+   *
+   * @param nanos
+   * @return
+   */
+  public static int nanosToIntSeconds(long nanos) {
+    if (nanos == Long.MIN_VALUE) {
+      return Integer.MAX_VALUE;
+    }
+    long seconds = Math.abs(nanos) / 10000000L;
+    return seconds > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) seconds;
+  }
+
+  static long getLong(Entry entry, String attributeName) {
+    Long value = entry.getAttributeValueAsLong(attributeName);
+    if (value == null) {
+      return 0;
+    }
+    return value.longValue();
+  }
+
+  /**
+   * @return seconds a locked-out account remains locked-out
+   */
+  public int getLockoutDuration() {
+    return lockoutDuration;
+  }
+
+  /**
+   * @return failed logons before the account becomes locked-out
+   */
+  public int getLockoutThreshold() {
+    return lockoutThreshold;
+  }
+
+  /**
+   * @return seconds before the failed logon counter is reset
+   */
+  public int getLockOutObservationWindow() {
+    return lockOutObservationWindow;
+  }
+
+  /**
+   * @return seconds after which a password expires
+   */
+  public int getMaxPwdAge() {
+    return maxPwdAge;
+  }
+
+  /**
+   * @return seconds that must elapse between password changes
+   */
+  public int getMinPwdAge() {
+    return minPwdAge;
+  }
+
+  public String toString() {
+    return "DomainPasswordPolicy(lockoutDuration=" + lockoutDuration + ", lockoutThreshold=" + lockoutThreshold
+        + ", lockOutObservationWindow=" + lockOutObservationWindow + ", maxPwdAge=" + maxPwdAge + ", minPwdAge="
+        + minPwdAge + ")";
+  }
+}
@@ -0,0 +1,297 @@
+package com.willeke.ldap.microsoft;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.RootDSE;
+import com.unboundid.util.StaticUtils;
+
+/**
+ * A process-wide cache of DomainPasswordPolicy values keyed by server (host:port)
+ * and naming context.
+ *
+ * The domain password policy changes a few times a year, but
+ * ADAccountStatus(ldc, dn) used to read the rootDSE and the domain entry on
+ * every construction. With the cache only the user Entry is read until the
+ * TTL expires. On refresh the cached defaultNamingContext is reused so only
+ * the domain entry is read again.
+ *
+ * The cache also holds one PasswordSettingsIndex per server for users governed
+ * by a Fine-Grained Password Policy. It is refreshed incrementally when the
+ * TTL expires.
+ *
+ * Loads and refreshes are serialized per key, so a slow or unreachable server
+ * only holds up the threads that want its policy.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class DomainPasswordPolicyCache {
+  static String thisClass = DomainPasswordPolicyCache.class.getName();
+  static Logger log = Logger.getLogger(thisClass);
+
+  public static final long DEFAULT_TTL_MILLIS = 15L * 60L * 1000L;
+
+  private static final DomainPasswordPolicyCache instance = new DomainPasswordPolicyCache(DEFAULT_TTL_MILLIS);
+
+  private final ConcurrentHashMap<String, CachedPolicy> cache = new ConcurrentHashMap<String, CachedPolicy>();
+  private final ConcurrentHashMap<String, String> namingContexts = new ConcurrentHashMap<String, String>();
+  private final ConcurrentHashMap<String, PasswordSettingsIndex> psoIndexes = //
+      new ConcurrentHashMap<String, PasswordSettingsIndex>();
+  private final ConcurrentHashMap<String, Object> policyLocks = new ConcurrentHashMap<String, Object>();
+  private final ConcurrentHashMap<String, Object> psoIndexLocks = new ConcurrentHashMap<String, Object>();
+  private volatile long ttlMillis;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong refreshes = new AtomicLong();
+
+  /**
+   * Create a private cache. Most callers should use getInstance().
+   *
+   * @param ttlMillis
+   *                    - how long a policy is served before it is read again.
+   *                    Zero or less disables caching.
+   */
+  public DomainPasswordPolicyCache(long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+  }
+
+  /**
+   * @return the process-wide cache used by ADAccountStatus
+   */
+  public static DomainPasswordPolicyCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * Get the policy of the defaultNamingContext of the server ldc is connected
+   * to.
+   *
+   * @param ldc
+   * @return
+   * @throws LDAPException
+   */
+  public DomainPasswordPolicy getPolicy(LDAPConnection ldc) throws LDAPException {
+    return getPolicy(ldc, getDefaultNamingContext(ldc));
+  }
+
+  /**
+   * Get the policy of the namingContext from the server ldc is connected to.
+   *
+   * @param ldc
+   * @param namingContext
+   * @return
+   * @throws LDAPException
+   */
+  public DomainPasswordPolicy getPolicy(LDAPConnection ldc, String namingContext) throws LDAPException {
+    String key = getKey(LDAPServerKey.get(ldc), namingContext);
+    CachedPolicy cached = cache.get(key);
+    if (cached != null && !cached.isExpired(ttlMillis)) {
+      hits.incrementAndGet();
+      return cached.policy;
+    }
+    synchronized (getLock(policyLocks, key)) {
+      // another thread may have loaded it while we waited
+      cached = cache.get(key);
+      if (cached != null && !cached.isExpired(ttlMillis)) {
+        hits.incrementAndGet();
+        return cached.policy;
+      }
+      if (cached == null) {
+        misses.incrementAndGet();
+      } else {
+        refreshes.incrementAndGet();
+      }
+      DomainPasswordPolicy policy = DomainPasswordPolicy.read(ldc, namingContext);
+      cache.put(key, new CachedPolicy(policy, System.currentTimeMillis()));
+      log.debug("Loaded " + policy + " for " + key);
+      return policy;
+    }
+  }
+
+  /**
+   * The effective policy of a user: the PSO named by msDS-ResultantPSO if there
+   * is one, otherwise the domain policy.
+   *
+   * @param ldc
+   * @param resultantPSO
+   *                       - value of msDS-ResultantPSO of the user, may be null
+   * @return
+   * @throws LDAPException
+   */
+  public DomainPasswordPolicy getEffectivePolicy(LDAPConnection ldc, String resultantPSO) throws LDAPException {
+    DomainPasswordPolicy domainPolicy = getPolicy(ldc);
+    if (resultantPSO == null) {
+      return domainPolicy;
+    }
+    return getPasswordSettingsIndex(ldc).resolve(resultantPSO, domainPolicy);
+  }
+
+  /**
+   * The PasswordSettingsIndex of the defaultNamingContext of the server ldc is
+   * connected to, loaded on first use and refreshed when older than the TTL.
+   *
+   * @param ldc
+   * @return
+   * @throws LDAPException
+   */
+  public PasswordSettingsIndex getPasswordSettingsIndex(LDAPConnection ldc) throws LDAPException {
+    String key = getKey(LDAPServerKey.get(ldc), getDefaultNamingContext(ldc));
+    PasswordSettingsIndex index = psoIndexes.get(key);
+    if (index != null && System.currentTimeMillis() - index.getLastRefresh() < ttlMillis) {
+      return index;
+    }
+    synchronized (getLock(psoIndexLocks, key)) {
+      index = psoIndexes.get(key);
+      if (index == null) {
+        index = new PasswordSettingsIndex(getDefaultNamingContext(ldc));
+      } else if (System.currentTimeMillis() - index.getLastRefresh() < ttlMillis) {
+        return index;
+      }
+      index.refresh(ldc);
+      psoIndexes.put(key, index);
+      return index;
+    }
+  }
+
+  /**
+   * The defaultNamingContext from the rootDSE of the server ldc is connected
+   * to. It is read once per server and kept until invalidated.
+   *
+   * @param ldc
+   * @return
+   * @throws LDAPException
+   */
+  public String getDefaultNamingContext(LDAPConnection ldc) throws LDAPException {
+    String serverKey = LDAPServerKey.get(ldc);
+    String namingContext = namingContexts.get(serverKey);
+    if (namingContext == null) {
+      RootDSE rootDSE = ldc.getRootDSE();
+      if (rootDSE == null || rootDSE.getAttributeValue("defaultNamingContext") == null) {
+        throw new LDAPException(ResultCode.NO_SUCH_ATTRIBUTE,
+            "Unable to read defaultNamingContext from the rootDSE of " + serverKey);
+      }
+      namingContext = rootDSE.getAttributeValue("defaultNamingContext");
+      namingContexts.put(serverKey, namingContext);
+    }
+    return namingContext;
+  }
+
+  /**
+   * Forget everything cached for the server ldc is connected to.
+   *
+   * @param ldc
+   * @throws LDAPException
+   */
+  public void invalidate(LDAPConnection ldc) throws LDAPException {
+    invalidate(LDAPServerKey.get(ldc));
+  }
+
+  /**
+   * Forget everything cached for the server
+   *
+   * @param serverKey
+   *                    - host:port as from LDAPServerKey
+   */
+  public void invalidate(String serverKey) {
+    String prefix = StaticUtils.toLowerCase(serverKey) + "/";
+    for (String key : cache.keySet()) {
+      if (key.startsWith(prefix)) {
+        cache.remove(key);
+      }
+    }
+    for (String key : psoIndexes.keySet()) {
+      if (key.startsWith(prefix)) {
+        psoIndexes.remove(key);
+      }
+    }
+    namingContexts.remove(StaticUtils.toLowerCase(serverKey));
+  }
+
+  public void invalidateAll() {
+    cache.clear();
+    psoIndexes.clear();
+    namingContexts.clear();
+  }
+
+  public long getTtlMillis() {
+    return ttlMillis;
+  }
+
+  public void setTtlMillis(long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+  }
+
+  /**
+   * @return number of lookups served from the cache
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of lookups that found nothing cached and read the server
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return number of lookups that found an expired policy and read the server
+   */
+  public long getRefreshes() {
+    return refreshes.get();
+  }
+
+  public void resetCounters() {
+    hits.set(0);
+    misses.set(0);
+    refreshes.set(0);
+  }
+
+  public String toString() {
+    return "DomainPasswordPolicyCache(size=" + cache.size() + ", ttlMillis=" + ttlMillis + ", hits=" + hits
+        + ", misses=" + misses + ", refreshes=" + refreshes + ")";
+  }
+
+  /**
+   * @param locks
+   * @param key
+   * @return the one lock object of the key, created on first use
+   */
+  static Object getLock(ConcurrentHashMap<String, Object> locks, String key) {
+    Object lock = locks.get(key);
+    if (lock == null) {
+      Object created = new Object();
+      lock = locks.putIfAbsent(key, created);
+      if (lock == null) {
+        lock = created;
+      }
+    }
+    return lock;
+  }
+
+  static String getKey(String serverKey, String namingContext) {
+    return serverKey + "/" + StaticUtils.toLowerCase(namingContext);
+  }
+
+  static class CachedPolicy {
+    final DomainPasswordPolicy policy;
+    final long loadedAt;
+
+    CachedPolicy(DomainPasswordPolicy policy, long loadedAt) {
+      this.policy = policy;
+      this.loadedAt = loadedAt;
+    }
+
+    boolean isExpired(long ttlMillis) {
+      return System.currentTimeMillis() - loadedAt >= ttlMillis;
+    }
+  }
+}
@@ -0,0 +1,356 @@
+package com.willeke.ldap.microsoft;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An open-addressing hash table from objectGUID to a long, held off-heap in
+ * direct ByteBuffers so that tens of millions of objects do not weigh on the
+ * garbage collector.
+ *
+ * Each slot is 24 bytes: the two longs of the PackedGUID and the value. The
+ * value is whatever the caller wants to find by GUID, typically the offset of
+ * the entry in a file or column store. putDN/getDN instead keep the DN itself
+ * in an off-heap, append-only DN table and store its offset as the value. At
+ * the default load factor a forest of 20 million objects needs about 700MB of
+ * slots plus the UTF-8 DNs.
+ *
+ * The nil GUID (all zeros) marks an empty slot and cannot be stored. Not
+ * thread-safe.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class GUIDIndex {
+
+  public static final long NO_VALUE = -1L;
+
+  static final int SLOT_BYTES = 24;
+  static final int SEGMENT_SHIFT = 21; // 2M slots, 48MB per segment
+  static final double LOAD_FACTOR = 0.7;
+
+  private ByteBuffer[] segments;
+  private long capacity; // slots, a power of 2
+  private long mask;
+  private int segmentShift;
+  private long segmentMask;
+  private long size = 0;
+  private long resizeAt;
+
+  private final DNTable dnTable = new DNTable();
+
+  /**
+   * @param expectedSize
+   *                       - number of GUIDs expected. The table doubles when it
+   *                       is exceeded, which briefly needs both tables in
+   *                       memory.
+   */
+  public GUIDIndex(long expectedSize) {
+    allocate(tableSizeFor(expectedSize));
+  }
+
+  /**
+   * @param guid
+   * @param value
+   *                - zero or more
+   * @return the previous value or NO_VALUE
+   */
+  public long put(PackedGUID guid, long value) {
+    return put(guid.getHigh(), guid.getLow(), value);
+  }
+
+  /**
+   * @param high
+   * @param low
+   * @param value
+   *                - zero or more
+   * @return the previous value or NO_VALUE
+   */
+  public long put(long high, long low, long value) {
+    if (high == 0 && low == 0) {
+      throw new IllegalArgumentException("The nil GUID cannot be indexed");
+    }
+    if (value < 0) {
+      throw new IllegalArgumentException("Values must not be negative: " + value);
+    }
+    long slot = find(high, low);
+    if (slot >= 0) {
+      long previous = getValue(slot);
+      setValue(slot, value);
+      return previous;
+    }
+    if (size >= resizeAt) {
+      resize(capacity << 1);
+      slot = find(high, low);
+    }
+    slot = -slot - 1;
+    ByteBuffer segment = segments[(int) (slot >>> segmentShift)];
+    int position = (int) (slot & segmentMask) * SLOT_BYTES;
+    segment.putLong(position, high);
+    segment.putLong(position + 8, low);
+    segment.putLong(position + 16, value);
+    size++;
+    return NO_VALUE;
+  }
+
+  /**
+   * @param guid
+   * @return the value or NO_VALUE
+   */
+  public long get(PackedGUID guid) {
+    return get(guid.getHigh(), guid.getLow());
+  }
+
+  /**
+   * @param high
+   * @param low
+   * @return the value or NO_VALUE
+   */
+  public long get(long high, long low) {
+    long slot = find(high, low);
+    return slot >= 0 ? getValue(slot) : NO_VALUE;
+  }
+
+  public boolean contains(PackedGUID guid) {
+    return find(guid.getHigh(), guid.getLow()) >= 0;
+  }
+
+  /**
+   * Remove the GUID. A DN stored with putDN stays in the DN table.
+   *
+   * @param guid
+   * @return the removed value or NO_VALUE
+   */
+  public long remove(PackedGUID guid) {
+    long slot = find(guid.getHigh(), guid.getLow());
+    if (slot < 0) {
+      return NO_VALUE;
+    }
+    long previous = getValue(slot);
+    // backward shift deletion keeps the probe sequences intact without
+    // tombstones
+    long hole = slot;
+    long next = slot;
+    while (true) {
+      next = (next + 1) & mask;
+      long high = getHigh(next);
+      long low = getLow(next);
+      if (high == 0 && low == 0) {
+        break;
+      }
+      long home = PackedGUID.hash(high, low) & mask;
+      boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+      if (movable) {
+        setSlot(hole, high, low, getValue(next));
+        hole = next;
+      }
+    }
+    setSlot(hole, 0, 0, 0);
+    size--;
+    return previous;
+  }
+
+  /**
+   * Store the DN of the GUID in the DN table
+   *
+   * @param guid
+   * @param dn
+   */
+  public void putDN(PackedGUID guid, String dn) {
+    put(guid, dnTable.add(dn));
+  }
+
+  /**
+   * @param guid
+   * @return the DN stored with putDN or null
+   */
+  public String getDN(PackedGUID guid) {
+    long offset = get(guid);
+    return offset == NO_VALUE ? null : dnTable.get(offset);
+  }
+
+  /**
+   * Call the visitor for every GUID in the index, in no particular order
+   *
+   * @param visitor
+   */
+  public void forEach(GUIDVisitor visitor) {
+    for (long slot = 0; slot < capacity; slot++) {
+      long high = getHigh(slot);
+      long low = getLow(slot);
+      if (high != 0 || low != 0) {
+        visitor.visit(high, low, getValue(slot));
+      }
+    }
+  }
+
+  public long size() {
+    return size;
+  }
+
+  /**
+   * @return number of slots
+   */
+  public long capacity() {
+    return capacity;
+  }
+
+  /**
+   * @return bytes allocated off-heap for the slots and the DN table
+   */
+  public long getOffHeapBytes() {
+    return capacity * SLOT_BYTES + dnTable.getAllocatedBytes();
+  }
+
+  public String toString() {
+    return "GUIDIndex(size=" + size + ", capacity=" + capacity + ", offHeapBytes=" + getOffHeapBytes() + ")";
+  }
+
+  /**
+   * @return slot index if found, otherwise -(empty slot index) - 1
+   */
+  private long find(long high, long low) {
+    long slot = PackedGUID.hash(high, low) & mask;
+    while (true) {
+      ByteBuffer segment = segments[(int) (slot >>> segmentShift)];
+      int position = (int) (slot & segmentMask) * SLOT_BYTES;
+      long slotHigh = segment.getLong(position);
+      long slotLow = segment.getLong(position + 8);
+      if (slotHigh == high && slotLow == low) {
+        return slot;
+      }
+      if (slotHigh == 0 && slotLow == 0) {
+        return -slot - 1;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private void allocate(long newCapacity) {
+    capacity = newCapacity;
+    mask = newCapacity - 1;
+    segmentShift = Math.min(SEGMENT_SHIFT, Long.numberOfTrailingZeros(newCapacity));
+    segmentMask = (1L << segmentShift) - 1;
+    int segmentCount = (int) (newCapacity >>> segmentShift);
+    segments = new ByteBuffer[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      // direct buffers are zeroed, which is every slot empty
+      segments[i] = ByteBuffer.allocateDirect((1 << segmentShift) * SLOT_BYTES);
+    }
+    resizeAt = (long) (newCapacity * LOAD_FACTOR);
+  }
+
+  private void resize(long newCapacity) {
+    ByteBuffer[] oldSegments = segments;
+    int oldSegmentShift = segmentShift;
+    allocate(newCapacity);
+    for (ByteBuffer segment : oldSegments) {
+      int slots = 1 << oldSegmentShift;
+      for (int i = 0; i < slots; i++) {
+        int position = i * SLOT_BYTES;
+        long high = segment.getLong(position);
+        long low = segment.getLong(position + 8);
+        if (high != 0 || low != 0) {
+          setSlot(-find(high, low) - 1, high, low, segment.getLong(position + 16));
+        }
+      }
+    }
+  }
+
+  static long tableSizeFor(long expectedSize) {
+    long needed = Math.max(16L, (long) Math.ceil(expectedSize / LOAD_FACTOR) + 1);
+    return Long.highestOneBit(needed - 1) << 1;
+  }
+
+  private long getHigh(long slot) {
+    return segments[(int) (slot >>> segmentShift)].getLong((int) (slot & segmentMask) * SLOT_BYTES);
+  }
+
+  private long getLow(long slot) {
+    return segments[(int) (slot >>> segmentShift)].getLong((int) (slot & segmentMask) * SLOT_BYTES + 8);
+  }
+
+  private long getValue(long slot) {
+    return segments[(int) (slot >>> segmentShift)].getLong((int) (slot & segmentMask) * SLOT_BYTES + 16);
+  }
+
+  private void setValue(long slot, long value) {
+    segments[(int) (slot >>> segmentShift)].putLong((int) (slot & segmentMask) * SLOT_BYTES + 16, value);
+  }
+
+  private void setSlot(long slot, long high, long low, long value) {
+    ByteBuffer segment = segments[(int) (slot >>> segmentShift)];
+    int position = (int) (slot & segmentMask) * SLOT_BYTES;
+    segment.putLong(position, high);
+    segment.putLong(position + 8, low);
+    segment.putLong(position + 16, value);
+  }
+
+  /**
+   * Called by forEach for every GUID in the index
+   */
+  public interface GUIDVisitor {
+    void visit(long high, long low, long value);
+  }
+
+  /**
+   * Append-only off-heap storage of UTF-8 DNs, each prefixed by its length.
+   * A DN never spans two chunks.
+   */
+  static class DNTable {
+    static final int CHUNK_BYTES = 64 * 1024 * 1024;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int chunkBytes;
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    private ByteBuffer current = null;
+
+    DNTable() {
+      this(CHUNK_BYTES);
+    }
+
+    /**
+     * @param chunkBytes
+     *                     - size of each off-heap chunk, the longest DN it can
+     *                     hold is 4 bytes less
+     */
+    DNTable(int chunkBytes) {
+      this.chunkBytes = chunkBytes;
+    }
+
+    /**
+     * @param dn
+     * @return offset to pass to get
+     */
+    long add(String dn) {
+      byte[] bytes = dn.getBytes(UTF8);
+      if (bytes.length + 4 > chunkBytes) {
+        throw new IllegalArgumentException("DN too long: " + bytes.length + " bytes");
+      }
+      if (current == null || current.remaining() < bytes.length + 4) {
+        current = ByteBuffer.allocateDirect(chunkBytes);
+        chunks.add(current);
+      }
+      long offset = (long) (chunks.size() - 1) * chunkBytes + current.position();
+      current.putInt(bytes.length);
+      current.put(bytes);
+      return offset;
+    }
+
+    String get(long offset) {
+      ByteBuffer chunk = chunks.get((int) (offset / chunkBytes)).duplicate();
+      int position = (int) (offset % chunkBytes);
+      int length = chunk.getInt(position);
+      byte[] bytes = new byte[length];
+      chunk.position(position + 4);
+      chunk.get(bytes);
+      return new String(bytes, UTF8);
+    }
+
+    long getAllocatedBytes() {
+      return (long) chunks.size() * chunkBytes;
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package com.willeke.ldap.microsoft;
+
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.util.StaticUtils;
+
+/**
+ * Builds the key used to cache per-server values (host:port in lower case).
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class LDAPServerKey {
+
+  private LDAPServerKey() {
+  }
+
+  /**
+   * @param ldc
+   *              - an established connection
+   * @return host:port of the server the connection is established to
+   * @throws LDAPException
+   *                         if the connection is not established
+   */
+  public static String get(LDAPConnection ldc) throws LDAPException {
+    String host = ldc.getConnectedAddress();
+    if (host == null) {
+      throw new LDAPException(ResultCode.SERVER_DOWN, "The connection is not established");
+    }
+    return get(host, ldc.getConnectedPort());
+  }
+
+  public static String get(String host, int port) {
+    return StaticUtils.toLowerCase(host) + ":" + port;
+  }
+}
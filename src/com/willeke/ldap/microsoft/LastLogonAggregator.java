@@ -0,0 +1,200 @@
+package com.willeke.ldap.microsoft;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
+
+/**
+ * The true lastLogon of every user under a context.
+ *
+ * lastLogon is not replicated, each DC only knows the logons it handled.
+ * Utils.getMaxDate searches every DC for one user; here every DC is searched
+ * once for all users (a paged subtree search, all DCs at the same time) and
+ * the values are merged by objectGUID into a GUIDIndex holding the newest
+ * lastLogon per user. For 200k users and N DCs this is N paged searches
+ * instead of N x 200k.
+ *
+ * Values are AD FILETIMEs (100-nanosecond intervals since 1601-01-01 UTC), 0
+ * when the user never logged on to any of the DCs.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class LastLogonAggregator {
+  static String thisClass = LastLogonAggregator.class.getName();
+  static Logger log = Logger.getLogger(thisClass);
+
+  static final String[] lastLogonAttrs = { "objectGUID", "lastLogon" };
+
+  private final GUIDIndex lastLogons;
+  private final GUIDIndex dns;
+
+  /**
+   * @param expectedUsers
+   *                        - sizes the off-heap tables
+   */
+  public LastLogonAggregator(long expectedUsers) {
+    lastLogons = new GUIDIndex(expectedUsers);
+    dns = new GUIDIndex(expectedUsers);
+  }
+
+  /**
+   * Search every DC for the users under baseDN and merge the values. May be
+   * called again with more DCs or contexts; values are merged with what is
+   * already held.
+   *
+   * @param dcConnections
+   *                        - one connection per DC, each used by one thread
+   * @param baseDN
+   * @param filter
+   *                        - BulkAccountStatus.DEFAULT_USER_FILTER for all users
+   * @param pageSize
+   * @return host:port of every DC that failed, with the exception. Pages a
+   *         failed DC returned before the failure stay merged, so the values
+   *         held cover the other DCs fully and the failed ones partly. Every
+   *         value is still a lower bound of the true lastLogon.
+   */
+  public Map<String, LDAPException> aggregate(List<LDAPConnection> dcConnections, final String baseDN,
+      final String filter, final int pageSize) {
+    Map<String, LDAPException> failed = new LinkedHashMap<String, LDAPException>();
+    if (dcConnections.isEmpty()) {
+      return failed;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(dcConnections.size(), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "LastLogonAggregator");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    Map<String, Future<Integer>> searches = new LinkedHashMap<String, Future<Integer>>();
+    try {
+      for (final LDAPConnection ldc : dcConnections) {
+        final String server = ldc.isConnected() ? ldc.getHostPort() : ldc.toString();
+        searches.put(server, executor.submit(new Callable<Integer>() {
+          public Integer call() throws LDAPException {
+            LastLogonListener listener = new LastLogonListener();
+            long start = System.currentTimeMillis();
+            BulkAccountStatus.pagedSearch(ldc, listener, baseDN, filter, pageSize, lastLogonAttrs);
+            log.debug(server + " returned " + listener.entries + " entries in "
+                + (System.currentTimeMillis() - start) + "ms");
+            return listener.entries;
+          }
+        }));
+      }
+      for (Map.Entry<String, Future<Integer>> search : searches.entrySet()) {
+        try {
+          search.getValue().get();
+        } catch (ExecutionException e) {
+          LDAPException cause = e.getCause() instanceof LDAPException ? (LDAPException) e.getCause()
+              : new LDAPException(ResultCode.LOCAL_ERROR, e.getCause().toString(), e.getCause());
+          log.warn("Unable to read lastLogon from " + search.getKey() + ": " + cause.getMessage());
+          failed.put(search.getKey(), cause);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          failed.put(search.getKey(), new LDAPException(ResultCode.USER_CANCELED, "Interrupted"));
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return failed;
+  }
+
+  /**
+   * Merge one value, keeping the newest
+   *
+   * @param high
+   * @param low
+   * @param dn
+   * @param lastLogon
+   */
+  synchronized void merge(long high, long low, String dn, long lastLogon) {
+    long current = lastLogons.get(high, low);
+    if (current == GUIDIndex.NO_VALUE) {
+      lastLogons.put(high, low, lastLogon);
+      dns.putDN(new PackedGUID(high, low), dn);
+    } else if (lastLogon > current) {
+      lastLogons.put(high, low, lastLogon);
+    }
+  }
+
+  /**
+   * Pass the merged lastLogon of every user to the handler, in no particular
+   * order
+   *
+   * @param handler
+   */
+  public synchronized void emit(final LastLogonHandler handler) {
+    lastLogons.forEach(new GUIDIndex.GUIDVisitor() {
+      public void visit(long high, long low, long lastLogon) {
+        PackedGUID guid = new PackedGUID(high, low);
+        handler.handleLastLogon(dns.getDN(guid), guid, lastLogon);
+      }
+    });
+  }
+
+  /**
+   * @param guid
+   * @return the merged lastLogon FILETIME, 0 if never, -1 if the user was not
+   *         seen
+   */
+  public synchronized long getLastLogon(PackedGUID guid) {
+    return lastLogons.get(guid);
+  }
+
+  /**
+   * @return number of users seen
+   */
+  public synchronized long size() {
+    return lastLogons.size();
+  }
+
+  /**
+   * Receives the merged value of each user from emit
+   */
+  public interface LastLogonHandler {
+    /**
+     * @param dn
+     * @param objectGUID
+     * @param lastLogon
+     *                     - FILETIME, 0 if the user never logged on
+     */
+    void handleLastLogon(String dn, PackedGUID objectGUID, long lastLogon);
+  }
+
+  class LastLogonListener implements SearchResultListener {
+    private static final long serialVersionUID = 1L;
+    int entries = 0;
+
+    public void searchEntryReturned(SearchResultEntry searchEntry) {
+      byte[] objectGUID = searchEntry.getAttributeValueBytes("objectGUID");
+      if (objectGUID == null || objectGUID.length != ObjectGUIDTools.GUID_LENGTH) {
+        log.warn("No objectGUID for " + searchEntry.getDN());
+        return;
+      }
+      entries++;
+      merge(PackedGUID.readLong(objectGUID, 0), PackedGUID.readLong(objectGUID, 8), searchEntry.getDN(),
+          DomainPasswordPolicy.getLong(searchEntry, "lastLogon"));
+    }
+
+    public void searchReferenceReturned(SearchResultReference searchReference) {
+      // references are other domains, each has its own DCs
+    }
+  }
+}
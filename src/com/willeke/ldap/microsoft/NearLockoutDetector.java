@@ -0,0 +1,409 @@
+package com.willeke.ldap.microsoft;
+
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+
+/**
+ * Warns before accounts lock out instead of after, as intruderLockoutCheck
+ * does.
+ *
+ * Each scan reads the users whose badPasswordTime changed since the previous
+ * scan and feeds them to observe. The detector keeps, per account that ever
+ * failed, the badPwdCount and badPasswordTime last seen: together with the
+ * lockOutObservationWindow of the user's policy they are the sliding window AD
+ * itself keeps, the count only counts while badPasswordTime plus the window
+ * has not passed. Two kinds of events go to the Listener:
+ *
+ * <ul>
+ * <li>nearLockout - an account reached lockoutThreshold - margin failures
+ * (N-1 by default) inside the window. Fired once until its count drops
+ * again, or a newer failure shows AD reset the count in between.</li>
+ * <li>burst - accounts were seen failing again (a newer badPasswordTime with a
+ * count inside the window) at least burstAccounts times within burstMillis.
+ * A scan sees each account once, so that many accounts climbed at once, as in
+ * a password spray. Fired at most once per burstMillis.</li>
+ * </ul>
+ *
+ * The accounts are held in a primitive open-addressing table, split in
+ * stripes by objectGUID hash with one lock each, so observations from several
+ * threads rarely wait for each other and no object is created per account.
+ * Listeners are called outside the locks.
+ *
+ * badPwdCount and badPasswordTime are not replicated; scan the PDC emulator,
+ * which every DC forwards failed logons to.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class NearLockoutDetector {
+  static String thisClass = NearLockoutDetector.class.getName();
+  static Logger log = Logger.getLogger(thisClass);
+
+  static final long FILETIME_EPOCH_OFFSET = 116444736000000000L;
+  static final long NOT_SET = AccountStatusSnapshot.NOT_SET;
+
+  /**
+   * Receives the events, on the thread that observed the account
+   */
+  public interface Listener {
+    /**
+     * @param objectGUID
+     * @param dn
+     *                          - may be null when observed without one
+     * @param badPwdCount
+     * @param lockoutThreshold
+     * @param badPasswordTime
+     *                          - epoch milliseconds
+     */
+    void nearLockout(PackedGUID objectGUID, String dn, int badPwdCount, int lockoutThreshold, long badPasswordTime);
+
+    /**
+     * @param accounts
+     *                   - accounts that failed again within windowMillis
+     * @param windowMillis
+     * @param now
+     *                   - epoch milliseconds
+     */
+    void burst(int accounts, long windowMillis, long now);
+  }
+
+  private final Stripe[] stripes;
+  private final int stripeMask;
+  private final Listener listener;
+  private int margin = 1;
+
+  // accounts that failed again, a ring of their times
+  private final Object burstLock = new Object();
+  private long[] climbs;
+  private int climbCount = 0;
+  private int climbNext = 0;
+  private long burstMillis = 60000L;
+  private long lastBurst = NOT_SET;
+
+  // scan state
+  private long watermark = NOT_SET;
+  private long overlapMillis = 60000L;
+  private int pageSize = BulkAccountStatus.DEFAULT_PAGE_SIZE;
+
+  /**
+   * @param expectedAccounts
+   *                           - accounts expected to fail at some point
+   * @param stripes
+   *                           - rounded up to a power of 2, e.g. twice the
+   *                           observing threads
+   * @param listener
+   */
+  public NearLockoutDetector(int expectedAccounts, int stripes, Listener listener) {
+    int count = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+    this.stripes = new Stripe[count];
+    this.stripeMask = count - 1;
+    for (int i = 0; i < count; i++) {
+      this.stripes[i] = new Stripe(Math.max(16, expectedAccounts / count));
+    }
+    this.listener = listener;
+    setBurst(100, 60000L);
+  }
+
+  /**
+   * Read the users whose badPasswordTime changed since the previous scan,
+   * every user with a badPwdCount on the first, and observe them
+   *
+   * @param ldc
+   *                 - to the PDC emulator
+   * @param baseDN
+   * @return users observed
+   * @throws LDAPException
+   */
+  public int scan(LDAPConnection ldc, String baseDN) throws LDAPException {
+    long start = System.currentTimeMillis();
+    Filter changed;
+    synchronized (this) {
+      changed = watermark == NOT_SET ? Filter.createGreaterOrEqualFilter("badPwdCount", "1")
+          : Filter.createGreaterOrEqualFilter("badPasswordTime",
+              String.valueOf((watermark - overlapMillis) * 10000L + FILETIME_EPOCH_OFFSET));
+    }
+    Filter filter = Filter.createANDFilter(Filter.create(BulkAccountStatus.DEFAULT_USER_FILTER), changed);
+    final long now = start;
+    final int[] observed = new int[1];
+    DomainPasswordPolicyCache cache = DomainPasswordPolicyCache.getInstance();
+    BulkAccountStatus.StatusSearchListener listener = new BulkAccountStatus.StatusSearchListener(cache.getPolicy(ldc),
+        cache.getPasswordSettingsIndex(ldc), new BulkAccountStatus.AccountStatusHandler() {
+          public void handleAccountStatus(ADAccountStatus status) {
+            observe(status, now);
+            observed[0]++;
+          }
+        });
+    BulkAccountStatus.pagedSearch(ldc, listener, baseDN, filter.toString(), pageSize, ADAccountStatus.userAttrs);
+    synchronized (this) {
+      watermark = start;
+    }
+    log.debug("Observed " + observed[0] + " users under " + baseDN + " in " + (System.currentTimeMillis() - start)
+        + " ms");
+    return observed[0];
+  }
+
+  /**
+   * @param status
+   *                 - read with badPwdCount and badPasswordTime and with its
+   *                 policy values set
+   * @param now
+   *                 - epoch milliseconds
+   */
+  public void observe(ADAccountStatus status, long now) {
+    PackedGUID guid = status.getPackedObjectGUID();
+    if (guid == null) {
+      return;
+    }
+    observe(guid.getHigh(), guid.getLow(), status.ldapEntry == null ? null : status.ldapEntry.getDN(),
+        status.getBadPwdCount(),
+        status.getBadPasswordTime() == null ? NOT_SET : status.getBadPasswordTime().getTime(),
+        status.getPwdMaxFailure(), status.getPwdFailureCountInterval(), now);
+  }
+
+  /**
+   * @param guidHigh
+   * @param guidLow
+   * @param dn
+   *                           - only passed on to the listener
+   * @param badPwdCount
+   * @param badPasswordTime
+   *                           - epoch milliseconds or NOT_SET
+   * @param lockoutThreshold
+   *                           - 0 if the policy never locks out
+   * @param observationWindow
+   *                           - seconds
+   * @param now
+   *                           - epoch milliseconds
+   */
+  public void observe(long guidHigh, long guidLow, String dn, int badPwdCount, long badPasswordTime,
+      int lockoutThreshold, int observationWindow, long now) {
+    if (lockoutThreshold <= 0 || (guidHigh == 0 && guidLow == 0)) {
+      return;
+    }
+    int count = effectiveCount(badPwdCount, badPasswordTime, observationWindow, now);
+    boolean near = count > 0 && count >= lockoutThreshold - margin;
+    boolean fire;
+    boolean climbed;
+    long hash = PackedGUID.hash(guidHigh, guidLow);
+    Stripe stripe = stripes[(int) (hash >>> 32) & stripeMask];
+    synchronized (stripe) {
+      // accounts are only added once they fail
+      int slot = count > 0 ? stripe.slot(guidHigh, guidLow, hash) : stripe.find(guidHigh, guidLow, hash);
+      if (slot < 0) {
+        return;
+      }
+      long previousTime = stripe.badPasswordTime[slot];
+      boolean alerted = stripe.alerted[slot];
+      if (alerted && badPasswordTime > previousTime && (badPwdCount <= stripe.badPwdCount[slot]
+          || effectiveCount(stripe.badPwdCount[slot], previousTime, observationWindow, badPasswordTime) == 0)) {
+        // the count was reset between the two observations, by a logon or
+        // the window, and climbed again: a new run of failures
+        alerted = false;
+      }
+      climbed = count > 0 && badPasswordTime > previousTime && now - badPasswordTime <= burstMillis;
+      fire = near && count < lockoutThreshold && !alerted;
+      stripe.badPasswordTime[slot] = badPasswordTime;
+      stripe.badPwdCount[slot] = badPwdCount;
+      stripe.alerted[slot] = near;
+    }
+    if (fire) {
+      listener.nearLockout(new PackedGUID(guidHigh, guidLow), dn, count, lockoutThreshold, badPasswordTime);
+    }
+    if (climbed) {
+      climbed(now);
+    }
+  }
+
+  /**
+   * badPwdCount as AD will count it at now: AD resets it at the next failure
+   * once the window since badPasswordTime has passed
+   */
+  static int effectiveCount(int badPwdCount, long badPasswordTime, int observationWindow, long now) {
+    if (badPwdCount <= 0 || badPasswordTime == NOT_SET) {
+      return 0;
+    }
+    if (observationWindow > 0 && badPasswordTime + observationWindow * 1000L <= now) {
+      return 0;
+    }
+    return badPwdCount;
+  }
+
+  private void climbed(long now) {
+    int accounts;
+    synchronized (burstLock) {
+      climbs[climbNext] = now;
+      climbNext = (climbNext + 1) % climbs.length;
+      if (climbCount < climbs.length) {
+        climbCount++;
+      }
+      // the oldest of the last climbs.length climbs
+      long oldest = climbs[climbCount < climbs.length ? 0 : climbNext];
+      if (climbCount < climbs.length || now - oldest > burstMillis
+          || (lastBurst != NOT_SET && now - lastBurst < burstMillis)) {
+        return;
+      }
+      lastBurst = now;
+      accounts = climbs.length;
+    }
+    log.warn(accounts + " accounts failed to log on within " + burstMillis + " ms");
+    listener.burst(accounts, burstMillis, now);
+  }
+
+  /**
+   * @return accounts held
+   */
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @param guid
+   * @return the badPwdCount last observed, 0 if never
+   */
+  public int getBadPwdCount(PackedGUID guid) {
+    long hash = PackedGUID.hash(guid.getHigh(), guid.getLow());
+    Stripe stripe = stripes[(int) (hash >>> 32) & stripeMask];
+    synchronized (stripe) {
+      int slot = stripe.find(guid.getHigh(), guid.getLow(), hash);
+      return slot < 0 ? 0 : stripe.badPwdCount[slot];
+    }
+  }
+
+  public int getMargin() {
+    return margin;
+  }
+
+  /**
+   * @param margin
+   *                 - warn at lockoutThreshold - margin failures, 1 by default
+   */
+  public void setMargin(int margin) {
+    this.margin = margin;
+  }
+
+  /**
+   * @param accounts
+   *                       - accounts failing again within windowMillis that
+   *                       make a burst, 100 by default
+   * @param windowMillis
+   *                       - 60 seconds by default
+   */
+  public void setBurst(int accounts, long windowMillis) {
+    synchronized (burstLock) {
+      climbs = new long[Math.max(1, accounts)];
+      climbCount = 0;
+      climbNext = 0;
+      burstMillis = windowMillis;
+    }
+  }
+
+  /**
+   * @param overlapMillis
+   *                        - how far before the previous scan the next scan
+   *                        starts, for clock differences with the DC. 60
+   *                        seconds by default.
+   */
+  public void setOverlapMillis(long overlapMillis) {
+    this.overlapMillis = overlapMillis;
+  }
+
+  public void setPageSize(int pageSize) {
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * Linear probing over parallel arrays, guarded by the monitor of the stripe
+   */
+  static class Stripe {
+    long[] guidHigh;
+    long[] guidLow;
+    long[] badPasswordTime;
+    int[] badPwdCount;
+    boolean[] alerted;
+    int mask;
+    int size = 0;
+
+    Stripe(int expected) {
+      allocate(Integer.highestOneBit(expected * 2 - 1) << 1);
+    }
+
+    private void allocate(int capacity) {
+      guidHigh = new long[capacity];
+      guidLow = new long[capacity];
+      badPasswordTime = new long[capacity];
+      Arrays.fill(badPasswordTime, NOT_SET);
+      badPwdCount = new int[capacity];
+      alerted = new boolean[capacity];
+      mask = capacity - 1;
+    }
+
+    /**
+     * @return the slot of the GUID or -1
+     */
+    int find(long high, long low, long hash) {
+      for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+        if (guidHigh[slot] == high && guidLow[slot] == low) {
+          return slot;
+        }
+        if (guidHigh[slot] == 0 && guidLow[slot] == 0) {
+          return -1;
+        }
+      }
+    }
+
+    /**
+     * @return the slot of the GUID, added if new
+     */
+    int slot(long high, long low, long hash) {
+      int slot = find(high, low, hash);
+      if (slot >= 0) {
+        return slot;
+      }
+      if (size * 2 >= mask) {
+        grow();
+      }
+      slot = (int) hash & mask;
+      while (guidHigh[slot] != 0 || guidLow[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      guidHigh[slot] = high;
+      guidLow[slot] = low;
+      size++;
+      return slot;
+    }
+
+    private void grow() {
+      long[] oldHigh = guidHigh;
+      long[] oldLow = guidLow;
+      long[] oldTime = badPasswordTime;
+      int[] oldCount = badPwdCount;
+      boolean[] oldAlerted = alerted;
+      allocate(oldHigh.length * 2);
+      for (int i = 0; i < oldHigh.length; i++) {
+        if (oldHigh[i] == 0 && oldLow[i] == 0) {
+          continue;
+        }
+        int slot = (int) PackedGUID.hash(oldHigh[i], oldLow[i]) & mask;
+        while (guidHigh[slot] != 0 || guidLow[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        guidHigh[slot] = oldHigh[i];
+        guidLow[slot] = oldLow[i];
+        badPasswordTime[slot] = oldTime[i];
+        badPwdCount[slot] = oldCount[i];
+        alerted[slot] = oldAlerted[i];
+      }
+    }
+  }
+}
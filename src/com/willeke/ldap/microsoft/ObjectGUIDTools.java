@@ -1,20 +1,50 @@
 package com.willeke.ldap.microsoft;
 
+import java.nio.ByteBuffer;
+
 /**
  * Originally stolen from
  * http://www.developerscrappad.com/1109/windows/active-directory/java-ldap-jndi-2-ways-of-decoding-and-using-the-objectguid-from-windows-active-directory/#sthash.o7hzVqva.dpuf
  * Microsoft's ObjectGUID follows a well-established standard - it's a UUID
  * version 4.
  * (http://en.wikipedia.org/wiki/Universally_unique_identifier#Version_4_.28random.29)
+ * 
+ * GUIDTools in the utility library only formats GUIDs for display. This class
+ * keeps the AD specific forms (dashed, binding and escaped filter strings) and
+ * their allocation-free encoders and parsers, so it is no longer deprecated.
+ * 
  * tweaked by
  * 
  * @author "jim@willeke.com"
- * 
- * @deprecated - Use /Willeke/src/com/willeke/utility/GUIDTools.java
  *
  */
 public class ObjectGUIDTools {
 
+  public static final int GUID_LENGTH = 16;
+  /** length of ac642e6e-6ab5-425a-bcc9-9f5067d46e3f */
+  public static final int DASHED_STRING_LENGTH = 36;
+  /** length of \6e\2e\64\ac\b5\6a\5a\42\bc\c9\9f\50\67\d4\6e\3f */
+  public static final int BYTE_STRING_LENGTH = 48;
+  /** length of <GUID=ac642e6e-6ab5-425a-bcc9-9f5067d46e3f> */
+  public static final int BINDING_STRING_LENGTH = DASHED_STRING_LENGTH + 7;
+
+  static final char[] HEX = "0123456789abcdef".toCharArray();
+  // byte of the objectGUID for each pair of hex digits of the dashed string;
+  // the first three groups are little-endian
+  static final int[] DASHED_ORDER = { 3, 2, 1, 0, 5, 4, 7, 6, 8, 9, 10, 11, 12, 13, 14, 15 };
+  private static final int[] HEX_VALUES = new int[128];
+
+  static {
+    java.util.Arrays.fill(HEX_VALUES, -1);
+    for (int i = 0; i < 10; i++) {
+      HEX_VALUES['0' + i] = i;
+    }
+    for (int i = 0; i < 6; i++) {
+      HEX_VALUES['a' + i] = 10 + i;
+      HEX_VALUES['A' + i] = 10 + i;
+    }
+  }
+
   /**
    * Convenience method to convert byte[] to String which could be used as a
    * ldapSearch argument similar to:
@@ -27,14 +57,14 @@ public class ObjectGUIDTools {
    * @return
    */
   public static String convertToByteString(byte[] objectGUID) {
-    StringBuilder result = new StringBuilder();
-
-    for (int i = 0; i < objectGUID.length; i++) {
-      String transformed = prefixZeros((int) objectGUID[i] & 0xFF);
-      result.append("\\");
-      result.append(transformed);
+    char[] chars = new char[objectGUID.length * 3];
+    for (int i = 0, c = 0; i < objectGUID.length; i++) {
+      int b = objectGUID[i] & 0xFF;
+      chars[c++] = '\\';
+      chars[c++] = HEX[b >>> 4];
+      chars[c++] = HEX[b & 0xF];
     }
-    return result.toString();
+    return new String(chars);
   }
 
   /**
@@ -45,11 +75,9 @@ public class ObjectGUIDTools {
    * @return
    */
   public static String convertToBindingString(byte[] objectGUID) {
-    StringBuilder displayStr = new StringBuilder();
-    displayStr.append("<GUID=");
-    displayStr.append(convertToDashedString(objectGUID));
-    displayStr.append(">");
-    return displayStr.toString();
+    char[] chars = new char[BINDING_STRING_LENGTH];
+    encodeBindingString(objectGUID, chars, 0);
+    return new String(chars);
   }
 
   /**
@@ -61,45 +89,260 @@ public class ObjectGUIDTools {
    * @return
    */
   public static String convertToDashedString(byte[] objectGUID) {
-    StringBuilder displayStr = new StringBuilder();
-    displayStr.append(prefixZeros((int) objectGUID[3] & 0xFF));
-    displayStr.append(prefixZeros((int) objectGUID[2] & 0xFF));
-    displayStr.append(prefixZeros((int) objectGUID[1] & 0xFF));
-    displayStr.append(prefixZeros((int) objectGUID[0] & 0xFF));
-    displayStr.append("-");
-    displayStr.append(prefixZeros((int) objectGUID[5] & 0xFF));
-    displayStr.append(prefixZeros((int) objectGUID[4] & 0xFF));
-    displayStr.append("-");
-    displayStr.append(prefixZeros((int) objectGUID[7] & 0xFF));
-    displayStr.append(prefixZeros((int) objectGUID[6] & 0xFF));
-    displayStr.append("-");
-    displayStr.append(prefixZeros((int) objectGUID[8] & 0xFF));
-    displayStr.append(prefixZeros((int) objectGUID[9] & 0xFF));
-    displayStr.append("-");
-    displayStr.append(prefixZeros((int) objectGUID[10] & 0xFF));
-    displayStr.append(prefixZeros((int) objectGUID[11] & 0xFF));
-    displayStr.append(prefixZeros((int) objectGUID[12] & 0xFF));
-    displayStr.append(prefixZeros((int) objectGUID[13] & 0xFF));
-    displayStr.append(prefixZeros((int) objectGUID[14] & 0xFF));
-    displayStr.append(prefixZeros((int) objectGUID[15] & 0xFF));
-    return displayStr.toString();
-  }
-
-  /**
-   * Convenience method to add leading zeros to the specified
-   * check it and prefix the front with "0" for single digit to make it as a
-   * double digit Hex string.
-   * 
-   * @param value
+    char[] chars = new char[DASHED_STRING_LENGTH];
+    encodeDashedString(objectGUID, chars, 0);
+    return new String(chars);
+  }
+
+  /**
+   * Write the dashed string of the objectGUID into dst without allocating
+   * 
+   * @param objectGUID
+   *                     - 16 bytes
+   * @param dst
+   *                     - needs DASHED_STRING_LENGTH chars from offset
+   * @param offset
+   * @return offset after the last char written
+   */
+  public static int encodeDashedString(byte[] objectGUID, char[] dst, int offset) {
+    checkLength(objectGUID);
+    for (int i = 0; i < GUID_LENGTH; i++) {
+      if (i == 4 || i == 6 || i == 8 || i == 10) {
+        dst[offset++] = '-';
+      }
+      int b = objectGUID[DASHED_ORDER[i]] & 0xFF;
+      dst[offset++] = HEX[b >>> 4];
+      dst[offset++] = HEX[b & 0xF];
+    }
+    return offset;
+  }
+
+  /**
+   * Append the dashed string of the objectGUID to sb
+   * 
+   * @param objectGUID
+   * @param sb
+   * @return sb
+   */
+  public static StringBuilder appendDashedString(byte[] objectGUID, StringBuilder sb) {
+    checkLength(objectGUID);
+    sb.ensureCapacity(sb.length() + DASHED_STRING_LENGTH);
+    for (int i = 0; i < GUID_LENGTH; i++) {
+      if (i == 4 || i == 6 || i == 8 || i == 10) {
+        sb.append('-');
+      }
+      int b = objectGUID[DASHED_ORDER[i]] & 0xFF;
+      sb.append(HEX[b >>> 4]).append(HEX[b & 0xF]);
+    }
+    return sb;
+  }
+
+  /**
+   * Put the dashed string of the objectGUID into dst as US-ASCII bytes
+   * 
+   * @param objectGUID
+   * @param dst
+   *                     - needs DASHED_STRING_LENGTH bytes remaining
+   * @return dst
+   */
+  public static ByteBuffer putDashedString(byte[] objectGUID, ByteBuffer dst) {
+    checkLength(objectGUID);
+    for (int i = 0; i < GUID_LENGTH; i++) {
+      if (i == 4 || i == 6 || i == 8 || i == 10) {
+        dst.put((byte) '-');
+      }
+      int b = objectGUID[DASHED_ORDER[i]] & 0xFF;
+      dst.put((byte) HEX[b >>> 4]).put((byte) HEX[b & 0xF]);
+    }
+    return dst;
+  }
+
+  /**
+   * Write the binding string of the objectGUID into dst without allocating
+   * 
+   * @param objectGUID
+   * @param dst
+   *                     - needs BINDING_STRING_LENGTH chars from offset
+   * @param offset
+   * @return offset after the last char written
+   */
+  public static int encodeBindingString(byte[] objectGUID, char[] dst, int offset) {
+    "<GUID=".getChars(0, 6, dst, offset);
+    offset = encodeDashedString(objectGUID, dst, offset + 6);
+    dst[offset++] = '>';
+    return offset;
+  }
+
+  /**
+   * Append the binding string of the objectGUID to sb
+   * 
+   * @param objectGUID
+   * @param sb
+   * @return sb
+   */
+  public static StringBuilder appendBindingString(byte[] objectGUID, StringBuilder sb) {
+    sb.append("<GUID=");
+    return appendDashedString(objectGUID, sb).append('>');
+  }
+
+  /**
+   * Write the escaped search filter string of the objectGUID into dst without
+   * allocating
+   * 
+   * @param objectGUID
+   * @param dst
+   *                     - needs BYTE_STRING_LENGTH chars from offset
+   * @param offset
+   * @return offset after the last char written
+   */
+  public static int encodeByteString(byte[] objectGUID, char[] dst, int offset) {
+    checkLength(objectGUID);
+    for (int i = 0; i < GUID_LENGTH; i++) {
+      int b = objectGUID[i] & 0xFF;
+      dst[offset++] = '\\';
+      dst[offset++] = HEX[b >>> 4];
+      dst[offset++] = HEX[b & 0xF];
+    }
+    return offset;
+  }
+
+  /**
+   * Append the escaped search filter string of the objectGUID to sb
+   * 
+   * @param objectGUID
+   * @param sb
+   * @return sb
+   */
+  public static StringBuilder appendByteString(byte[] objectGUID, StringBuilder sb) {
+    checkLength(objectGUID);
+    sb.ensureCapacity(sb.length() + BYTE_STRING_LENGTH);
+    for (int i = 0; i < GUID_LENGTH; i++) {
+      int b = objectGUID[i] & 0xFF;
+      sb.append('\\').append(HEX[b >>> 4]).append(HEX[b & 0xF]);
+    }
+    return sb;
+  }
+
+  /**
+   * Put the escaped search filter string of the objectGUID into dst as US-ASCII
+   * bytes
+   * 
+   * @param objectGUID
+   * @param dst
+   *                     - needs BYTE_STRING_LENGTH bytes remaining
+   * @return dst
+   */
+  public static ByteBuffer putByteString(byte[] objectGUID, ByteBuffer dst) {
+    checkLength(objectGUID);
+    for (int i = 0; i < GUID_LENGTH; i++) {
+      int b = objectGUID[i] & 0xFF;
+      dst.put((byte) '\\').put((byte) HEX[b >>> 4]).put((byte) HEX[b & 0xF]);
+    }
+    return dst;
+  }
+
+  /**
+   * Parse ac642e6e-6ab5-425a-bcc9-9f5067d46e3f back to the objectGUID bytes
+   * 
+   * @param dashedString
+   * @return
+   */
+  public static byte[] parseDashedString(CharSequence dashedString) {
+    byte[] objectGUID = new byte[GUID_LENGTH];
+    parseDashedString(dashedString, 0, objectGUID);
+    return objectGUID;
+  }
+
+  /**
+   * Parse a dashed string starting at offset into dst
+   * 
+   * @param src
+   * @param offset
+   * @param dst
+   *                 - receives the 16 objectGUID bytes
+   * @throws IllegalArgumentException
+   *                                    if src is not a dashed GUID string
+   */
+  public static void parseDashedString(CharSequence src, int offset, byte[] dst) {
+    if (src.length() - offset < DASHED_STRING_LENGTH) {
+      throw new IllegalArgumentException("Not a GUID string: " + src);
+    }
+    for (int i = 0; i < GUID_LENGTH; i++) {
+      if (i == 4 || i == 6 || i == 8 || i == 10) {
+        if (src.charAt(offset++) != '-') {
+          throw new IllegalArgumentException("Not a GUID string: " + src);
+        }
+      }
+      dst[DASHED_ORDER[i]] = (byte) ((hexValue(src, offset) << 4) | hexValue(src, offset + 1));
+      offset += 2;
+    }
+  }
+
+  /**
+   * Parse &lt;GUID=ac642e6e-6ab5-425a-bcc9-9f5067d46e3f&gt; back to the
+   * objectGUID bytes
+   * 
+   * @param bindingString
+   * @return
+   */
+  public static byte[] parseBindingString(CharSequence bindingString) {
+    if (bindingString.length() != BINDING_STRING_LENGTH || bindingString.charAt(BINDING_STRING_LENGTH - 1) != '>'
+        || !"<GUID=".contentEquals(bindingString.subSequence(0, 6))) {
+      throw new IllegalArgumentException("Not a GUID binding string: " + bindingString);
+    }
+    byte[] objectGUID = new byte[GUID_LENGTH];
+    parseDashedString(bindingString, 6, objectGUID);
+    return objectGUID;
+  }
+
+  /**
+   * Parse \6e\2e\64\ac\b5\6a\5a\42\bc\c9\9f\50\67\d4\6e\3f back to the
+   * objectGUID bytes
+   * 
+   * @param byteString
    * @return
    */
-  private static String prefixZeros(int value) {
-    if (value <= 0xF) {
-      StringBuilder sb = new StringBuilder("0");
-      sb.append(Integer.toHexString(value));
-      return sb.toString();
-    } else {
-      return Integer.toHexString(value);
+  public static byte[] parseByteString(CharSequence byteString) {
+    byte[] objectGUID = new byte[GUID_LENGTH];
+    parseByteString(byteString, 0, objectGUID);
+    return objectGUID;
+  }
+
+  /**
+   * Parse an escaped search filter string starting at offset into dst
+   * 
+   * @param src
+   * @param offset
+   * @param dst
+   *                 - receives the 16 objectGUID bytes
+   * @throws IllegalArgumentException
+   *                                    if src is not an escaped GUID
+   */
+  public static void parseByteString(CharSequence src, int offset, byte[] dst) {
+    if (src.length() - offset < BYTE_STRING_LENGTH) {
+      throw new IllegalArgumentException("Not an escaped GUID: " + src);
+    }
+    for (int i = 0; i < GUID_LENGTH; i++) {
+      if (src.charAt(offset) != '\\') {
+        throw new IllegalArgumentException("Not an escaped GUID: " + src);
+      }
+      dst[i] = (byte) ((hexValue(src, offset + 1) << 4) | hexValue(src, offset + 2));
+      offset += 3;
+    }
+  }
+
+  private static int hexValue(CharSequence src, int index) {
+    char c = src.charAt(index);
+    int value = c < 128 ? HEX_VALUES[c] : -1;
+    if (value < 0) {
+      throw new IllegalArgumentException("Invalid hex digit '" + c + "' at " + index + " in " + src);
+    }
+    return value;
+  }
+
+  private static void checkLength(byte[] objectGUID) {
+    if (objectGUID.length != GUID_LENGTH) {
+      throw new IllegalArgumentException("An objectGUID has 16 bytes, not " + objectGUID.length);
     }
   }
 }
@@ -0,0 +1,205 @@
+package com.willeke.ldap.microsoft;
+
+/**
+ * An objectGUID held as two longs instead of a byte[] or a String.
+ *
+ * high holds bytes 0-7 and low bytes 8-15 of the objectGUID in the order AD
+ * returns them, so toBytes() gives back exactly the attribute value. A String
+ * key in a map costs around 100 bytes per GUID, a PackedGUID 32 and the two
+ * longs alone (as used by GUIDIndex) 16.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public final class PackedGUID implements Comparable<PackedGUID> {
+
+  private final long high;
+  private final long low;
+
+  public PackedGUID(long high, long low) {
+    this.high = high;
+    this.low = low;
+  }
+
+  /**
+   * @param objectGUID
+   *                     - the 16 byte objectGUID attribute value
+   * @return
+   */
+  public static PackedGUID fromBytes(byte[] objectGUID) {
+    if (objectGUID.length != ObjectGUIDTools.GUID_LENGTH) {
+      throw new IllegalArgumentException("An objectGUID has 16 bytes, not " + objectGUID.length);
+    }
+    return fromBytes(objectGUID, 0);
+  }
+
+  /**
+   * @param src
+   * @param offset
+   *                 - of the first of 16 objectGUID bytes
+   * @return
+   */
+  public static PackedGUID fromBytes(byte[] src, int offset) {
+    return new PackedGUID(readLong(src, offset), readLong(src, offset + 8));
+  }
+
+  /**
+   * @param dashedString
+   *                       - ac642e6e-6ab5-425a-bcc9-9f5067d46e3f
+   * @return
+   */
+  public static PackedGUID fromDashedString(CharSequence dashedString) {
+    return fromBytes(ObjectGUIDTools.parseDashedString(dashedString), 0);
+  }
+
+  /**
+   * @param bindingString
+   *                        - &lt;GUID=ac642e6e-6ab5-425a-bcc9-9f5067d46e3f&gt;
+   * @return
+   */
+  public static PackedGUID fromBindingString(CharSequence bindingString) {
+    return fromBytes(ObjectGUIDTools.parseBindingString(bindingString), 0);
+  }
+
+  /**
+   * @param byteString
+   *                     - \6e\2e\64\ac\b5\6a\5a\42\bc\c9\9f\50\67\d4\6e\3f
+   * @return
+   */
+  public static PackedGUID fromByteString(CharSequence byteString) {
+    return fromBytes(ObjectGUIDTools.parseByteString(byteString), 0);
+  }
+
+  /**
+   * @return bytes 0-7 of the objectGUID, big-endian
+   */
+  public long getHigh() {
+    return high;
+  }
+
+  /**
+   * @return bytes 8-15 of the objectGUID, big-endian
+   */
+  public long getLow() {
+    return low;
+  }
+
+  /**
+   * @return the objectGUID attribute value
+   */
+  public byte[] toBytes() {
+    byte[] objectGUID = new byte[ObjectGUIDTools.GUID_LENGTH];
+    writeTo(objectGUID, 0);
+    return objectGUID;
+  }
+
+  /**
+   * Write the 16 objectGUID bytes to dst
+   *
+   * @param dst
+   * @param offset
+   */
+  public void writeTo(byte[] dst, int offset) {
+    writeLong(high, dst, offset);
+    writeLong(low, dst, offset + 8);
+  }
+
+  /**
+   * @return ac642e6e-6ab5-425a-bcc9-9f5067d46e3f
+   */
+  public String toDashedString() {
+    return ObjectGUIDTools.convertToDashedString(toBytes());
+  }
+
+  /**
+   * @return &lt;GUID=ac642e6e-6ab5-425a-bcc9-9f5067d46e3f&gt; for use as a
+   *         search base
+   */
+  public String toBindingString() {
+    return ObjectGUIDTools.convertToBindingString(toBytes());
+  }
+
+  /**
+   * @return \6e\2e\64\ac\b5\6a\5a\42\bc\c9\9f\50\67\d4\6e\3f for use in a
+   *         search filter
+   */
+  public String toByteString() {
+    return ObjectGUIDTools.convertToByteString(toBytes());
+  }
+
+  /**
+   * Append the dashed string to sb
+   *
+   * @param sb
+   * @return sb
+   */
+  public StringBuilder appendDashedString(StringBuilder sb) {
+    return ObjectGUIDTools.appendDashedString(toBytes(), sb);
+  }
+
+  public int hashCode() {
+    return (int) hash(high, low);
+  }
+
+  /**
+   * The hash used by hashCode() and GUIDIndex. GUIDs are mostly random but the
+   * bits are mixed anyway so that sequential test GUIDs spread too.
+   *
+   * @param high
+   * @param low
+   * @return
+   */
+  static long hash(long high, long low) {
+    long h = high * 0x9E3779B97F4A7C15L + low;
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof PackedGUID)) {
+      return false;
+    }
+    PackedGUID other = (PackedGUID) obj;
+    return high == other.high && low == other.low;
+  }
+
+  /**
+   * Orders by the objectGUID bytes as unsigned values
+   */
+  public int compareTo(PackedGUID other) {
+    int c = compareUnsigned(high, other.high);
+    return c != 0 ? c : compareUnsigned(low, other.low);
+  }
+
+  private static int compareUnsigned(long a, long b) {
+    a += Long.MIN_VALUE;
+    b += Long.MIN_VALUE;
+    return a < b ? -1 : (a == b ? 0 : 1);
+  }
+
+  public String toString() {
+    return toDashedString();
+  }
+
+  static long readLong(byte[] src, int offset) {
+    long value = 0;
+    for (int i = 0; i < 8; i++) {
+      value = (value << 8) | (src[offset + i] & 0xFF);
+    }
+    return value;
+  }
+
+  static void writeLong(long value, byte[] dst, int offset) {
+    for (int i = 7; i >= 0; i--) {
+      dst[offset + i] = (byte) value;
+      value >>>= 8;
+    }
+  }
+}
@@ -0,0 +1,292 @@
+package com.willeke.ldap.microsoft;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPSearchException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchScope;
+
+/**
+ * An in-memory index of the Fine-Grained Password Policies (Password Settings
+ * Objects) in the CN=Password Settings Container of a domain.
+ *
+ * The user attribute msDS-ResultantPSO holds the DN of the PSO that applies to
+ * the user (AD has already applied the msDS-PasswordSettingsPrecedence rules),
+ * so resolving the effective policy of a user is a map lookup on that DN.
+ *
+ * The index is loaded once and then refreshed incrementally: one search of the
+ * domain with the Show Deleted control returns only the PSOs with a uSNChanged
+ * above the highest one seen, including the tombstones of deleted PSOs and PSOs
+ * moved out of the container, which are matched to the index by objectGUID.
+ * If the server refuses the Show Deleted control (it needs the right to list
+ * CN=Deleted Objects) deleted PSOs are found with a DN only search of the
+ * container instead, made only when some PSO changed. Until then a deleted PSO
+ * stays in the index, which is harmless: no msDS-ResultantPSO names it any
+ * more. uSNChanged is local to a DC, so a refresh against a different server
+ * reloads the whole index.
+ *
+ * A refresh builds a new map and publishes it in one volatile write, so
+ * resolve never sees a partly refreshed index and needs no lock.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class PasswordSettingsIndex {
+  static String thisClass = PasswordSettingsIndex.class.getName();
+  static Logger log = Logger.getLogger(thisClass);
+
+  static final String PSO_FILTER = "(objectClass=msDS-PasswordSettings)";
+  static final String[] psoAttrs = { "msDS-PasswordSettingsPrecedence", "msDS-MaximumPasswordAge",
+      "msDS-MinimumPasswordAge", "msDS-LockoutThreshold", "msDS-LockoutObservationWindow", "msDS-LockoutDuration",
+      "uSNChanged", "objectGUID", "isDeleted" };
+
+  final String defaultNamingContext;
+  final String containerDN;
+  private volatile Map<DN, PasswordSettings> settings = Collections.emptyMap();
+  private volatile String serverKey = null;
+  private volatile long highestUSNChanged = -1;
+  private volatile long lastRefresh = 0;
+
+  /**
+   * @param defaultNamingContext
+   *                               - DN of the domain
+   */
+  public PasswordSettingsIndex(String defaultNamingContext) {
+    this.defaultNamingContext = defaultNamingContext;
+    this.containerDN = "CN=Password Settings Container,CN=System," + defaultNamingContext;
+  }
+
+  /**
+   * Load or incrementally refresh the index from the server ldc is connected to
+   *
+   * @param ldc
+   * @throws LDAPException
+   */
+  public synchronized void refresh(LDAPConnection ldc) throws LDAPException {
+    String key = LDAPServerKey.get(ldc);
+    if (!key.equals(serverKey) || highestUSNChanged < 0) {
+      // uSNChanged values from another DC mean nothing here
+      Map<DN, PasswordSettings> loaded = new HashMap<DN, PasswordSettings>();
+      long highest = -1;
+      for (SearchResultEntry entry : search(ldc, PSO_FILTER, psoAttrs)) {
+        highest = Math.max(highest, apply(loaded, entry));
+      }
+      publish(loaded, key, highest);
+      return;
+    }
+    Map<DN, PasswordSettings> refreshed = new HashMap<DN, PasswordSettings>(settings);
+    long highest = highestUSNChanged;
+    String changed = "(&" + PSO_FILTER + "(uSNChanged>=" + (highest + 1) + "))";
+    List<SearchResultEntry> entries = searchWithDeleted(ldc, changed);
+    if (entries != null) {
+      for (SearchResultEntry entry : entries) {
+        highest = Math.max(highest, apply(refreshed, entry));
+      }
+    } else {
+      entries = search(ldc, changed, psoAttrs);
+      for (SearchResultEntry entry : entries) {
+        highest = Math.max(highest, apply(refreshed, entry));
+      }
+      if (!entries.isEmpty()) {
+        // without tombstones a DN only search finds the PSOs that are gone
+        Set<DN> present = new HashSet<DN>();
+        for (SearchResultEntry entry : search(ldc, PSO_FILTER, "1.1")) {
+          present.add(entry.getParsedDN());
+        }
+        refreshed.keySet().retainAll(present);
+      }
+    }
+    publish(refreshed, key, highest);
+  }
+
+  /**
+   * Nothing is kept from a refresh that fails part way, so the next one asks
+   * for the same changes again.
+   *
+   * @param refreshed
+   * @param key
+   *                    - server the refresh ran against
+   * @param highest
+   *                    - highest uSNChanged in refreshed
+   */
+  private void publish(Map<DN, PasswordSettings> refreshed, String key, long highest) {
+    settings = Collections.unmodifiableMap(refreshed);
+    serverKey = key;
+    highestUSNChanged = highest;
+    lastRefresh = System.currentTimeMillis();
+  }
+
+  /**
+   * Put a changed PSO into the map, or take it out if it was deleted or moved
+   * out of the container
+   *
+   * @param map
+   * @param entry
+   * @return the uSNChanged of the entry
+   * @throws LDAPException
+   */
+  private long apply(Map<DN, PasswordSettings> map, SearchResultEntry entry) throws LDAPException {
+    long usnChanged = DomainPasswordPolicy.getLong(entry, "uSNChanged");
+    byte[] objectGUID = entry.getAttributeValueBytes("objectGUID");
+    if (objectGUID != null) {
+      // the PSO may have been renamed, moved or deleted since it was indexed
+      PackedGUID guid = PackedGUID.fromBytes(objectGUID);
+      for (Iterator<PasswordSettings> i = map.values().iterator(); i.hasNext();) {
+        if (guid.equals(i.next().objectGUID)) {
+          i.remove();
+        }
+      }
+    }
+    if ("TRUE".equalsIgnoreCase(entry.getAttributeValue("isDeleted"))
+        || !new DN(containerDN).equals(entry.getParsedDN().getParent())) {
+      map.remove(entry.getParsedDN());
+      log.debug("Removed PSO " + entry.getDN());
+      return usnChanged;
+    }
+    PasswordSettings pso = new PasswordSettings(entry);
+    map.put(entry.getParsedDN(), pso);
+    log.debug("Loaded " + pso);
+    return usnChanged;
+  }
+
+  /**
+   * Search the whole domain for changed PSOs, tombstones included
+   *
+   * @param ldc
+   * @param filter
+   * @return the entries or null if the server refused the Show Deleted control
+   * @throws LDAPException
+   */
+  private List<SearchResultEntry> searchWithDeleted(LDAPConnection ldc, String filter) throws LDAPException {
+    SearchRequest searchRequest = new SearchRequest(defaultNamingContext, SearchScope.SUB, filter, psoAttrs);
+    searchRequest.addControl(new Control(USNChangedScanner.LDAP_SERVER_SHOW_DELETED_OID, true));
+    try {
+      return ldc.search(searchRequest).getSearchEntries();
+    } catch (LDAPSearchException e) {
+      if (e.getResultCode() == ResultCode.UNAVAILABLE_CRITICAL_EXTENSION
+          || e.getResultCode() == ResultCode.INSUFFICIENT_ACCESS_RIGHTS) {
+        log.debug("Show Deleted refused by " + serverKey + ": " + e.getMessage());
+        return null;
+      }
+      throw e;
+    }
+  }
+
+  private List<SearchResultEntry> search(LDAPConnection ldc, String filter, String... attributes)
+      throws LDAPException {
+    try {
+      return ldc.search(containerDN, SearchScope.ONE, filter, attributes).getSearchEntries();
+    } catch (LDAPSearchException e) {
+      if (e.getResultCode() == ResultCode.NO_SUCH_OBJECT) {
+        // Domain functional level below 2008, there are no PSOs
+        return Collections.emptyList();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * The policy to apply to a user.
+   *
+   * @param resultantPSO
+   *                       - value of msDS-ResultantPSO of the user, may be null
+   * @param domainPolicy
+   *                       - returned when the user has no PSO or the PSO is not
+   *                       in the index
+   * @return
+   */
+  public DomainPasswordPolicy resolve(String resultantPSO, DomainPasswordPolicy domainPolicy) {
+    if (resultantPSO == null) {
+      return domainPolicy;
+    }
+    PasswordSettings pso;
+    try {
+      pso = settings.get(new DN(resultantPSO));
+    } catch (LDAPException e) {
+      log.warn("Invalid msDS-ResultantPSO " + resultantPSO);
+      return domainPolicy;
+    }
+    if (pso == null) {
+      log.debug("PSO " + resultantPSO + " is not in the index, using the domain policy");
+      return domainPolicy;
+    }
+    return pso.policy;
+  }
+
+  /**
+   * @param psoDN
+   * @return the PasswordSettings for the PSO or null
+   */
+  public PasswordSettings get(String psoDN) throws LDAPException {
+    return settings.get(new DN(psoDN));
+  }
+
+  public int size() {
+    return settings.size();
+  }
+
+  public long getLastRefresh() {
+    return lastRefresh;
+  }
+
+  public long getHighestUSNChanged() {
+    return highestUSNChanged;
+  }
+
+  /**
+   * The values of one msDS-PasswordSettings object.
+   */
+  public static class PasswordSettings {
+    final String dn;
+    final PackedGUID objectGUID;
+    final int precedence;
+    final DomainPasswordPolicy policy;
+
+    PasswordSettings(Entry pso) {
+      dn = pso.getDN();
+      byte[] guid = pso.getAttributeValueBytes("objectGUID");
+      objectGUID = guid == null ? null : PackedGUID.fromBytes(guid);
+      precedence = (int) DomainPasswordPolicy.getLong(pso, "msDS-PasswordSettingsPrecedence");
+      policy = new DomainPasswordPolicy(
+          DomainPasswordPolicy.nanosToIntSeconds(DomainPasswordPolicy.getLong(pso, "msDS-LockoutDuration")),
+          (int) DomainPasswordPolicy.getLong(pso, "msDS-LockoutThreshold"),
+          DomainPasswordPolicy.nanosToIntSeconds(DomainPasswordPolicy.getLong(pso, "msDS-LockoutObservationWindow")),
+          DomainPasswordPolicy.nanosToIntSeconds(DomainPasswordPolicy.getLong(pso, "msDS-MaximumPasswordAge")),
+          DomainPasswordPolicy.nanosToIntSeconds(DomainPasswordPolicy.getLong(pso, "msDS-MinimumPasswordAge")));
+    }
+
+    public String getDN() {
+      return dn;
+    }
+
+    /**
+     * @return msDS-PasswordSettingsPrecedence, lower wins
+     */
+    public int getPrecedence() {
+      return precedence;
+    }
+
+    public DomainPasswordPolicy getPolicy() {
+      return policy;
+    }
+
+    public String toString() {
+      return "PasswordSettings(" + dn + ", precedence=" + precedence + ", " + policy + ")";
+    }
+  }
+}
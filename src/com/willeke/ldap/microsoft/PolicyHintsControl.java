@@ -1,12 +1,16 @@
 package com.willeke.ldap.microsoft;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.unboundid.asn1.ASN1OctetString;
 import com.unboundid.ldap.sdk.Control;
 import com.unboundid.ldap.sdk.LDAPConnection;
 import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.RootDSE;
+import com.unboundid.util.StaticUtils;
 
 /**
  * 
@@ -23,6 +27,13 @@ public class PolicyHintsControl extends Control {
 
   public final static byte[] LDAP_SERVER_POLICY_HINTS_DATA = { 48, (byte) 132, 0, 0, 0, 3, 2, 1, 1 };
 
+  public static final long DEFAULT_TTL_MILLIS = 60L * 60L * 1000L;
+
+  // host:port -> the OID the server supports, cached so a password change
+  // does not read the rootDSE every time
+  private static final ConcurrentHashMap<String, CachedOID> supportedOIDs = new ConcurrentHashMap<String, CachedOID>();
+  private static volatile long ttlMillis = DEFAULT_TTL_MILLIS;
+
   /**
    * We determine the proper control OID to use.
    * 
@@ -37,9 +48,10 @@ public class PolicyHintsControl extends Control {
    * Need to pass in the controlOID
    * 
    * @param controlOID
+   *                     - as returned by getLDAP_SERVER_POLICY_HINTS_OID
    */
   public PolicyHintsControl(String controlOID) {
-    super(LDAP_SERVER_POLICY_HINTS_OID, false, new ASN1OctetString(LDAP_SERVER_POLICY_HINTS_DATA));
+    super(controlOID, false, new ASN1OctetString(LDAP_SERVER_POLICY_HINTS_DATA));
   }
 
   public String getControlName() {
@@ -53,22 +65,83 @@ public class PolicyHintsControl extends Control {
   }
 
   /**
-   * Determine which control is in use
+   * Determine which control is in use. The answer is cached per server
+   * (host:port) for getTtlMillis().
    * 
    * @param ldc
-   * @return
+   * @return the OID or null if the server supports neither
    * @throws LDAPException
    */
   public static String getLDAP_SERVER_POLICY_HINTS_OID(LDAPConnection ldc) throws LDAPException {
-    String[] spcOIDs = ldc.getRootDSE().getSupportedControlOIDs();
-    ArrayList<String> oidNUmbers = new ArrayList<String>(Arrays.asList(spcOIDs));
-    if (oidNUmbers.contains(com.willeke.ldap.microsoft.PolicyHintsControl.LDAP_SERVER_POLICY_HINTS_OID)) {
-      return com.willeke.ldap.microsoft.PolicyHintsControl.LDAP_SERVER_POLICY_HINTS_OID;
-    } else if (oidNUmbers
-        .contains(com.willeke.ldap.microsoft.PolicyHintsControl.LDAP_SERVER_POLICY_HINTS_DEPRECATED_OID)) {
-      return com.willeke.ldap.microsoft.PolicyHintsControl.LDAP_SERVER_POLICY_HINTS_DEPRECATED_OID;
+    String serverKey = LDAPServerKey.get(ldc);
+    CachedOID cached = supportedOIDs.get(serverKey);
+    if (cached != null && System.currentTimeMillis() - cached.loadedAt < ttlMillis) {
+      return cached.oid;
+    }
+    String oid = readLDAP_SERVER_POLICY_HINTS_OID(ldc);
+    supportedOIDs.put(serverKey, new CachedOID(oid, System.currentTimeMillis()));
+    return oid;
+  }
+
+  /**
+   * Determine which control is in use from the rootDSE, bypassing the cache
+   * 
+   * @param ldc
+   * @return the OID or null if the server supports neither
+   * @throws LDAPException
+   */
+  static String readLDAP_SERVER_POLICY_HINTS_OID(LDAPConnection ldc) throws LDAPException {
+    RootDSE rootDSE = ldc.getRootDSE();
+    if (rootDSE == null || rootDSE.getSupportedControlOIDs() == null) {
+      return null;
+    }
+    Set<String> oidNumbers = new HashSet<String>(Arrays.asList(rootDSE.getSupportedControlOIDs()));
+    if (oidNumbers.contains(LDAP_SERVER_POLICY_HINTS_OID)) {
+      return LDAP_SERVER_POLICY_HINTS_OID;
+    } else if (oidNumbers.contains(LDAP_SERVER_POLICY_HINTS_DEPRECATED_OID)) {
+      return LDAP_SERVER_POLICY_HINTS_DEPRECATED_OID;
     } else {
       return null;
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Forget the OIDs of all servers, for instance after a DC upgrade
+   */
+  public static void clearCache() {
+    supportedOIDs.clear();
+  }
+
+  /**
+   * Forget the OID of one server
+   * 
+   * @param serverKey
+   *                    - host:port as from LDAPServerKey
+   */
+  public static void invalidate(String serverKey) {
+    supportedOIDs.remove(StaticUtils.toLowerCase(serverKey));
+  }
+
+  public static long getTtlMillis() {
+    return ttlMillis;
+  }
+
+  /**
+   * @param ttlMillis
+   *                    - how long the OID of a server is served from memory,
+   *                    zero or less reads the rootDSE every time
+   */
+  public static void setTtlMillis(long ttlMillis) {
+    PolicyHintsControl.ttlMillis = ttlMillis;
+  }
+
+  static class CachedOID {
+    final String oid; // null when the server supports neither control
+    final long loadedAt;
+
+    CachedOID(String oid, long loadedAt) {
+      this.oid = oid;
+      this.loadedAt = loadedAt;
+    }
+  }
+}
@@ -3,19 +3,36 @@
  */
 package com.willeke.ldap.microsoft;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.log4j.Logger;
 
 import com.unboundid.ldap.sdk.Attribute;
 import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
 import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPInterface;
+import com.unboundid.ldap.sdk.LDAPRuntimeException;
+import com.unboundid.ldap.sdk.ResultCode;
 import com.unboundid.ldap.sdk.SearchRequest;
 import com.unboundid.ldap.sdk.SearchResultEntry;
 import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.util.StaticUtils;
 
 /**
  * @author jim@willeke.com
@@ -26,45 +43,77 @@ public class RangeBasedSearch {
   static Logger log = Logger.getLogger(thisClass);
 
   /**
-   * We can dynamically get the range step value if we get retrieve all attribute
-   * names. The range step will be in an attribute like: member;range=0-1499
+   * Pass as the step to discover it from the first window: the first request is
+   * return_attribute;range=0-* and the server answers with its MaxValRange, like
+   * member;range=0-1499, whose values are kept.
+   */
+  public static final int ADAPTIVE_STEP = -1;
+
+  // range step discovered per server (host:port)
+  static final ConcurrentHashMap<String, Integer> rangeSteps = new ConcurrentHashMap<String, Integer>();
+
+  /**
+   * We can dynamically get the range step value from the name of the returned
+   * attribute. The range step will be in an attribute like: member;range=0-1499
+   * 
+   * The step is cached per server so this only goes to the server the first
+   * time, and then only asks for return_attribute;range=0-* instead of all
+   * attributes.
    * 
    * @param idv_searchldc
    * @param basedn
    * @param filter
    * @param return_attribute
-   * @return
+   * @return 0 if the values of return_attribute of this entry fit in one
+   *         window and the server step has not been discovered yet
    * @throws LDAPException
    */
   public static int getRangeStepValue(LDAPConnection idv_searchldc, String basedn, String filter,
       String return_attribute) throws LDAPException {
-    SearchRequest searchRequest = new SearchRequest(basedn, SearchScope.BASE, filter,
-        SearchRequest.ALL_USER_ATTRIBUTES);
-    List<SearchResultEntry> rangedEntries = idv_searchldc.search(searchRequest).getSearchEntries();
-    for (Iterator<SearchResultEntry> iterator = rangedEntries.iterator(); iterator.hasNext();) {
-      SearchResultEntry searchResultEntry = iterator.next();
-      Collection<Attribute> allAttribute = searchResultEntry.getAttributes();
-      for (Iterator<Attribute> attributeIterator = allAttribute.iterator(); attributeIterator.hasNext();) {
-        Attribute attribute = attributeIterator.next();
-        log.debug("---> " + attribute.getName());
-        String rangeCheckAttribute = return_attribute + ";range=0-";
-        if (attribute.getName().contains(rangeCheckAttribute)) {
-          int rangeStep = Integer.parseInt(attribute.getName()
-              .substring(attribute.getName().lastIndexOf(rangeCheckAttribute) + rangeCheckAttribute.length()));
-          log.debug("Range Step is: " + rangeStep);
-          return rangeStep;
-        } else {
-          return 0; // rangebasedSearchNot Needed
-        }
-      }
+    String serverKey = LDAPServerKey.get(idv_searchldc);
+    Integer cachedStep = rangeSteps.get(serverKey);
+    if (cachedStep != null) {
+      return cachedStep.intValue();
+    }
+    RangeWindow window = fetchWindow(idv_searchldc, basedn, filter, return_attribute,
+        getRangeAttribute(return_attribute, 0, -1), 0);
+    if (window.isLast()) {
+      return 0; // rangebasedSearchNot Needed
     }
-    return 0;
+    log.debug("Range Step is: " + window.end);
+    rangeSteps.put(serverKey, Integer.valueOf(window.end));
+    return window.end;
   }
 
+  /**
+   * The range step discovered for the server, or null if none is known yet.
+   * 
+   * @param ldc
+   * @return
+   * @throws LDAPException
+   */
+  public static Integer getCachedRangeStep(LDAPConnection ldc) throws LDAPException {
+    return rangeSteps.get(LDAPServerKey.get(ldc));
+  }
+
+  public static void clearRangeStepCache() {
+    rangeSteps.clear();
+  }
+
+  /**
+   * Discovers the step from the first window (ADAPTIVE_STEP) so there is no
+   * extra search before the values are read.
+   * 
+   * @param ldc
+   * @param basedn
+   * @param filter
+   * @param return_attribute
+   * @return
+   * @throws LDAPException
+   */
   public static List<String> getAttributeRangeBasedSearch(LDAPConnection ldc, String basedn, String filter,
       String return_attribute) throws LDAPException {
-    int step = getRangeStepValue(ldc, basedn, filter, return_attribute);
-    return getAttributeRangeBasedSearch(ldc, basedn, filter, return_attribute, step);
+    return getAttributeRangeBasedSearch(ldc, basedn, filter, return_attribute, ADAPTIVE_STEP);
   }
 
   /**
@@ -73,56 +122,423 @@ public class RangeBasedSearch {
    * @param basedn
    * @param filter
    * @param step
-   *                         - How can we dynamically determine the step?
+   *                         - from getRangeStepValue, 0 if ranges are not
+   *                         needed or ADAPTIVE_STEP
    * @param return_attribute
    * @return
    * @throws LDAPException
    */
   public static List<String> getAttributeRangeBasedSearch(LDAPConnection ldc, String basedn, String filter,
       String return_attribute, int step) throws LDAPException {
-    int initialStep = step;
     List<String> allValues = new ArrayList<String>();
-    // initialize counter to total the return_attribute values and range values
+    RangeValueIterator iterator = new RangeValueIterator(ldc, LDAPServerKey.get(ldc), basedn, filter,
+        return_attribute, step);
+    try {
+      while (iterator.hasNext()) {
+        allValues.add(iterator.next());
+      }
+    } catch (LDAPRuntimeException e) {
+      throw e.getLDAPException();
+    }
+    log.info("Total " + return_attribute + " Entries found: " + allValues.size() + " ( initialStep=" + step + ")");
+    return allValues;
+  }
+
+  /**
+   * Fetch the range windows of return_attribute concurrently on connections from
+   * the pool and return the values in server order.
+   * 
+   * Window k is return_attribute;range=k*(step+1)-(k*(step+1)+step). Up to
+   * concurrency windows are outstanding at any time; as soon as the lowest
+   * outstanding window has been appended the next one is requested. The first
+   * window that comes back as range=N-* ends the search and any windows
+   * requested past it are discarded.
+   * 
+   * Each window is fetched on a connection checked out for it, and the step
+   * is cached for the server that connection is established to, so a pool
+   * spread over several DCs learns each DC's MaxValRange.
+   * 
+   * @param pool
+   * @param basedn
+   * @param filter
+   * @param return_attribute
+   * @param step
+   *                           - from getRangeStepValue, 0 if ranges are not
+   *                           needed or ADAPTIVE_STEP to use the step cached
+   *                           for the server or discover it from window 0
+   * @param concurrency
+   *                           - number of windows requested at once. It is
+   *                           limited to the maximum connections of the pool.
+   * @return
+   * @throws LDAPException
+   */
+  public static List<String> getAttributeRangeBasedSearchParallel(final LDAPConnectionPool pool,
+      final String basedn, final String filter, final String return_attribute, int step, int concurrency)
+      throws LDAPException {
+    if (step == 0 || concurrency <= 1) {
+      LDAPConnection ldc = pool.getConnection();
+      List<String> allValues;
+      try {
+        allValues = getAttributeRangeBasedSearch(ldc, basedn, filter, return_attribute, step);
+      } catch (LDAPException e) {
+        pool.releaseConnectionAfterException(ldc, e);
+        throw e;
+      } catch (RuntimeException e) {
+        pool.releaseDefunctConnection(ldc);
+        throw e;
+      }
+      pool.releaseConnection(ldc);
+      return allValues;
+    }
+    List<String> allValues = new ArrayList<String>();
+    int firstWindow = 0;
+    if (step < 0) {
+      // window 0 is sized by the step cached for the server of its connection,
+      // or tells us the step, and we keep its values
+      RangeWindow window = new WindowFetch(pool, basedn, filter, return_attribute, 0, ADAPTIVE_STEP).call();
+      allValues.addAll(Arrays.asList(window.values));
+      if (window.isLast()) {
+        return allValues;
+      }
+      step = window.end;
+      firstWindow = 1;
+    }
+    concurrency = Math.min(concurrency, pool.getMaximumAvailableConnections());
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+    ArrayDeque<Future<RangeWindow>> outstanding = new ArrayDeque<Future<RangeWindow>>();
+    int nextWindow = firstWindow;
+    try {
+      for (; nextWindow < firstWindow + concurrency; nextWindow++) {
+        outstanding.add(executor.submit(new WindowFetch(pool, basedn, filter, return_attribute, nextWindow, step)));
+      }
+      while (!outstanding.isEmpty()) {
+        RangeWindow window = getWindow(outstanding.poll());
+        for (int i = 0; i < window.values.length; i++) {
+          allValues.add(window.values[i]);
+        }
+        if (window.isLast()) {
+          break;
+        }
+        outstanding.add(executor.submit(new WindowFetch(pool, basedn, filter, return_attribute, nextWindow++, step)));
+      }
+    } finally {
+      for (Future<RangeWindow> future : outstanding) {
+        future.cancel(true);
+      }
+      executor.shutdownNow();
+    }
+    log.info("Total " + return_attribute + " Entries found: " + allValues.size() + " ( step=" + step
+        + ", concurrency=" + concurrency + ", windows=" + nextWindow + ")");
+    return allValues;
+  }
+
+  private static RangeWindow getWindow(Future<RangeWindow> future) throws LDAPException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LDAPException(ResultCode.LOCAL_ERROR, "Interrupted while waiting for a range window", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof LDAPException) {
+        throw (LDAPException) e.getCause();
+      }
+      throw new LDAPException(ResultCode.LOCAL_ERROR, StaticUtils.getExceptionMessage(e.getCause()), e.getCause());
+    }
+  }
+
+  /**
+   * Fetch window k on a connection checked out of the pool. When the server
+   * returns fewer values than step+1 (its MaxValRange is smaller than step) the
+   * step is cached for that server and the rest of the window is requested
+   * before returning so no values are skipped.
+   * 
+   * Window 0 with ADAPTIVE_STEP uses the step cached for the server, or asks
+   * for return_attribute;range=0-* and caches the step it answers with.
+   */
+  static class WindowFetch implements Callable<RangeWindow> {
+    final LDAPConnectionPool pool;
+    final String basedn;
+    final String filter;
+    final String return_attribute;
+    final int start;
+    final int end;
+
+    WindowFetch(LDAPConnectionPool pool, String basedn, String filter, String return_attribute, int window,
+        int step) {
+      this.pool = pool;
+      this.basedn = basedn;
+      this.filter = filter;
+      this.return_attribute = return_attribute;
+      this.start = window * (step + 1);
+      this.end = start + step;
+    }
+
+    public RangeWindow call() throws LDAPException {
+      LDAPConnection ldc = pool.getConnection();
+      RangeWindow window;
+      try {
+        window = call(ldc);
+      } catch (LDAPException e) {
+        pool.releaseConnectionAfterException(ldc, e);
+        throw e;
+      } catch (RuntimeException e) {
+        pool.releaseDefunctConnection(ldc);
+        throw e;
+      }
+      pool.releaseConnection(ldc);
+      return window;
+    }
+
+    RangeWindow call(LDAPConnection ldc) throws LDAPException {
+      String serverKey = LDAPServerKey.get(ldc);
+      int end = this.end;
+      if (end < 0) {
+        Integer cachedStep = rangeSteps.get(serverKey);
+        if (cachedStep != null) {
+          end = start + cachedStep.intValue();
+        }
+      }
+      RangeWindow window = fetchWindow(ldc, basedn, filter, return_attribute,
+          getRangeAttribute(return_attribute, start, end), start);
+      if (window.isLast()) {
+        return window;
+      }
+      if (end < 0 || window.end < end) {
+        log.debug("Range Step of " + serverKey + " is: " + (window.end - start));
+        rangeSteps.put(serverKey, Integer.valueOf(window.end - start));
+      }
+      if (end < 0 || window.end >= end) {
+        return window;
+      }
+      List<String> values = new ArrayList<String>(Arrays.asList(window.values));
+      while (!window.isLast() && window.end < end) {
+        window = fetchWindow(ldc, basedn, filter, return_attribute,
+            getRangeAttribute(return_attribute, window.end + 1, end), window.end + 1);
+        values.addAll(Arrays.asList(window.values));
+      }
+      return new RangeWindow(start, values.toArray(new String[values.size()]), window.end);
+    }
+  }
+
+  /**
+   * Lazily return the values of return_attribute. The next range window is only
+   * requested from the server when the values of the previous window have been
+   * consumed, so only one window is held in memory.
+   * 
+   * An LDAPException while fetching a window is thrown as an
+   * LDAPRuntimeException from hasNext() or next().
+   * 
+   * @param ldc
+   * @param basedn
+   * @param filter
+   * @param return_attribute
+   * @param step
+   *                           - from getRangeStepValue, 0 if ranges are not
+   *                           needed or ADAPTIVE_STEP
+   * @return
+   * @throws LDAPException
+   */
+  public static Iterator<String> iterateAttributeRangeBasedSearch(LDAPConnection ldc, String basedn, String filter,
+      String return_attribute, int step) throws LDAPException {
+    return new RangeValueIterator(ldc, LDAPServerKey.get(ldc), basedn, filter, return_attribute, step);
+  }
+
+  /**
+   * A sequential Stream over iterateAttributeRangeBasedSearch
+   * 
+   * @param ldc
+   * @param basedn
+   * @param filter
+   * @param return_attribute
+   * @param step
+   * @return
+   * @throws LDAPException
+   */
+  public static Stream<String> streamAttributeRangeBasedSearch(LDAPConnection ldc, String basedn, String filter,
+      String return_attribute, int step) throws LDAPException {
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+        iterateAttributeRangeBasedSearch(ldc, basedn, filter, return_attribute, step),
+        Spliterator.ORDERED | Spliterator.NONNULL), false);
+  }
+
+  /**
+   * Find the ranged attribute (like member;range=1500-2999 or
+   * member;range=3000-*) for return_attribute in the entry.
+   * 
+   * @param entry
+   * @param return_attribute
+   * @return null if the entry does not have it
+   */
+  static Attribute getRangedAttribute(SearchResultEntry entry, String return_attribute) {
+    for (Attribute attribute : entry.getAttributes()) {
+      if (attribute.getBaseName().equalsIgnoreCase(return_attribute)) {
+        return attribute;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The last value index of the window from the attribute name
+   * member;range=1500-2999
+   * 
+   * @param attribute
+   * @return -1 for the last window (member;range=3000-*) or when there is no
+   *         range option.
+   */
+  static int getRangeEnd(Attribute attribute) {
+    for (String option : attribute.getOptions()) {
+      if (option.regionMatches(true, 0, "range=", 0, 6)) {
+        String end = option.substring(option.indexOf('-') + 1);
+        if (end.equals("*")) {
+          return -1;
+        }
+        return Integer.parseInt(end);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param return_attribute
+   * @param start
+   * @param end
+   *                           - -1 for return_attribute;range=start-*
+   * @return the attribute to request for the window
+   */
+  static String getRangeAttribute(String return_attribute, int start, int end) {
+    if (end < 0) {
+      return return_attribute + ";range=" + start + "-*";
+    }
+    return return_attribute + ";range=" + start + "-" + end;
+  }
+
+  /**
+   * Request one window of return_attribute.
+   * 
+   * @param ldi
+   * @param basedn
+   * @param filter
+   * @param return_attribute
+   * @param currentRange
+   *                           - attribute to request, from getRangeAttribute or
+   *                           the plain return_attribute
+   * @param start
+   *                           - first value index requested
+   * @return
+   * @throws LDAPException
+   */
+  static RangeWindow fetchWindow(LDAPInterface ldi, String basedn, String filter, String return_attribute,
+      String currentRange, int start) throws LDAPException {
+    SearchRequest searchRequest = new SearchRequest(basedn, SearchScope.BASE, filter, currentRange);
+    List<SearchResultEntry> rangedEntries = ldi.search(searchRequest).getSearchEntries();
+    Attribute attribute = null;
+    if (!rangedEntries.isEmpty()) {
+      attribute = getRangedAttribute(rangedEntries.get(0), return_attribute);
+    }
+    if (attribute == null) {
+      // nothing at or after start
+      return new RangeWindow(start, new String[0], -1);
+    }
+    log.debug("---> " + attribute.getName());
+    return new RangeWindow(start, attribute.getValues(), getRangeEnd(attribute));
+  }
+
+  /**
+   * The values returned for one range. end is -1 for the last window.
+   */
+  static class RangeWindow {
+    final int start;
+    final String[] values;
+    final int end;
+
+    RangeWindow(int start, String[] values, int end) {
+      this.start = start;
+      this.values = values;
+      this.end = end;
+    }
+
+    boolean isLast() {
+      return end < 0;
+    }
+  }
+
+  /**
+   * Fetches one range window at a time. With ADAPTIVE_STEP the first request is
+   * return_attribute;range=0-* and the step is learned (and cached for the
+   * server) from the window returned.
+   */
+  static class RangeValueIterator implements Iterator<String> {
+    final LDAPInterface ldc;
+    final String serverKey;
+    final String basedn;
+    final String filter;
+    final String return_attribute;
+    int step;
     int start = 0;
-    int finish = step;
     boolean finallyFinished = false;
-    String range;
-    // loop through the query until we have all the results
-    while (!finallyFinished) {
-      range = start + "-" + finish;
-      String currentRange = null;
+    String[] window = new String[0];
+    int position = 0;
+
+    RangeValueIterator(LDAPInterface ldc, String serverKey, String basedn, String filter, String return_attribute,
+        int step) {
+      this.ldc = ldc;
+      this.serverKey = serverKey;
+      this.basedn = basedn;
+      this.filter = filter;
+      this.return_attribute = return_attribute;
+      this.step = step;
+    }
+
+    public boolean hasNext() {
+      while (position >= window.length && !finallyFinished) {
+        try {
+          fetchNextWindow();
+        } catch (LDAPException e) {
+          finallyFinished = true;
+          throw new LDAPRuntimeException(e);
+        }
+      }
+      return position < window.length;
+    }
+
+    public String next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      String value = window[position];
+      window[position++] = null; // let the window be collected as we go
+      return value;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    void fetchNextWindow() throws LDAPException {
+      String currentRange;
       if (step == 0) {
         currentRange = return_attribute;
+      } else if (step < 0) {
+        currentRange = getRangeAttribute(return_attribute, start, -1);
       } else {
-        currentRange = return_attribute + ";Range=" + range;
-      }
-      String range_returnedAtts[] = { currentRange };
-      SearchRequest searchRequest = new SearchRequest(basedn, SearchScope.BASE, filter, range_returnedAtts);
-      List<SearchResultEntry> rangedEntries = ldc.search(searchRequest).getSearchEntries();
-      for (Iterator<SearchResultEntry> iterator = rangedEntries.iterator(); iterator.hasNext();) {
-        SearchResultEntry searchResultEntry = iterator.next();
-        Collection<Attribute> allAttribute = searchResultEntry.getAttributes();
-        for (Iterator<Attribute> attributeIterator = allAttribute.iterator(); attributeIterator.hasNext();) {
-          Attribute attribute = attributeIterator.next();
-          log.debug("---> " + attribute.getName());
-          // The last batch returns this as member;range=28500-*
-          if (attribute.getName().endsWith("*") || step == 0) {
-            currentRange = attribute.getName();
-            finallyFinished = true;
-          }
-          String[] attributeBatch = searchResultEntry.getAttributeValues(currentRange);
-          for (int i = 0; i < attributeBatch.length; i++) {
-            allValues.add(attributeBatch[i]);
-            // log.debug("-- " + allvalues++ + " " + attribute.getName() + ":" +
-            // attributeBatch[i]);
-          }
+        currentRange = getRangeAttribute(return_attribute, start, start + step);
+      }
+      RangeWindow rangeWindow = fetchWindow(ldc, basedn, filter, return_attribute, currentRange, start);
+      window = rangeWindow.values;
+      position = 0;
+      // The last batch returns this as member;range=28500-*
+      if (step == 0 || rangeWindow.isLast()) {
+        finallyFinished = true;
+        return;
+      }
+      if (step < 0) {
+        step = rangeWindow.end - start;
+        if (serverKey != null) {
+          rangeSteps.put(serverKey, Integer.valueOf(step));
         }
-      } // for SearchResultEntry
-      start = finish + 1;
-      finish = finish + step;
-    } // finallyFinished
-    log.info(
-        "Total " + return_attribute + " Entries found: " + allValues.size() + " ( initialStep=" + initialStep + ")");
-    return allValues;
+      }
+      start = rangeWindow.end + 1;
+    }
   }
 }
@@ -0,0 +1,517 @@
+package com.willeke.ldap.microsoft;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.RootDSE;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
+
+/**
+ * Keeps an AccountStatusColumns store current by paging through the users with
+ * (uSNChanged&gt;=watermark), for accounts without the Replicating Directory
+ * Changes right that AccountStatusSync needs.
+ *
+ * uSNChanged is local to each DC, so the watermark is kept per DC
+ * invocationId: before a scan highestCommittedUSN is read from the rootDSE of
+ * the DC, after a complete scan the watermark becomes highestCommittedUSN + 1.
+ * A DC restored from backup gets a new invocationId (and may hand out USNs
+ * again), so a DC whose invocationId changed, or whose highestCommittedUSN is
+ * below the watermark, is scanned in full. The watermarks are kept in a
+ * Properties file:
+ *
+ * <pre>
+ * invocationId.&lt;dsServiceName&gt;=&lt;invocationId&gt;
+ * usn.&lt;invocationId&gt;=&lt;watermark&gt;
+ * retry=&lt;objectGUID&gt; &lt;objectGUID&gt; ...
+ * </pre>
+ *
+ * The watermark moves past users whose entry could not be evaluated, so their
+ * objectGUIDs are kept under retry and read again by the next scan until they
+ * evaluate or are gone.
+ *
+ * A plain search does not return deleted users. With setShowDeleted(true)
+ * tombstones are searched as well with the Show Deleted control, which needs
+ * the right to list CN=Deleted Objects; otherwise rows of deleted users stay
+ * until the next full load. Tombstones are moved to CN=Deleted Objects of the
+ * naming context, so that search starts at the naming context that holds
+ * baseDN rather than at baseDN.
+ *
+ * To restart without a full scan, save the store with checkpoint, which keeps
+ * the watermarks in the same AccountStatusFile, and start again with restore.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class USNChangedScanner {
+  static String thisClass = USNChangedScanner.class.getName();
+  static Logger log = Logger.getLogger(thisClass);
+
+  public static final String LDAP_SERVER_SHOW_DELETED_OID = "1.2.840.113556.1.4.417";
+  static final String INVOCATION_ID_PREFIX = "invocationId.";
+  static final String USN_PREFIX = "usn.";
+  static final String RETRY = "retry";
+
+  private final AccountStatusColumns columns;
+  private final File stateFile;
+  private final Properties state = new Properties();
+  private final Map<PackedGUID, byte[]> retry = new LinkedHashMap<PackedGUID, byte[]>();
+  private String filter = BulkAccountStatus.DEFAULT_USER_FILTER;
+  private int pageSize = BulkAccountStatus.DEFAULT_PAGE_SIZE;
+  private boolean showDeleted = false;
+
+  /**
+   * @param columns
+   *                    - the store to keep current, empty or as restored
+   *                    together with the state file
+   * @param stateFile
+   *                    - the watermarks, may be null to keep them in memory
+   *                    only
+   * @throws IOException
+   *                       - if the state file exists but cannot be read
+   */
+  public USNChangedScanner(AccountStatusColumns columns, File stateFile) throws IOException {
+    this.columns = columns;
+    this.stateFile = stateFile;
+    if (stateFile != null && stateFile.exists()) {
+      if (columns.getLiveCount() == 0) {
+        log.warn("Ignoring " + stateFile + " as the store is empty, doing a full scan");
+      } else {
+        InputStream in = new FileInputStream(stateFile);
+        try {
+          load(in);
+        } finally {
+          in.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Continue from a file saved by checkpoint, with the watermarks the store was
+   * current to. The state file is replaced by them, as it may be newer than the
+   * store.
+   *
+   * @param file
+   * @param stateFile
+   *                    - may be null to keep the watermarks in memory only
+   * @return
+   * @throws IOException
+   *                       - if the state file cannot be written
+   */
+  public static USNChangedScanner restore(AccountStatusFile file, File stateFile) throws IOException {
+    USNChangedScanner scanner = new USNChangedScanner(file.toColumns(), stateFile, file.getSyncState());
+    if (scanner.state.isEmpty()) {
+      log.warn("No watermarks saved with " + file.getFile() + ", doing a full scan");
+    }
+    try {
+      scanner.save();
+    } catch (LDAPException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    return scanner;
+  }
+
+  private USNChangedScanner(AccountStatusColumns columns, File stateFile, byte[] saved) throws IOException {
+    this.columns = columns;
+    this.stateFile = stateFile;
+    if (columns.getLiveCount() > 0) {
+      load(new ByteArrayInputStream(saved));
+    }
+  }
+
+  /**
+   * Save the store together with the watermarks it is current to, see
+   * AccountStatusFile. Waits for a scan in progress to finish.
+   *
+   * @param file
+   * @throws IOException
+   */
+  public synchronized void checkpoint(File file) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    store(out);
+    columns.save(file, out.toByteArray());
+  }
+
+  private void load(InputStream in) throws IOException {
+    state.load(in);
+    String guids = (String) state.remove(RETRY);
+    if (guids != null) {
+      for (String guid : guids.trim().split("\\s+")) {
+        if (guid.length() > 0) {
+          byte[] objectGUID = ObjectGUIDTools.parseDashedString(guid);
+          retry.put(PackedGUID.fromBytes(objectGUID), objectGUID);
+        }
+      }
+    }
+  }
+
+  private void store(OutputStream out) throws IOException {
+    Properties saved = new Properties();
+    saved.putAll(state);
+    if (!retry.isEmpty()) {
+      StringBuilder guids = new StringBuilder();
+      for (byte[] objectGUID : retry.values()) {
+        ObjectGUIDTools.appendDashedString(objectGUID, guids.length() == 0 ? guids : guids.append(' '));
+      }
+      saved.setProperty(RETRY, guids.toString());
+    }
+    saved.store(out, "uSNChanged watermarks by DC invocationId");
+  }
+
+  /**
+   * Apply the users changed on this DC since its watermark
+   *
+   * @param ldc
+   *                 - always the same DC for a watermark to be of use
+   * @param baseDN
+   * @return what was applied
+   * @throws LDAPException
+   *                         - the watermark is only moved after a complete
+   *                         scan, with the users that failed kept to be read
+   *                         again
+   */
+  public synchronized ScanResult scan(LDAPConnection ldc, String baseDN) throws LDAPException {
+    long start = System.currentTimeMillis();
+    RootDSE rootDSE = ldc.getRootDSE();
+    if (rootDSE == null || rootDSE.getAttributeValueAsLong("highestCommittedUSN") == null
+        || rootDSE.getAttributeValue("dsServiceName") == null) {
+      throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM,
+          "No highestCommittedUSN or dsServiceName in the rootDSE of " + ldc.getConnectedAddress());
+    }
+    long highestCommittedUSN = rootDSE.getAttributeValueAsLong("highestCommittedUSN").longValue();
+    String dsServiceName = rootDSE.getAttributeValue("dsServiceName");
+    SearchResultEntry ntdsSettings = ldc.getEntry(dsServiceName, "invocationId");
+    if (ntdsSettings == null || !ntdsSettings.hasAttribute("invocationId")) {
+      throw new LDAPException(ResultCode.NO_SUCH_ATTRIBUTE, "No invocationId on " + dsServiceName);
+    }
+    String invocationId = ObjectGUIDTools.convertToDashedString(ntdsSettings.getAttributeValueBytes("invocationId"));
+
+    long watermark = 0;
+    String restore = null;
+    String previousInvocationId = state.getProperty(INVOCATION_ID_PREFIX + dsServiceName);
+    if (previousInvocationId != null && !previousInvocationId.equals(invocationId)) {
+      restore = "invocationId of " + dsServiceName + " changed from " + previousInvocationId + " to " + invocationId;
+    } else if (state.getProperty(USN_PREFIX + invocationId) != null) {
+      watermark = Long.parseLong(state.getProperty(USN_PREFIX + invocationId));
+      if (highestCommittedUSN + 1 < watermark) {
+        restore = "highestCommittedUSN " + highestCommittedUSN + " of " + dsServiceName + " is below the watermark "
+            + watermark;
+        watermark = 0;
+      }
+    }
+    if (restore != null) {
+      log.warn("Restore detected, scanning " + baseDN + " in full: " + restore);
+    }
+
+    final ScanResult result = new ScanResult(invocationId, watermark, highestCommittedUSN, restore != null);
+    DomainPasswordPolicyCache cache = DomainPasswordPolicyCache.getInstance();
+    BulkAccountStatus.StatusSearchListener listener = new BulkAccountStatus.StatusSearchListener(cache.getPolicy(ldc),
+        cache.getPasswordSettingsIndex(ldc), new BulkAccountStatus.AccountStatusHandler() {
+          public void handleAccountStatus(ADAccountStatus status) {
+            AccountStatusSnapshot snapshot = AccountStatusSnapshot.of(status);
+            if (snapshot.getObjectGUID() == null) {
+              return;
+            }
+            if (columns.put(snapshot)) {
+              result.added++;
+            } else {
+              result.updated++;
+            }
+          }
+        });
+    Map<PackedGUID, byte[]> failed = new LinkedHashMap<PackedGUID, byte[]>();
+    if (watermark > 0 && !retry.isEmpty()) {
+      // a full scan reads them anyway
+      List<byte[]> pending = new ArrayList<byte[]>(retry.values());
+      result.retried = pending.size();
+      BulkAccountStatus.readByObjectGUID(ldc, baseDN, Filter.create(filter), pending, pageSize, listener);
+      addFailed(listener, failed);
+    }
+    Filter changedFilter = Filter.create(filter);
+    if (watermark > 0) {
+      changedFilter = Filter.createANDFilter(changedFilter,
+          Filter.createGreaterOrEqualFilter("uSNChanged", String.valueOf(watermark)));
+    }
+    result.pages = BulkAccountStatus.pagedSearch(ldc, listener, baseDN, changedFilter.toString(), pageSize,
+        ADAccountStatus.userAttrs);
+    addFailed(listener, failed);
+    result.failed = listener.failed;
+    if (showDeleted && watermark > 0) {
+      result.pages += searchDeleted(ldc, getNamingContext(rootDSE, baseDN), watermark, failed, result);
+    }
+
+    retry.clear();
+    retry.putAll(failed);
+    state.setProperty(INVOCATION_ID_PREFIX + dsServiceName, invocationId);
+    state.setProperty(USN_PREFIX + invocationId, String.valueOf(highestCommittedUSN + 1));
+    save();
+    result.millis = System.currentTimeMillis() - start;
+    log.info("uSNChanged scan of " + baseDN + " on " + dsServiceName + ": " + result);
+    return result;
+  }
+
+  private static void addFailed(BulkAccountStatus.StatusSearchListener listener, Map<PackedGUID, byte[]> failed) {
+    for (byte[] objectGUID : listener.failedObjectGUIDs) {
+      failed.put(PackedGUID.fromBytes(objectGUID), objectGUID);
+    }
+    listener.failedObjectGUIDs.clear();
+  }
+
+  /**
+   * @param rootDSE
+   * @param baseDN
+   * @return the naming context that holds baseDN, defaultNamingContext if none
+   *         of the namingContexts does
+   * @throws LDAPException
+   */
+  static String getNamingContext(RootDSE rootDSE, String baseDN) throws LDAPException {
+    DN base = new DN(baseDN);
+    DN namingContext = null;
+    String[] namingContexts = rootDSE.getNamingContextDNs();
+    if (namingContexts != null) {
+      for (String candidate : namingContexts) {
+        DN dn = new DN(candidate);
+        // the longest, in case an application partition sits below the domain
+        if (dn.isAncestorOf(base, true) && (namingContext == null || dn.isDescendantOf(namingContext, false))) {
+          namingContext = dn;
+        }
+      }
+    }
+    if (namingContext != null) {
+      return namingContext.toString();
+    }
+    String defaultNamingContext = rootDSE.getAttributeValue("defaultNamingContext");
+    return defaultNamingContext == null ? baseDN : defaultNamingContext;
+  }
+
+  /**
+   * Remove the rows of users deleted since the watermark. Tombstones no longer
+   * live under baseDN, so the whole naming context is searched; only users
+   * that have a row are removed.
+   *
+   * @return pages searched
+   */
+  private int searchDeleted(LDAPConnection ldc, String namingContext, long watermark,
+      final Map<PackedGUID, byte[]> failed, final ScanResult result) throws LDAPException {
+    Filter deletedFilter = Filter.createANDFilter(Filter.createEqualityFilter("isDeleted", "TRUE"),
+        Filter.createEqualityFilter("objectClass", "user"),
+        Filter.createGreaterOrEqualFilter("uSNChanged", String.valueOf(watermark)));
+    SearchResultListener listener = new SearchResultListener() {
+      private static final long serialVersionUID = 1L;
+
+      public void searchEntryReturned(SearchResultEntry searchEntry) {
+        byte[] objectGUID = searchEntry.getAttributeValueBytes("objectGUID");
+        if (objectGUID != null && objectGUID.length == ObjectGUIDTools.GUID_LENGTH) {
+          PackedGUID guid = PackedGUID.fromBytes(objectGUID);
+          failed.remove(guid);
+          int row = columns.getRow(guid);
+          if (row >= 0) {
+            columns.remove(row);
+            result.deleted++;
+          }
+        }
+      }
+
+      public void searchReferenceReturned(SearchResultReference searchReference) {
+      }
+    };
+    // paged like the scan, as a DC returns at most MaxPageSize tombstones per
+    // search
+    return BulkAccountStatus.pagedSearch(ldc, listener, namingContext, deletedFilter.toString(), pageSize,
+        new Control[] { new Control(LDAP_SERVER_SHOW_DELETED_OID, true) }, "objectGUID");
+  }
+
+  private void save() throws LDAPException {
+    if (stateFile == null) {
+      return;
+    }
+    try {
+      File tmp = new File(stateFile.getPath() + ".tmp");
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        store(out);
+      } finally {
+        out.close();
+      }
+      Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new LDAPException(ResultCode.LOCAL_ERROR, "Unable to save the watermarks to " + stateFile, e);
+    }
+  }
+
+  /**
+   * @param invocationId
+   * @return the first uSNChanged not yet seen on the DC, 0 if unknown
+   */
+  public synchronized long getWatermark(String invocationId) {
+    String watermark = state.getProperty(USN_PREFIX + invocationId);
+    return watermark == null ? 0 : Long.parseLong(watermark);
+  }
+
+  /**
+   * @return number of users whose entries failed and are read again by the
+   *         next scan
+   */
+  public synchronized int getPendingRetries() {
+    return retry.size();
+  }
+
+  /**
+   * Forget every watermark so the next scan of each DC is a full one
+   */
+  public synchronized void reset() {
+    state.clear();
+    retry.clear();
+  }
+
+  public AccountStatusColumns getColumns() {
+    return columns;
+  }
+
+  public String getFilter() {
+    return filter;
+  }
+
+  /**
+   * @param filter
+   *                 - the users to keep, BulkAccountStatus.DEFAULT_USER_FILTER
+   *                 by default
+   */
+  public void setFilter(String filter) {
+    this.filter = filter;
+  }
+
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  public void setPageSize(int pageSize) {
+    this.pageSize = pageSize;
+  }
+
+  public boolean isShowDeleted() {
+    return showDeleted;
+  }
+
+  /**
+   * @param showDeleted
+   *                      - also search tombstones to remove deleted users
+   */
+  public void setShowDeleted(boolean showDeleted) {
+    this.showDeleted = showDeleted;
+  }
+
+  /**
+   * The outcome of one scan of one DC
+   */
+  public static class ScanResult {
+    final String invocationId;
+    final long fromUSN;
+    final long highestCommittedUSN;
+    final boolean restoreDetected;
+    int pages;
+    int added;
+    int updated;
+    int deleted;
+    int failed;
+    int retried;
+    long millis;
+
+    ScanResult(String invocationId, long fromUSN, long highestCommittedUSN, boolean restoreDetected) {
+      this.invocationId = invocationId;
+      this.fromUSN = fromUSN;
+      this.highestCommittedUSN = highestCommittedUSN;
+      this.restoreDetected = restoreDetected;
+    }
+
+    public String getInvocationId() {
+      return invocationId;
+    }
+
+    /**
+     * @return the watermark scanned from, 0 for a full scan
+     */
+    public long getFromUSN() {
+      return fromUSN;
+    }
+
+    public long getHighestCommittedUSN() {
+      return highestCommittedUSN;
+    }
+
+    public boolean isFullScan() {
+      return fromUSN == 0;
+    }
+
+    /**
+     * @return true if the DC was restored since the previous scan
+     */
+    public boolean isRestoreDetected() {
+      return restoreDetected;
+    }
+
+    public int getPages() {
+      return pages;
+    }
+
+    public int getAdded() {
+      return added;
+    }
+
+    public int getUpdated() {
+      return updated;
+    }
+
+    public int getDeleted() {
+      return deleted;
+    }
+
+    /**
+     * @return entries that could not be evaluated, kept to be read again
+     */
+    public int getFailed() {
+      return failed;
+    }
+
+    /**
+     * @return users that had failed before and were read again
+     */
+    public int getRetried() {
+      return retried;
+    }
+
+    public long getMillis() {
+      return millis;
+    }
+
+    public String toString() {
+      return (isFullScan() ? "full" : "uSNChanged>=" + fromUSN) + " scan, " + pages + " pages, " + added + " added, "
+          + updated + " updated, " + deleted + " deleted, " + failed + " failed, " + retried + " retried"
+          + (restoreDetected ? ", restore detected" : "") + " in " + millis + " ms";
+    }
+  }
+}
@@ -1,20 +1,36 @@
 package com.willeke.ldap.microsoft;
 
-import java.io.UnsupportedEncodingException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Enumeration;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
-import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import com.novell.ldap.LDAPAttribute;
-import com.novell.ldap.LDAPAttributeSet;
-import com.novell.ldap.LDAPConnection;
-import com.novell.ldap.LDAPEntry;
-import com.novell.ldap.LDAPException;
-import com.novell.ldap.LDAPSearchResults;
+import org.apache.log4j.Logger;
+
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionOptions;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPInterface;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchScope;
 
 /**
  * <p>
@@ -35,6 +51,8 @@ import com.novell.ldap.LDAPSearchResults;
  */
 
 public class Utils {
+  static String thisClass = Utils.class.getName();
+  static Logger log = Logger.getLogger(thisClass);
 
   // some useful constants from lmaccess.h
   static final int UF_ACCOUNTDISABLE = 0x0002;
@@ -44,12 +62,16 @@ public class Utils {
   static final int UF_DONT_EXPIRE_PASSWD = 0x10000;
   static final int UF_PASSWORD_EXPIRED = 0x800000;
 
+  static final int DEFAULT_PORT = 389;
+
   public Utils() {
   }
 
   /**
    * This returns the Max date for the attribute a provided entry within the
-   * servers[]
+   * servers[]. A connection is bound to each server and the search is done by
+   * the getMaxDate over connections; servers that can not be reached or bound
+   * to are logged and skipped.
    * 
    * @param servers
    *                   - String[] of server names (use getDomainControllerList())
@@ -72,38 +94,47 @@ public class Utils {
    */
   public static Date getMaxDate(String[] servers, String[] attributes, String loginDN, String pwd, String user,
       String findBy, String userContext) {
-    Date lastDate = new Date(0);
-    Date thisDate = new Date(0);
-    for (int i = 0; i < servers.length; i++) {
-      String server = servers[i];
-      LDAPConnection ldc = new LDAPConnection();
-      try {
-        ldc.connect(server, LDAPConnection.DEFAULT_PORT);
-        ldc.bind(LDAPConnection.LDAP_V3, loginDN, pwd.getBytes("UTF8"));
-      } catch (NullPointerException nex) {
-        System.err.println("GetMaxDate Error: " + server);
-      } catch (UnsupportedEncodingException e) {
-        System.out.println("Error: " + e.toString());
-      }
-
-      catch (LDAPException ex) {
-        System.out.println("GetMaxDate Error: " + user + " " + ex.toString());
-        // Get Server Error Message if any
-        String serverError = null;
-        if ((serverError = ex.getLDAPErrorMessage()) != null) {
-          System.out.println("GetMaxDate Server: " + serverError);
+    Map<String, LDAPConnection> connections = new LinkedHashMap<String, LDAPConnection>();
+    try {
+      for (String server : servers) {
+        LDAPConnection ldc = new LDAPConnection();
+        try {
+          connect(ldc, server);
+          ldc.bind(loginDN, pwd);
+        } catch (LDAPException ex) {
+          // go for the next server
+          log.warn("GetMaxDate skipping " + server + " for user " + user + ": " + ex.getExceptionMessage());
+          ldc.close();
+          continue;
         }
-        // Exception is thrown, go for next entry
-        System.err.println("GetMaxDate Entry Error on User: " + user);
+        connections.put(server, ldc);
+      }
+      return getMaxDate(connections, attributes, user, findBy, userContext);
+    } finally {
+      for (LDAPConnection ldc : connections.values()) {
+        ldc.close();
       }
-      thisDate = getUserInfo(ldc, user, server, attributes, userContext, findBy);
-      /*
-       * Testing purpopses cal.setTime(thisDate); int days =
-       * com.willeke.utility.DateUtils.getDays(cal);
-       * System.out.println(this.jTFValue.getText() + "'s " +
-       * jCBGetAttr.getSelectedItem() +" " +
-       * formatter.format(thisDate)+ " Days Since " + days);
-       */
+    }
+  }
+
+  /**
+   * getMaxDate over connections or pools the caller already holds, one per
+   * server, so no connection is opened or bound here.
+   * 
+   * @param servers
+   *                      - server name to its LDAPConnection or
+   *                      LDAPConnectionPool
+   * @param attributes
+   * @param user
+   * @param findBy
+   * @param userContext
+   * @return - Date which is the newest date (i.e closest to today)
+   */
+  public static Date getMaxDate(Map<String, ? extends LDAPInterface> servers, String[] attributes, String user,
+      String findBy, String userContext) {
+    Date lastDate = new Date(0);
+    for (Map.Entry<String, ? extends LDAPInterface> server : servers.entrySet()) {
+      Date thisDate = getUserInfo(server.getValue(), user, server.getKey(), attributes, userContext, findBy);
       if (thisDate.after(lastDate)) {
         lastDate = thisDate;
       }
@@ -112,9 +143,255 @@ public class Utils {
   }
 
   /**
+   * Like getMaxDate but every server is queried at the same time, each on its
+   * own connection, so the answer takes as long as the slowest server instead
+   * of the sum of all of them.
+   * 
+   * @param servers
+   *                        - String[] of server names (use
+   *                        getDomainControllerList())
+   * @param attributes
+   *                        - attribute name of the date value to find
+   * @param loginDN
+   * @param pwd
+   * @param user
+   *                        - user shortname of entry to check
+   * @param findBy
+   *                        - Attribute to search for the values of user
+   * @param userContext
+   *                        - context to look for user
+   * @param quorum
+   *                        - return as soon as this many servers answered, 0
+   *                        or less waits for all of them
+   * @param timeoutMillis
+   *                        - overall time to wait, also used as the connect
+   *                        and response timeout of every connection
+   * @return the newest date and which servers answered, failed or were not
+   *         waited for
+   */
+  public static MaxDateResult getMaxDateParallel(String[] servers, final String[] attributes, final String loginDN,
+      final String pwd, final String user, final String findBy, final String userContext, int quorum,
+      final long timeoutMillis) {
+    Map<String, Callable<Date>> queries = new LinkedHashMap<String, Callable<Date>>();
+    for (final String server : servers) {
+      queries.put(server, new Callable<Date>() {
+        public Date call() throws LDAPException {
+          LDAPConnectionOptions options = new LDAPConnectionOptions();
+          options.setConnectTimeoutMillis((int) timeoutMillis);
+          options.setResponseTimeoutMillis(timeoutMillis);
+          LDAPConnection ldc = new LDAPConnection(options);
+          try {
+            connect(ldc, server);
+            ldc.bind(loginDN, pwd);
+            return getMaxDate(ldc, attributes, user, findBy, userContext, timeoutMillis);
+          } finally {
+            ldc.close();
+          }
+        }
+      });
+    }
+    return getMaxDateParallel(queries, quorum, timeoutMillis);
+  }
+
+  /**
+   * getMaxDateParallel over connections or pools the caller already holds, one
+   * per server. With an LDAPConnectionPool per DC repeated lookups pay for no
+   * connect or bind at all.
+   * 
+   * @param servers
+   *                        - server name to its LDAPConnection or
+   *                        LDAPConnectionPool
+   * @param attributes
+   * @param user
+   * @param findBy
+   * @param userContext
+   * @param quorum
+   *                        - return as soon as this many servers answered, 0
+   *                        or less waits for all of them
+   * @param timeoutMillis
+   *                        - overall time to wait, also the response timeout
+   *                        of each search
+   * @return
+   */
+  public static MaxDateResult getMaxDateParallel(Map<String, ? extends LDAPInterface> servers,
+      final String[] attributes, final String user, final String findBy, final String userContext, int quorum,
+      final long timeoutMillis) {
+    Map<String, Callable<Date>> queries = new LinkedHashMap<String, Callable<Date>>();
+    for (final Map.Entry<String, ? extends LDAPInterface> server : servers.entrySet()) {
+      queries.put(server.getKey(), new Callable<Date>() {
+        public Date call() throws LDAPException {
+          return getMaxDate(server.getValue(), attributes, user, findBy, userContext, timeoutMillis);
+        }
+      });
+    }
+    return getMaxDateParallel(queries, quorum, timeoutMillis);
+  }
+
+  /**
+   * Run the query of every server at the same time and collect the newest date
+   * 
+   * @param queries
+   *                        - server name to the query returning its date
+   * @param quorum
+   * @param timeoutMillis
+   * @return
+   */
+  static MaxDateResult getMaxDateParallel(Map<String, Callable<Date>> queries, int quorum, long timeoutMillis) {
+    MaxDateResult result = new MaxDateResult();
+    if (queries.isEmpty()) {
+      return result;
+    }
+    int needed = quorum <= 0 ? queries.size() : Math.min(quorum, queries.size());
+    ExecutorService executor = Executors.newFixedThreadPool(queries.size(), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "getMaxDateParallel");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    CompletionService<Date> completionService = new ExecutorCompletionService<Date>(executor);
+    Map<Future<Date>, String> pending = new LinkedHashMap<Future<Date>, String>();
+    try {
+      for (Map.Entry<String, Callable<Date>> query : queries.entrySet()) {
+        pending.put(completionService.submit(query.getValue()), query.getKey());
+      }
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (!pending.isEmpty() && result.responded.size() < needed) {
+        long wait = deadline - System.currentTimeMillis();
+        Future<Date> done = wait > 0 ? completionService.poll(wait, TimeUnit.MILLISECONDS) : null;
+        if (done == null) {
+          break; // timed out
+        }
+        String server = pending.remove(done);
+        try {
+          Date date = done.get();
+          result.responded.add(server);
+          if (date.after(result.maxDate)) {
+            result.maxDate = date;
+          }
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          result.failed.put(server, cause instanceof LDAPException
+              ? ((LDAPException) cause).getResultCode() + ": " + cause.getMessage()
+              : cause.toString());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      // The connections of servers still running are closed by their tasks
+      executor.shutdownNow();
+    }
+    for (String server : pending.values()) {
+      if (result.responded.size() >= needed) {
+        result.notWaitedFor.add(server);
+      } else {
+        result.failed.put(server, "No answer within " + timeoutMillis + "ms");
+      }
+    }
+    result.quorumReached = result.responded.size() >= needed;
+    return result;
+  }
+
+  /**
+   * Connect to server, which like with the Novell SDK may end with :port
    * 
    * @param ldc
-   *                    - LdapConnection
+   * @param server
+   *                 - host or host:port, DEFAULT_PORT if there is no port
+   * @throws LDAPException
+   */
+  static void connect(LDAPConnection ldc, String server) throws LDAPException {
+    int colon = server.lastIndexOf(':');
+    if (colon > 0 && server.indexOf(':') == colon) {
+      try {
+        ldc.connect(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+        return;
+      } catch (NumberFormatException e) {
+        // not a port, try the whole name
+      }
+    }
+    ldc.connect(server, DEFAULT_PORT);
+  }
+
+  /**
+   * The newest value of attributes of the user. Unlike getUserInfo problems are
+   * thrown.
+   * 
+   * @return the newest date found or Date(0)
+   * @throws LDAPException
+   */
+  static Date getMaxDate(LDAPInterface ldc, String[] attributes, String user, String findBy, String userContext,
+      long timeoutMillis) throws LDAPException {
+    SearchRequest searchRequest = new SearchRequest(userContext, SearchScope.SUB,
+        Filter.createEqualityFilter(findBy, user), attributes);
+    searchRequest.setResponseTimeoutMillis(timeoutMillis);
+    Date maxDate = new Date(0);
+    for (SearchResultEntry entry : ldc.search(searchRequest).getSearchEntries()) {
+      for (Attribute attr : entry.getAttributes()) {
+        for (String value : attr.getValues()) {
+          Date thisDate = com.willeke.utility.DateUtils.ad2GoodDate(Long.parseLong(value));
+          if (thisDate.after(maxDate)) {
+            maxDate = thisDate;
+          }
+        }
+      }
+    }
+    return maxDate;
+  }
+
+  /**
+   * What getMaxDateParallel found
+   */
+  public static class MaxDateResult {
+    Date maxDate = new Date(0);
+    final List<String> responded = Collections.synchronizedList(new ArrayList<String>());
+    final Map<String, String> failed = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+    final List<String> notWaitedFor = Collections.synchronizedList(new ArrayList<String>());
+    boolean quorumReached = false;
+
+    /**
+     * @return the newest date from the servers that responded, Date(0) if none
+     */
+    public Date getMaxDate() {
+      return maxDate;
+    }
+
+    /**
+     * @return servers that answered, fastest first
+     */
+    public List<String> getResponded() {
+      return responded;
+    }
+
+    /**
+     * @return server to the reason it failed or timed out
+     */
+    public Map<String, String> getFailed() {
+      return failed;
+    }
+
+    /**
+     * @return servers still working when the quorum was reached
+     */
+    public List<String> getNotWaitedFor() {
+      return notWaitedFor;
+    }
+
+    public boolean isQuorumReached() {
+      return quorumReached;
+    }
+
+    public String toString() {
+      return "MaxDateResult(maxDate=" + maxDate + ", responded=" + responded + ", failed=" + failed
+          + ", notWaitedFor=" + notWaitedFor + ")";
+    }
+  }
+
+  /**
+   * 
+   * @param ldc
+   *                    - LDAPConnection or LDAPConnectionPool
    * @param userID
    *                    - shortname of user
    * @param server
@@ -127,46 +404,27 @@ public class Utils {
    *                    - Attribute to search by (cmn or uid )
    * @return - Date field
    */
-  public static Date getUserInfo(LDAPConnection ldc, String userID, String server, String[] attrNames,
+  public static Date getUserInfo(LDAPInterface ldc, String userID, String server, String[] attrNames,
       String userContext, String searchBy) {
     TimeZone UTC = TimeZone.getTimeZone("UTC");
     DateFormat formatter = new SimpleDateFormat("yyyy.MM.dd G 'at' hh:mm:ss z");
-    LDAPEntry entry = null;
     Date thisDate = new Date(0);
-    // Calendar xxrightNow = Calendar.getInstance( UTC );
-    // String dn = null;
     try {
-      LDAPSearchResults ldapResults = ldc.search(userContext, LDAPConnection.SCOPE_SUB,
-          "(" + searchBy + "=" + userID + ")", attrNames, false);
-      while (ldapResults.hasMore()) {
-        entry = ldapResults.next();
-        LDAPAttributeSet attributeSet = entry.getAttributeSet();
-        Iterator<?> it = attributeSet.iterator();
-        while (it.hasNext()) {
-          LDAPAttribute attr = (LDAPAttribute) it.next();
-          Enumeration<?> allValues = attr.getStringValues();
-          if (allValues != null) {
-            // System.out.print(space + attributeName+ ": ");
-            while (allValues.hasMoreElements()) {
-              String value = (String) allValues.nextElement();
-              thisDate = com.willeke.utility.DateUtils.ad2GoodDate(Long.parseLong(value));
-              System.out.println(ldc.getHost() + ": " + formatter.format(thisDate));
-            } // while allValues
-          } // if not null
-        } // while more attributes
-      } // while more results
-    } catch (NullPointerException nex) {
-      System.err.println("GetUserInfo NULL Error: ");
-      // continue;
+      SearchResult ldapResults = ldc.search(userContext, SearchScope.SUB, Filter.createEqualityFilter(searchBy, userID),
+          attrNames);
+      for (SearchResultEntry entry : ldapResults.getSearchEntries()) {
+        for (Attribute attr : entry.getAttributes()) {
+          for (String value : attr.getValues()) {
+            thisDate = com.willeke.utility.DateUtils.ad2GoodDate(Long.parseLong(value));
+            if (log.isDebugEnabled()) {
+              log.debug(server + ": " + formatter.format(thisDate));
+            }
+          } // for all values
+        } // for all attributes
+      } // for all results
     } catch (LDAPException e) {
-      System.out.println("GetUserInfo Error User: " + userID + "  " + e.toString());
-      // Get Server Error Message if any
-      String serverError = null;
-      if ((serverError = e.getLDAPErrorMessage()) != null) {
-        System.out.println("GetUserInfo Server: " + serverError);
-      }
-      // Exception is thrown, go for next entry
-      System.err.println("GetUserInfo Entry Error on: " + userID);
+      // go for the next entry
+      log.warn("GetUserInfo Error on " + server + " for user " + userID + ": " + e.getExceptionMessage());
     }
     return thisDate;
   }
@@ -175,45 +433,29 @@ public class Utils {
    * Return the list of DomainControllers from AD
    * 
    * @param ld
-   *                 - An Existing LDAP Connection to a DC
+   *                 - An Existing LDAPConnection or LDAPConnectionPool to a DC
    * @param serverOU
    *                 - OU where DCs are located
    * @return - String[] of all servers dnshostname
+   * @see DomainControllerLocator#findFromConfiguration(LDAPInterface) which
+   *      needs no serverOU
    */
-  public static String[] getDomainControllerList(LDAPConnection ld, String serverOU) { // Get the list of servers DNs
-                                                                                       // and put in a String[]
+  public static String[] getDomainControllerList(LDAPInterface ld, String serverOU) { // Get the list of servers DNs
+                                                                                      // and put in a String[]
     String[] attrNames = { "distinguishedname", "dnshostname" };
-    LDAPEntry entry = null;
-    Vector<String> srvVector = new Vector<String>();
+    List<String> hosts = new ArrayList<String>();
     try {
-      LDAPSearchResults ldapResults = ld.search(serverOU, LDAPConnection.SCOPE_ONE, "(Objectclass=computer)", attrNames,
-          false);
-      while (ldapResults.hasMore()) {
-        entry = ldapResults.next();
-        // System.out.println("DN: " + entry.getDN());
-        // eDirDN = entry.getDN();
-        LDAPAttribute dnsAttr = entry.getAttribute("dnshostname");
-        srvVector.add(dnsAttr.getStringValue());
+      SearchResult ldapResults = ld.search(serverOU, SearchScope.ONE, "(Objectclass=computer)", attrNames);
+      for (SearchResultEntry entry : ldapResults.getSearchEntries()) {
+        String dnsHostName = entry.getAttributeValue("dnshostname");
+        if (dnsHostName != null) {
+          hosts.add(dnsHostName);
+        }
       }
-    } catch (NullPointerException nex) {
-      System.err.println("getServerList null Error");
     } catch (LDAPException e) {
-      System.out.println("getServerList Error: " + e.toString());
-      // Get Server Error Message if any
-      String serverError = null;
-      if ((serverError = e.getLDAPErrorMessage()) != null) {
-        System.out.println("getServerList Server: " + serverError);
-      }
-      // Exception is thrown, go for next entry
-      System.err.println("getServerList Entry Error on");
-    }
-    srvVector.trimToSize();
-    // System.err.println(srvVector.capacity());
-    String[] hosts = new String[srvVector.capacity()];
-    for (int i = 0; i < srvVector.capacity(); i++) {
-      hosts[i] = (String) srvVector.get(i);
+      log.warn("getServerList Error searching " + serverOU + ": " + e.getExceptionMessage());
     }
-    return hosts;
+    return hosts.toArray(new String[hosts.size()]);
   }
 
   public static void main(String[] args) {
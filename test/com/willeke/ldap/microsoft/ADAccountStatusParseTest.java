@@ -0,0 +1,119 @@
+package com.willeke.ldap.microsoft;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.unboundid.util.StaticUtils;
+
+/**
+ * ADAccountStatus.parseLong and decodeGeneralizedTime must give the same
+ * answers as Long.parseLong and StaticUtils.decodeGeneralizedTime, which they
+ * replace on the populateValues path.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class ADAccountStatusParseTest {
+
+  static final String[] LONGS = { "0", "1", "-1", "9", "-9", "10", "123", "-123", "-0", "007", "-007",
+      "130000000000000000", "-36000000000", "-9223372036854775807", "9223372036854775807", "-9223372036854775808",
+      "9223372036854775808", "-9223372036854775809", "92233720368547758070", "99999999999999999999",
+      "000000000000000000000000001", "-000000000000000000000000001", "+1", "+", "-", "", "--1", "1-", "1a", "a1",
+      " 1", "1 ", "1.0", "0x10" };
+
+  static final String[] TIMES = { "20240101120000.0Z", "20240101120000Z", "20240101120000.5Z",
+      "20240101120000.12Z", "20240101120000.123Z", "20240101120000.000Z", "20240229235959.0Z",
+      "19700101000000.0Z", "19691231235959.9Z", "16010101000000.0Z", "99991231235959.0Z", "20000229000000.0Z",
+      "21000228000000.0Z", "20240101120000+0100", "20240101120000-0530", "20240101120000.5+0100",
+      "20240101120000.0-0000", "202401011200Z", "2024010112Z", "20240101120000,5Z", "15821015000000.0Z",
+      "16001231235959.0Z" };
+
+  @Test
+  public void parseLongMatchesLongParseLong() {
+    for (String value : LONGS) {
+      assertSameLong(value);
+    }
+  }
+
+  @Test
+  public void parseLongMatchesLongParseLongOnRandomValues() {
+    Random random = new Random(42);
+    for (int i = 0; i < 100000; i++) {
+      long value = random.nextLong() >> random.nextInt(64);
+      assertSameLong(Long.toString(value));
+    }
+    assertSameLong(Long.toString(Long.MIN_VALUE));
+    assertSameLong(Long.toString(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void decodeGeneralizedTimeMatchesStaticUtils() {
+    for (String value : TIMES) {
+      assertSameTime(value);
+    }
+  }
+
+  @Test
+  public void decodeGeneralizedTimeMatchesStaticUtilsOnRandomValues() {
+    Random random = new Random(42);
+    for (int i = 0; i < 20000; i++) {
+      long millis = -11644473600000L + (long) (random.nextDouble() * 253402300799000.0 + 11644473600000.0);
+      String encoded = StaticUtils.encodeGeneralizedTime(millis);
+      // encodeGeneralizedTime writes yyyyMMddHHmmss.SSSZ; try every precision
+      String seconds = encoded.substring(0, 14);
+      String fraction = encoded.substring(15, 18);
+      assertSameTime(seconds + "Z");
+      assertSameTime(seconds + ".0Z");
+      assertSameTime(seconds + "." + fraction.substring(0, 1) + "Z");
+      assertSameTime(seconds + "." + fraction.substring(0, 2) + "Z");
+      assertSameTime(seconds + "." + fraction + "Z");
+    }
+  }
+
+  static void assertSameLong(String value) {
+    byte[] bytes = StaticUtils.getBytes(value);
+    Long expected;
+    try {
+      expected = Long.valueOf(Long.parseLong(value));
+    } catch (NumberFormatException e) {
+      expected = null;
+    }
+    try {
+      long actual = ADAccountStatus.parseLong(bytes);
+      if (expected == null) {
+        fail("parseLong accepted \"" + value + "\" as " + actual);
+      }
+      assertEquals("\"" + value + "\"", expected.longValue(), actual);
+    } catch (NumberFormatException e) {
+      if (expected != null) {
+        fail("parseLong rejected \"" + value + "\": " + e.getMessage());
+      }
+    }
+  }
+
+  static void assertSameTime(String value) {
+    Date expected;
+    try {
+      expected = StaticUtils.decodeGeneralizedTime(value);
+    } catch (ParseException e) {
+      expected = null;
+    }
+    try {
+      Date actual = ADAccountStatus.decodeGeneralizedTime(value);
+      if (expected == null) {
+        fail("decodeGeneralizedTime accepted \"" + value + "\" as " + actual.getTime());
+      }
+      assertEquals("\"" + value + "\"", expected.getTime(), actual.getTime());
+    } catch (ParseException e) {
+      if (expected != null) {
+        fail("decodeGeneralizedTime rejected \"" + value + "\": " + e.getMessage());
+      }
+    }
+  }
+}
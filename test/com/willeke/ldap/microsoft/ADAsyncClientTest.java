@@ -0,0 +1,119 @@
+package com.willeke.ldap.microsoft;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPConnectionPoolStatistics;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+
+/**
+ * ADAsyncClient against a directory where one user answers slowly: the request
+ * that times out fails on its own and its connection stays in use.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class ADAsyncClientTest {
+
+  static final int SLOW_USER = 1;
+  static final long SLOW_MILLIS = 1000;
+  static final long TIMEOUT_MILLIS = 200;
+
+  TestDirectory directory;
+  LDAPConnectionPool pool;
+  ExecutorService executor;
+  ADAsyncClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new TestDirectory(new InMemoryOperationInterceptor() {
+      public void processSearchRequest(InMemoryInterceptedSearchRequest request) throws LDAPException {
+        if (request.getRequest().getBaseDN().equals(TestDirectory.userDN(SLOW_USER))) {
+          try {
+            Thread.sleep(SLOW_MILLIS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    });
+    for (int n = 0; n < 3; n++) {
+      directory.server.add(TestDirectory.user(n, n, 0));
+    }
+    pool = new LDAPConnectionPool(directory.getConnection(), 2);
+    executor = Executors.newFixedThreadPool(2);
+    client = new ADAsyncClient(pool, 2, executor);
+    client.setResponseTimeoutMillis(TIMEOUT_MILLIS);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+    pool.close();
+    executor.shutdown();
+    executor.awaitTermination(5, TimeUnit.SECONDS);
+    directory.shutDown();
+  }
+
+  @Test
+  public void aTimeoutFailsOnlyItsRequest() throws Exception {
+    try {
+      client.getAccountStatus(TestDirectory.userDN(SLOW_USER)).get();
+      fail("the slow user did not time out");
+    } catch (ExecutionException e) {
+      assertEquals(ResultCode.TIMEOUT, ((LDAPException) e.getCause()).getResultCode());
+    }
+    // the other connection carries on meanwhile
+    assertEquals(0, client.getAccountStatus(TestDirectory.userDN(0)).get().getBadPwdCount());
+    // and once the server is done with the slow search both answer again
+    Thread.sleep(SLOW_MILLIS);
+    for (int i = 0; i < 4; i++) {
+      assertEquals(2, client.getAccountStatus(TestDirectory.userDN(2)).get().getBadPwdCount());
+    }
+    assertEquals(0, pool.getConnectionPoolStatistics().getNumConnectionsClosedDefunct());
+  }
+
+  @Test
+  public void thePolicyIsLoadedUpFront() throws Exception {
+    AccountStatusSnapshot status = AccountStatusSnapshot.of(client.getAccountStatus(TestDirectory.userDN(2)).get());
+    assertEquals(5, status.getLockoutThreshold());
+    assertEquals(1800, status.getLockoutObservationWindow());
+  }
+
+  @Test
+  public void closeDuringAReplacementReleasesTheConnectionOnce() throws Exception {
+    client.close();
+    final List<Runnable> queued = new ArrayList<Runnable>();
+    ADAsyncClient queuing = new ADAsyncClient(pool, 1, new Executor() {
+      public void execute(Runnable task) {
+        queued.add(task);
+      }
+    });
+    ADAsyncClient.Channel channel = queuing.channels[0];
+    channel.failed(channel.ldc, new LDAPException(ResultCode.SERVER_DOWN, "gone"));
+    assertEquals(1, queued.size());
+    queuing.close();
+    assertEquals(1, pool.getCurrentAvailableConnections());
+    queued.get(0).run();
+    assertEquals(2, pool.getCurrentAvailableConnections());
+    LDAPConnectionPoolStatistics statistics = pool.getConnectionPoolStatistics();
+    assertEquals(1, statistics.getNumConnectionsClosedDefunct());
+    assertEquals(0, statistics.getNumConnectionsClosedUnneeded());
+  }
+}
@@ -0,0 +1,65 @@
+package com.willeke.ldap.microsoft;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+
+/**
+ * Pooled password changes against an in-memory directory, which stores
+ * unicodePwd as given.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class ADPasswordChangeTest {
+
+  TestDirectory directory;
+  LDAPConnection ldc;
+  LDAPConnectionPool pool;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new TestDirectory();
+    ldc = directory.getConnection();
+    ldc.add(TestDirectory.user(1, 0, 0));
+    pool = new LDAPConnectionPool(directory.getConnection(), 1, 1);
+  }
+
+  @After
+  public void tearDown() {
+    pool.close();
+    ldc.close();
+    directory.shutDown();
+  }
+
+  @Test
+  public void changePasswordInPool() throws Exception {
+    ADPasswordChange.changePasswordInAD(pool, TestDirectory.userDN(1), "Secret1!");
+    Entry user = ldc.getEntry(TestDirectory.userDN(1));
+    assertArrayEquals(ADPasswordChange.encodeADPassword("Secret1!"), user.getAttributeValueBytes("unicodePwd"));
+    assertEquals("0", user.getAttributeValue("pwdLastSet"));
+    assertEquals(1, pool.getCurrentAvailableConnections());
+  }
+
+  @Test
+  public void runtimeExceptionReleasesTheConnection() throws Exception {
+    try {
+      ADPasswordChange.changePasswordInAD(pool, null, "Secret1!");
+      fail("a null DN should not make a request");
+    } catch (RuntimeException e) {
+      // expected
+    }
+    assertEquals(1, pool.getConnectionPoolStatistics().getNumConnectionsClosedDefunct());
+    ADPasswordChange.changePasswordInAD(pool, TestDirectory.userDN(1), "Secret2!");
+    assertArrayEquals(ADPasswordChange.encodeADPassword("Secret2!"),
+        ldc.getEntry(TestDirectory.userDN(1)).getAttributeValueBytes("unicodePwd"));
+  }
+}
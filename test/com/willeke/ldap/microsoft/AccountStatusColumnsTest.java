@@ -0,0 +1,226 @@
+package com.willeke.ldap.microsoft;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+
+/**
+ * AccountStatusColumns loaded from the directory: the badPwdCount column and
+ * its scan, that removed rows drop out of the scans, the branch-free range
+ * compare, and that every scan agrees with the AccountStatusSnapshot check of
+ * each row at and around the times the rows change state.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class AccountStatusColumnsTest {
+
+  static final int USERS = 200;
+  static final String BOUNDARIES_DN = "OU=Boundaries," + TestDirectory.BASE_DN;
+  static final long ONE_DAY_MILLIS = 86400000L;
+  // of the domain policy of TestDirectory
+  static final long LOCKOUT_DURATION_MILLIS = 30 * 60000L;
+  static final long MAX_PWD_AGE_MILLIS = 42 * ONE_DAY_MILLIS;
+
+  TestDirectory directory;
+  LDAPConnection ldc;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new TestDirectory();
+    ldc = directory.getConnection();
+    long now = System.currentTimeMillis();
+    for (int n = 0; n < USERS; n++) {
+      ldc.add(TestDirectory.user(n, n % 5, n % 5 == 0 ? 0 : now - n * 1000L));
+    }
+  }
+
+  @After
+  public void tearDown() {
+    ldc.close();
+    directory.shutDown();
+  }
+
+  @Test
+  public void badPwdCountComesFromTheDirectory() throws Exception {
+    AccountStatusColumns columns = AccountStatusColumns.load(ldc, TestDirectory.USERS_DN,
+        BulkAccountStatus.DEFAULT_USER_FILTER, 64, USERS);
+    assertEquals(USERS, columns.size());
+    for (int row = 0; row < columns.size(); row++) {
+      int n = Integer.parseInt(columns.getDN(row).substring("CN=User ".length(), columns.getDN(row).indexOf(',')));
+      assertEquals(n % 5, columns.getBadPwdCount(row));
+    }
+  }
+
+  @Test
+  public void badPwdCountAtLeast() throws Exception {
+    AccountStatusColumns columns = AccountStatusColumns.load(ldc, TestDirectory.USERS_DN,
+        BulkAccountStatus.DEFAULT_USER_FILTER, 64, USERS);
+    assertEquals(USERS, columns.badPwdCountAtLeast(0).cardinality());
+    assertEquals(USERS * 4 / 5, columns.badPwdCountAtLeast(1).cardinality());
+    assertEquals(USERS / 5, columns.badPwdCountAtLeast(4).cardinality());
+    assertEquals(0, columns.badPwdCountAtLeast(5).cardinality());
+    BitSet atLeast3 = columns.badPwdCountAtLeast(3);
+    for (int row = 0; row < columns.size(); row++) {
+      assertEquals(columns.getBadPwdCount(row) >= 3, atLeast3.get(row));
+    }
+  }
+
+  @Test
+  public void removedRowsLeaveTheScans() throws Exception {
+    AccountStatusColumns columns = AccountStatusColumns.load(ldc, TestDirectory.USERS_DN,
+        BulkAccountStatus.DEFAULT_USER_FILTER, 64, USERS);
+    int row = columns.getRow(PackedGUID.fromBytes(TestDirectory.guid(4)));
+    assertTrue(columns.badPwdCountAtLeast(4).get(row));
+    columns.remove(row);
+    assertFalse(columns.isLive(row));
+    assertFalse(columns.badPwdCountAtLeast(4).get(row));
+    assertEquals(USERS / 5 - 1, columns.badPwdCountAtLeast(4).cardinality());
+    assertEquals(-1, columns.getRow(PackedGUID.fromBytes(TestDirectory.guid(4))));
+  }
+
+  @Test
+  public void scanRangeMatchesCompare() {
+    long[] interesting = { Long.MIN_VALUE, Long.MIN_VALUE + 1, -1, 0, 1, Long.MAX_VALUE - 1, Long.MAX_VALUE };
+    Random random = new Random(20);
+    long[] column = new long[150];
+    for (int row = 0; row < column.length; row++) {
+      column[row] = row < interesting.length * 2 ? interesting[row % interesting.length] : random.nextLong();
+    }
+    for (long low : interesting) {
+      for (long high : interesting) {
+        if (high >= low) {
+          assertScanRange(column, low, high);
+        }
+      }
+    }
+    for (int i = 0; i < 200; i++) {
+      long low = column[random.nextInt(column.length)];
+      long high = column[random.nextInt(column.length)];
+      assertScanRange(column, Math.min(low, high), Math.max(low, high));
+    }
+  }
+
+  static void assertScanRange(long[] column, long low, long high) {
+    for (int rows : new int[] { 0, 1, 63, 64, 65, column.length }) {
+      BitSet scanned = BitSet.valueOf(AccountStatusColumns.scanRange(column, rows, low, high));
+      for (int row = 0; row < column.length; row++) {
+        assertEquals(low + " <= " + column[row] + " <= " + high + " of " + rows + " rows",
+            row < rows && low <= column[row] && column[row] <= high, scanned.get(row));
+      }
+    }
+  }
+
+  /**
+   * @param n
+   * @param attributes
+   *                     - replace those of TestDirectory.user
+   * @return a user under BOUNDARIES_DN
+   */
+  static Entry boundaryUser(int n, Attribute... attributes) {
+    Entry user = new Entry("CN=User " + n + "," + BOUNDARIES_DN, TestDirectory.user(n, 0, 0).getAttributes());
+    for (Attribute attribute : attributes) {
+      user.setAttribute(attribute);
+    }
+    return user;
+  }
+
+  static Attribute fileTime(String name, long millis) {
+    return new Attribute(name, String.valueOf(TestDirectory.toFileTime(millis)));
+  }
+
+  void addBoundaryUsers(long now) throws LDAPException {
+    ldc.add(new Entry(BOUNDARIES_DN, new Attribute("objectClass", "organizationalUnit")));
+    int n = 1000;
+    // the lockout ends at now, just before now, later and never started
+    ldc.add(boundaryUser(n++, fileTime("lockoutTime", now - LOCKOUT_DURATION_MILLIS)));
+    ldc.add(boundaryUser(n++, fileTime("lockoutTime", now - LOCKOUT_DURATION_MILLIS - 1)));
+    ldc.add(boundaryUser(n++, fileTime("lockoutTime", now - 60000L)));
+    ldc.add(boundaryUser(n++, new Attribute("lockoutTime", "0")));
+    // the password expires at now, just after now, from createTimeStamp and
+    // never
+    ldc.add(boundaryUser(n++, fileTime("pwdLastSet", now - MAX_PWD_AGE_MILLIS)));
+    ldc.add(boundaryUser(n++, fileTime("pwdLastSet", now - MAX_PWD_AGE_MILLIS + 1)));
+    ldc.add(boundaryUser(n++, fileTime("pwdLastSet", now - MAX_PWD_AGE_MILLIS + 14 * ONE_DAY_MILLIS)));
+    ldc.add(boundaryUser(n++, new Attribute("pwdLastSet", "0")));
+    ldc.add(boundaryUser(n++, new Attribute("userAccountControl", "66048")));
+    // the account expires at now, just after now, not set and never
+    ldc.add(boundaryUser(n++, fileTime("accountExpires", now)));
+    ldc.add(boundaryUser(n++, fileTime("accountExpires", now + 1)));
+    ldc.add(boundaryUser(n++, new Attribute("accountExpires", "0")));
+    ldc.add(boundaryUser(n++, new Attribute("accountExpires", "9223372036854775807")));
+    // disabled, with and without a password that never expires
+    ldc.add(boundaryUser(n++, new Attribute("userAccountControl", "514")));
+    ldc.add(boundaryUser(n++, new Attribute("userAccountControl", "66050"),
+        fileTime("lockoutTime", now - 60000L)));
+  }
+
+  @Test
+  public void scansMatchTheSnapshotChecks() throws Exception {
+    long now = System.currentTimeMillis();
+    addBoundaryUsers(now);
+    AccountStatusColumns columns = AccountStatusColumns.load(ldc, BOUNDARIES_DN,
+        BulkAccountStatus.DEFAULT_USER_FILTER, 4, 16);
+    final Map<String, AccountStatusSnapshot> snapshots = new HashMap<String, AccountStatusSnapshot>();
+    BulkAccountStatus.evaluate(ldc, BOUNDARIES_DN, BulkAccountStatus.DEFAULT_USER_FILTER, 4,
+        new BulkAccountStatus.AccountStatusHandler() {
+          public void handleAccountStatus(ADAccountStatus status) {
+            AccountStatusSnapshot snapshot = AccountStatusSnapshot.of(status);
+            snapshots.put(snapshot.getDN(), snapshot);
+          }
+        });
+    assertEquals(15, columns.size());
+    assertEquals(15, snapshots.size());
+    // a removed row that matched every scan before
+    int removed = columns.getRow(PackedGUID.fromBytes(TestDirectory.guid(1014)));
+    assertTrue(columns.disabled().get(removed));
+    assertTrue(columns.lockedOut(now).get(removed));
+    columns.remove(removed);
+
+    long[] times = { now - 1, now, now + 1, now + 14 * ONE_DAY_MILLIS, now + MAX_PWD_AGE_MILLIS + 60000L };
+    for (long time : times) {
+      BitSet lockedOut = columns.lockedOut(time);
+      BitSet passwordExpired = columns.passwordExpired(time);
+      BitSet passwordExpiresWithin = columns.passwordExpiresWithin(time, 14 * ONE_DAY_MILLIS);
+      BitSet accountExpired = columns.accountExpired(time);
+      BitSet disabled = columns.disabled();
+      for (int row = 0; row < columns.size(); row++) {
+        AccountStatusSnapshot snapshot = snapshots.get(columns.getDN(row));
+        boolean live = row != removed;
+        String at = columns.getDN(row) + " at now" + (time >= now ? "+" : "") + (time - now);
+        assertEquals(at, live && snapshot.intruderLockoutCheck(time), lockedOut.get(row));
+        assertEquals(at, live && snapshot.passwordExpirationCheck(time), passwordExpired.get(row));
+        assertEquals(at,
+            live && !snapshot.passwordExpirationCheck(time)
+                && snapshot.passwordExpirationCheck(time + 14 * ONE_DAY_MILLIS),
+            passwordExpiresWithin.get(row));
+        assertEquals(at, live && snapshot.lockedAccountCheck(time), accountExpired.get(row));
+        assertEquals(at, live && snapshot.isAccountDisabled(), disabled.get(row));
+      }
+    }
+    // the boundaries themselves
+    assertEquals(2, columns.lockedOut(now).cardinality());
+    assertFalse(columns.lockedOut(now + 1).get(0));
+    assertTrue(columns.passwordExpired(now).get(4));
+    assertFalse(columns.passwordExpired(now).get(5));
+    assertTrue(columns.passwordExpiresWithin(now, 1).get(5));
+    assertTrue(columns.accountExpired(now).get(9));
+    assertFalse(columns.accountExpired(now).get(10));
+    assertFalse(columns.accountExpired(Long.MAX_VALUE).get(11));
+    assertEquals(1, columns.disabled().cardinality());
+  }
+}
@@ -0,0 +1,176 @@
+package com.willeke.ldap.microsoft;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unboundid.ldap.sdk.LDAPConnection;
+
+/**
+ * AccountStatusFile round trips, the pair id that ties the records to their DN
+ * table, and the sync state saved with the records.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class AccountStatusFileTest {
+
+  static final int USERS = 50;
+
+  TestDirectory directory;
+  LDAPConnection ldc;
+  File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new TestDirectory();
+    ldc = directory.getConnection();
+    long now = System.currentTimeMillis();
+    for (int n = 0; n < USERS; n++) {
+      ldc.add(TestDirectory.user(n, n % 5, n % 5 == 0 ? 0 : now - n * 1000L));
+    }
+    dir = Files.createTempDirectory("status").toFile();
+  }
+
+  @After
+  public void tearDown() {
+    ldc.close();
+    directory.shutDown();
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  AccountStatusColumns load() throws Exception {
+    return AccountStatusColumns.load(ldc, TestDirectory.USERS_DN, BulkAccountStatus.DEFAULT_USER_FILTER, 64, USERS);
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    AccountStatusColumns columns = load();
+    File file = new File(dir, "status");
+    columns.save(file);
+    AccountStatusFile saved = AccountStatusFile.open(file);
+    assertEquals(USERS, saved.size());
+    assertEquals(0, saved.getSyncState().length);
+    AccountStatusColumns restored = saved.toColumns();
+    for (int n = 0; n < USERS; n++) {
+      int row = columns.getRow(PackedGUID.fromBytes(TestDirectory.guid(n)));
+      int restoredRow = restored.getRow(PackedGUID.fromBytes(TestDirectory.guid(n)));
+      assertEquals(columns.getDN(row), restored.getDN(restoredRow));
+      assertEquals(n % 5, restored.getBadPwdCount(restoredRow));
+      assertEquals(columns.getBadPasswordTime(row), restored.getBadPasswordTime(restoredRow));
+      assertEquals(columns.getPwdLastSet(row), restored.getPwdLastSet(restoredRow));
+      assertEquals(columns.getUserAccountControl(row), restored.getUserAccountControl(restoredRow));
+    }
+  }
+
+  @Test
+  public void writerFlushesRecordsPastItsBuffer() throws Exception {
+    int count = AccountStatusFile.Writer.BUFFERED_RECORDS * 2 + 3;
+    byte[] syncState = "after the records".getBytes("UTF-8");
+    File file = new File(dir, "status");
+    AccountStatusFile.Writer writer = new AccountStatusFile.Writer(file, count, syncState);
+    try {
+      for (int n = 0; n < count; n++) {
+        writer.write(n % 7 == 0 ? null : "CN=" + n, n + 1, -n, 0, 0, 0, 0, n * 1000L, 0, 0, 512, n % 5);
+      }
+      writer.commit();
+    } finally {
+      writer.close();
+    }
+    assertFalse(new File(dir, "status.tmp").exists());
+    AccountStatusFile saved = AccountStatusFile.open(file);
+    assertEquals(count, saved.size());
+    assertArrayEquals(syncState, saved.getSyncState());
+    for (int n = 0; n < count; n++) {
+      assertEquals(n % 7 == 0 ? null : "CN=" + n, saved.getDN(n));
+      assertEquals(new PackedGUID(n + 1, -n), saved.getObjectGUID(n));
+    }
+  }
+
+  @Test
+  public void uncommittedWriterLeavesNoFiles() throws Exception {
+    File file = new File(dir, "status");
+    AccountStatusFile.Writer writer = new AccountStatusFile.Writer(file, 2, new byte[0]);
+    writer.write("CN=0", 0, 0, 0, 0, 0, 0, 0, 0, 0, 512, 0);
+    writer.close();
+    assertEquals(0, dir.listFiles().length);
+  }
+
+  @Test
+  public void syncStateIsSavedWithTheRecords() throws Exception {
+    byte[] syncState = "a cookie".getBytes("UTF-8");
+    File file = new File(dir, "status");
+    load().save(file, syncState);
+    AccountStatusFile saved = AccountStatusFile.open(file);
+    assertArrayEquals(syncState, saved.getSyncState());
+    assertEquals(USERS, saved.toColumns().getLiveCount());
+  }
+
+  @Test
+  public void aDNTableFromAnotherSaveIsRefused() throws Exception {
+    AccountStatusColumns columns = load();
+    File first = new File(dir, "first");
+    File second = new File(dir, "second");
+    columns.save(first);
+    columns.save(second);
+    // what a crash between the two renames of a save leaves behind
+    Files.copy(new File(second.getPath() + AccountStatusFile.DN_TABLE_SUFFIX).toPath(),
+        new File(first.getPath() + AccountStatusFile.DN_TABLE_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    try {
+      AccountStatusFile.open(first);
+      fail("opened records with the DN table of another save");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("not saved together"));
+    }
+  }
+
+  @Test
+  public void syncRestoresTheCookieSavedWithTheRecords() throws Exception {
+    byte[] cookie = "cookie at checkpoint".getBytes("UTF-8");
+    byte[] failed = TestDirectory.guid(7);
+    ByteBuffer state = ByteBuffer.allocate(4 + cookie.length + failed.length).order(ByteOrder.LITTLE_ENDIAN);
+    state.putInt(cookie.length).put(cookie).put(failed);
+    File file = new File(dir, "status");
+    load().save(file, state.array());
+    File cookieFile = new File(dir, "cookie");
+    Files.write(cookieFile.toPath(), "a newer cookie".getBytes("UTF-8"));
+
+    AccountStatusSync sync = AccountStatusSync.restore(AccountStatusFile.open(file), cookieFile);
+    assertArrayEquals(cookie, sync.getCookie().getValue());
+    assertEquals(1, sync.getPendingRetries());
+    assertEquals(USERS, sync.getColumns().getLiveCount());
+    assertArrayEquals(cookie, Files.readAllBytes(cookieFile.toPath()));
+
+    File checkpoint = new File(dir, "checkpoint");
+    sync.checkpoint(checkpoint);
+    assertArrayEquals(state.array(), AccountStatusFile.open(checkpoint).getSyncState());
+  }
+
+  @Test
+  public void syncWithoutASavedCookieStartsOver() throws Exception {
+    File file = new File(dir, "status");
+    load().save(file);
+    File cookieFile = new File(dir, "cookie");
+    Files.write(cookieFile.toPath(), "a newer cookie".getBytes("UTF-8"));
+    AccountStatusSync sync = AccountStatusSync.restore(AccountStatusFile.open(file), cookieFile);
+    assertNull(sync.getCookie());
+    assertFalse(cookieFile.exists());
+  }
+}
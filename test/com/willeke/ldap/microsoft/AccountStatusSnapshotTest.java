@@ -0,0 +1,78 @@
+package com.willeke.ldap.microsoft;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unboundid.ldap.sdk.LDAPConnection;
+
+/**
+ * The values an AccountStatusSnapshot copies must be read from the directory
+ * in the first place, by a single lookup and by the paged search.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class AccountStatusSnapshotTest {
+
+  TestDirectory directory;
+  LDAPConnection ldc;
+  long badPasswordTime;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new TestDirectory();
+    ldc = directory.getConnection();
+    badPasswordTime = System.currentTimeMillis() - 60000L;
+    for (int n = 0; n < 5; n++) {
+      ldc.add(TestDirectory.user(n, n, n == 0 ? 0 : badPasswordTime));
+    }
+  }
+
+  @After
+  public void tearDown() {
+    ldc.close();
+    directory.shutDown();
+  }
+
+  @Test
+  public void userAttrsRequestBadPwdCount() {
+    assertTrue(Arrays.asList(ADAccountStatus.userAttrs).contains("badPwdCount"));
+    assertTrue(Arrays.asList(ADAccountStatus.userAttrs).contains("badPasswordTime"));
+  }
+
+  @Test
+  public void snapshotOfALookupHasBadPwdCount() throws Exception {
+    ADAccountStatus status = new ADAccountStatus(ldc, TestDirectory.userDN(3));
+    assertEquals(3, status.getBadPwdCount());
+    AccountStatusSnapshot snapshot = AccountStatusSnapshot.of(status);
+    assertEquals(3, snapshot.getBadPwdCount());
+    assertEquals(badPasswordTime, snapshot.getBadPasswordTime());
+    assertEquals(5, snapshot.getLockoutThreshold());
+    assertEquals(1800, snapshot.getLockoutObservationWindow());
+  }
+
+  @Test
+  public void snapshotsOfAPagedSearchHaveBadPwdCount() throws Exception {
+    final List<AccountStatusSnapshot> snapshots = new ArrayList<AccountStatusSnapshot>();
+    BulkAccountStatus.evaluate(ldc, TestDirectory.USERS_DN, BulkAccountStatus.DEFAULT_USER_FILTER, 2,
+        new BulkAccountStatus.AccountStatusHandler() {
+          public void handleAccountStatus(ADAccountStatus status) {
+            snapshots.add(AccountStatusSnapshot.of(status));
+          }
+        });
+    assertEquals(5, snapshots.size());
+    for (AccountStatusSnapshot snapshot : snapshots) {
+      int n = snapshot.getDN().charAt("CN=User ".length()) - '0';
+      assertEquals(n, snapshot.getBadPwdCount());
+      assertEquals(n == 0 ? AccountStatusSnapshot.NOT_SET : badPasswordTime, snapshot.getBadPasswordTime());
+    }
+  }
+}
@@ -0,0 +1,180 @@
+package com.willeke.ldap.microsoft;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.ReadOnlySearchRequest;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.experimental.ActiveDirectoryDirSyncControl;
+
+/**
+ * The read side of AccountStatusSync: changed users are read again with the
+ * configured filter minus its tombstone branch, in batches of objectGUIDs.
+ * The in-memory server has no DirSync; the interceptor answers a DirSync
+ * search with every user and a new cookie, and can fail the reads.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class AccountStatusSyncTest {
+
+  static final String DIRSYNC = "dirSync";
+
+  TestDirectory directory;
+  LDAPConnection ldc;
+  File dir;
+  volatile boolean failReads = false;
+  volatile int dirSyncs = 0;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new TestDirectory(new InMemoryOperationInterceptor() {
+      public void processSearchRequest(InMemoryInterceptedSearchRequest request) throws LDAPException {
+        ReadOnlySearchRequest searchRequest = request.getRequest();
+        if (searchRequest.hasControl(ActiveDirectoryDirSyncControl.DIRSYNC_OID)) {
+          request.setRequest(searchRequest.duplicate(new Control[0]));
+          request.setProperty(DIRSYNC, Boolean.TRUE);
+        } else if (failReads && searchRequest.getFilter().toString().contains("objectGUID")) {
+          throw new LDAPException(ResultCode.BUSY, "Read failed");
+        }
+      }
+
+      public void processSearchResult(InMemoryInterceptedSearchResult result) {
+        if (result.getProperty(DIRSYNC) != null) {
+          LDAPResult done = result.getResult();
+          Control cookie = new ActiveDirectoryDirSyncControl(false, 0, 0,
+              new ASN1OctetString("cookie " + (++dirSyncs)));
+          result.setResult(new LDAPResult(done.getMessageID(), done.getResultCode(), done.getDiagnosticMessage(),
+              done.getMatchedDN(), done.getReferralURLs(), new Control[] { cookie }));
+        }
+      }
+    });
+    ldc = directory.getConnection();
+    dir = Files.createTempDirectory("sync").toFile();
+    for (int n = 0; n < 10; n++) {
+      ldc.add(TestDirectory.user(n, 0, 0));
+    }
+    ldc.add(new Entry("CN=Printer,CN=Users," + TestDirectory.BASE_DN, new Attribute("objectClass", "top", "printQueue"),
+        new Attribute("objectGUID", TestDirectory.guid(11))));
+  }
+
+  @After
+  public void tearDown() {
+    ldc.close();
+    directory.shutDown();
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void liveFilterDropsTheTombstoneBranch() throws Exception {
+    assertEquals(Filter.create(BulkAccountStatus.DEFAULT_USER_FILTER),
+        AccountStatusSync.liveFilter(AccountStatusSync.DEFAULT_FILTER));
+    assertEquals(Filter.create("(|(objectClass=user)(objectClass=inetOrgPerson))"),
+        AccountStatusSync.liveFilter("(|(objectClass=user)(objectClass=inetOrgPerson)(isDeleted=TRUE))"));
+    assertEquals(Filter.create("(&(objectClass=user)(sAMAccountName=a*))"),
+        AccountStatusSync.liveFilter("(&(objectClass=user)(sAMAccountName=a*))"));
+  }
+
+  @Test
+  public void readByObjectGUIDMatchesTheLiveFilter() throws Exception {
+    final List<String> read = new ArrayList<String>();
+    BulkAccountStatus.StatusSearchListener listener = new BulkAccountStatus.StatusSearchListener(
+        DomainPasswordPolicy.read(ldc), null, new BulkAccountStatus.AccountStatusHandler() {
+          public void handleAccountStatus(ADAccountStatus status) {
+            read.add(status.getPackedObjectGUID().toString());
+          }
+        });
+    List<byte[]> guids = new ArrayList<byte[]>();
+    for (int n = 0; n < 12; n += 2) {
+      guids.add(TestDirectory.guid(n));
+    }
+    guids.add(TestDirectory.guid(11));
+    BulkAccountStatus.readByObjectGUID(ldc, TestDirectory.BASE_DN,
+        AccountStatusSync.liveFilter(AccountStatusSync.DEFAULT_FILTER), guids, 3, listener);
+    // user 10 does not exist and the printer does not match the filter
+    List<String> expected = new ArrayList<String>();
+    for (int n = 0; n < 10; n += 2) {
+      expected.add(PackedGUID.fromBytes(TestDirectory.guid(n)).toString());
+    }
+    Collections.sort(expected);
+    Collections.sort(read);
+    assertEquals(expected, read);
+    assertEquals(0, listener.failed);
+    assertTrue(listener.failedObjectGUIDs.isEmpty());
+  }
+
+  @Test
+  public void syncSavesTheCookie() throws Exception {
+    File cookieFile = new File(dir, "cookie");
+    AccountStatusSync sync = new AccountStatusSync(new AccountStatusColumns(16), cookieFile);
+    AccountStatusSync.SyncResult result = sync.sync(ldc, TestDirectory.BASE_DN);
+    assertTrue(result.isFullSync());
+    assertEquals(10, result.getAdded());
+    assertEquals(10, sync.getColumns().getLiveCount());
+    assertEquals("cookie 1", sync.getCookie().stringValue());
+    assertEquals("cookie 1", new String(Files.readAllBytes(cookieFile.toPath()), "UTF-8"));
+  }
+
+  @Test
+  public void failedRetryReadKeepsTheGUIDs() throws Exception {
+    File cookieFile = new File(dir, "cookie");
+    AccountStatusSync first = new AccountStatusSync(new AccountStatusColumns(16), cookieFile);
+    first.sync(ldc, TestDirectory.BASE_DN);
+    // users 1 and 2 failed before, user 10 is gone since
+    Files.write(new File(dir, "cookie.retry").toPath(), concat(TestDirectory.guid(1), TestDirectory.guid(2),
+        TestDirectory.guid(10)));
+    AccountStatusSync sync = new AccountStatusSync(first.getColumns(), cookieFile);
+    assertEquals(3, sync.getPendingRetries());
+
+    failReads = true;
+    try {
+      sync.sync(ldc, TestDirectory.BASE_DN);
+      fail("the read of the retries should have failed");
+    } catch (LDAPException e) {
+      assertEquals(ResultCode.BUSY, e.getResultCode());
+    }
+    assertEquals(3, sync.getPendingRetries());
+    assertEquals(1, dirSyncs);
+
+    failReads = false;
+    AccountStatusSync.SyncResult result = sync.sync(ldc, TestDirectory.BASE_DN);
+    assertEquals(3, result.getRetried());
+    assertEquals(0, result.getFailed());
+    assertEquals(0, sync.getPendingRetries());
+    assertEquals(0, new File(dir, "cookie.retry").length());
+    assertEquals("cookie 2", sync.getCookie().stringValue());
+  }
+
+  static byte[] concat(byte[]... guids) {
+    byte[] bytes = new byte[guids.length * ObjectGUIDTools.GUID_LENGTH];
+    for (int i = 0; i < guids.length; i++) {
+      System.arraycopy(guids[i], 0, bytes, i * ObjectGUIDTools.GUID_LENGTH, ObjectGUIDTools.GUID_LENGTH);
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,165 @@
+package com.willeke.ldap.microsoft;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+
+/**
+ * The Configuration partition of the in-memory directory has two sites with
+ * a DC of the domain each, a DC of another domain and a server without a
+ * dNSHostName. DNS is a StaticSRVResolver.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class DomainControllerLocatorTest {
+
+  static final String CONFIGURATION_DN = "CN=Configuration," + TestDirectory.BASE_DN;
+  static final String SITES_DN = "CN=Sites," + CONFIGURATION_DN;
+  static final String OTHER_DOMAIN = "DC=other,DC=com";
+
+  TestDirectory directory;
+  LDAPConnection ldc;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new TestDirectory(new Attribute("configurationNamingContext", CONFIGURATION_DN));
+    ldc = directory.getConnection();
+    ldc.add(new Entry(CONFIGURATION_DN, new Attribute("objectClass", "configuration")));
+    ldc.add(new Entry(SITES_DN, new Attribute("objectClass", "sitesContainer")));
+    addServer("Default-First-Site-Name", "DC2", "dc2.example.com", "msDS-HasDomainNCs", TestDirectory.BASE_DN);
+    addServer("Branch", "DC1", "dc1.example.com", "msDS-HasDomainNCs", TestDirectory.BASE_DN);
+    // before Windows 2003 only hasMasterNCs
+    addServer("Branch", "DC3", "dc3.other.com", "hasMasterNCs", OTHER_DOMAIN);
+    addServer("Branch", "DC4", null, "msDS-HasDomainNCs", TestDirectory.BASE_DN);
+  }
+
+  @After
+  public void tearDown() {
+    ldc.close();
+    directory.shutDown();
+  }
+
+  void addServer(String site, String server, String dnsHostName, String ncAttribute, String domainNC)
+      throws LDAPException {
+    String siteDN = "CN=" + site + "," + SITES_DN;
+    String serversDN = "CN=Servers," + siteDN;
+    if (ldc.getEntry(siteDN) == null) {
+      ldc.add(new Entry(siteDN, new Attribute("objectClass", "site")));
+      ldc.add(new Entry(serversDN, new Attribute("objectClass", "serversContainer")));
+    }
+    String serverDN = "CN=" + server + "," + serversDN;
+    Entry entry = new Entry(serverDN, new Attribute("objectClass", "server"));
+    if (dnsHostName != null) {
+      entry.addAttribute("dNSHostName", dnsHostName);
+    }
+    ldc.add(entry);
+    ldc.add(new Entry("CN=NTDS Settings," + serverDN, new Attribute("objectClass", "nTDSDSA"),
+        new Attribute(ncAttribute, domainNC, CONFIGURATION_DN)));
+  }
+
+  static List<String> hostNames(List<DomainControllerLocator.DomainController> dcs) {
+    List<String> hostNames = new ArrayList<String>();
+    for (DomainControllerLocator.DomainController dc : dcs) {
+      hostNames.add(dc.getHostName());
+    }
+    return hostNames;
+  }
+
+  @Test
+  public void findFromConfiguration() throws Exception {
+    List<DomainControllerLocator.DomainController> dcs = DomainControllerLocator.findFromConfiguration(ldc);
+    assertEquals(2, dcs.size());
+    assertEquals("dc1.example.com", dcs.get(0).getHostName());
+    assertEquals("Branch", dcs.get(0).getSiteName());
+    assertEquals(DomainControllerLocator.DEFAULT_PORT, dcs.get(0).getPort());
+    assertEquals("dc2.example.com", dcs.get(1).getHostName());
+    assertEquals("Default-First-Site-Name", dcs.get(1).getSiteName());
+  }
+
+  @Test
+  public void findFromConfigurationOfTheForest() throws Exception {
+    assertEquals(Arrays.asList("dc1.example.com", "dc3.other.com", "dc2.example.com"),
+        hostNames(DomainControllerLocator.findFromConfiguration(ldc, null)));
+    assertEquals(Arrays.asList("dc3.other.com"),
+        hostNames(DomainControllerLocator.findFromConfiguration(ldc, OTHER_DOMAIN)));
+  }
+
+  @Test
+  public void findFromConfigurationWithoutConfigurationNamingContext() throws Exception {
+    TestDirectory noConfiguration = new TestDirectory();
+    LDAPConnection connection = noConfiguration.getConnection();
+    try {
+      DomainControllerLocator.findFromConfiguration(connection);
+      fail("there is no configurationNamingContext");
+    } catch (LDAPException e) {
+      assertEquals(ResultCode.NO_SUCH_ATTRIBUTE, e.getResultCode());
+    } finally {
+      connection.close();
+      noConfiguration.shutDown();
+    }
+  }
+
+  @Test
+  public void findFromDNS() throws Exception {
+    DomainControllerLocator.StaticSRVResolver resolver = new DomainControllerLocator.StaticSRVResolver()
+        .add("_ldap._tcp.dc._msdcs.example.com", new DomainControllerLocator.SRVRecord(10, 100, 389, "dc4"))
+        .add("_ldap._tcp.dc._msdcs.example.com", new DomainControllerLocator.SRVRecord(0, 50, 389, "dc2"))
+        .add("_ldap._tcp.dc._msdcs.example.com", new DomainControllerLocator.SRVRecord(0, 100, 3268, "dc1"))
+        .add("_LDAP._tcp.dc._msdcs.EXAMPLE.com", new DomainControllerLocator.SRVRecord(5, 0, 389, "dc3"))
+        .add("_ldap._tcp.Branch._sites.dc._msdcs.example.com",
+            new DomainControllerLocator.SRVRecord(0, 100, 389, "dc1"));
+    List<DomainControllerLocator.DomainController> dcs = DomainControllerLocator.findFromDNS("example.com", null,
+        resolver);
+    // lowest priority first, then highest weight
+    assertEquals(Arrays.asList("dc1", "dc2", "dc3", "dc4"), hostNames(dcs));
+    assertEquals(3268, dcs.get(0).getPort());
+    assertEquals(100, dcs.get(0).getWeight());
+    assertEquals(10, dcs.get(3).getPriority());
+    assertNull(dcs.get(0).getSiteName());
+    assertEquals("dc1:3268", dcs.get(0).getServerKey());
+
+    dcs = DomainControllerLocator.findFromDNS("example.com", "Branch", resolver);
+    assertEquals(Arrays.asList("dc1"), hostNames(dcs));
+    assertEquals("Branch", dcs.get(0).getSiteName());
+    assertTrue(DomainControllerLocator.findFromDNS("other.com", null, resolver).isEmpty());
+  }
+
+  @Test
+  public void parseSRVRecord() throws Exception {
+    DomainControllerLocator.SRVRecord record = DomainControllerLocator.SRVRecord.parse(" 0 100  389 dc1.example.com. ");
+    assertEquals(0, record.priority);
+    assertEquals(100, record.weight);
+    assertEquals(389, record.port);
+    assertEquals("dc1.example.com", record.target);
+    assertEquals("0 100 389 dc1.example.com", record.toString());
+    assertEquals("dc2", DomainControllerLocator.SRVRecord.parse("1 2 3 dc2").target);
+  }
+
+  @Test
+  public void parseNotAnSRVRecord() {
+    for (String value : new String[] { "0 100 389", "0 100 389 dc1 extra", "0 x 389 dc1", "" }) {
+      try {
+        DomainControllerLocator.SRVRecord.parse(value);
+        fail("Not an SRV record: " + value);
+      } catch (LDAPException e) {
+        assertEquals(ResultCode.DECODING_ERROR, e.getResultCode());
+      }
+    }
+  }
+}
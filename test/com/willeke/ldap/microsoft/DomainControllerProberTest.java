@@ -0,0 +1,67 @@
+package com.willeke.ldap.microsoft;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unboundid.ldap.sdk.LDAPConnection;
+
+/**
+ * Probes an in-memory directory and a port nothing listens on.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class DomainControllerProberTest {
+
+  static final int PROBE_TIMEOUT_MILLIS = 2000;
+
+  TestDirectory directory;
+  DomainControllerLocator.DomainController up;
+  DomainControllerLocator.DomainController down;
+  DomainControllerProber prober;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new TestDirectory();
+    up = new DomainControllerLocator.DomainController("localhost", directory.server.getListenPort(), null, 0, 0);
+    down = new DomainControllerLocator.DomainController("localhost", 1, null, 0, 0);
+    prober = new DomainControllerProber(Arrays.asList(down, up), null, null, PROBE_TIMEOUT_MILLIS);
+  }
+
+  @After
+  public void tearDown() {
+    prober.stop();
+    directory.shutDown();
+  }
+
+  @Test
+  public void probeAll() {
+    prober.probeAll();
+    List<DomainControllerProber.ProbeResult> results = prober.getResults();
+    assertFalse(results.get(0).isHealthy());
+    assertTrue(results.get(0).getLastError() != null);
+    assertTrue(results.get(1).isHealthy());
+    assertEquals(Arrays.asList(up), prober.getRankedServers(0));
+  }
+
+  @Test
+  public void serverSetUsesTheProbeTimeouts() throws Exception {
+    prober.probeAll();
+    LDAPConnection ldc = prober.getServerSet(0).getConnection();
+    try {
+      assertEquals(directory.server.getListenPort(), ldc.getConnectedPort());
+      assertEquals(PROBE_TIMEOUT_MILLIS, ldc.getConnectionOptions().getConnectTimeoutMillis());
+      assertEquals(PROBE_TIMEOUT_MILLIS, ldc.getConnectionOptions().getResponseTimeoutMillis());
+    } finally {
+      ldc.close();
+    }
+  }
+}
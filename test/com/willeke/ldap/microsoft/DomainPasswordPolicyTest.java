@@ -0,0 +1,74 @@
+package com.willeke.ldap.microsoft;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+
+/**
+ * AD durations are negative 100-nanosecond intervals; the policy holds them as
+ * positive seconds.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class DomainPasswordPolicyTest {
+
+  TestDirectory directory;
+  LDAPConnection ldc;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new TestDirectory();
+    ldc = directory.getConnection();
+  }
+
+  @After
+  public void tearDown() {
+    ldc.close();
+    directory.shutDown();
+  }
+
+  @Test
+  public void nanosToIntSeconds() {
+    assertEquals(0, DomainPasswordPolicy.nanosToIntSeconds(0));
+    assertEquals(1800, DomainPasswordPolicy.nanosToIntSeconds(30 * TestDirectory.ONE_MINUTE));
+    assertEquals(1800, DomainPasswordPolicy.nanosToIntSeconds(-30 * TestDirectory.ONE_MINUTE));
+    assertEquals(42 * 86400, DomainPasswordPolicy.nanosToIntSeconds(42 * 24 * 60 * TestDirectory.ONE_MINUTE));
+    // 300 days is more milliseconds than an int holds
+    assertEquals(300 * 86400, DomainPasswordPolicy.nanosToIntSeconds(300 * 24 * 60 * TestDirectory.ONE_MINUTE));
+  }
+
+  @Test
+  public void neverIsIntegerMaxValue() {
+    assertEquals(Integer.MAX_VALUE, DomainPasswordPolicy.nanosToIntSeconds(Long.MIN_VALUE));
+    assertEquals(Integer.MAX_VALUE, DomainPasswordPolicy.nanosToIntSeconds(Long.MIN_VALUE + 1));
+    assertEquals(Integer.MAX_VALUE, DomainPasswordPolicy.nanosToIntSeconds(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void read() throws Exception {
+    DomainPasswordPolicy policy = DomainPasswordPolicy.read(ldc);
+    assertEquals(1800, policy.getLockoutDuration());
+    assertEquals(5, policy.getLockoutThreshold());
+    assertEquals(1800, policy.getLockOutObservationWindow());
+    assertEquals(42 * 86400, policy.getMaxPwdAge());
+    assertEquals(86400, policy.getMinPwdAge());
+  }
+
+  @Test
+  public void readNever() throws Exception {
+    ldc.modify(TestDirectory.BASE_DN,
+        new Modification(ModificationType.REPLACE, "maxPwdAge", String.valueOf(Long.MIN_VALUE)),
+        new Modification(ModificationType.REPLACE, "lockoutDuration", String.valueOf(Long.MIN_VALUE)));
+    DomainPasswordPolicy policy = DomainPasswordPolicy.read(ldc);
+    assertEquals(Integer.MAX_VALUE, policy.getMaxPwdAge());
+    assertEquals(Integer.MAX_VALUE, policy.getLockoutDuration());
+    assertEquals(1800, policy.getLockOutObservationWindow());
+  }
+}
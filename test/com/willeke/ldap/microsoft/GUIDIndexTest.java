@@ -0,0 +1,189 @@
+package com.willeke.ldap.microsoft;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * GUIDIndex put/get/remove, probe sequences that wrap past the last slot,
+ * growth, and the DN table chunk allocator.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class GUIDIndexTest {
+
+  @Test
+  public void putGetRemove() {
+    GUIDIndex index = new GUIDIndex(16);
+    PackedGUID guid = new PackedGUID(1, 2);
+    assertEquals(GUIDIndex.NO_VALUE, index.put(guid, 7));
+    assertEquals(7, index.get(guid));
+    assertEquals(7, index.put(guid, 8));
+    assertEquals(8, index.get(guid));
+    assertEquals(1, index.size());
+    assertEquals(8, index.remove(guid));
+    assertEquals(GUIDIndex.NO_VALUE, index.get(guid));
+    assertEquals(GUIDIndex.NO_VALUE, index.remove(guid));
+    assertEquals(0, index.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void nilGUIDIsRejected() {
+    new GUIDIndex(16).put(0, 0, 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeValueIsRejected() {
+    new GUIDIndex(16).put(1, 1, -2);
+  }
+
+  @Test
+  public void removeKeepsProbeSequencesThatWrapAround() {
+    GUIDIndex index = new GUIDIndex(8);
+    long last = index.capacity() - 1;
+    // four GUIDs that all want the last slot fill it and wrap to 0, 1 and 2,
+    // one that wants slot 0 is pushed to 3
+    List<PackedGUID> wrapping = guidsWithHome(index.capacity(), last, 4, 1);
+    PackedGUID atZero = guidsWithHome(index.capacity(), 0, 1, 2).get(0);
+    for (int i = 0; i < wrapping.size(); i++) {
+      index.put(wrapping.get(i), i);
+    }
+    index.put(atZero, 100);
+    assertEquals(5, index.size());
+    assertEquals(16, index.capacity());
+
+    // removing the GUID in the last slot must shift the wrapped ones back
+    assertEquals(0, index.remove(wrapping.get(0)));
+    for (int i = 1; i < wrapping.size(); i++) {
+      assertEquals(i, index.get(wrapping.get(i)));
+    }
+    assertEquals(100, index.get(atZero));
+
+    // and removing one in the middle of the wrapped run keeps the rest
+    assertEquals(2, index.remove(wrapping.get(2)));
+    assertEquals(1, index.get(wrapping.get(1)));
+    assertEquals(3, index.get(wrapping.get(3)));
+    assertEquals(100, index.get(atZero));
+    assertEquals(3, index.size());
+
+    final int[] visited = { 0 };
+    index.forEach(new GUIDIndex.GUIDVisitor() {
+      public void visit(long high, long low, long value) {
+        visited[0]++;
+      }
+    });
+    assertEquals(3, visited[0]);
+  }
+
+  @Test
+  public void growsPastTheExpectedSize() {
+    GUIDIndex index = new GUIDIndex(16);
+    long initialCapacity = index.capacity();
+    Random random = new Random(42);
+    int count = 100000;
+    PackedGUID[] guids = new PackedGUID[count];
+    for (int i = 0; i < count; i++) {
+      guids[i] = new PackedGUID(random.nextLong() | 1, random.nextLong());
+      index.put(guids[i], i);
+    }
+    assertEquals(count, index.size());
+    assertTrue(index.capacity() > initialCapacity);
+    assertTrue(index.size() <= index.capacity() * GUIDIndex.LOAD_FACTOR);
+    for (int i = 0; i < count; i++) {
+      assertEquals(i, index.get(guids[i]));
+    }
+    for (int i = 0; i < count; i += 2) {
+      assertEquals(i, index.remove(guids[i]));
+    }
+    assertEquals(count / 2, index.size());
+    for (int i = 0; i < count; i++) {
+      assertEquals(i % 2 == 0 ? GUIDIndex.NO_VALUE : i, index.get(guids[i]));
+    }
+  }
+
+  @Test
+  public void growsWhileHoldingDNs() {
+    GUIDIndex index = new GUIDIndex(16);
+    for (int i = 1; i <= 1000; i++) {
+      index.putDN(new PackedGUID(i, -i), "CN=User " + i + ",CN=Users,DC=example,DC=com");
+    }
+    for (int i = 1; i <= 1000; i++) {
+      assertEquals("CN=User " + i + ",CN=Users,DC=example,DC=com", index.getDN(new PackedGUID(i, -i)));
+    }
+    assertNull(index.getDN(new PackedGUID(1001, -1001)));
+    assertFalse(index.contains(new PackedGUID(1001, -1001)));
+  }
+
+  @Test
+  public void dnTableStartsANewChunkWhenADNDoesNotFit() {
+    GUIDIndex.DNTable table = new GUIDIndex.DNTable(32);
+    // 4 byte length + 20 bytes, then 8 bytes left in the chunk
+    long first = table.add("CN=aaaaaaaaaaaaaaaaa");
+    assertEquals(0, first);
+    // 4 + 4 bytes fills the chunk exactly
+    long second = table.add("CN=b");
+    assertEquals(24, second);
+    assertEquals(32, table.getAllocatedBytes());
+    // does not fit in what is left, so it starts the second chunk
+    long third = table.add("CN=c");
+    assertEquals(32, third);
+    assertEquals(64, table.getAllocatedBytes());
+    // the largest DN a chunk can hold
+    long fourth = table.add("CN=ddddddddddddddddddddddddd");
+    assertEquals(64, fourth);
+    assertEquals("CN=aaaaaaaaaaaaaaaaa", table.get(first));
+    assertEquals("CN=b", table.get(second));
+    assertEquals("CN=c", table.get(third));
+    assertEquals("CN=ddddddddddddddddddddddddd", table.get(fourth));
+  }
+
+  @Test
+  public void dnTableKeepsUTF8() {
+    GUIDIndex.DNTable table = new GUIDIndex.DNTable(64);
+    String dn = "CN=Jürgen Müller,OU=東京,DC=example,DC=com";
+    long offset = table.add(dn);
+    assertEquals(dn, table.get(offset));
+  }
+
+  @Test
+  public void dnTableRejectsADNLargerThanAChunk() {
+    GUIDIndex.DNTable table = new GUIDIndex.DNTable(32);
+    try {
+      table.add("CN=eeeeeeeeeeeeeeeeeeeeeeeeee");
+      fail("a DN of 29 bytes cannot fit a chunk of 32 with its length");
+    } catch (IllegalArgumentException e) {
+      assertEquals(0, table.getAllocatedBytes());
+    }
+  }
+
+  /**
+   * @param capacity
+   *                   - a power of 2
+   * @param home
+   *                   - slot the GUIDs must hash to
+   * @param count
+   * @param seed
+   * @return count GUIDs whose home slot is home
+   */
+  static List<PackedGUID> guidsWithHome(long capacity, long home, int count, long seed) {
+    Random random = new Random(seed);
+    List<PackedGUID> guids = new ArrayList<PackedGUID>();
+    while (guids.size() < count) {
+      long high = random.nextLong();
+      long low = random.nextLong();
+      if ((high != 0 || low != 0) && (PackedGUID.hash(high, low) & (capacity - 1)) == home) {
+        guids.add(new PackedGUID(high, low));
+      }
+    }
+    return guids;
+  }
+}
@@ -0,0 +1,139 @@
+package com.willeke.ldap.microsoft;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * NearLockoutDetector alerts once per run of failures and counts accounts that
+ * failed again for bursts. Times are epoch milliseconds, the policy locks out
+ * at 5 failures within 30 minutes.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class NearLockoutDetectorTest {
+
+  static final int THRESHOLD = 5;
+  static final int WINDOW = 1800;
+  static final long START = 1700000000000L;
+  static final long ONE_MINUTE = 60000L;
+
+  final List<Integer> nearLockouts = new ArrayList<Integer>();
+  final List<Integer> bursts = new ArrayList<Integer>();
+  NearLockoutDetector detector;
+
+  @Before
+  public void setUp() {
+    detector = new NearLockoutDetector(100, 4, new NearLockoutDetector.Listener() {
+      public void nearLockout(PackedGUID objectGUID, String dn, int badPwdCount, int lockoutThreshold,
+          long badPasswordTime) {
+        nearLockouts.add(badPwdCount);
+      }
+
+      public void burst(int accounts, long windowMillis, long now) {
+        bursts.add(accounts);
+      }
+    });
+  }
+
+  void observe(int n, int badPwdCount, long badPasswordTime) {
+    detector.observe(n, n, "CN=" + n, badPwdCount, badPasswordTime, THRESHOLD, WINDOW, badPasswordTime);
+  }
+
+  @Test
+  public void effectiveCount() {
+    assertEquals(3, NearLockoutDetector.effectiveCount(3, START, WINDOW, START + 29 * ONE_MINUTE));
+    assertEquals(0, NearLockoutDetector.effectiveCount(3, START, WINDOW, START + 30 * ONE_MINUTE));
+    assertEquals(0, NearLockoutDetector.effectiveCount(0, START, WINDOW, START));
+    assertEquals(0, NearLockoutDetector.effectiveCount(3, NearLockoutDetector.NOT_SET, WINDOW, START));
+    // a window of 0 never resets the count
+    assertEquals(3, NearLockoutDetector.effectiveCount(3, START, 0, START + 1000 * ONE_MINUTE));
+  }
+
+  @Test
+  public void alertsOnceUntilTheCountDrops() {
+    observe(1, 3, START);
+    assertEquals(0, nearLockouts.size());
+    observe(1, 4, START + ONE_MINUTE);
+    assertEquals(1, nearLockouts.size());
+    assertEquals(4, (int) nearLockouts.get(0));
+    // seen again, and locked out
+    observe(1, 4, START + ONE_MINUTE);
+    observe(1, 5, START + 2 * ONE_MINUTE);
+    assertEquals(1, nearLockouts.size());
+
+    // the window passed without failures
+    detector.observe(1, 1, null, 5, START + 2 * ONE_MINUTE, THRESHOLD, WINDOW, START + 40 * ONE_MINUTE);
+    observe(1, 4, START + 50 * ONE_MINUTE);
+    assertEquals(2, nearLockouts.size());
+  }
+
+  @Test
+  public void reArmsWhenALogonResetTheCount() {
+    observe(1, 4, START);
+    assertEquals(1, nearLockouts.size());
+    // a logon reset the count without changing badPasswordTime, the scans
+    // next see the account after four newer failures
+    observe(1, 4, START + 5 * ONE_MINUTE);
+    assertEquals(2, nearLockouts.size());
+    observe(1, 3, START + 6 * ONE_MINUTE);
+    observe(1, 4, START + 7 * ONE_MINUTE);
+    assertEquals(3, nearLockouts.size());
+  }
+
+  @Test
+  public void reArmsWhenTheWindowResetTheCount() {
+    detector.setMargin(3);
+    observe(1, 2, START);
+    assertEquals(1, nearLockouts.size());
+    observe(1, 3, START + ONE_MINUTE);
+    assertEquals(1, nearLockouts.size());
+    // AD reset the count at the first failure after the window
+    observe(1, 4, START + 32 * ONE_MINUTE);
+    assertEquals(2, nearLockouts.size());
+  }
+
+  @Test
+  public void burstOfAccountsClimbing() {
+    detector.setBurst(3, ONE_MINUTE);
+    observe(1, 1, START);
+    observe(2, 1, START + 1000);
+    assertEquals(0, bursts.size());
+    // the same badPasswordTime is not a climb
+    observe(2, 1, START + 1000);
+    assertEquals(0, bursts.size());
+    observe(3, 1, START + 2000);
+    assertEquals(1, bursts.size());
+    assertEquals(3, (int) bursts.get(0));
+    // at most one burst per window
+    observe(4, 1, START + 3000);
+    observe(5, 1, START + 4000);
+    observe(6, 1, START + 5000);
+    assertEquals(1, bursts.size());
+
+    // a full ring, but spread over more than the window
+    observe(1, 2, START + 2 * ONE_MINUTE);
+    observe(2, 2, START + 3 * ONE_MINUTE);
+    observe(3, 2, START + 4 * ONE_MINUTE);
+    assertEquals(1, bursts.size());
+    observe(4, 2, START + 4 * ONE_MINUTE + 1000);
+    observe(5, 2, START + 4 * ONE_MINUTE + 2000);
+    assertEquals(2, bursts.size());
+  }
+
+  @Test
+  public void oldFailuresDoNotClimb() {
+    detector.setBurst(2, ONE_MINUTE);
+    long now = START + 10 * ONE_MINUTE;
+    detector.observe(1, 1, null, 1, START, THRESHOLD, WINDOW, now);
+    detector.observe(2, 2, null, 1, START, THRESHOLD, WINDOW, now);
+    assertEquals(0, bursts.size());
+    assertEquals(2, detector.size());
+    assertEquals(1, detector.getBadPwdCount(new PackedGUID(2, 2)));
+  }
+}
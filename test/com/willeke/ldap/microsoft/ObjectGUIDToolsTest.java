@@ -0,0 +1,170 @@
+package com.willeke.ldap.microsoft;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The encoders and parsers against the StringBuilder and prefixZeros
+ * conversions ObjectGUIDTools used to have, kept here as legacy*.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class ObjectGUIDToolsTest {
+
+  static final String DASHED = "ac642e6e-6ab5-425a-bcc9-9f5067d46e3f";
+  static final String BYTES = "\\6e\\2e\\64\\ac\\b5\\6a\\5a\\42\\bc\\c9\\9f\\50\\67\\d4\\6e\\3f";
+
+  /**
+   * @return random GUIDs and GUIDs of 0x00, 0x0f, 0x80 and 0xff bytes
+   */
+  static List<byte[]> guids() {
+    List<byte[]> guids = new ArrayList<byte[]>();
+    for (int b : new int[] { 0x00, 0x0f, 0x80, 0xff }) {
+      byte[] guid = new byte[ObjectGUIDTools.GUID_LENGTH];
+      Arrays.fill(guid, (byte) b);
+      guids.add(guid);
+    }
+    Random random = new Random(42);
+    for (int i = 0; i < 1000; i++) {
+      byte[] guid = new byte[ObjectGUIDTools.GUID_LENGTH];
+      random.nextBytes(guid);
+      guids.add(guid);
+    }
+    return guids;
+  }
+
+  @Test
+  public void example() {
+    byte[] guid = ObjectGUIDTools.parseByteString(BYTES);
+    assertEquals(DASHED, ObjectGUIDTools.convertToDashedString(guid));
+    assertEquals("<GUID=" + DASHED + ">", ObjectGUIDTools.convertToBindingString(guid));
+    assertEquals(BYTES, ObjectGUIDTools.convertToByteString(guid));
+  }
+
+  @Test
+  public void convertMatchesLegacy() {
+    for (byte[] guid : guids()) {
+      assertEquals(legacyDashedString(guid), ObjectGUIDTools.convertToDashedString(guid));
+      assertEquals(legacyBindingString(guid), ObjectGUIDTools.convertToBindingString(guid));
+      assertEquals(legacyByteString(guid), ObjectGUIDTools.convertToByteString(guid));
+    }
+  }
+
+  @Test
+  public void encodersMatchLegacy() {
+    char[] chars = new char[2 + ObjectGUIDTools.BINDING_STRING_LENGTH];
+    StringBuilder sb = new StringBuilder();
+    for (byte[] guid : guids()) {
+      assertEquals(2 + ObjectGUIDTools.DASHED_STRING_LENGTH, ObjectGUIDTools.encodeDashedString(guid, chars, 2));
+      assertEquals(legacyDashedString(guid), new String(chars, 2, ObjectGUIDTools.DASHED_STRING_LENGTH));
+      assertEquals(2 + ObjectGUIDTools.BINDING_STRING_LENGTH, ObjectGUIDTools.encodeBindingString(guid, chars, 2));
+      assertEquals(legacyBindingString(guid), new String(chars, 2, ObjectGUIDTools.BINDING_STRING_LENGTH));
+      assertEquals(2 + ObjectGUIDTools.BYTE_STRING_LENGTH,
+          ObjectGUIDTools.encodeByteString(guid, new char[2 + ObjectGUIDTools.BYTE_STRING_LENGTH], 2));
+
+      sb.setLength(0);
+      sb.append('x');
+      ObjectGUIDTools.appendDashedString(guid, sb);
+      ObjectGUIDTools.appendBindingString(guid, sb);
+      ObjectGUIDTools.appendByteString(guid, sb);
+      assertEquals("x" + legacyDashedString(guid) + legacyBindingString(guid) + legacyByteString(guid),
+          sb.toString());
+
+      ByteBuffer buffer = ByteBuffer.allocate(ObjectGUIDTools.DASHED_STRING_LENGTH
+          + ObjectGUIDTools.BYTE_STRING_LENGTH);
+      ObjectGUIDTools.putDashedString(guid, buffer);
+      ObjectGUIDTools.putByteString(guid, buffer);
+      assertEquals(0, buffer.remaining());
+      assertEquals(legacyDashedString(guid) + legacyByteString(guid),
+          new String(buffer.array(), StandardCharsets.US_ASCII));
+    }
+  }
+
+  @Test
+  public void parsersRoundTripLegacy() {
+    byte[] dst = new byte[ObjectGUIDTools.GUID_LENGTH];
+    for (byte[] guid : guids()) {
+      assertArrayEquals(guid, ObjectGUIDTools.parseDashedString(legacyDashedString(guid)));
+      assertArrayEquals(guid, ObjectGUIDTools.parseDashedString(legacyDashedString(guid).toUpperCase()));
+      assertArrayEquals(guid, ObjectGUIDTools.parseBindingString(legacyBindingString(guid)));
+      assertArrayEquals(guid, ObjectGUIDTools.parseByteString(legacyByteString(guid)));
+      ObjectGUIDTools.parseDashedString("(" + legacyDashedString(guid), 1, dst);
+      assertArrayEquals(guid, dst);
+      ObjectGUIDTools.parseByteString("objectGUID=" + legacyByteString(guid), 11, dst);
+      assertArrayEquals(guid, dst);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shortDashedString() {
+    ObjectGUIDTools.parseDashedString(DASHED.substring(1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void misplacedDash() {
+    ObjectGUIDTools.parseDashedString("ac642e6e6-ab5-425a-bcc9-9f5067d46e3f");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidHexDigit() {
+    ObjectGUIDTools.parseDashedString("ac642e6e-6ab5-425a-bcc9-9f5067d46e3g");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void bindingStringWithoutBrackets() {
+    ObjectGUIDTools.parseBindingString("GUID=" + DASHED + "  ");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unescapedByteString() {
+    ObjectGUIDTools.parseByteString(BYTES.replace('\\', '/'));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void wrongGUIDLength() {
+    ObjectGUIDTools.convertToDashedString(new byte[15]);
+  }
+
+  static String legacyByteString(byte[] objectGUID) {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < objectGUID.length; i++) {
+      result.append("\\");
+      result.append(prefixZeros((int) objectGUID[i] & 0xFF));
+    }
+    return result.toString();
+  }
+
+  static String legacyBindingString(byte[] objectGUID) {
+    return "<GUID=" + legacyDashedString(objectGUID) + ">";
+  }
+
+  static String legacyDashedString(byte[] objectGUID) {
+    StringBuilder displayStr = new StringBuilder();
+    int[] order = { 3, 2, 1, 0, -1, 5, 4, -1, 7, 6, -1, 8, 9, -1, 10, 11, 12, 13, 14, 15 };
+    for (int i = 0; i < order.length; i++) {
+      if (order[i] < 0) {
+        displayStr.append("-");
+      } else {
+        displayStr.append(prefixZeros((int) objectGUID[order[i]] & 0xFF));
+      }
+    }
+    return displayStr.toString();
+  }
+
+  static String prefixZeros(int value) {
+    if (value <= 0xF) {
+      return "0" + Integer.toHexString(value);
+    }
+    return Integer.toHexString(value);
+  }
+}
@@ -0,0 +1,185 @@
+package com.willeke.ldap.microsoft;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ResultCode;
+
+/**
+ * PasswordSettingsIndex refreshes against an in-memory directory, which
+ * refuses the Show Deleted control unless the test lets it through.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class PasswordSettingsIndexTest {
+
+  static final String CONTAINER_DN = "CN=Password Settings Container,CN=System," + TestDirectory.BASE_DN;
+  static final String DELETED_OBJECTS_DN = "CN=Deleted Objects," + TestDirectory.BASE_DN;
+  static final String PSO_A = "CN=A," + CONTAINER_DN;
+  static final String PSO_B = "CN=B," + CONTAINER_DN;
+  static final long ONE_DAY = 24 * 60 * TestDirectory.ONE_MINUTE;
+
+  TestDirectory directory;
+  LDAPConnection ldc;
+  PasswordSettingsIndex index;
+  DomainPasswordPolicy domainPolicy;
+  final AtomicInteger dnOnlySearches = new AtomicInteger();
+  volatile boolean failDNOnlySearches = false;
+  volatile boolean showDeleted = false;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new TestDirectory(new InMemoryOperationInterceptor() {
+      public void processSearchRequest(InMemoryInterceptedSearchRequest request) throws LDAPException {
+        if (request.getRequest().getAttributeList().contains("1.1")) {
+          dnOnlySearches.incrementAndGet();
+          if (failDNOnlySearches) {
+            throw new LDAPException(ResultCode.BUSY, "DN only search failed");
+          }
+        }
+        if (showDeleted && request.getRequest().hasControl(USNChangedScanner.LDAP_SERVER_SHOW_DELETED_OID)) {
+          request.setRequest(request.getRequest().duplicate(new Control[0]));
+        }
+      }
+    });
+    ldc = directory.getConnection();
+    ldc.add(new Entry("CN=System," + TestDirectory.BASE_DN, new Attribute("objectClass", "container")));
+    ldc.add(new Entry(CONTAINER_DN, new Attribute("objectClass", "msDS-PasswordSettingsContainer")));
+    ldc.add(new Entry(DELETED_OBJECTS_DN, new Attribute("objectClass", "container")));
+    ldc.add(pso(PSO_A, 1, 10, 10));
+    ldc.add(pso(PSO_B, 2, 11, 20));
+    index = new PasswordSettingsIndex(TestDirectory.BASE_DN);
+    domainPolicy = DomainPasswordPolicy.read(ldc);
+    index.refresh(ldc);
+  }
+
+  @After
+  public void tearDown() {
+    ldc.close();
+    directory.shutDown();
+  }
+
+  /**
+   * uSNChanged values keep two digits: without a schema the in-memory server
+   * orders them as strings
+   */
+  static Entry pso(String dn, int n, int usnChanged, int maxPwdAgeDays) {
+    return new Entry(dn, new Attribute("objectClass", "top", "msDS-PasswordSettings"),
+        new Attribute("objectGUID", TestDirectory.guid(1000 + n)),
+        new Attribute("uSNChanged", String.valueOf(usnChanged)),
+        new Attribute("msDS-PasswordSettingsPrecedence", String.valueOf(n)),
+        new Attribute("msDS-MaximumPasswordAge", String.valueOf(maxPwdAgeDays * ONE_DAY)),
+        new Attribute("msDS-MinimumPasswordAge", "0"), new Attribute("msDS-LockoutThreshold", "3"),
+        new Attribute("msDS-LockoutObservationWindow", String.valueOf(30 * TestDirectory.ONE_MINUTE)),
+        new Attribute("msDS-LockoutDuration", String.valueOf(15 * TestDirectory.ONE_MINUTE)));
+  }
+
+  void changeMaxPwdAge(String dn, int usnChanged, int maxPwdAgeDays) throws LDAPException {
+    ldc.modify(dn, new Modification(ModificationType.REPLACE, "uSNChanged", String.valueOf(usnChanged)),
+        new Modification(ModificationType.REPLACE, "msDS-MaximumPasswordAge",
+            String.valueOf(maxPwdAgeDays * ONE_DAY)));
+  }
+
+  int maxPwdAgeDays(String dn) {
+    return index.resolve(dn, domainPolicy).getMaxPwdAge() / 86400;
+  }
+
+  @Test
+  public void load() throws Exception {
+    assertEquals(2, index.size());
+    assertEquals(11, index.getHighestUSNChanged());
+    DomainPasswordPolicy policy = index.resolve(PSO_A, domainPolicy);
+    assertEquals(10 * 86400, policy.getMaxPwdAge());
+    assertEquals(0, policy.getMinPwdAge());
+    assertEquals(3, policy.getLockoutThreshold());
+    assertEquals(1800, policy.getLockOutObservationWindow());
+    assertEquals(900, policy.getLockoutDuration());
+    assertEquals(20, maxPwdAgeDays(PSO_B));
+    assertSame(domainPolicy, index.resolve(null, domainPolicy));
+    assertSame(domainPolicy, index.resolve("CN=C," + CONTAINER_DN, domainPolicy));
+  }
+
+  @Test
+  public void refreshReadsChangedPSOs() throws Exception {
+    changeMaxPwdAge(PSO_A, 12, 30);
+    index.refresh(ldc);
+    assertEquals(30, maxPwdAgeDays(PSO_A));
+    assertEquals(20, maxPwdAgeDays(PSO_B));
+    assertEquals(12, index.getHighestUSNChanged());
+  }
+
+  @Test
+  public void failedRefreshKeepsTheWatermark() throws Exception {
+    changeMaxPwdAge(PSO_A, 12, 30);
+    failDNOnlySearches = true;
+    try {
+      index.refresh(ldc);
+      fail("the DN only search should have failed");
+    } catch (LDAPException e) {
+      assertEquals(ResultCode.BUSY, e.getResultCode());
+    }
+    assertEquals(11, index.getHighestUSNChanged());
+    assertEquals(10, maxPwdAgeDays(PSO_A));
+
+    failDNOnlySearches = false;
+    index.refresh(ldc);
+    assertEquals(12, index.getHighestUSNChanged());
+    assertEquals(30, maxPwdAgeDays(PSO_A));
+  }
+
+  @Test
+  public void dnOnlySearchOnlyAfterChanges() throws Exception {
+    assertEquals(0, dnOnlySearches.get());
+    index.refresh(ldc);
+    assertEquals(0, dnOnlySearches.get());
+    changeMaxPwdAge(PSO_A, 12, 30);
+    index.refresh(ldc);
+    assertEquals(1, dnOnlySearches.get());
+    index.refresh(ldc);
+    assertEquals(1, dnOnlySearches.get());
+  }
+
+  @Test
+  public void deletedPSOLeavesWithTheNextChange() throws Exception {
+    ldc.delete(PSO_B);
+    index.refresh(ldc);
+    assertNotNull(index.get(PSO_B));
+    changeMaxPwdAge(PSO_A, 12, 30);
+    index.refresh(ldc);
+    assertNull(index.get(PSO_B));
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  public void tombstonesWithShowDeleted() throws Exception {
+    showDeleted = true;
+    ldc.delete(PSO_B);
+    Entry tombstone = pso("CN=B DEL," + DELETED_OBJECTS_DN, 2, 12, 20);
+    tombstone.addAttribute("isDeleted", "TRUE");
+    ldc.add(tombstone);
+    index.refresh(ldc);
+    assertNull(index.get(PSO_B));
+    assertEquals(1, index.size());
+    assertEquals(12, index.getHighestUSNChanged());
+    assertEquals(0, dnOnlySearches.get());
+  }
+}
@@ -0,0 +1,181 @@
+package com.willeke.ldap.microsoft;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+
+/**
+ * Range retrieval against an in-memory directory whose MaxValRange is 10.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class RangeBasedSearchTest {
+
+  static final String GROUP_DN = "CN=Group," + TestDirectory.USERS_DN;
+  static final String FILTER = "(objectClass=*)";
+
+  RangeRetrievalInterceptor interceptor;
+  TestDirectory directory;
+  LDAPConnection ldc;
+  LDAPConnectionPool pool;
+
+  @Before
+  public void setUp() throws Exception {
+    RangeBasedSearch.clearRangeStepCache();
+    interceptor = new RangeRetrievalInterceptor(10, "member");
+    directory = new TestDirectory(interceptor);
+    ldc = directory.getConnection();
+    pool = new LDAPConnectionPool(directory.getConnection(), 1, 4);
+  }
+
+  @After
+  public void tearDown() {
+    pool.close();
+    ldc.close();
+    directory.shutDown();
+    RangeBasedSearch.clearRangeStepCache();
+  }
+
+  /**
+   * @param members
+   * @return the member values in the order they are stored
+   */
+  List<String> addGroup(int members) throws LDAPException {
+    List<String> values = new ArrayList<String>();
+    for (int i = 0; i < members; i++) {
+      values.add(TestDirectory.userDN(i));
+    }
+    ldc.add(new Entry(GROUP_DN, new Attribute("objectClass", "group"), new Attribute("member", values)));
+    return values;
+  }
+
+  @Test
+  public void iteratorFetchesOneWindowAtATime() throws Exception {
+    List<String> expected = addGroup(25);
+    Iterator<String> iterator = RangeBasedSearch.iterateAttributeRangeBasedSearch(ldc, GROUP_DN, FILTER, "member",
+        RangeBasedSearch.ADAPTIVE_STEP);
+    assertEquals(0, interceptor.getRequested().size());
+    List<String> values = new ArrayList<String>();
+    for (int i = 0; i < 10; i++) {
+      values.add(iterator.next());
+    }
+    assertEquals(Arrays.asList("member;range=0-*"), interceptor.getRequested());
+    assertEquals(Integer.valueOf(9), RangeBasedSearch.getCachedRangeStep(ldc));
+    values.add(iterator.next());
+    assertEquals(Arrays.asList("member;range=0-*", "member;range=10-19"), interceptor.getRequested());
+    while (iterator.hasNext()) {
+      values.add(iterator.next());
+    }
+    // 20-29 comes back as the short terminal window member;range=20-*
+    assertEquals(Arrays.asList("member;range=0-*", "member;range=10-19", "member;range=20-29"),
+        interceptor.getRequested());
+    assertEquals(expected, values);
+    assertFalse(iterator.hasNext());
+  }
+
+  @Test
+  public void sequentialWithoutRanges() throws Exception {
+    List<String> expected = addGroup(5);
+    assertEquals(0, RangeBasedSearch.getRangeStepValue(ldc, GROUP_DN, FILTER, "member"));
+    assertNull(RangeBasedSearch.getCachedRangeStep(ldc));
+    assertEquals(expected, RangeBasedSearch.getAttributeRangeBasedSearch(ldc, GROUP_DN, FILTER, "member", 0));
+  }
+
+  @Test
+  public void parallelReassemblesInOrder() throws Exception {
+    List<String> expected = addGroup(95);
+    assertEquals(expected,
+        RangeBasedSearch.getAttributeRangeBasedSearchParallel(pool, GROUP_DN, FILTER, "member", 9, 4));
+    List<String> requested = interceptor.getRequested();
+    for (int window = 0; window < 10; window++) {
+      assertTrue(requested.contains("member;range=" + (window * 10) + "-" + (window * 10 + 9)));
+    }
+  }
+
+  @Test
+  public void parallelFullLastWindow() throws Exception {
+    List<String> expected = addGroup(40);
+    assertEquals(expected,
+        RangeBasedSearch.getAttributeRangeBasedSearchParallel(pool, GROUP_DN, FILTER, "member", 9, 3));
+  }
+
+  @Test
+  public void parallelFitsInTheFirstWindow() throws Exception {
+    List<String> expected = addGroup(7);
+    assertEquals(expected, RangeBasedSearch.getAttributeRangeBasedSearchParallel(pool, GROUP_DN, FILTER, "member",
+        RangeBasedSearch.ADAPTIVE_STEP, 4));
+    assertEquals(Arrays.asList("member;range=0-*"), interceptor.getRequested());
+  }
+
+  @Test
+  public void parallelStepLargerThanMaxValRange() throws Exception {
+    List<String> expected = addGroup(73);
+    assertEquals(expected,
+        RangeBasedSearch.getAttributeRangeBasedSearchParallel(pool, GROUP_DN, FILTER, "member", 19, 4));
+    assertTrue(interceptor.getRequested().contains("member;range=10-19"));
+    assertEquals(Integer.valueOf(9), RangeBasedSearch.getCachedRangeStep(ldc));
+  }
+
+  @Test
+  public void adaptiveStepIsCachedPerServer() throws Exception {
+    List<String> expected = addGroup(33);
+    assertEquals(expected, RangeBasedSearch.getAttributeRangeBasedSearchParallel(pool, GROUP_DN, FILTER, "member",
+        RangeBasedSearch.ADAPTIVE_STEP, 4));
+    assertEquals("member;range=0-*", interceptor.getRequested().get(0));
+    assertEquals(Integer.valueOf(9), RangeBasedSearch.getCachedRangeStep(ldc));
+
+    // windows past the end discarded by the first search may still arrive
+    interceptor.requested.clear();
+    assertEquals(expected, RangeBasedSearch.getAttributeRangeBasedSearchParallel(pool, GROUP_DN, FILTER, "member",
+        RangeBasedSearch.ADAPTIVE_STEP, 4));
+    assertTrue(interceptor.getRequested().contains("member;range=0-9"));
+    assertFalse(interceptor.getRequested().contains("member;range=0-*"));
+
+    // another server has its own MaxValRange
+    RangeRetrievalInterceptor otherInterceptor = new RangeRetrievalInterceptor(4, "member");
+    TestDirectory other = new TestDirectory(otherInterceptor);
+    LDAPConnectionPool otherPool = new LDAPConnectionPool(other.getConnection(), 1, 2);
+    LDAPConnection otherConnection = other.getConnection();
+    try {
+      otherConnection.add(new Entry(GROUP_DN, new Attribute("objectClass", "group"),
+          new Attribute("member", expected)));
+      assertNull(RangeBasedSearch.getCachedRangeStep(otherConnection));
+      assertEquals(expected, RangeBasedSearch.getAttributeRangeBasedSearchParallel(otherPool, GROUP_DN, FILTER,
+          "member", RangeBasedSearch.ADAPTIVE_STEP, 2));
+      assertEquals("member;range=0-*", otherInterceptor.getRequested().get(0));
+      assertEquals(Integer.valueOf(3), RangeBasedSearch.getCachedRangeStep(otherConnection));
+      assertEquals(Integer.valueOf(9), RangeBasedSearch.getCachedRangeStep(ldc));
+    } finally {
+      otherConnection.close();
+      otherPool.close();
+      other.shutDown();
+    }
+  }
+
+  @Test
+  public void sequentialOnOnePooledConnection() throws Exception {
+    List<String> expected = addGroup(15);
+    assertEquals(expected, RangeBasedSearch.getAttributeRangeBasedSearchParallel(pool, GROUP_DN, FILTER, "member",
+        RangeBasedSearch.ADAPTIVE_STEP, 1));
+    assertEquals(Arrays.asList("member;range=0-*", "member;range=10-19"), interceptor.getRequested());
+    assertEquals(Integer.valueOf(9), RangeBasedSearch.getCachedRangeStep(ldc));
+    assertEquals(1, pool.getCurrentAvailableConnections());
+  }
+}
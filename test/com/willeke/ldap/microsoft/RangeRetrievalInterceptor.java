@@ -0,0 +1,104 @@
+package com.willeke.ldap.microsoft;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchEntry;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.util.StaticUtils;
+
+/**
+ * Makes the in-memory directory answer like Active Directory for one
+ * multi-valued attribute with more than MaxValRange values: at most
+ * maxValRange values are returned as member;range=0-9 and the last window is
+ * named with an end of "*". The ranges requested are recorded.
+ *
+ * @author jim@willeke.com
+ *
+ */
+class RangeRetrievalInterceptor extends InMemoryOperationInterceptor {
+
+  static final String START = "rangeStart";
+  static final String END = "rangeEnd";
+
+  final String rangedAttribute;
+  final int maxValRange;
+  final List<String> requested = Collections.synchronizedList(new ArrayList<String>());
+
+  /**
+   * @param maxValRange
+   *                          - 1500 like a Windows 2003 and later DC
+   * @param rangedAttribute
+   *                          - e.g. member
+   */
+  RangeRetrievalInterceptor(int maxValRange, String rangedAttribute) {
+    this.maxValRange = maxValRange;
+    this.rangedAttribute = StaticUtils.toLowerCase(rangedAttribute);
+  }
+
+  public void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+    List<String> attributes = new ArrayList<String>(request.getRequest().getAttributeList());
+    for (int i = 0; i < attributes.size(); i++) {
+      String attribute = StaticUtils.toLowerCase(attributes.get(i));
+      int range = attribute.indexOf(";range=");
+      if (range > 0 && rangedAttribute.equals(attribute.substring(0, range))) {
+        requested.add(attribute);
+        String[] bounds = attribute.substring(range + 7).split("-");
+        request.setProperty(START, Integer.valueOf(bounds[0]));
+        request.setProperty(END, bounds[1].equals("*") ? Integer.valueOf(-1) : Integer.valueOf(bounds[1]));
+        attributes.set(i, attributes.get(i).substring(0, range));
+        SearchRequest searchRequest = request.getRequest().duplicate();
+        searchRequest.setAttributes(attributes);
+        request.setRequest(searchRequest);
+        return;
+      }
+    }
+  }
+
+  public void processSearchEntry(InMemoryInterceptedSearchEntry result) {
+    SearchResultEntry entry = result.getSearchEntry();
+    Attribute attribute = entry.getAttribute(rangedAttribute);
+    if (attribute == null) {
+      return;
+    }
+    Integer requestedStart = (Integer) result.getProperty(START);
+    Integer requestedEnd = (Integer) result.getProperty(END);
+    String[] values = attribute.getValues();
+    if (requestedStart == null && values.length <= maxValRange) {
+      return;
+    }
+    Entry ranged = entry.duplicate();
+    ranged.removeAttribute(attribute.getName());
+    int start = requestedStart == null ? 0 : requestedStart.intValue();
+    if (start >= values.length) {
+      ranged.addAttribute(new Attribute(attribute.getName() + ";range=" + start + "-*"));
+    } else {
+      int end = start + maxValRange - 1;
+      if (requestedEnd != null && requestedEnd.intValue() >= 0) {
+        end = Math.min(end, requestedEnd.intValue());
+      }
+      String name;
+      if (end >= values.length - 1) {
+        end = values.length - 1;
+        name = attribute.getName() + ";range=" + start + "-*";
+      } else {
+        name = attribute.getName() + ";range=" + start + "-" + end;
+      }
+      ranged.addAttribute(new Attribute(name, Arrays.copyOfRange(values, start, end + 1)));
+    }
+    result.setSearchEntry(ranged);
+  }
+
+  List<String> getRequested() {
+    synchronized (requested) {
+      return new ArrayList<String>(requested);
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package com.willeke.ldap.microsoft;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+
+/**
+ * A small in-memory stand-in for an AD domain for the tests: a rootDSE with
+ * defaultNamingContext, the domain password policy on the domain entry and
+ * CN=Users. No schema is enforced.
+ *
+ * @author jim@willeke.com
+ *
+ */
+class TestDirectory {
+
+  static final String BASE_DN = "DC=example,DC=com";
+  static final String USERS_DN = "CN=Users," + BASE_DN;
+  static final long FILETIME_EPOCH_OFFSET_MILLIS = 11644473600000L;
+  // 100-nanosecond intervals
+  static final long ONE_MINUTE = -600000000L;
+
+  final InMemoryDirectoryServer server;
+
+  TestDirectory() throws LDAPException {
+    this(new Attribute[0]);
+  }
+
+  /**
+   * @param rootDSEAttributes
+   *                            - added to the rootDSE after
+   *                            defaultNamingContext
+   * @throws LDAPException
+   */
+  TestDirectory(Attribute... rootDSEAttributes) throws LDAPException {
+    this(null, rootDSEAttributes);
+  }
+
+  /**
+   * @param interceptor
+   *                            - sees every request, may be null
+   * @param rootDSEAttributes
+   *                            - added to the rootDSE after
+   *                            defaultNamingContext
+   * @throws LDAPException
+   */
+  TestDirectory(InMemoryOperationInterceptor interceptor, Attribute... rootDSEAttributes) throws LDAPException {
+    InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+    config.setSchema(null);
+    if (interceptor != null) {
+      config.addInMemoryOperationInterceptor(interceptor);
+    }
+    List<Attribute> rootDSE = new ArrayList<Attribute>();
+    rootDSE.add(new Attribute("defaultNamingContext", BASE_DN));
+    rootDSE.addAll(Arrays.asList(rootDSEAttributes));
+    config.setCustomRootDSEAttributes(rootDSE);
+    server = new InMemoryDirectoryServer(config);
+    server.add(new Entry(BASE_DN, new Attribute("objectClass", "domain"),
+        new Attribute("lockoutDuration", String.valueOf(30 * ONE_MINUTE)),
+        new Attribute("lockoutThreshold", "5"),
+        new Attribute("lockOutObservationWindow", String.valueOf(30 * ONE_MINUTE)),
+        new Attribute("maxPwdAge", String.valueOf(42 * 24 * 60 * ONE_MINUTE)),
+        new Attribute("minPwdAge", String.valueOf(24 * 60 * ONE_MINUTE))));
+    server.add(new Entry(USERS_DN, new Attribute("objectClass", "container")));
+    server.startListening();
+  }
+
+  LDAPConnection getConnection() throws LDAPException {
+    return server.getConnection();
+  }
+
+  void shutDown() {
+    server.shutDown(true);
+  }
+
+  static String userDN(int n) {
+    return "CN=User " + n + "," + USERS_DN;
+  }
+
+  /**
+   * @param n
+   * @return a GUID that is never nil
+   */
+  static byte[] guid(int n) {
+    byte[] guid = new byte[16];
+    guid[0] = 1;
+    guid[12] = (byte) (n >>> 24);
+    guid[13] = (byte) (n >>> 16);
+    guid[14] = (byte) (n >>> 8);
+    guid[15] = (byte) n;
+    return guid;
+  }
+
+  static long toFileTime(long millis) {
+    return (millis + FILETIME_EPOCH_OFFSET_MILLIS) * 10000L;
+  }
+
+  /**
+   * @param n
+   * @param badPwdCount
+   * @param badPasswordTime
+   *                          - milliseconds, 0 for never
+   * @return an enabled user whose password was set an hour ago
+   */
+  static Entry user(int n, int badPwdCount, long badPasswordTime) {
+    long now = System.currentTimeMillis();
+    return new Entry(userDN(n), new Attribute("objectClass", "top", "person", "user"),
+        new Attribute("objectCategory", "person"), new Attribute("objectGUID", guid(n)),
+        new Attribute("userAccountControl", "512"),
+        new Attribute("pwdLastSet", String.valueOf(toFileTime(now - 3600000L))),
+        new Attribute("lockoutTime", "0"), new Attribute("accountExpires", "9223372036854775807"),
+        new Attribute("badPwdCount", String.valueOf(badPwdCount)),
+        new Attribute("badPasswordTime", String.valueOf(badPasswordTime == 0 ? 0 : toFileTime(badPasswordTime))),
+        new Attribute("logonCount", "1"));
+  }
+}
@@ -0,0 +1,208 @@
+package com.willeke.ldap.microsoft;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.RootDSE;
+
+/**
+ * USNChangedScanner against a directory with a fixed highestCommittedUSN: a
+ * full scan, a scan from the saved watermark, users kept for retry in the state
+ * file, and the naming context tombstones are searched from, a page at a time.
+ * The interceptor takes the Show Deleted control off the tombstone searches,
+ * which the in-memory server would refuse, and counts them.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class USNChangedScannerTest {
+
+  static final int USERS = 5;
+  // no schema, so uSNChanged compares as a string: keep the values two digits
+  static final long HIGHEST_COMMITTED_USN = 98;
+  static final String DC_DN = "CN=DC1," + TestDirectory.BASE_DN;
+  static final String DS_SERVICE_NAME = "CN=NTDS Settings," + DC_DN;
+
+  static final String DELETED_OBJECTS_DN = "CN=Deleted Objects," + TestDirectory.BASE_DN;
+
+  TestDirectory directory;
+  LDAPConnection ldc;
+  File stateFile;
+  final AtomicInteger tombstoneSearches = new AtomicInteger();
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new TestDirectory(new InMemoryOperationInterceptor() {
+      public void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+        if (request.getRequest().hasControl(USNChangedScanner.LDAP_SERVER_SHOW_DELETED_OID)) {
+          tombstoneSearches.incrementAndGet();
+          Control[] controls = request.getRequest().getControls();
+          List<Control> others = new ArrayList<Control>();
+          for (Control control : controls) {
+            if (!control.getOID().equals(USNChangedScanner.LDAP_SERVER_SHOW_DELETED_OID)) {
+              others.add(control);
+            }
+          }
+          request.setRequest(request.getRequest().duplicate(others.toArray(new Control[others.size()])));
+        }
+      }
+    }, new Attribute("highestCommittedUSN", String.valueOf(HIGHEST_COMMITTED_USN)),
+        new Attribute("dsServiceName", DS_SERVICE_NAME));
+    ldc = directory.getConnection();
+    ldc.add(new Entry(DC_DN, new Attribute("objectClass", "server")));
+    ldc.add(new Entry(DS_SERVICE_NAME, new Attribute("objectClass", "nTDSDSA"),
+        new Attribute("invocationId", TestDirectory.guid(999))));
+    for (int n = 0; n < USERS; n++) {
+      Entry user = TestDirectory.user(n, 0, 0);
+      user.addAttribute("uSNChanged", "10");
+      ldc.add(user);
+    }
+    stateFile = File.createTempFile("usn", ".properties");
+    stateFile.delete();
+  }
+
+  @After
+  public void tearDown() {
+    ldc.close();
+    directory.shutDown();
+    stateFile.delete();
+  }
+
+  @Test
+  public void scansFromTheSavedWatermark() throws Exception {
+    AccountStatusColumns columns = new AccountStatusColumns(USERS);
+    USNChangedScanner.ScanResult full = new USNChangedScanner(columns, stateFile).scan(ldc, TestDirectory.USERS_DN);
+    assertTrue(full.isFullScan());
+    assertEquals(USERS, full.getAdded());
+    String invocationId = ObjectGUIDTools.convertToDashedString(TestDirectory.guid(999));
+
+    ldc.modify(TestDirectory.userDN(2), new Modification(ModificationType.REPLACE, "badPwdCount", "3"),
+        new Modification(ModificationType.REPLACE, "uSNChanged", String.valueOf(HIGHEST_COMMITTED_USN + 1)));
+    USNChangedScanner scanner = new USNChangedScanner(columns, stateFile);
+    assertEquals(HIGHEST_COMMITTED_USN + 1, scanner.getWatermark(invocationId));
+    USNChangedScanner.ScanResult changed = scanner.scan(ldc, TestDirectory.USERS_DN);
+    assertFalse(changed.isFullScan());
+    assertEquals(0, changed.getAdded());
+    assertEquals(1, changed.getUpdated());
+    assertEquals(3, columns.getBadPwdCount(columns.getRow(PackedGUID.fromBytes(TestDirectory.guid(2)))));
+  }
+
+  @Test
+  public void readsTheUsersKeptForRetry() throws Exception {
+    AccountStatusColumns columns = new AccountStatusColumns(USERS);
+    new USNChangedScanner(columns, stateFile).scan(ldc, TestDirectory.USERS_DN);
+    ldc.modify(TestDirectory.userDN(3), new Modification(ModificationType.REPLACE, "badPwdCount", "4"));
+
+    // as left by a scan on which user 3 and a since deleted user failed
+    Properties state = new Properties();
+    InputStream in = new FileInputStream(stateFile);
+    try {
+      state.load(in);
+    } finally {
+      in.close();
+    }
+    state.setProperty(USNChangedScanner.RETRY, ObjectGUIDTools.convertToDashedString(TestDirectory.guid(3)) + " "
+        + ObjectGUIDTools.convertToDashedString(TestDirectory.guid(77)));
+    OutputStream out = new FileOutputStream(stateFile);
+    try {
+      state.store(out, null);
+    } finally {
+      out.close();
+    }
+
+    USNChangedScanner scanner = new USNChangedScanner(columns, stateFile);
+    assertEquals(2, scanner.getPendingRetries());
+    USNChangedScanner.ScanResult result = scanner.scan(ldc, TestDirectory.USERS_DN);
+    assertEquals(2, result.getRetried());
+    assertEquals(1, result.getUpdated());
+    assertEquals(0, scanner.getPendingRetries());
+    assertEquals(4, columns.getBadPwdCount(columns.getRow(PackedGUID.fromBytes(TestDirectory.guid(3)))));
+    assertEquals(0, new USNChangedScanner(columns, stateFile).getPendingRetries());
+  }
+
+  @Test
+  public void restoresTheWatermarksSavedWithTheRecords() throws Exception {
+    USNChangedScanner scanner = new USNChangedScanner(new AccountStatusColumns(USERS), stateFile);
+    scanner.scan(ldc, TestDirectory.USERS_DN);
+    File checkpoint = new File(stateFile.getPath() + ".status");
+    scanner.checkpoint(checkpoint);
+    String invocationId = ObjectGUIDTools.convertToDashedString(TestDirectory.guid(999));
+    try {
+      // the state file moves on, the checkpoint does not
+      Properties state = new Properties();
+      state.setProperty(USNChangedScanner.USN_PREFIX + invocationId, "500");
+      OutputStream out = new FileOutputStream(stateFile);
+      try {
+        state.store(out, null);
+      } finally {
+        out.close();
+      }
+      USNChangedScanner restored = USNChangedScanner.restore(AccountStatusFile.open(checkpoint), stateFile);
+      assertEquals(USERS, restored.getColumns().getLiveCount());
+      assertEquals(HIGHEST_COMMITTED_USN + 1, restored.getWatermark(invocationId));
+      assertEquals(HIGHEST_COMMITTED_USN + 1,
+          new USNChangedScanner(restored.getColumns(), stateFile).getWatermark(invocationId));
+    } finally {
+      checkpoint.delete();
+      new File(checkpoint.getPath() + AccountStatusFile.DN_TABLE_SUFFIX).delete();
+    }
+  }
+
+  @Test
+  public void tombstonesAreSearchedFromTheNamingContext() throws Exception {
+    assertEquals(TestDirectory.BASE_DN, USNChangedScanner.getNamingContext(ldc.getRootDSE(), TestDirectory.USERS_DN));
+    RootDSE forest = new RootDSE(new Entry("", new Attribute("namingContexts", TestDirectory.BASE_DN,
+        "CN=Configuration," + TestDirectory.BASE_DN, "DC=ForestDnsZones," + TestDirectory.BASE_DN),
+        new Attribute("defaultNamingContext", TestDirectory.BASE_DN)));
+    assertEquals(TestDirectory.BASE_DN, USNChangedScanner.getNamingContext(forest, TestDirectory.USERS_DN));
+    assertEquals("CN=Configuration," + TestDirectory.BASE_DN,
+        USNChangedScanner.getNamingContext(forest, "CN=Sites,CN=Configuration," + TestDirectory.BASE_DN));
+    assertEquals(TestDirectory.BASE_DN, USNChangedScanner.getNamingContext(forest, "DC=other,DC=org"));
+  }
+
+  @Test
+  public void tombstonesArePaged() throws Exception {
+    AccountStatusColumns columns = new AccountStatusColumns(USERS);
+    USNChangedScanner scanner = new USNChangedScanner(columns, stateFile);
+    scanner.setShowDeleted(true);
+    scanner.setPageSize(2);
+    scanner.scan(ldc, TestDirectory.USERS_DN);
+    assertEquals(0, tombstoneSearches.get());
+
+    ldc.add(new Entry(DELETED_OBJECTS_DN, new Attribute("objectClass", "container")));
+    for (int n = 0; n < USERS; n++) {
+      ldc.delete(TestDirectory.userDN(n));
+      ldc.add(new Entry("CN=User " + n + "\\0ADEL," + DELETED_OBJECTS_DN, new Attribute("objectClass", "top",
+          "person", "user"), new Attribute("objectGUID", TestDirectory.guid(n)), new Attribute("isDeleted", "TRUE"),
+          new Attribute("uSNChanged", String.valueOf(HIGHEST_COMMITTED_USN + 1))));
+    }
+    USNChangedScanner.ScanResult result = scanner.scan(ldc, TestDirectory.USERS_DN);
+    assertEquals(USERS, result.getDeleted());
+    assertEquals(0, columns.getLiveCount());
+    // 2 + 2 + 1 tombstones
+    assertEquals(3, tombstoneSearches.get());
+  }
+}
@@ -0,0 +1,76 @@
+package com.willeke.ldap.microsoft;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPConnection;
+
+/**
+ * getMaxDate against an in-memory directory, which also answers anonymous
+ * searches, so a server only adds no date when its bind failed and it was
+ * skipped.
+ *
+ * @author jim@willeke.com
+ *
+ */
+public class UtilsTest {
+
+  static final String[] ATTRIBUTES = { "lastLogon" };
+
+  TestDirectory directory;
+  LDAPConnection ldc;
+  String server;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new TestDirectory();
+    ldc = directory.getConnection();
+    Entry user = TestDirectory.user(1, 0, 0);
+    user.addAttribute("sAMAccountName", "user1");
+    user.addAttribute("userPassword", "secret");
+    user.addAttribute("lastLogon", String.valueOf(TestDirectory.toFileTime(System.currentTimeMillis() - 60000L)));
+    ldc.add(user);
+    server = "localhost:" + directory.server.getListenPort();
+  }
+
+  @After
+  public void tearDown() {
+    ldc.close();
+    directory.shutDown();
+  }
+
+  @Test
+  public void getMaxDate() {
+    Date maxDate = Utils.getMaxDate(new String[] { server }, ATTRIBUTES, TestDirectory.userDN(1), "secret",
+        "user1", "sAMAccountName", TestDirectory.USERS_DN);
+    assertTrue(maxDate.after(new Date(0)));
+  }
+
+  @Test
+  public void failedBindSkipsTheServer() {
+    Date maxDate = Utils.getMaxDate(new String[] { server }, ATTRIBUTES, TestDirectory.userDN(1), "wrong", "user1",
+        "sAMAccountName", TestDirectory.USERS_DN);
+    assertEquals(new Date(0), maxDate);
+  }
+
+  @Test
+  public void unreachableServerIsSkipped() throws Exception {
+    Date maxDate = Utils.getMaxDate(new String[] { "localhost:1", server }, ATTRIBUTES, TestDirectory.userDN(1),
+        "secret", "user1", "sAMAccountName", TestDirectory.USERS_DN);
+    assertTrue(maxDate.after(new Date(0)));
+  }
+
+  @Test
+  public void getMaxDateOverConnections() {
+    assertTrue(Utils.getMaxDate(Collections.singletonMap(server, ldc), ATTRIBUTES, "user1", "sAMAccountName",
+        TestDirectory.USERS_DN).after(new Date(0)));
+  }
+}